@@ -0,0 +1,345 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package collection.creator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Reads the records of a comma separated file as described in RFC 4180.
+ * A field between double quotes can contain commas, line breaks and double quotes, which are written twice ("").
+ * Records are read into a reused buffer. After the header the columns that are used can be selected, so the other
+ * fields are skipped without being copied. Numbers are parsed from the buffer, so only text fields create a String.
+ * @author vnijenhuis
+ */
+public class CsvTokenizer implements Closeable {
+
+    /**
+     * Size of the buffer used to read the file.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Powers of ten that are exactly represented by a double.
+     */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19,
+        1e20, 1e21, 1e22
+    };
+
+    /**
+     * Largest integer of which every smaller integer is exactly represented by a double.
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /**
+     * File that is read.
+     */
+    private final Reader reader;
+
+    /**
+     * Characters read from the file.
+     */
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    /**
+     * Position of the next character in the buffer.
+     */
+    private int position = 0;
+
+    /**
+     * Amount of characters in the buffer.
+     */
+    private int limit = 0;
+
+    /**
+     * Fields of the current record that are kept, without quotes.
+     */
+    private char[] record = new char[256];
+
+    /**
+     * Length of the current record in the record array.
+     */
+    private int recordLength = 0;
+
+    /**
+     * Start of each kept field in the record array.
+     */
+    private int[] fieldStarts = new int[16];
+
+    /**
+     * End of each kept field in the record array.
+     */
+    private int[] fieldEnds = new int[16];
+
+    /**
+     * Amount of fields of the current record.
+     */
+    private int fieldCount = 0;
+
+    /**
+     * True for each column that is kept, or null if all columns are kept.
+     */
+    private boolean[] selectedColumns = null;
+
+    /**
+     * Number of the current record, starting at 1.
+     */
+    private int recordNumber = 0;
+
+    /**
+     * Creates a tokenizer that reads records from a reader.
+     * @param reader comma separated file.
+     */
+    public CsvTokenizer(final Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Keeps only the given columns of the next records. The other fields are skipped.
+     * @param columns indices of the columns that are used.
+     */
+    public final void selectColumns(final int... columns) {
+        int size = 0;
+        for (int column : columns) {
+            size = Math.max(size, column + 1);
+        }
+        selectedColumns = new boolean[size];
+        for (int column : columns) {
+            selectedColumns[column] = true;
+        }
+        if (fieldStarts.length < size) {
+            fieldStarts = new int[size];
+            fieldEnds = new int[size];
+        }
+    }
+
+    /**
+     * Reads the next record. A record ends at a line break outside of quotes, like BufferedReader.readLine does for
+     * lines.
+     * @return true if a record was read, false at the end of the file.
+     * @throws IOException could not read the file.
+     */
+    public final boolean nextRecord() throws IOException {
+        if (position == limit && !fill()) {
+            return false;
+        }
+        recordLength = 0;
+        fieldCount = 0;
+        boolean endOfRecord = false;
+        while (!endOfRecord) {
+            boolean kept = selectedColumns == null || fieldCount < selectedColumns.length && selectedColumns[fieldCount];
+            if (kept && fieldCount == fieldStarts.length) {
+                fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+                fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+            }
+            if (kept) {
+                fieldStarts[fieldCount] = recordLength;
+            }
+            boolean quoted = false;
+            boolean endOfField = false;
+            if (position < limit || fill()) {
+                if (buffer[position] == '"') {
+                    quoted = true;
+                    position++;
+                }
+            }
+            while (!endOfField) {
+                if (position == limit && !fill()) {
+                    endOfRecord = true;
+                    break;
+                }
+                char character = buffer[position++];
+                if (quoted) {
+                    if (character == '"') {
+                        if (position == limit && !fill()) {
+                            endOfRecord = true;
+                            break;
+                        }
+                        if (buffer[position] == '"') {
+                            position++;
+                        } else {
+                            quoted = false;
+                            continue;
+                        }
+                    }
+                } else if (character == ',') {
+                    endOfField = true;
+                    continue;
+                } else if (character == '\n') {
+                    endOfRecord = true;
+                    break;
+                } else if (character == '\r') {
+                    if ((position < limit || fill()) && buffer[position] == '\n') {
+                        position++;
+                    }
+                    endOfRecord = true;
+                    break;
+                }
+                if (kept) {
+                    if (recordLength == record.length) {
+                        record = Arrays.copyOf(record, recordLength * 2);
+                    }
+                    record[recordLength++] = character;
+                }
+            }
+            if (kept) {
+                fieldEnds[fieldCount] = recordLength;
+            }
+            fieldCount++;
+        }
+        recordNumber++;
+        return true;
+    }
+
+    /**
+     * Returns the amount of fields of the current record.
+     * @return amount of fields as int.
+     */
+    public final int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Returns the number of the current record. The header is record 1.
+     * @return record number as int.
+     */
+    public final int getRecordNumber() {
+        return recordNumber;
+    }
+
+    /**
+     * Returns a field of the current record as String.
+     * @param column index of the column.
+     * @return field without quotes.
+     */
+    public final String getString(final int column) {
+        checkColumn(column);
+        return new String(record, fieldStarts[column], fieldEnds[column] - fieldStarts[column]);
+    }
+
+    /**
+     * Parses a field of the current record as int, like Integer.parseInt does.
+     * @param column index of the column.
+     * @return value as int.
+     * @throws NumberFormatException the field is not an int.
+     */
+    public final int getInt(final int column) {
+        checkColumn(column);
+        int start = fieldStarts[column];
+        int end = fieldEnds[column];
+        int i = start;
+        boolean negative = false;
+        if (i < end && (record[i] == '-' || record[i] == '+')) {
+            negative = record[i] == '-';
+            i++;
+        }
+        //Values with more than 9 digits may not fit in an int, these are left to Integer.parseInt.
+        if (i == end || end - i > 9) {
+            return Integer.parseInt(getString(column));
+        }
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = record[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Integer.parseInt(getString(column));
+            }
+            value = value * 10 + digit;
+        }
+        if (negative) {
+            return -value;
+        }
+        return value;
+    }
+
+    /**
+     * Parses a field of the current record as double, with the same result as Double.parseDouble.
+     * Decimal numbers of at most 15 digits are calculated from the buffer, other values are left to Double.parseDouble.
+     * @param column index of the column.
+     * @return value as double.
+     * @throws NumberFormatException the field is not a double.
+     */
+    public final double getDouble(final int column) {
+        checkColumn(column);
+        int start = fieldStarts[column];
+        int end = fieldEnds[column];
+        int i = start;
+        boolean negative = false;
+        if (i < end && (record[i] == '-' || record[i] == '+')) {
+            negative = record[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < end; i++) {
+            char character = record[i];
+            if (character >= '0' && character <= '9') {
+                mantissa = mantissa * 10 + character - '0';
+                digits++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (character == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                digits = -1;
+                break;
+            }
+        }
+        //The quotient of two exact values is rounded once, which gives the same double as Double.parseDouble.
+        if (digits > 0 && digits <= 15 && mantissa < MAX_EXACT_MANTISSA) {
+            double value = mantissa;
+            if (decimals > 0) {
+                value /= POWERS_OF_TEN[decimals];
+            }
+            if (negative) {
+                return -value;
+            }
+            return value;
+        }
+        return Double.parseDouble(getString(column));
+    }
+
+    /**
+     * Checks if a column is present and kept in the current record.
+     * @param column index of the column.
+     */
+    private void checkColumn(final int column) {
+        if (column >= fieldCount) {
+            throw new IndexOutOfBoundsException("Record " + recordNumber + " has " + fieldCount + " columns, column "
+                    + (column + 1) + " was requested.");
+        }
+        if (selectedColumns != null && (column >= selectedColumns.length || !selectedColumns[column])) {
+            throw new IllegalArgumentException("Column " + (column + 1) + " was not selected.");
+        }
+    }
+
+    /**
+     * Reads the next characters of the file into the buffer.
+     * @return true if characters were read, false at the end of the file.
+     * @throws IOException could not read the file.
+     */
+    private boolean fill() throws IOException {
+        int count = reader.read(buffer, 0, buffer.length);
+        while (count == 0) {
+            count = reader.read(buffer, 0, buffer.length);
+        }
+        position = 0;
+        limit = Math.max(count, 0);
+        return count > 0;
+    }
+
+    /**
+     * Closes the file.
+     * @throws IOException could not close the file.
+     */
+    @Override
+    public final void close() throws IOException {
+        reader.close();
+    }
+}
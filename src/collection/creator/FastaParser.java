@@ -0,0 +1,368 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package collection.creator;
+
+import index.GzipBlockIndex;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Parses the records of a .fasta or .fasta.gz database file on byte level.
+ * The file is read through one reusable buffer and the residues of a record are appended to a growable byte store,
+ * so only the accession String of each record is created. The sequence String is created when it is requested, the
+ * residues can also be copied without creating it.
+ * Gives the same records as reading the file line by line: the accession is the first word of the header without
+ * '>' characters, sequence lines are trimmed and a record is completed by the header of the next record. This also
+ * means that the last record of a file is not returned.
+ * Multi-member gzip and BGZF files are decompressed in parallel when more than one thread is given. The offsets of
+ * the members are stored in a block index next to the database file on first read.
+ * @author vnijenhuis
+ */
+public class FastaParser implements Closeable {
+
+    /**
+     * Size of the read buffer in bytes.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Stream of the (decompressed) database file.
+     */
+    private final InputStream input;
+
+    /**
+     * Replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     */
+    private final boolean equateIsoleucineLeucine;
+
+    /**
+     * Reusable read buffer.
+     */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Position of the next byte in the buffer.
+     */
+    private int position = 0;
+
+    /**
+     * Amount of valid bytes in the buffer.
+     */
+    private int limit = 0;
+
+    /**
+     * Offset of the first byte of the buffer in the (decompressed) file.
+     */
+    private long bufferOffset = 0;
+
+    /**
+     * Residues of the record that is being read.
+     */
+    private byte[] residues = new byte[1024];
+
+    /**
+     * Amount of residues of the record that is being read.
+     */
+    private int residueCount = 0;
+
+    /**
+     * Bytes of the accession that is being read.
+     */
+    private byte[] accessionBytes = new byte[64];
+
+    /**
+     * Shows if the first header was found.
+     */
+    private boolean headerFound = false;
+
+    /**
+     * Accession of the record that is being read.
+     */
+    private String accession = "";
+
+    /**
+     * Offset of the line after the header of the record that is being read.
+     */
+    private long sequenceStart = 0;
+
+    /**
+     * Offset of the line after the header of the last completed record.
+     */
+    private long recordSequenceStart;
+
+    /**
+     * Offset of the header after the last completed record.
+     */
+    private long recordSequenceEnd;
+
+    /**
+     * Accession of the last completed record.
+     */
+    private String recordAccession;
+
+    /**
+     * Amount of residues of the last completed record.
+     */
+    private int recordLength;
+
+    /**
+     * Sequence of the last completed record, or null if it was not requested yet.
+     */
+    private String recordSequence;
+
+    /**
+     * Opens a .fasta or .fasta.gz database file.
+     * @param database database file.
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     * @throws IOException could not open the file or the file is not a fasta file.
+     */
+    public FastaParser(final String database, final boolean equateIsoleucineLeucine) throws IOException {
+        this(database, equateIsoleucineLeucine, 1);
+    }
+
+    /**
+     * Opens a .fasta or .fasta.gz database file.
+     * @param database database file.
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     * @param threads amount of threads used to decompress a .fasta.gz file.
+     * @throws IOException could not open the file or the file is not a fasta file.
+     */
+    public FastaParser(final String database, final boolean equateIsoleucineLeucine, final int threads) throws IOException {
+        this.equateIsoleucineLeucine = equateIsoleucineLeucine;
+        File file = new File(database);
+        //Read database files. Can read .fasta and .fasta.gz files.
+        if (database.matches(".*\\.fa(sta){0,1}\\.gz")) {
+            GzipBlockIndex blockIndex = null;
+            if (threads > 1) {
+                blockIndex = getBlockIndex(file);
+            }
+            if (blockIndex != null && ParallelGzipInputStream.canDecompress(blockIndex)) {
+                System.out.println("Decompressing " + blockIndex.getBlockCount() + " gzip members of " + database + " with " + threads + " threads.");
+                input = new ParallelGzipInputStream(file, blockIndex, threads);
+            } else {
+                input = new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE);
+            }
+        } else if (database.matches(".*\\.fa(sta){0,1}")) {
+            input = new FileInputStream(file);
+        } else {
+            throw new IOException(database + " is not a .fasta or .fasta.gz file.");
+        }
+    }
+
+    /**
+     * Loads the block index of a gzip file, or creates it when it does not exist yet.
+     * @param file gzip file.
+     * @return block index, or null if the file could not be indexed.
+     */
+    static GzipBlockIndex getBlockIndex(final File file) {
+        File indexFile = new File(file.getPath() + GzipBlockIndex.EXTENSION);
+        if (indexFile.isFile()) {
+            try {
+                GzipBlockIndex blockIndex = GzipBlockIndex.load(indexFile);
+                if (blockIndex.isCreatedFrom(file)) {
+                    return blockIndex;
+                }
+                System.out.println("Gzip block index " + indexFile + " is outdated and will be created again.");
+            } catch (IOException ex) {
+                System.out.println("Could not read gzip block index " + indexFile + ": " + ex.getMessage());
+            }
+        }
+        GzipBlockIndex blockIndex;
+        try {
+            System.out.println("Creating gzip block index of " + file + "...");
+            blockIndex = new GzipBlockIndex(file);
+        } catch (IOException ex) {
+            System.out.println("Could not create gzip block index of " + file + ": " + ex.getMessage());
+            return null;
+        }
+        try {
+            blockIndex.save(indexFile);
+            System.out.println("Saved gzip block index to " + indexFile);
+        } catch (IOException ex) {
+            System.out.println("Could not save gzip block index " + indexFile + ": " + ex.getMessage());
+        }
+        return blockIndex;
+    }
+
+    /**
+     * Reads the next record.
+     * @return true if a record was completed, false when the end of the file is reached.
+     * @throws IOException could not read the file.
+     */
+    public final boolean nextRecord() throws IOException {
+        int first;
+        while ((first = read()) != -1) {
+            if (first == '>') {
+                long headerStart = bufferOffset + position - 1;
+                long previousSequenceStart = sequenceStart;
+                String previousAccession = accession;
+                accession = readAccession();
+                sequenceStart = bufferOffset + position;
+                //A record is complete when the next header is found.
+                if (headerFound) {
+                    recordAccession = previousAccession;
+                    recordSequenceStart = previousSequenceStart;
+                    recordSequenceEnd = headerStart;
+                    recordLength = residueCount;
+                    recordSequence = null;
+                    residueCount = 0;
+                    return true;
+                }
+                headerFound = true;
+            } else {
+                readResidues(first);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the accession of the last completed record.
+     * @return accession as String.
+     */
+    public final String getAccession() {
+        return recordAccession;
+    }
+
+    /**
+     * Returns the sequence of the last completed record.
+     * @return protein sequence as String.
+     */
+    public final String getSequence() {
+        if (recordSequence == null) {
+            recordSequence = new String(residues, 0, recordLength, StandardCharsets.US_ASCII);
+        }
+        return recordSequence;
+    }
+
+    /**
+     * Returns the length of the sequence of the last completed record.
+     * @return amount of residues as int.
+     */
+    public final int getSequenceLength() {
+        return recordLength;
+    }
+
+    /**
+     * Copies the residues of the last completed record into the given array.
+     * @param target array of at least the length of the sequence.
+     */
+    public final void getResidues(final byte[] target) {
+        getResidues(target, 0);
+    }
+
+    /**
+     * Copies the residues of the last completed record into the given array, starting at an offset.
+     * @param target array with room for the sequence after the offset.
+     * @param offset index in the array of the first residue.
+     */
+    public final void getResidues(final byte[] target, final int offset) {
+        System.arraycopy(residues, 0, target, offset, recordLength);
+    }
+
+    /**
+     * Returns the offset of the sequence lines of the last completed record in the (decompressed) file.
+     * @return offset of the line after the header.
+     */
+    public final long getSequenceStart() {
+        return recordSequenceStart;
+    }
+
+    /**
+     * Returns the end of the sequence lines of the last completed record in the (decompressed) file.
+     * @return offset of the header of the next record.
+     */
+    public final long getSequenceEnd() {
+        return recordSequenceEnd;
+    }
+
+    /**
+     * Reads the next byte.
+     * @return byte value from 0 to 255, or -1 at the end of the file.
+     * @throws IOException could not read the file.
+     */
+    private int read() throws IOException {
+        if (position == limit) {
+            bufferOffset += limit;
+            limit = input.read(buffer, 0, BUFFER_SIZE);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    /**
+     * Reads the first word of a header line without '>' characters and skips the rest of the line.
+     * @return accession as String.
+     * @throws IOException could not read the file.
+     */
+    private String readAccession() throws IOException {
+        int length = 0;
+        int value;
+        while ((value = read()) != -1 && value != ' ' && value != '\n' && value != '\r') {
+            if (value != '>') {
+                if (length == accessionBytes.length) {
+                    accessionBytes = Arrays.copyOf(accessionBytes, length * 2);
+                }
+                accessionBytes[length++] = (byte) value;
+            }
+        }
+        if (value == ' ') {
+            while ((value = read()) != -1 && value != '\n' && value != '\r') {
+                //Skip the description.
+            }
+        }
+        return new String(accessionBytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Appends a sequence line without leading and trailing whitespace to the residues.
+     * @param first first byte of the line.
+     * @throws IOException could not read the file.
+     */
+    private void readResidues(final int first) throws IOException {
+        int end = residueCount;
+        boolean leading = true;
+        int value = first;
+        while (value != -1 && value != '\n' && value != '\r') {
+            //Leading whitespace is skipped, trailing whitespace is removed when the line ends.
+            if (value > ' ') {
+                leading = false;
+            }
+            if (!leading) {
+                if (residueCount == residues.length) {
+                    residues = Arrays.copyOf(residues, residueCount * 2);
+                }
+                if (equateIsoleucineLeucine && value == 'I') {
+                    value = 'L';
+                }
+                residues[residueCount++] = (byte) value;
+                if (value > ' ') {
+                    end = residueCount;
+                }
+            }
+            value = read();
+        }
+        residueCount = end;
+    }
+
+    /**
+     * Closes the database file.
+     * @throws IOException could not close the file.
+     */
+    @Override
+    public final void close() throws IOException {
+        input.close();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package collection.creator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import objects.Protein;
+
+/**
+ * Reads the proteins of a database file one at a time, so the database does not have to be kept in memory.
+ * Returns the same proteins as ProteinFileReader, which also means that the last protein of a file is not returned.
+ * @author vnijenhuis
+ */
+public class FastaStreamReader implements Closeable {
+
+    /**
+     * Parser of the database file.
+     */
+    private final FastaParser parser;
+
+    /**
+     * Opens a .fasta or .fasta.gz database file.
+     * @param database database file.
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     * @throws IOException could not open the file or the file is not a fasta file.
+     */
+    public FastaStreamReader(final String database, final boolean equateIsoleucineLeucine) throws IOException {
+        parser = new FastaParser(database, equateIsoleucineLeucine);
+    }
+
+    /**
+     * Reads the next protein.
+     * @return next protein, or null when the end of the file is reached.
+     * @throws IOException could not read the file.
+     */
+    public final Protein readProtein() throws IOException {
+        if (parser.nextRecord()) {
+            return new Protein(parser.getSequence(), parser.getAccession());
+        }
+        return null;
+    }
+
+    /**
+     * Closes the database file.
+     * @throws IOException could not close the file.
+     */
+    @Override
+    public final void close() throws IOException {
+        parser.close();
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package collection.creator;
+
+import index.FastaIndex;
+import index.GzipBlockIndex;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import objects.Protein;
+
+/**
+ * Reads single proteins of a .fasta or .fasta.gz database file by accession or by index, without loading the whole
+ * database. The FASTA index of the database is loaded, or created and saved next to the database file when it is
+ * missing or outdated. A protein gets the same sequence as in the protein collections of the database.
+ * Proteins of a .fasta.gz file are read by decompressing the gzip member that contains them. A gzip stream can only be
+ * decompressed from the start of a member, so random access needs multi-member or BGZF (bgzip) files. A large
+ * single-member file gives a warning, as each protein is then read by decompressing the file from the start. Proteins
+ * that are read in the order of the file continue from the previous protein instead.
+ * @author vnijenhuis
+ */
+public class IndexedFastaReader implements Closeable {
+
+    /**
+     * Compressed size in bytes above which a single-member gzip file gives a warning.
+     */
+    private static final long SINGLE_MEMBER_WARNING_SIZE = 1 << 24;
+
+    /**
+     * Database file.
+     */
+    private final File file;
+
+    /**
+     * Index of the proteins of the database.
+     */
+    private final FastaIndex fastaIndex;
+
+    /**
+     * Replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     */
+    private final boolean equateIsoleucineLeucine;
+
+    /**
+     * Channel of the database file, or null for compressed databases.
+     */
+    private final FileChannel channel;
+
+    /**
+     * True if the database file is gzip compressed.
+     */
+    private final boolean compressed;
+
+    /**
+     * Offset of each gzip member in the gzip file, for compressed databases.
+     */
+    private long[] memberStarts;
+
+    /**
+     * Offset of each gzip member in the decompressed file, for compressed databases.
+     */
+    private long[] memberOffsets;
+
+    /**
+     * Decompressed stream of the member that was read last, or null if no member is open.
+     */
+    private InputStream openStream;
+
+    /**
+     * Index of the member of the open stream.
+     */
+    private int openMember = -1;
+
+    /**
+     * Offset of the open stream in the decompressed member.
+     */
+    private long openPosition;
+
+    /**
+     * Opens a .fasta or .fasta.gz database file.
+     * @param database database file.
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     * @throws IOException could not read the database file or could not create its index.
+     */
+    public IndexedFastaReader(final String database, final boolean equateIsoleucineLeucine) throws IOException {
+        this.file = new File(database);
+        this.equateIsoleucineLeucine = equateIsoleucineLeucine;
+        if (database.matches(".*\\.fa(sta){0,1}\\.gz")) {
+            compressed = true;
+            GzipBlockIndex blockIndex = FastaParser.getBlockIndex(file);
+            if (blockIndex != null) {
+                memberStarts = new long[blockIndex.getBlockCount()];
+                memberOffsets = new long[blockIndex.getBlockCount()];
+                for (int block = 1; block < blockIndex.getBlockCount(); block++) {
+                    memberStarts[block] = blockIndex.getBlockStart(block);
+                    memberOffsets[block] = memberOffsets[block - 1] + blockIndex.getBlockSize(block - 1);
+                }
+            } else {
+                memberStarts = new long[]{0};
+                memberOffsets = new long[]{0};
+            }
+            if (memberStarts.length == 1 && file.length() > SINGLE_MEMBER_WARNING_SIZE) {
+                System.out.println("WARNING: " + database + " is one gzip member, so every protein is read by decompressing the file"
+                        + " from the start. Compress the database with bgzip for fast access by accession.");
+            }
+        } else if (database.matches(".*\\.fa(sta){0,1}")) {
+            compressed = false;
+        } else {
+            throw new IOException(database + " is not a .fasta or .fasta.gz file.");
+        }
+        fastaIndex = getFastaIndex(database, 1);
+        if (compressed) {
+            channel = null;
+        } else {
+            channel = new FileInputStream(file).getChannel();
+        }
+    }
+
+    /**
+     * Loads the FASTA index of a database file, or creates it when it does not exist yet or is outdated.
+     * @param database database file.
+     * @param threads amount of threads used to decompress a .fasta.gz file.
+     * @return FASTA index.
+     * @throws IOException could not create the index.
+     */
+    public static FastaIndex getFastaIndex(final String database, final int threads) throws IOException {
+        File indexFile = new File(database + FastaIndex.EXTENSION);
+        if (indexFile.isFile()) {
+            try {
+                FastaIndex fastaIndex = FastaIndex.load(indexFile);
+                if (fastaIndex.isCreatedFrom(new File(database))) {
+                    return fastaIndex;
+                }
+                System.out.println("FASTA index " + indexFile + " is outdated and will be created again.");
+            } catch (IOException ex) {
+                System.out.println("Could not read FASTA index " + indexFile + ": " + ex.getMessage());
+            }
+        }
+        System.out.println("Creating FASTA index of " + database + "...");
+        FastaIndex.create(database, indexFile, threads);
+        System.out.println("Saved FASTA index to " + indexFile);
+        return FastaIndex.load(indexFile);
+    }
+
+    /**
+     * Returns the amount of proteins.
+     * @return amount of proteins as int.
+     */
+    public final int getProteinCount() {
+        return fastaIndex.getProteinCount();
+    }
+
+    /**
+     * Returns the index of the first protein with the given accession.
+     * @param accession protein accession.
+     * @return index of the protein, or -1 if the accession is not present.
+     */
+    public final int getProteinIndex(final String accession) {
+        return fastaIndex.getProtein(accession);
+    }
+
+    /**
+     * Returns the accession of a protein.
+     * @param protein index of the protein.
+     * @return accession as String.
+     */
+    public final String getAccession(final int protein) {
+        return fastaIndex.getAccession(protein);
+    }
+
+    /**
+     * Reads the first protein with the given accession.
+     * @param accession protein accession.
+     * @return Protein object, or null if the accession is not present.
+     * @throws IOException could not read the database file.
+     */
+    public final Protein getProtein(final String accession) throws IOException {
+        int protein = fastaIndex.getProtein(accession);
+        if (protein < 0) {
+            return null;
+        }
+        return new Protein(getSequence(protein), accession);
+    }
+
+    /**
+     * Reads the sequence of a protein.
+     * @param protein index of the protein.
+     * @return protein sequence as String.
+     * @throws IOException could not read the database file.
+     */
+    public final String getSequence(final int protein) throws IOException {
+        long start = fastaIndex.getSequenceStart(protein);
+        byte[] lines = new byte[(int) (fastaIndex.getSequenceEnd(protein) - start)];
+        if (compressed) {
+            readCompressed(start, lines);
+        } else {
+            ByteBuffer buffer = ByteBuffer.wrap(lines);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    throw new IOException(file + " ended unexpectedly.");
+                }
+            }
+        }
+        byte[] residues = new byte[fastaIndex.getSequenceLength(protein)];
+        int count = 0;
+        int end = 0;
+        boolean leading = true;
+        //Lines are trimmed like FastaParser does.
+        for (byte character : lines) {
+            int value = character & 0xff;
+            if (value == '\n' || value == '\r') {
+                count = end;
+                leading = true;
+                continue;
+            }
+            if (value > ' ') {
+                leading = false;
+            }
+            if (!leading) {
+                if (count == residues.length) {
+                    residues = Arrays.copyOf(residues, count * 2 + 1);
+                }
+                if (equateIsoleucineLeucine && value == 'I') {
+                    value = 'L';
+                }
+                residues[count++] = (byte) value;
+                if (value > ' ') {
+                    end = count;
+                }
+            }
+        }
+        return new String(residues, 0, end, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads decompressed bytes of a gzip file, starting at the gzip member that contains the offset. The open member
+     * is read on when the offset is at or after its position, otherwise the member is decompressed from its start.
+     * @param offset offset in the decompressed file.
+     * @param bytes array that is filled.
+     * @throws IOException could not read the database file.
+     */
+    private synchronized void readCompressed(final long offset, final byte[] bytes) throws IOException {
+        int member = Arrays.binarySearch(memberOffsets, offset);
+        if (member < 0) {
+            member = -member - 2;
+        }
+        //Empty members share the offset of the next member, the last of them is used.
+        while (member + 1 < memberOffsets.length && memberOffsets[member + 1] == offset) {
+            member++;
+        }
+        long memberPosition = offset - memberOffsets[member];
+        if (openStream == null || member != openMember || memberPosition < openPosition) {
+            closeMember();
+            FileInputStream inputStream = new FileInputStream(file);
+            try {
+                inputStream.getChannel().position(memberStarts[member]);
+                openStream = new GZIPInputStream(inputStream, 1 << 16);
+            } catch (IOException ex) {
+                inputStream.close();
+                throw ex;
+            }
+            openMember = member;
+            openPosition = 0;
+        }
+        try {
+            long skip = memberPosition - openPosition;
+            while (skip > 0) {
+                long skipped = openStream.skip(skip);
+                if (skipped <= 0) {
+                    throw new IOException(file + " ended unexpectedly.");
+                }
+                skip -= skipped;
+            }
+            int position = 0;
+            while (position < bytes.length) {
+                int count = openStream.read(bytes, position, bytes.length - position);
+                if (count < 0) {
+                    throw new IOException(file + " ended unexpectedly.");
+                }
+                position += count;
+            }
+            openPosition = memberPosition + bytes.length;
+        } catch (IOException ex) {
+            closeMember();
+            throw ex;
+        }
+    }
+
+    /**
+     * Closes the stream of the member that was read last.
+     * @throws IOException could not close the file.
+     */
+    private void closeMember() throws IOException {
+        if (openStream != null) {
+            InputStream memberStream = openStream;
+            openStream = null;
+            openMember = -1;
+            memberStream.close();
+        }
+    }
+
+    /**
+     * Closes the database file.
+     * @throws IOException could not close the file.
+     */
+    @Override
+    public final synchronized void close() throws IOException {
+        closeMember();
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
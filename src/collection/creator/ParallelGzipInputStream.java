@@ -0,0 +1,257 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package collection.creator;
+
+import index.GzipBlockIndex;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decompresses the members of a multi-member gzip or BGZF file in parallel and returns the decompressed bytes in
+ * the original order. Consecutive members are grouped into chunks and only a few chunks per thread are decompressed
+ * ahead of the reader, so the memory use stays limited.
+ * @author vnijenhuis
+ */
+class ParallelGzipInputStream extends InputStream {
+
+    /**
+     * Compressed size of a chunk that is decompressed by one thread.
+     */
+    private static final long CHUNK_SIZE = 4 << 20;
+
+    /**
+     * Largest decompressed size of a chunk.
+     */
+    private static final long MAX_CHUNK_SIZE = 256 << 20;
+
+    /**
+     * Amount of chunks per thread that may be decompressed ahead of the reader.
+     */
+    private static final int CHUNKS_PER_THREAD = 2;
+
+    /**
+     * Channel of the gzip file. Positional reads are safe from several threads.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Thread pool that decompresses the chunks.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * First member of each chunk, followed by the amount of members.
+     */
+    private final ArrayList<Integer> chunkStarts;
+
+    /**
+     * Index of the members.
+     */
+    private final GzipBlockIndex blockIndex;
+
+    /**
+     * Chunks that are being decompressed, in file order.
+     */
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    /**
+     * Index of the next chunk that is submitted.
+     */
+    private int nextChunk = 0;
+
+    /**
+     * Decompressed bytes of the current chunk.
+     */
+    private byte[] current = new byte[0];
+
+    /**
+     * Position of the next byte in the current chunk.
+     */
+    private int position = 0;
+
+    /**
+     * Opens a gzip file.
+     * @param file gzip file.
+     * @param blockIndex index of the members of the file.
+     * @param threads amount of threads used.
+     * @throws IOException could not open the file.
+     */
+    ParallelGzipInputStream(final File file, final GzipBlockIndex blockIndex, final int threads) throws IOException {
+        this.blockIndex = blockIndex;
+        chunkStarts = new ArrayList<>();
+        long chunkSize = CHUNK_SIZE;
+        long decompressedSize = 0;
+        for (int block = 0; block < blockIndex.getBlockCount(); block++) {
+            if (chunkSize >= CHUNK_SIZE || decompressedSize + blockIndex.getBlockSize(block) > MAX_CHUNK_SIZE) {
+                chunkStarts.add(block);
+                chunkSize = 0;
+                decompressedSize = 0;
+            }
+            chunkSize += blockIndex.getBlockEnd(block) - blockIndex.getBlockStart(block);
+            decompressedSize += blockIndex.getBlockSize(block);
+        }
+        chunkStarts.add(blockIndex.getBlockCount());
+        channel = new FileInputStream(file).getChannel();
+        pool = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads * CHUNKS_PER_THREAD; i++) {
+            submitChunk();
+        }
+    }
+
+    /**
+     * Checks if the members of a gzip file can be decompressed in parallel.
+     * @param blockIndex index of the members of the file.
+     * @return true if there are several members and no member is too large to decompress in memory, else false.
+     */
+    static boolean canDecompress(final GzipBlockIndex blockIndex) {
+        if (blockIndex.getBlockCount() < 2) {
+            return false;
+        }
+        for (int block = 0; block < blockIndex.getBlockCount(); block++) {
+            if (blockIndex.getBlockSize(block) > MAX_CHUNK_SIZE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decompresses the members of one chunk.
+     */
+    private class Chunk implements Callable<byte[]> {
+
+        /**
+         * First member of the chunk.
+         */
+        private final int firstBlock;
+
+        /**
+         * Member after the last member of the chunk.
+         */
+        private final int endBlock;
+
+        /**
+         * Creates a chunk.
+         * @param firstBlock first member of the chunk.
+         * @param endBlock member after the last member of the chunk.
+         */
+        Chunk(final int firstBlock, final int endBlock) {
+            this.firstBlock = firstBlock;
+            this.endBlock = endBlock;
+        }
+
+        /**
+         * Reads and decompresses the members of the chunk.
+         * @return decompressed bytes.
+         * @throws IOException could not read or decompress the members.
+         */
+        @Override
+        public byte[] call() throws IOException {
+            long start = blockIndex.getBlockStart(firstBlock);
+            ByteBuffer compressed = ByteBuffer.allocate((int) (blockIndex.getBlockEnd(endBlock - 1) - start));
+            while (compressed.hasRemaining()) {
+                if (channel.read(compressed, start + compressed.position()) < 0) {
+                    throw new IOException("Gzip file ended unexpectedly.");
+                }
+            }
+            long size = 0;
+            for (int block = firstBlock; block < endBlock; block++) {
+                size += blockIndex.getBlockSize(block);
+            }
+            byte[] output = new byte[(int) size];
+            try (InputStream gzipStream = new GZIPInputStream(new ByteArrayInputStream(compressed.array()), 1 << 16)) {
+                int offset = 0;
+                int count;
+                while (offset < output.length && (count = gzipStream.read(output, offset, output.length - offset)) > 0) {
+                    offset += count;
+                }
+                if (offset != output.length || gzipStream.read() != -1) {
+                    throw new IOException("Decompressed size of a gzip member does not match the block index.");
+                }
+            }
+            return output;
+        }
+    }
+
+    /**
+     * Submits the next chunk to the thread pool, if there is one.
+     */
+    private void submitChunk() {
+        if (nextChunk < chunkStarts.size() - 1) {
+            pending.add(pool.submit(new Chunk(chunkStarts.get(nextChunk), chunkStarts.get(nextChunk + 1))));
+            nextChunk++;
+        }
+    }
+
+    /**
+     * Moves to the next decompressed chunk.
+     * @return false if all chunks were read, else true.
+     * @throws IOException could not decompress the chunk.
+     */
+    private boolean nextChunk() throws IOException {
+        while (position == current.length) {
+            Future<byte[]> future = pending.poll();
+            if (future == null) {
+                return false;
+            }
+            try {
+                current = future.get();
+            } catch (InterruptedException ex) {
+                throw new IOException("Decompression was interrupted.");
+            } catch (ExecutionException ex) {
+                throw new IOException(ex.getCause().getMessage());
+            }
+            position = 0;
+            submitChunk();
+        }
+        return true;
+    }
+
+    @Override
+    public final int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public final int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * Stops the decompression and closes the gzip file.
+     * @throws IOException could not close the file.
+     */
+    @Override
+    public final void close() throws IOException {
+        //Shutdown command for the pool to prevent the script from running infinitely.
+        pool.shutdownNow();
+        channel.close();
+    }
+}
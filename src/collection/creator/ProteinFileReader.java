@@ -5,17 +5,13 @@
 package collection.creator;
 
 import objects.Protein;
+import collections.OffHeapProteinCollection;
 import collections.ProteinCollection;
-import java.io.BufferedReader;
+import collections.SequenceStore;
+import index.PackedProteinDatabase;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.util.zip.GZIPInputStream;
 
 /**
  * Creates a collection of protein objects.
@@ -23,9 +19,56 @@ import java.util.zip.GZIPInputStream;
  */
 public class ProteinFileReader {
     /**
-     * Buffered reader for file reading.
+     * Replaces isoleucine (I) by leucine (L) in the protein sequences when true.
      */
-    private BufferedReader dbReader;
+    private final boolean equateIsoleucineLeucine;
+
+    /**
+     * Store of sequences shared with other databases, or null if every protein keeps its own sequence.
+     */
+    private final SequenceStore sequenceStore;
+
+    /**
+     * Amount of threads used to decompress .fasta.gz files.
+     */
+    private final int threads;
+
+    /**
+     * Creates a reader that keeps the protein sequences as they are.
+     */
+    public ProteinFileReader() {
+        this(false);
+    }
+
+    /**
+     * Creates a reader.
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     * Mass spectrometry can not distinguish these residues.
+     */
+    public ProteinFileReader(final boolean equateIsoleucineLeucine) {
+        this(equateIsoleucineLeucine, null);
+    }
+
+    /**
+     * Creates a reader that stores each distinct sequence once.
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     * @param sequenceStore store of sequences shared with other databases, or null.
+     */
+    public ProteinFileReader(final boolean equateIsoleucineLeucine, final SequenceStore sequenceStore) {
+        this(equateIsoleucineLeucine, sequenceStore, 1);
+    }
+
+    /**
+     * Creates a reader that stores each distinct sequence once and decompresses .fasta.gz files in parallel.
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     * @param sequenceStore store of sequences shared with other databases, or null.
+     * @param threads amount of threads used to decompress multi-member .fasta.gz files.
+     */
+    public ProteinFileReader(final boolean equateIsoleucineLeucine, final SequenceStore sequenceStore, final int threads) {
+        this.equateIsoleucineLeucine = equateIsoleucineLeucine;
+        this.sequenceStore = sequenceStore;
+        this.threads = threads;
+    }
 
     /**
      * Reads proteins.fasta files or database file such as the uniprot-database.fasta.gz
@@ -36,36 +79,50 @@ public class ProteinFileReader {
      */
     public final ProteinCollection createCollection(final String database,
             final ProteinCollection proteins) {
-        try {
-            System.out.println("Loading database proteins from " + database);
-            File file = new File(database);
-            //Read database files. Can read .fasta and .fasta.gz files.
-            if (database.matches(".*\\.fa(sta){0,1}\\.gz")) {
-                InputStream fileStream = new FileInputStream(file);
-                InputStream gzipStream = new GZIPInputStream(fileStream);
-                Reader decoder = new InputStreamReader(gzipStream, "US-ASCII");
-                dbReader = new BufferedReader(decoder);
-            } else if (database.matches(".*\\.fa(sta){0,1}")){
-                FileReader fr = new FileReader(file);
-                dbReader = new BufferedReader(fr);
+        return createCollection(database, proteins, 0, 1);
+    }
+
+    /**
+     * Reads a part of the proteins of a database file.
+     * The proteins are read from the packed database file next to the database file when it is present and up to date. Only every shardCount-th protein, starting at shardIndex,
+     * is added, so that a database can be divided over several processes.
+     * @param database database file.
+     * @param proteins protein collection.
+     * @param shardIndex index of the part to read.
+     * @param shardCount amount of parts.
+     * @return returns a collection of proteins.
+     */
+    public final ProteinCollection createCollection(final String database,
+            final ProteinCollection proteins, final int shardIndex, final int shardCount) {
+        PackedProteinDatabase packedDatabase = getPackedDatabase(database);
+        if (packedDatabase != null) {
+            long reusedSequences = 0;
+            for (int proteinNumber = shardIndex; proteinNumber < packedDatabase.getProteinCount(); proteinNumber += shardCount) {
+                if (addProtein(proteins, packedDatabase.getSequence(proteinNumber, equateIsoleucineLeucine),
+                        packedDatabase.getAccession(proteinNumber))) {
+                    reusedSequences++;
+                }
+            }
+            if (reusedSequences > 0) {
+                System.out.println(reusedSequences + " protein sequences were already loaded from this or another database.");
             }
-            String line;
-            boolean firstLine = true;
-            String sequence = "";
-            String accession = "";
+            System.out.println("Loaded " + proteins.getProteins().size() + " proteins!");
+            return proteins;
+        }
+        System.out.println("Loading database proteins from " + database);
+        //Read database files. Can read .fasta and .fasta.gz files.
+        try (FastaParser parser = new FastaParser(database, equateIsoleucineLeucine, threads)) {
+            int proteinNumber = 0;
+            long reusedSequences = 0;
             //Create protein objects with a sequence.
-            while ((line = dbReader.readLine()) != null) {
-                if (line.startsWith(">") && firstLine) {
-                    accession = line.split(" ")[0].replace(">", "");
-                    firstLine = false;
-                } else if (line.startsWith(">")) {
-                    Protein protein = new Protein(sequence, accession);
-                    proteins.addProtein(protein);
-                    accession = line.split(" ")[0].replace(">", "");
-                    sequence = "";
-                } else {
-                    sequence += line.trim();
+            while (parser.nextRecord()) {
+                if (proteinNumber % shardCount == shardIndex && addProtein(proteins, parser.getSequence(), parser.getAccession())) {
+                    reusedSequences++;
                 }
+                proteinNumber++;
+            }
+            if (reusedSequences > 0) {
+                System.out.println(reusedSequences + " protein sequences were already loaded from this or another database.");
             }
         }   catch (FileNotFoundException ex) {
                 System.out.println("File nout found: " + ex.getMessage());
@@ -76,5 +133,97 @@ public class ProteinFileReader {
         System.out.println("Loaded " + proteins.getProteins().size() + " proteins!");
         return proteins;
     }
+
+    /**
+     * Reads a database file into an off-heap protein collection. No String is created for the protein sequences.
+     * The proteins are read from the packed database file next to the database file when it is present and up to date.
+     * @param database database file.
+     * @return returns a collection of proteins.
+     */
+    public final OffHeapProteinCollection createOffHeapCollection(final String database) {
+        PackedProteinDatabase packedDatabase = getPackedDatabase(database);
+        byte[] residues = new byte[1024];
+        if (packedDatabase != null) {
+            long size = 0;
+            for (int proteinNumber = 0; proteinNumber < packedDatabase.getProteinCount(); proteinNumber++) {
+                size += packedDatabase.getSequenceLength(proteinNumber) + 1;
+            }
+            OffHeapProteinCollection proteins = new OffHeapProteinCollection(size);
+            for (int proteinNumber = 0; proteinNumber < packedDatabase.getProteinCount(); proteinNumber++) {
+                int length = packedDatabase.getSequenceLength(proteinNumber);
+                if (length > residues.length) {
+                    residues = new byte[Math.max(length, residues.length * 2)];
+                }
+                packedDatabase.getResidues(proteinNumber, residues, equateIsoleucineLeucine);
+                proteins.addProtein(residues, length, packedDatabase.getAccession(proteinNumber));
+            }
+            System.out.println("Loaded " + proteins.getProteinCount() + " proteins!");
+            return proteins;
+        }
+        System.out.println("Loading database proteins from " + database);
+        //The residues and separators of an uncompressed file take less space than the file itself.
+        OffHeapProteinCollection proteins;
+        if (database.endsWith(".gz")) {
+            proteins = new OffHeapProteinCollection();
+        } else {
+            proteins = new OffHeapProteinCollection(new File(database).length());
+        }
+        try (FastaParser parser = new FastaParser(database, equateIsoleucineLeucine, threads)) {
+            while (parser.nextRecord()) {
+                int length = parser.getSequenceLength();
+                if (length > residues.length) {
+                    residues = new byte[Math.max(length, residues.length * 2)];
+                }
+                parser.getResidues(residues);
+                proteins.addProtein(residues, length, parser.getAccession());
+            }
+        }   catch (FileNotFoundException ex) {
+                System.out.println("File nout found: " + ex.getMessage());
+        }   catch (IOException ex) {
+                System.out.println("Encountered IO Exception; " + ex.getMessage());
+        }
+        System.out.println("Loaded " + proteins.getProteinCount() + " proteins!");
+        return proteins;
+    }
+
+    /**
+     * Adds a protein to the collection.
+     * @param proteins protein collection.
+     * @param sequence protein sequence.
+     * @param accession protein accession.
+     * @return true if the sequence was already loaded and is shared, else false.
+     */
+    private boolean addProtein(final ProteinCollection proteins, final String sequence, final String accession) {
+        String proteinSequence = sequence;
+        //Identical sequences of all databases share one instance.
+        if (sequenceStore != null) {
+            proteinSequence = sequenceStore.getSequence(sequence);
+        }
+        proteins.addProtein(new Protein(proteinSequence, accession));
+        return proteinSequence != sequence;
+    }
+
+    /**
+     * Maps the packed database file of a database file.
+     * @param database database file.
+     * @return packed database, or null if there is no packed database file or it is outdated.
+     */
+    private PackedProteinDatabase getPackedDatabase(final String database) {
+        File packedFile = new File(database + PackedProteinDatabase.EXTENSION);
+        if (!packedFile.isFile()) {
+            return null;
+        }
+        try {
+            PackedProteinDatabase packedDatabase = PackedProteinDatabase.load(packedFile);
+            if (packedDatabase.isCreatedFrom(new File(database))) {
+                System.out.println("Loading database proteins from " + packedFile);
+                return packedDatabase;
+            }
+            System.out.println("Packed database " + packedFile + " is outdated, " + database + " is read instead.");
+        } catch (IOException ex) {
+            System.out.println("Could not read packed database " + packedFile + ": " + ex.getMessage());
+        }
+        return null;
+    }
 }
 
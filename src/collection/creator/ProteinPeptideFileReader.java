@@ -4,15 +4,15 @@
  */
 package collection.creator;
 
-import collections.ProteinPeptideCollection;
-import java.io.BufferedReader;
+import collections.ColumnarProteinPeptideCollection;
+import collections.PeptideIdStore;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.regex.Pattern;
-import objects.ProteinPeptide;
+import tools.SequenceNormalizer;
 
 /**
  * Creates a protein-peptide collection.
@@ -20,30 +20,53 @@ import objects.ProteinPeptide;
  * @author vnijenhuis
  */
 public class ProteinPeptideFileReader {
+
+    /**
+     * Assigns an id to each distinct sequence without modifications.
+     */
+    private final PeptideIdStore peptideIds;
+
+    /**
+     * Creates a reader with its own peptide id store.
+     */
+    public ProteinPeptideFileReader() {
+        this(null);
+    }
+
+    /**
+     * Creates a reader that assigns the sequence ids of a store shared with the other samples.
+     * @param peptideIds peptide id store of the run, or null to use a new store.
+     */
+    public ProteinPeptideFileReader(final PeptideIdStore peptideIds) {
+        if (peptideIds == null) {
+            this.peptideIds = new PeptideIdStore();
+        } else {
+            this.peptideIds = peptideIds;
+        }
+    }
+
     /**
      * Creates a collection of the protein-peptide.csv file;
      * @param file protein-peptide.csv file.
      * @param dataset name of the dataset.
      * @param sampleNumber sample index number.
      * @param removeEnsemblHits flag that shows if ensemble hits should be removed.
-     * @return collection of ProteinPeptide objects.
+     * @return collection of protein-peptides.
      * @throws FileNotFoundException file was not found/does not exist.
      * @throws IOException couldn't open/find the specified file. Usually appears when a file is
      * already opened by another program.
      */
-    public final ProteinPeptideCollection createCollection(final String file, final String dataset, final Integer sampleNumber, final Boolean removeEnsemblHits)
+    public final ColumnarProteinPeptideCollection createCollection(final String file, final String dataset, final Integer sampleNumber, final Boolean removeEnsemblHits)
             throws FileNotFoundException, IOException {
-        ProteinPeptideCollection proteinPeptides = new ProteinPeptideCollection();
+        ColumnarProteinPeptideCollection proteinPeptides = new ColumnarProteinPeptideCollection();
         //Creates dataset and patient names depending on the map names.
         String pattern = Pattern.quote(File.separator);
         String[] path = file.split(pattern);
         String sample = path[path.length-2];
         System.out.println("Collecting protein-peptides from " + file + "...");
         // Load the file.
-        FileReader fr = new FileReader(file);
-        BufferedReader bffFr = new BufferedReader(fr);
-        String line;
-        Integer count = 1;
+        CsvTokenizer tokenizer = new CsvTokenizer(new FileReader(file));
+        int count = 1;
         //Some indixes may vary, so a check is needed to find their position inside a file.
         int groupIndex = 0;
         int accessionIndex = 0;
@@ -51,110 +74,127 @@ public class ProteinPeptideFileReader {
         int scoreIndex = 0;
         int massIndex = 0;
         int lengthIndex = 0;
-        Boolean firstLine = true;
+        boolean massFound = false;
+        //Entries are found by the id of their sequence without modifications instead of comparing each entry.
+        int[] entryIndices = new int[0];
         //Read the file.
         int lineCount = 0;
-        while ((line = bffFr.readLine()) != null) {
-            lineCount++;
-            if (firstLine) {
-                String[] data = line.split(",");
-                //Determine indices by using names on first line.
-                for (int i = 0; i < data.length; i++) {
-                    String lowerCaseData = data[i].toLowerCase();
-                    if (lowerCaseData.contains("protein group")) {
-                        groupIndex = i;
-                    } else if (data[i].toLowerCase().contains("protein accession")) {
-                        accessionIndex = i;
-                    } else if (data[i].toLowerCase().matches("peptide sequence") || data[i].toLowerCase().matches("peptide")) {
-                        peptideIndex = i;
-                    } else if (data[i].toLowerCase().contains("-10lgp")) {
-                        scoreIndex = i;
-                    }  else if (data[i].toLowerCase().equals("mass")) {
-                        massIndex = i;
-                    } else if (data[i].toLowerCase().equals("length")) {
-                        lengthIndex = i;
-                    }
+        if (tokenizer.nextRecord()) {
+            //Determine indices by using names on first line.
+            for (int i = 0; i < tokenizer.getFieldCount(); i++) {
+                String lowerCaseData = tokenizer.getString(i).toLowerCase();
+                if (lowerCaseData.contains("protein group")) {
+                    groupIndex = i;
+                } else if (lowerCaseData.contains("protein accession")) {
+                    accessionIndex = i;
+                } else if (lowerCaseData.equals("peptide sequence") || lowerCaseData.equals("peptide")) {
+                    peptideIndex = i;
+                } else if (lowerCaseData.contains("-10lgp")) {
+                    scoreIndex = i;
+                }  else if (lowerCaseData.equals("mass")) {
+                    massIndex = i;
+                    massFound = true;
+                } else if (lowerCaseData.equals("length")) {
+                    lengthIndex = i;
                 }
-                firstLine = false;
-                line = bffFr.readLine();
             }
+            //Only the used columns are read from the other lines.
+            tokenizer.selectColumns(groupIndex, accessionIndex, peptideIndex, scoreIndex, massIndex, lengthIndex);
+        }
+        while (tokenizer.nextRecord()) {
+            lineCount++;
             //Assign data to variables.
-            String[] data = line.split(",");
-            String proteinGroup = data[groupIndex];
-            ArrayList<String> proteinGroupList = new ArrayList<>();
-            proteinGroupList.add(proteinGroup);
-            String accession = data[accessionIndex];
-            ArrayList<ArrayList<String>> combinedAccessionList = new ArrayList<>();
-            ArrayList<String> accessionList = new ArrayList<>();
-            accessionList.add(accession);
-            combinedAccessionList.add(accessionList);
-            String sequence = data[peptideIndex];
-            String mass = data[massIndex];
-            String givenLength = data[lengthIndex];
-            Integer length = Integer.parseInt(givenLength);
+            String proteinGroup = tokenizer.getString(groupIndex);
+            String accession = tokenizer.getString(accessionIndex);
+            String sequence = tokenizer.getString(peptideIndex);
+            double mass = Double.NaN;
+            if (massFound) {
+                try {
+                    mass = tokenizer.getDouble(massIndex);
+                } catch (NumberFormatException e) {
+                    //The mass is not used to compare peptides, so an invalid mass is kept as NaN.
+                }
+            }
+            int length = tokenizer.getInt(lengthIndex);
             //Remove first and last 2 indices.
-            sequence = sequence.replaceAll("\\.[A-Z]$", "");
-            sequence = sequence.replaceAll("^[A-Z]\\.", "");
+            sequence = SequenceNormalizer.removeFlankingResidues(sequence);
             boolean newEntry = true;
-            //Possibility to remove (+15.99) values from sequences
-            String filteredSequence = sequence.replaceAll("\\(\\+?\\-?[0-9]+\\.[0-9]+\\)", "");
             //Set get data according to indices.
-            String score = data[scoreIndex];
-            Double peptideScore = Double.parseDouble(score);
-            ArrayList<ArrayList<Double>> combinedScoreList = new ArrayList<>();
-            ArrayList<Double> scoreList = new ArrayList<>();
-            scoreList.add(peptideScore);
-            combinedScoreList.add(scoreList);
-            scoreList.add(peptideScore);
-            ArrayList<Integer> peptideCountList = new ArrayList<>();
-            peptideCountList.add(count);
-            //Create new ProteinPeptide object.
+            double peptideScore = tokenizer.getDouble(scoreIndex);
             if (removeEnsemblHits) {
                 if (accession.matches("ENST[0-9]+_?.*") || accession.toUpperCase().contains("DECOY")) {
                     accession = "";
                 }
             }
-            if (!accession.isEmpty() || !accession.equals("")) {
-                ProteinPeptide newProteinPeptide = new ProteinPeptide(proteinGroupList, combinedAccessionList, sequence, sample, sampleNumber, mass, length, false, false, dataset, peptideCountList, combinedScoreList);
-                //Creates a proteinPeptide object with data per sample.
-                if (!proteinPeptides.getProteinPeptideMatches().isEmpty()) {
-                    for (ProteinPeptide proteinPeptide: proteinPeptides.getProteinPeptideMatches()) {
-                        String proteinPeptideSequence = proteinPeptide.getSequence().replaceAll("\\(\\+?\\-?[0-9]+\\.[0-9]+\\)", "");
-                        if (proteinPeptideSequence.matches(filteredSequence)) {
+            if (!accession.isEmpty()) {
+                //Possibility to remove (+15.99) values from sequences
+                String filteredSequence = SequenceNormalizer.removeModifications(sequence);
+                int sequenceId = peptideIds.getId(filteredSequence);
+                if (sequenceId >= entryIndices.length) {
+                    int size = entryIndices.length;
+                    entryIndices = Arrays.copyOf(entryIndices, Math.max(sequenceId + 1, size * 2));
+                    Arrays.fill(entryIndices, size, entryIndices.length, -1);
+                }
+                //Merges the line with an entry of the same sequence per sample.
+                if (!proteinPeptides.isEmpty()) {
+                    if (peptideIds.isLiteral(sequenceId)) {
+                        //The sequence only matches an equal sequence, and entries with equal sequences are merged.
+                        int index = entryIndices[sequenceId];
+                        if (index >= 0) {
                             newEntry = false;
-                            if (proteinPeptide.getProteinGroupList().contains(proteinGroup)) {
-                                int index = proteinPeptide.getProteinGroupList().indexOf(proteinGroup);
-                                proteinPeptide.addToCount(index, count);
-                                if (!proteinPeptide.getCombinedAccessionList().get(index).contains(accession)) {
-                                    proteinPeptide.getCombinedAccessionList().get(index).add(accession);
-                                    proteinPeptide.getScoreList().get(index).add(peptideScore);
+                            addToEntry(proteinPeptides, index, proteinGroup, accession, peptideScore, count);
+                        }
+                    } else {
+                        //The sequence is a regular expression that may match other sequences, so every entry is checked.
+                        ColumnarProteinPeptideCollection.Cursor entry = proteinPeptides.cursor();
+                        while (entry.next()) {
+                            if (entry.getFilteredSequence().matches(filteredSequence)) {
+                                newEntry = false;
+                                if (addToEntry(proteinPeptides, entry.getPosition(), proteinGroup, accession, peptideScore, count)) {
                                     break;
                                 }
-                            } else {
-                                //New entry for given sequence.
-                                proteinPeptide.getCountList().add(count);
-                                proteinPeptide.addProteinGroup(proteinGroup);
-                                proteinPeptide.getCombinedAccessionList().add(accessionList);
-                                proteinPeptide.getScoreList().add(scoreList);
-                                break;
                             }
                         }
                     }
-                    //If no match was found: add new entry to collection.
-                    if (newEntry) {
-                        proteinPeptides.addProteinPeptideMatch(newProteinPeptide);
+                }
+                //If no match was found: add new entry to collection.
+                if (newEntry) {
+                    int index = proteinPeptides.addProteinPeptide(proteinGroup, accession, sequence, filteredSequence, sequenceId, sample,
+                            sampleNumber, mass, length, dataset, count, peptideScore);
+                    if (entryIndices[sequenceId] < 0) {
+                        entryIndices[sequenceId] = index;
                     }
-                } else {
-                    //Adds first match to the collection.
-                    proteinPeptides.addProteinPeptideMatch(newProteinPeptide);
                 }
             }
             if (lineCount % 2000 == 0) {
                 System.out.println("Processed " + lineCount + " protein-peptide entries from " + sample + " " + dataset + "!");
             }
         }
-        System.out.println("Collected " + proteinPeptides.getProteinPeptideMatches().size()
+        tokenizer.close();
+        System.out.println("Collected " + proteinPeptides.size()
                 + " unique protein-peptide objects from " + sample + " " + dataset + "!");
         return proteinPeptides;
     }
+
+    /**
+     * Adds the protein group, accession and score of a line to an existing entry.
+     * @param proteinPeptides collection of the entries.
+     * @param position position of the existing entry with the same sequence.
+     * @param proteinGroup protein group of the line.
+     * @param accession accession of the line.
+     * @param peptideScore score of the line.
+     * @param count peptide count of the line.
+     * @return false if the protein group and accession were already present, else true.
+     */
+    private boolean addToEntry(final ColumnarProteinPeptideCollection proteinPeptides, final int position, final String proteinGroup,
+            final String accession, final double peptideScore, final int count) {
+        int index = proteinPeptides.getProteinGroupIndex(position, proteinGroup);
+        if (index >= 0) {
+            proteinPeptides.addToCount(position, index, count);
+            return proteinPeptides.addAccession(position, index, accession, peptideScore);
+        }
+        //New entry for given sequence.
+        proteinPeptides.addProteinGroup(position, proteinGroup, accession, count, peptideScore);
+        return true;
+    }
 }
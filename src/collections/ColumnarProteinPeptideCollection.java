@@ -0,0 +1,966 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Collection of protein-peptides that stores each property in a column instead of in a ProteinPeptide object per entry.
+ * Counts, scores, masses and lengths are primitive columns, and protein groups, accessions, samples and datasets are
+ * stored as codes of a dictionary of their distinct values, so an entry takes a few array slots instead of a set of lists.
+ * Only the highest score of each protein group is kept, which is the score that is used by the peptide matrices.
+ * The entries are rows of a store. Subsets of a collection share its store, so a row can be added more than once and
+ * a flag that is set on a row is seen by every collection that contains it. Rows of another store are copied.
+ * The rows are read with a Cursor. A collection and its subsets are used by one thread at a time.
+ *
+ * @author vnijenhuis
+ */
+public class ColumnarProteinPeptideCollection {
+
+    /**
+     * Columns of the rows of this collection.
+     */
+    private final Store store;
+
+    /**
+     * Rows of the store in the order of this collection.
+     */
+    private int[] rows;
+
+    /**
+     * Amount of rows in this collection.
+     */
+    private int size;
+
+    /**
+     * Creates an empty collection with a new store.
+     */
+    public ColumnarProteinPeptideCollection() {
+        this(new Store(), 16);
+    }
+
+    /**
+     * Creates an empty collection of rows of the given store.
+     *
+     * @param store store of the rows.
+     * @param capacity initial amount of rows.
+     */
+    private ColumnarProteinPeptideCollection(final Store store, final int capacity) {
+        this.store = store;
+        this.rows = new int[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Returns the amount of protein-peptides in this collection.
+     *
+     * @return amount of protein-peptides as int.
+     */
+    public final int size() {
+        return size;
+    }
+
+    /**
+     * Checks if this collection contains no protein-peptides.
+     *
+     * @return true if the collection is empty, else false.
+     */
+    public final boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns a cursor that is positioned before the first protein-peptide of this collection.
+     *
+     * @return new cursor.
+     */
+    public final Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Adds a new protein-peptide with one protein group and accession.
+     *
+     * @param proteinGroup protein group.
+     * @param accession protein accession.
+     * @param sequence peptide sequence.
+     * @param filteredSequence peptide sequence without modifications.
+     * @param sequenceId id of the filtered sequence in the peptide id store of the run, or -1 if no id was assigned.
+     * @param sample id of the sample.
+     * @param sampleIndexNumber sample index number.
+     * @param mass mass of the peptide sequence.
+     * @param length length of the peptide sequence.
+     * @param dataset dataset that the peptide belongs to.
+     * @param count spectra count of the protein group.
+     * @param score score of the accession.
+     * @return position of the protein-peptide in this collection.
+     */
+    public final int addProteinPeptide(final String proteinGroup, final String accession, final String sequence, final String filteredSequence,
+            final int sequenceId, final String sample, final int sampleIndexNumber, final double mass, final int length, final String dataset,
+            final int count, final double score) {
+        int row = store.addRow(sequence, filteredSequence, sequenceId, sample, sampleIndexNumber, mass, length, dataset);
+        store.addProteinGroup(row, proteinGroup, accession, count, score);
+        return addRow(row);
+    }
+
+    /**
+     * Returns the index of a protein group of a protein-peptide.
+     *
+     * @param position position of the protein-peptide in this collection.
+     * @param proteinGroup protein group.
+     * @return index of the protein group, or -1 if the protein-peptide does not have the protein group.
+     */
+    public final int getProteinGroupIndex(final int position, final String proteinGroup) {
+        return store.getProteinGroupIndex(rows[position], proteinGroup);
+    }
+
+    /**
+     * Adds a protein group with one accession to a protein-peptide.
+     *
+     * @param position position of the protein-peptide in this collection.
+     * @param proteinGroup protein group.
+     * @param accession protein accession.
+     * @param count spectra count of the protein group.
+     * @param score score of the accession.
+     */
+    public final void addProteinGroup(final int position, final String proteinGroup, final String accession, final int count, final double score) {
+        store.addProteinGroup(rows[position], proteinGroup, accession, count, score);
+    }
+
+    /**
+     * Adds to the spectra count of a protein group of a protein-peptide.
+     *
+     * @param position position of the protein-peptide in this collection.
+     * @param groupIndex index of the protein group.
+     * @param count spectra count that is added.
+     */
+    public final void addToCount(final int position, final int groupIndex, final int count) {
+        store.counts[store.getGroupSlot(rows[position], groupIndex)] += count;
+    }
+
+    /**
+     * Adds an accession and its score to a protein group of a protein-peptide, unless the protein group has the accession.
+     *
+     * @param position position of the protein-peptide in this collection.
+     * @param groupIndex index of the protein group.
+     * @param accession protein accession.
+     * @param score score of the accession.
+     * @return true if the accession was added, false if the protein group already had the accession.
+     */
+    public final boolean addAccession(final int position, final int groupIndex, final String accession, final double score) {
+        return store.addAccession(store.getGroupSlot(rows[position], groupIndex), accession, score);
+    }
+
+    /**
+     * Flags a protein-peptide as unique to the sequences of the reference database.
+     *
+     * @param position position of the protein-peptide in this collection.
+     * @param flag true if unique, else false.
+     */
+    public final void setUniqueToDatabase(final int position, final boolean flag) {
+        store.uniqueToDatabase[rows[position]] = flag;
+    }
+
+    /**
+     * Adds the protein-peptide at the position of a cursor. A protein-peptide of another store is copied.
+     *
+     * @param cursor cursor of a collection.
+     */
+    public final void add(final Cursor cursor) {
+        if (cursor.getStore() == store) {
+            addRow(cursor.row);
+        } else {
+            addRow(store.copyRow(cursor.getStore(), cursor.row));
+        }
+    }
+
+    /**
+     * Adds all protein-peptides of a collection. Protein-peptides of another store are copied once, so a protein-peptide
+     * that occurs more than once in the collection is also one row of this collection.
+     *
+     * @param collection collection of protein-peptides.
+     */
+    public final void addAll(final ColumnarProteinPeptideCollection collection) {
+        if (collection.store == store) {
+            for (int position = 0; position < collection.size; position++) {
+                addRow(collection.rows[position]);
+            }
+            return;
+        }
+        int[] copiedRows = new int[collection.store.rowCount];
+        Arrays.fill(copiedRows, -1);
+        for (int position = 0; position < collection.size; position++) {
+            int row = collection.rows[position];
+            if (copiedRows[row] < 0) {
+                copiedRows[row] = store.copyRow(collection.store, row);
+            }
+            addRow(copiedRows[row]);
+        }
+    }
+
+    /**
+     * Returns an empty collection that shares the store of this collection, so protein-peptides of this collection are
+     * added to it without copying them.
+     *
+     * @return empty collection.
+     */
+    public final ColumnarProteinPeptideCollection createSubset() {
+        return new ColumnarProteinPeptideCollection(store, size);
+    }
+
+    /**
+     * Returns a collection with the protein-peptides of which the flag is false, in the order of this collection.
+     * The returned collection shares the store of this collection.
+     *
+     * @param flags flag of each position of this collection.
+     * @return collection of the protein-peptides that are not flagged.
+     */
+    public final ColumnarProteinPeptideCollection getUnflaggedRows(final boolean[] flags) {
+        ColumnarProteinPeptideCollection collection = createSubset();
+        for (int position = 0; position < size; position++) {
+            if (!flags[position]) {
+                collection.addRow(rows[position]);
+            }
+        }
+        return collection;
+    }
+
+    /**
+     * Sorts the collection based on the peptide sequence. Protein-peptides with equal sequences keep their order.
+     */
+    public final void sortOnPeptideSequence() {
+        int[] buffer = Arrays.copyOf(rows, size);
+        mergeSort(buffer, rows, 0, size);
+    }
+
+    /**
+     * Sorts a range of rows on their sequence with a stable merge sort.
+     *
+     * @param source rows before sorting, which is used as buffer.
+     * @param target rows that are sorted, equal to the source in the range.
+     * @param start first position of the range.
+     * @param end end of the range, exclusive.
+     */
+    private void mergeSort(final int[] source, final int[] target, final int start, final int end) {
+        if (end - start < 2) {
+            return;
+        }
+        int middle = (start + end) >>> 1;
+        //The halves are sorted into the source, so they can be merged into the target.
+        mergeSort(target, source, start, middle);
+        mergeSort(target, source, middle, end);
+        int left = start;
+        int right = middle;
+        for (int position = start; position < end; position++) {
+            if (right == end || left < middle && store.sequences[source[left]].compareTo(store.sequences[source[right]]) <= 0) {
+                target[position] = source[left++];
+            } else {
+                target[position] = source[right++];
+            }
+        }
+    }
+
+    /**
+     * Adds a row of the store at the end of this collection.
+     *
+     * @param row row of the store.
+     * @return position of the row in this collection.
+     */
+    private int addRow(final int row) {
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+        }
+        rows[size] = row;
+        return size++;
+    }
+
+    /**
+     * Reads the protein-peptides of a collection in order. The collection should not be changed while a cursor is used,
+     * except for the flags and the matching sequence.
+     */
+    public class Cursor {
+
+        /**
+         * Position of the current protein-peptide, -1 before the first one.
+         */
+        private int position = -1;
+
+        /**
+         * Row of the current protein-peptide in the store.
+         */
+        private int row = -1;
+
+        /**
+         * Creates a cursor positioned before the first protein-peptide.
+         */
+        private Cursor() {
+        }
+
+        /**
+         * Moves to the next protein-peptide.
+         *
+         * @return true if the cursor is at a protein-peptide, false after the last one.
+         */
+        public final boolean next() {
+            if (position + 1 >= size) {
+                position = size;
+                return false;
+            }
+            position++;
+            row = rows[position];
+            return true;
+        }
+
+        /**
+         * Returns the store of the collection of this cursor.
+         *
+         * @return store.
+         */
+        private Store getStore() {
+            return store;
+        }
+
+        /**
+         * Returns the position of the current protein-peptide in the collection.
+         *
+         * @return position as int.
+         */
+        public final int getPosition() {
+            return position;
+        }
+
+        /**
+         * Returns the peptide sequence.
+         *
+         * @return sequence as String.
+         */
+        public final String getSequence() {
+            return store.sequences[row];
+        }
+
+        /**
+         * Returns the peptide sequence without modifications.
+         *
+         * @return filtered sequence as String.
+         */
+        public final String getFilteredSequence() {
+            return store.filteredSequences[row];
+        }
+
+        /**
+         * Returns the id of the filtered sequence in the peptide id store of the run.
+         *
+         * @return id of the sequence, or -1 if no id was assigned.
+         */
+        public final int getSequenceId() {
+            return store.sequenceIds[row];
+        }
+
+        /**
+         * Returns the sequence used to match the peptide to protein databases.
+         *
+         * @return matching sequence as String.
+         */
+        public final String getMatchingSequence() {
+            String matchingSequence = store.matchingSequences[row];
+            if (matchingSequence == null) {
+                return store.sequences[row];
+            }
+            return matchingSequence;
+        }
+
+        /**
+         * Sets the sequence used to match the peptide to protein databases.
+         *
+         * @param matchingSequence sequence with the same length as the peptide sequence.
+         */
+        public final void setMatchingSequence(final String matchingSequence) {
+            if (matchingSequence.equals(store.sequences[row])) {
+                store.matchingSequences[row] = null;
+            } else {
+                store.matchingSequences[row] = matchingSequence;
+            }
+        }
+
+        /**
+         * Returns the id of the sample.
+         *
+         * @return sample as String.
+         */
+        public final String getSample() {
+            return store.samples.get(store.sampleCodes[row]);
+        }
+
+        /**
+         * Returns the sample index number.
+         *
+         * @return sample index number as int.
+         */
+        public final int getSampleIndexNumber() {
+            return store.sampleIndexNumbers[row];
+        }
+
+        /**
+         * Returns the dataset that the peptide belongs to.
+         *
+         * @return dataset as String.
+         */
+        public final String getDataset() {
+            return store.datasets.get(store.datasetCodes[row]);
+        }
+
+        /**
+         * Returns the mass of the peptide sequence.
+         *
+         * @return mass as double, NaN if the mass is not known.
+         */
+        public final double getMass() {
+            return store.masses[row];
+        }
+
+        /**
+         * Returns the length of the peptide sequence.
+         *
+         * @return length as int.
+         */
+        public final int getLength() {
+            return store.lengths[row];
+        }
+
+        /**
+         * Returns if the peptide is unique to one sequence of the reference database.
+         *
+         * @return true if unique, else false.
+         */
+        public final boolean getUniqueToDatabase() {
+            return store.uniqueToDatabase[row];
+        }
+
+        /**
+         * Flags the peptide as unique to one sequence of the reference database.
+         *
+         * @param flag true if unique, else false.
+         */
+        public final void setUniqueToDatabase(final boolean flag) {
+            store.uniqueToDatabase[row] = flag;
+        }
+
+        /**
+         * Returns the amount of protein groups of the peptide.
+         *
+         * @return amount of protein groups as int.
+         */
+        public final int getProteinGroupCount() {
+            return store.groupCounts[row];
+        }
+
+        /**
+         * Returns a protein group of the peptide.
+         *
+         * @param groupIndex index of the protein group.
+         * @return protein group as String.
+         */
+        public final String getProteinGroup(final int groupIndex) {
+            return store.proteinGroups.get(store.groupCodes[store.getGroupSlot(row, groupIndex)]);
+        }
+
+        /**
+         * Returns a new list of the protein groups of the peptide.
+         *
+         * @return list of protein groups.
+         */
+        public final ArrayList<String> getProteinGroupList() {
+            ArrayList<String> proteinGroupList = new ArrayList<>(store.groupCounts[row]);
+            for (int groupIndex = 0; groupIndex < store.groupCounts[row]; groupIndex++) {
+                proteinGroupList.add(getProteinGroup(groupIndex));
+            }
+            return proteinGroupList;
+        }
+
+        /**
+         * Returns the spectra count of a protein group.
+         *
+         * @param groupIndex index of the protein group.
+         * @return spectra count as int.
+         */
+        public final int getCount(final int groupIndex) {
+            return store.counts[store.getGroupSlot(row, groupIndex)];
+        }
+
+        /**
+         * Returns the sum of the spectra counts of all protein groups.
+         *
+         * @return spectra count as int.
+         */
+        public final int getTotalCount() {
+            int count = 0;
+            for (int groupIndex = 0; groupIndex < store.groupCounts[row]; groupIndex++) {
+                count += getCount(groupIndex);
+            }
+            return count;
+        }
+
+        /**
+         * Returns the highest score of the accessions of a protein group.
+         *
+         * @param groupIndex index of the protein group.
+         * @return highest score as double.
+         */
+        public final double getHighestScore(final int groupIndex) {
+            return store.scores[store.getGroupSlot(row, groupIndex)];
+        }
+
+        /**
+         * Returns the amount of accessions of a protein group.
+         *
+         * @param groupIndex index of the protein group.
+         * @return amount of accessions as int.
+         */
+        public final int getAccessionCount(final int groupIndex) {
+            return store.accessionCounts[store.getGroupSlot(row, groupIndex)];
+        }
+
+        /**
+         * Returns an accession of a protein group.
+         *
+         * @param groupIndex index of the protein group.
+         * @param accessionIndex index of the accession.
+         * @return accession as String.
+         */
+        public final String getAccession(final int groupIndex, final int accessionIndex) {
+            int slot = store.getGroupSlot(row, groupIndex);
+            return store.accessions.get(store.accessionCodes[store.accessionStarts[slot] + accessionIndex]);
+        }
+
+        /**
+         * Returns a new list of the accessions of a protein group.
+         *
+         * @param groupIndex index of the protein group.
+         * @return list of accessions.
+         */
+        public final ArrayList<String> getAccessionList(final int groupIndex) {
+            int accessionCount = getAccessionCount(groupIndex);
+            ArrayList<String> accessionList = new ArrayList<>(accessionCount);
+            for (int accessionIndex = 0; accessionIndex < accessionCount; accessionIndex++) {
+                accessionList.add(getAccession(groupIndex, accessionIndex));
+            }
+            return accessionList;
+        }
+    }
+
+    /**
+     * Assigns a code to each distinct value, starting at 0 in the order in which the values are added.
+     */
+    private static class Dictionary {
+
+        /**
+         * Code of each value.
+         */
+        private final HashMap<String, Integer> codes = new HashMap<>();
+
+        /**
+         * Value of each code.
+         */
+        private final ArrayList<String> values = new ArrayList<>();
+
+        /**
+         * Returns the code of a value, which is added if it is new.
+         *
+         * @param value value.
+         * @return code as int.
+         */
+        private int getCode(final String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        /**
+         * Returns the code of a value without adding it.
+         *
+         * @param value value.
+         * @return code as int, or -1 if the value was not added.
+         */
+        private int findCode(final String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                return -1;
+            }
+            return code;
+        }
+
+        /**
+         * Returns the value of a code.
+         *
+         * @param code code.
+         * @return value as String.
+         */
+        private String get(final int code) {
+            return values.get(code);
+        }
+    }
+
+    /**
+     * Columns of the protein-peptides. The protein groups of a row and the accessions of a protein group are blocks
+     * of slots. A block that is full is moved to the end with twice the capacity, unless it is at the end already.
+     */
+    private static class Store {
+
+        /**
+         * Protein groups of the store.
+         */
+        private final Dictionary proteinGroups = new Dictionary();
+
+        /**
+         * Accessions of the store.
+         */
+        private final Dictionary accessions = new Dictionary();
+
+        /**
+         * Samples of the store.
+         */
+        private final Dictionary samples = new Dictionary();
+
+        /**
+         * Datasets of the store.
+         */
+        private final Dictionary datasets = new Dictionary();
+
+        /**
+         * Amount of rows.
+         */
+        private int rowCount;
+
+        /**
+         * Peptide sequence of each row.
+         */
+        private String[] sequences = new String[16];
+
+        /**
+         * Peptide sequence without modifications of each row.
+         */
+        private String[] filteredSequences = new String[16];
+
+        /**
+         * Matching sequence of each row, or null if it is equal to the sequence.
+         */
+        private String[] matchingSequences = new String[16];
+
+        /**
+         * Id of the filtered sequence of each row.
+         */
+        private int[] sequenceIds = new int[16];
+
+        /**
+         * Code of the sample of each row.
+         */
+        private int[] sampleCodes = new int[16];
+
+        /**
+         * Sample index number of each row.
+         */
+        private int[] sampleIndexNumbers = new int[16];
+
+        /**
+         * Code of the dataset of each row.
+         */
+        private int[] datasetCodes = new int[16];
+
+        /**
+         * Mass of each row.
+         */
+        private double[] masses = new double[16];
+
+        /**
+         * Length of each row.
+         */
+        private int[] lengths = new int[16];
+
+        /**
+         * Flag of each row that is true if the peptide is unique to one sequence of the reference database.
+         */
+        private boolean[] uniqueToDatabase = new boolean[16];
+
+        /**
+         * First protein group slot of each row.
+         */
+        private int[] groupStarts = new int[16];
+
+        /**
+         * Amount of protein groups of each row.
+         */
+        private int[] groupCounts = new int[16];
+
+        /**
+         * Amount of protein group slots of each row.
+         */
+        private int[] groupCapacities = new int[16];
+
+        /**
+         * Amount of protein group slots in use.
+         */
+        private int groupSlotCount;
+
+        /**
+         * Code of the protein group of each slot.
+         */
+        private int[] groupCodes = new int[16];
+
+        /**
+         * Spectra count of each protein group slot.
+         */
+        private int[] counts = new int[16];
+
+        /**
+         * Highest score of each protein group slot.
+         */
+        private double[] scores = new double[16];
+
+        /**
+         * First accession slot of each protein group slot.
+         */
+        private int[] accessionStarts = new int[16];
+
+        /**
+         * Amount of accessions of each protein group slot.
+         */
+        private int[] accessionCounts = new int[16];
+
+        /**
+         * Amount of accession slots of each protein group slot.
+         */
+        private int[] accessionCapacities = new int[16];
+
+        /**
+         * Amount of accession slots in use.
+         */
+        private int accessionSlotCount;
+
+        /**
+         * Code of the accession of each slot.
+         */
+        private int[] accessionCodes = new int[16];
+
+        /**
+         * Adds a row without protein groups.
+         *
+         * @param sequence peptide sequence.
+         * @param filteredSequence peptide sequence without modifications.
+         * @param sequenceId id of the filtered sequence.
+         * @param sample id of the sample.
+         * @param sampleIndexNumber sample index number.
+         * @param mass mass of the peptide sequence.
+         * @param length length of the peptide sequence.
+         * @param dataset dataset that the peptide belongs to.
+         * @return index of the row.
+         */
+        private int addRow(final String sequence, final String filteredSequence, final int sequenceId, final String sample,
+                final int sampleIndexNumber, final double mass, final int length, final String dataset) {
+            if (rowCount == sequences.length) {
+                int capacity = rowCount * 2;
+                sequences = Arrays.copyOf(sequences, capacity);
+                filteredSequences = Arrays.copyOf(filteredSequences, capacity);
+                matchingSequences = Arrays.copyOf(matchingSequences, capacity);
+                sequenceIds = Arrays.copyOf(sequenceIds, capacity);
+                sampleCodes = Arrays.copyOf(sampleCodes, capacity);
+                sampleIndexNumbers = Arrays.copyOf(sampleIndexNumbers, capacity);
+                datasetCodes = Arrays.copyOf(datasetCodes, capacity);
+                masses = Arrays.copyOf(masses, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                uniqueToDatabase = Arrays.copyOf(uniqueToDatabase, capacity);
+                groupStarts = Arrays.copyOf(groupStarts, capacity);
+                groupCounts = Arrays.copyOf(groupCounts, capacity);
+                groupCapacities = Arrays.copyOf(groupCapacities, capacity);
+            }
+            int row = rowCount++;
+            sequences[row] = sequence;
+            filteredSequences[row] = filteredSequence;
+            sequenceIds[row] = sequenceId;
+            sampleCodes[row] = samples.getCode(sample);
+            sampleIndexNumbers[row] = sampleIndexNumber;
+            datasetCodes[row] = datasets.getCode(dataset);
+            masses[row] = mass;
+            lengths[row] = length;
+            groupStarts[row] = allocateGroupSlots(1);
+            groupCapacities[row] = 1;
+            return row;
+        }
+
+        /**
+         * Copies a row of another store, with its protein groups, accessions and flags.
+         *
+         * @param source store of the row.
+         * @param sourceRow index of the row in the source store.
+         * @return index of the new row.
+         */
+        private int copyRow(final Store source, final int sourceRow) {
+            int row = addRow(source.sequences[sourceRow], source.filteredSequences[sourceRow], source.sequenceIds[sourceRow],
+                    source.samples.get(source.sampleCodes[sourceRow]), source.sampleIndexNumbers[sourceRow], source.masses[sourceRow],
+                    source.lengths[sourceRow], source.datasets.get(source.datasetCodes[sourceRow]));
+            matchingSequences[row] = source.matchingSequences[sourceRow];
+            uniqueToDatabase[row] = source.uniqueToDatabase[sourceRow];
+            for (int groupIndex = 0; groupIndex < source.groupCounts[sourceRow]; groupIndex++) {
+                int sourceSlot = source.getGroupSlot(sourceRow, groupIndex);
+                int firstAccession = source.accessionStarts[sourceSlot];
+                addProteinGroup(row, source.proteinGroups.get(source.groupCodes[sourceSlot]), source.accessions.get(source.accessionCodes[firstAccession]),
+                        source.counts[sourceSlot], source.scores[sourceSlot]);
+                int slot = getGroupSlot(row, groupIndex);
+                for (int accession = firstAccession + 1; accession < firstAccession + source.accessionCounts[sourceSlot]; accession++) {
+                    addAccession(slot, source.accessions.get(source.accessionCodes[accession]), source.scores[sourceSlot]);
+                }
+            }
+            return row;
+        }
+
+        /**
+         * Returns the slot of a protein group of a row.
+         *
+         * @param row index of the row.
+         * @param groupIndex index of the protein group.
+         * @return slot as int.
+         */
+        private int getGroupSlot(final int row, final int groupIndex) {
+            if (groupIndex >= groupCounts[row]) {
+                throw new IndexOutOfBoundsException("Protein group " + groupIndex + " of " + groupCounts[row] + " was requested.");
+            }
+            return groupStarts[row] + groupIndex;
+        }
+
+        /**
+         * Returns the index of a protein group of a row.
+         *
+         * @param row index of the row.
+         * @param proteinGroup protein group.
+         * @return index of the protein group, or -1 if the row does not have the protein group.
+         */
+        private int getProteinGroupIndex(final int row, final String proteinGroup) {
+            int code = proteinGroups.findCode(proteinGroup);
+            if (code >= 0) {
+                for (int groupIndex = 0; groupIndex < groupCounts[row]; groupIndex++) {
+                    if (groupCodes[groupStarts[row] + groupIndex] == code) {
+                        return groupIndex;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Adds a protein group with one accession to a row.
+         *
+         * @param row index of the row.
+         * @param proteinGroup protein group.
+         * @param accession protein accession.
+         * @param count spectra count of the protein group.
+         * @param score score of the accession.
+         */
+        private void addProteinGroup(final int row, final String proteinGroup, final String accession, final int count, final double score) {
+            if (groupCounts[row] == groupCapacities[row]) {
+                int capacity = groupCapacities[row];
+                if (groupStarts[row] + capacity == groupSlotCount) {
+                    allocateGroupSlots(capacity);
+                } else {
+                    int start = allocateGroupSlots(capacity * 2);
+                    int oldStart = groupStarts[row];
+                    System.arraycopy(groupCodes, oldStart, groupCodes, start, capacity);
+                    System.arraycopy(counts, oldStart, counts, start, capacity);
+                    System.arraycopy(scores, oldStart, scores, start, capacity);
+                    System.arraycopy(accessionStarts, oldStart, accessionStarts, start, capacity);
+                    System.arraycopy(accessionCounts, oldStart, accessionCounts, start, capacity);
+                    System.arraycopy(accessionCapacities, oldStart, accessionCapacities, start, capacity);
+                    groupStarts[row] = start;
+                }
+                groupCapacities[row] = capacity * 2;
+            }
+            int slot = groupStarts[row] + groupCounts[row];
+            groupCodes[slot] = proteinGroups.getCode(proteinGroup);
+            counts[slot] = count;
+            scores[slot] = score;
+            accessionStarts[slot] = allocateAccessionSlots(1);
+            accessionCounts[slot] = 1;
+            accessionCapacities[slot] = 1;
+            accessionCodes[accessionStarts[slot]] = accessions.getCode(accession);
+            groupCounts[row]++;
+        }
+
+        /**
+         * Adds an accession to a protein group slot, unless the protein group has the accession.
+         * The score replaces the highest score of the protein group if it is higher.
+         *
+         * @param slot protein group slot.
+         * @param accession protein accession.
+         * @param score score of the accession.
+         * @return true if the accession was added, else false.
+         */
+        private boolean addAccession(final int slot, final String accession, final double score) {
+            int code = accessions.getCode(accession);
+            int start = accessionStarts[slot];
+            for (int index = start; index < start + accessionCounts[slot]; index++) {
+                if (accessionCodes[index] == code) {
+                    return false;
+                }
+            }
+            if (accessionCounts[slot] == accessionCapacities[slot]) {
+                int capacity = accessionCapacities[slot];
+                if (start + capacity == accessionSlotCount) {
+                    allocateAccessionSlots(capacity);
+                } else {
+                    int newStart = allocateAccessionSlots(capacity * 2);
+                    System.arraycopy(accessionCodes, start, accessionCodes, newStart, capacity);
+                    accessionStarts[slot] = newStart;
+                }
+                accessionCapacities[slot] = capacity * 2;
+            }
+            accessionCodes[accessionStarts[slot] + accessionCounts[slot]] = code;
+            accessionCounts[slot]++;
+            //Compared like Collections.max of a list of scores.
+            if (Double.compare(score, scores[slot]) > 0) {
+                scores[slot] = score;
+            }
+            return true;
+        }
+
+        /**
+         * Allocates protein group slots at the end.
+         *
+         * @param amount amount of slots.
+         * @return first allocated slot.
+         */
+        private int allocateGroupSlots(final int amount) {
+            int start = groupSlotCount;
+            groupSlotCount += amount;
+            if (groupSlotCount > groupCodes.length) {
+                int capacity = Math.max(groupSlotCount, groupCodes.length * 2);
+                groupCodes = Arrays.copyOf(groupCodes, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                scores = Arrays.copyOf(scores, capacity);
+                accessionStarts = Arrays.copyOf(accessionStarts, capacity);
+                accessionCounts = Arrays.copyOf(accessionCounts, capacity);
+                accessionCapacities = Arrays.copyOf(accessionCapacities, capacity);
+            }
+            return start;
+        }
+
+        /**
+         * Allocates accession slots at the end.
+         *
+         * @param amount amount of slots.
+         * @return first allocated slot.
+         */
+        private int allocateAccessionSlots(final int amount) {
+            int start = accessionSlotCount;
+            accessionSlotCount += amount;
+            if (accessionSlotCount > accessionCodes.length) {
+                accessionCodes = Arrays.copyOf(accessionCodes, Math.max(accessionSlotCount, accessionCodes.length * 2));
+            }
+            return start;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package collections;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A collection of proteins of which the residues are stored outside of the Java heap.
+ * The residues of the proteins of a database are concatenated in direct memory regions, each protein followed by a
+ * separator, and the start of each protein in its region is kept in an int array. A new region is started when a
+ * region reaches the largest size of a buffer, so a database can be larger than 2 GB. No String or Protein object is
+ * created per protein, and a search can scan a whole region because a peptide sequence never contains the separator.
+ * A collection can also combine the regions of several collections without copying them.
+ * @author vnijenhuis
+ */
+public class OffHeapProteinCollection {
+
+    /**
+     * Stored after the residues of each protein. Is not part of any peptide sequence, so a match never spans two proteins.
+     */
+    public static final byte SEPARATOR = '\n';
+
+    /**
+     * Stored instead of residues outside of the ASCII range.
+     */
+    private static final byte UNKNOWN = 0;
+
+    /**
+     * Initial size of a region in bytes when no size is given.
+     */
+    private static final int INITIAL_CAPACITY = 1 << 20;
+
+    /**
+     * Largest size of a region in bytes.
+     */
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    /**
+     * Regions of the collection.
+     */
+    private final ArrayList<Region> regions;
+
+    /**
+     * Index of the first protein of each region, followed by the amount of proteins.
+     */
+    private int[] firstProteins;
+
+    /**
+     * True if the collection is a view of the regions of other collections.
+     */
+    private final boolean view;
+
+    /**
+     * Expected amount of residues and separators that are not stored yet. Used as size of a new region.
+     */
+    private long expectedSize;
+
+    /**
+     * Residues and accessions of a part of the proteins of one database.
+     */
+    private static class Region {
+
+        /**
+         * Concatenated residues and separators. The position is the end of the last protein.
+         */
+        private ByteBuffer residues;
+
+        /**
+         * Start of each protein in the residues, followed by the end of the last separator.
+         */
+        private int[] offsets = new int[1024];
+
+        /**
+         * Accession of each protein.
+         */
+        private final ArrayList<String> accessions = new ArrayList<>();
+
+        /**
+         * Creates an empty region.
+         * @param capacity initial size in bytes.
+         */
+        Region(final int capacity) {
+            residues = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    /**
+     * Creates an empty collection.
+     */
+    public OffHeapProteinCollection() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates an empty collection with room for the given amount of residues and separators.
+     * @param capacity expected size in bytes. The collection grows when more is added.
+     */
+    public OffHeapProteinCollection(final long capacity) {
+        regions = new ArrayList<>();
+        regions.add(new Region((int) Math.max(1, Math.min(capacity, MAX_CAPACITY))));
+        firstProteins = new int[]{0, 0};
+        view = false;
+        expectedSize = capacity;
+    }
+
+    /**
+     * Creates a view of the proteins of several collections, in the order of the list. The residues are not copied,
+     * so proteins should not be added to the collections after the view is created.
+     * @param collections collections of proteins.
+     */
+    public OffHeapProteinCollection(final ArrayList<OffHeapProteinCollection> collections) {
+        regions = new ArrayList<>();
+        for (OffHeapProteinCollection collection : collections) {
+            regions.addAll(collection.regions);
+        }
+        firstProteins = new int[regions.size() + 1];
+        for (int region = 0; region < regions.size(); region++) {
+            firstProteins[region + 1] = firstProteins[region] + regions.get(region).accessions.size();
+        }
+        view = true;
+    }
+
+    /**
+     * Adds a protein to the collection.
+     * @param residues array with the residues of the protein.
+     * @param length amount of residues.
+     * @param accession protein accession.
+     */
+    public final void addProtein(final byte[] residues, final int length, final String accession) {
+        if (view) {
+            throw new UnsupportedOperationException("Proteins can not be added to a view of several collections.");
+        }
+        if (length + 1L > MAX_CAPACITY) {
+            throw new IllegalStateException("Protein " + accession + " does not fit in one off-heap memory region.");
+        }
+        Region region = regions.get(regions.size() - 1);
+        if (region.residues.remaining() < length + 1L) {
+            long needed = region.residues.position() + length + 1L;
+            if (needed > MAX_CAPACITY) {
+                region = addRegion(length + 1);
+            } else {
+                ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(Math.max(needed, 2L * region.residues.capacity()), MAX_CAPACITY));
+                region.residues.flip();
+                grown.put(region.residues);
+                region.residues = grown;
+            }
+        }
+        int start = region.residues.position();
+        region.residues.put(residues, 0, length);
+        for (int i = 0; i < length; i++) {
+            if (residues[i] < 0 || residues[i] == SEPARATOR) {
+                region.residues.put(start + i, UNKNOWN);
+            }
+        }
+        region.residues.put(SEPARATOR);
+        int protein = region.accessions.size();
+        if (protein + 2 > region.offsets.length) {
+            region.offsets = Arrays.copyOf(region.offsets, region.offsets.length * 2);
+        }
+        region.offsets[protein] = start;
+        region.offsets[protein + 1] = region.residues.position();
+        region.accessions.add(accession);
+        firstProteins[regions.size()]++;
+        expectedSize -= length + 1L;
+    }
+
+    /**
+     * Starts a new region after the last one, sized by the amount of residues that is still expected.
+     * @param needed size in bytes of the protein that is added to the region.
+     * @return new region.
+     */
+    private Region addRegion(final int needed) {
+        Region region = new Region((int) Math.min(Math.max(needed, expectedSize), MAX_CAPACITY));
+        regions.add(region);
+        firstProteins = Arrays.copyOf(firstProteins, regions.size() + 1);
+        firstProteins[regions.size()] = firstProteins[regions.size() - 1];
+        return region;
+    }
+
+    /**
+     * Returns the amount of proteins.
+     * @return amount of proteins as int.
+     */
+    public final int getProteinCount() {
+        return firstProteins[regions.size()];
+    }
+
+    /**
+     * Returns the amount of regions. A collection has at least one region per database.
+     * @return amount of regions as int.
+     */
+    public final int getRegionCount() {
+        return regions.size();
+    }
+
+    /**
+     * Returns a read-only view of the residues and separators of a region, from position 0 to the limit.
+     * The view can be read by several threads with the absolute get methods.
+     * @param region index of the region.
+     * @return residues of the region.
+     */
+    public final ByteBuffer getRegion(final int region) {
+        ByteBuffer residues = regions.get(region).residues.asReadOnlyBuffer();
+        residues.flip();
+        return residues;
+    }
+
+    /**
+     * Returns the index of the first protein of a region.
+     * @param region index of the region, or the amount of regions to get the amount of proteins.
+     * @return protein index as int.
+     */
+    public final int getFirstProtein(final int region) {
+        return firstProteins[region];
+    }
+
+    /**
+     * Returns the region that contains a protein.
+     * @param protein index of the protein.
+     * @return region index as int.
+     */
+    public final int getRegionIndex(final int protein) {
+        int region = Arrays.binarySearch(firstProteins, 0, regions.size(), protein);
+        if (region < 0) {
+            return -region - 2;
+        }
+        //Skip regions without proteins.
+        while (firstProteins[region + 1] == protein) {
+            region++;
+        }
+        return region;
+    }
+
+    /**
+     * Returns the protein that contains a position of a region.
+     * @param region index of the region.
+     * @param position position in the residues of the region.
+     * @return protein index as int.
+     */
+    public final int getProtein(final int region, final int position) {
+        Region proteinRegion = regions.get(region);
+        int protein = Arrays.binarySearch(proteinRegion.offsets, 0, proteinRegion.accessions.size(), position);
+        if (protein < 0) {
+            protein = -protein - 2;
+        }
+        return firstProteins[region] + protein;
+    }
+
+    /**
+     * Returns the position of the first residue of a protein in its region.
+     * @param protein index of the protein.
+     * @return position as int.
+     */
+    public final int getSequenceStart(final int protein) {
+        int region = getRegionIndex(protein);
+        return regions.get(region).offsets[protein - firstProteins[region]];
+    }
+
+    /**
+     * Returns the position of the separator after a protein in its region.
+     * @param protein index of the protein.
+     * @return position as int.
+     */
+    public final int getSequenceEnd(final int protein) {
+        int region = getRegionIndex(protein);
+        return regions.get(region).offsets[protein - firstProteins[region] + 1] - 1;
+    }
+
+    /**
+     * Returns the sequence of a protein. A new String is created on each call.
+     * @param protein index of the protein.
+     * @return protein sequence as String.
+     */
+    public final String getSequence(final int protein) {
+        ByteBuffer residues = getRegion(getRegionIndex(protein));
+        byte[] sequence = new byte[getSequenceEnd(protein) - getSequenceStart(protein)];
+        residues.position(getSequenceStart(protein));
+        residues.get(sequence);
+        return new String(sequence, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the accession of a protein.
+     * @param protein index of the protein.
+     * @return accession as String.
+     */
+    public final String getAccession(final int protein) {
+        int region = getRegionIndex(protein);
+        return regions.get(region).accessions.get(protein - firstProteins[region]);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package collections;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import tools.SequenceNormalizer;
+
+/**
+ * Assigns a dense id to each distinct peptide sequence of a run, starting at 0 in the order in which the sequences
+ * are first added. The residues of all sequences are stored once in one byte array, so peptides with the same
+ * sequence can be compared, counted and indexed by their id instead of by a String.
+ * The store can be shared by threads that read different files at the same time.
+ * @author vnijenhuis
+ */
+public class PeptideIdStore {
+
+    /**
+     * Marks an empty slot of the hash table.
+     */
+    private static final int EMPTY = -1;
+
+    /**
+     * Residues of all sequences, encoded as UTF-8, which is one byte per residue.
+     */
+    private byte[] residues = new byte[1 << 12];
+
+    /**
+     * Start of each sequence in the residues array. The sequence with id i ends at the start of id i + 1.
+     */
+    private int[] starts = new int[257];
+
+    /**
+     * Hash code of each sequence, used to rehash without decoding the sequences.
+     */
+    private int[] hashes = new int[256];
+
+    /**
+     * Open addressing hash table that contains the id of each sequence.
+     */
+    private int[] table = newTable(512);
+
+    /**
+     * Sequences that only match themselves when used as regular expression.
+     */
+    private final BitSet literalSequences = new BitSet();
+
+    /**
+     * Amount of sequences.
+     */
+    private int count = 0;
+
+    /**
+     * Returns the id of a sequence. The sequence is added when it is not present yet.
+     * @param sequence peptide sequence without modifications.
+     * @return id of the sequence.
+     */
+    public final synchronized int getId(final String sequence) {
+        int hash = sequence.hashCode();
+        int slot = findSlot(sequence, hash);
+        if (table[slot] != EMPTY) {
+            return table[slot];
+        }
+        int id = count;
+        byte[] encoded = sequence.getBytes(StandardCharsets.UTF_8);
+        int start = starts[id];
+        if (encoded.length > residues.length - start) {
+            residues = Arrays.copyOf(residues, Math.max(residues.length * 2, start + encoded.length));
+        }
+        System.arraycopy(encoded, 0, residues, start, encoded.length);
+        if (id == hashes.length) {
+            hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            starts = Arrays.copyOf(starts, hashes.length + 1);
+        }
+        starts[id + 1] = start + encoded.length;
+        hashes[id] = hash;
+        if (SequenceNormalizer.isLiteral(sequence)) {
+            literalSequences.set(id);
+        }
+        table[slot] = id;
+        count++;
+        //The table is kept at most half full.
+        if (count * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of a sequence without adding it.
+     * @param sequence peptide sequence without modifications.
+     * @return id of the sequence, or -1 if the sequence is not present.
+     */
+    public final synchronized int findId(final String sequence) {
+        return table[findSlot(sequence, sequence.hashCode())];
+    }
+
+    /**
+     * Returns the sequence of an id.
+     * @param id id of the sequence.
+     * @return peptide sequence as String.
+     */
+    public final synchronized String getSequence(final int id) {
+        checkId(id);
+        return new String(residues, starts[id], starts[id + 1] - starts[id], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks if the sequence of an id only matches itself when used as regular expression.
+     * @param id id of the sequence.
+     * @return true if the sequence does not contain characters with a special meaning, else false.
+     */
+    public final synchronized boolean isLiteral(final int id) {
+        checkId(id);
+        return literalSequences.get(id);
+    }
+
+    /**
+     * Returns the amount of distinct sequences, which is also the next id.
+     * @return amount of sequences as int.
+     */
+    public final synchronized int getSequenceCount() {
+        return count;
+    }
+
+    /**
+     * Returns the amount of bytes used to store the residues.
+     * @return amount of bytes as int.
+     */
+    public final synchronized int getResidueCount() {
+        return starts[count];
+    }
+
+    /**
+     * Finds the slot of a sequence in the hash table.
+     * @param sequence peptide sequence.
+     * @param hash hash code of the sequence.
+     * @return slot that contains the id of the sequence, or the empty slot where it is added.
+     */
+    private int findSlot(final String sequence, final int hash) {
+        int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        while (table[slot] != EMPTY) {
+            int id = table[slot];
+            if (hashes[id] == hash && isEqual(id, sequence)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Compares a stored sequence to a String without decoding it.
+     * @param id id of the stored sequence.
+     * @param sequence peptide sequence.
+     * @return true if the sequences are equal, else false.
+     */
+    private boolean isEqual(final int id, final String sequence) {
+        int start = starts[id];
+        int length = starts[id + 1] - start;
+        if (length != sequence.length()) {
+            //A sequence with other characters than ASCII can still be equal, as these take more than one byte.
+            return length > sequence.length() && !isAscii(sequence) && getSequence(id).equals(sequence);
+        }
+        for (int i = 0; i < length; i++) {
+            char character = sequence.charAt(i);
+            if (character >= 0x80) {
+                return getSequence(id).equals(sequence);
+            }
+            if (residues[start + i] != character) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the hash table by a larger one and adds all ids again.
+     * @param size new size of the table, a power of two.
+     */
+    private void rehash(final int size) {
+        table = newTable(size);
+        int mask = size - 1;
+        for (int id = 0; id < count; id++) {
+            int slot = mix(hashes[id]) & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+    }
+
+    /**
+     * Checks if an id was assigned.
+     * @param id id of a sequence.
+     */
+    private void checkId(final int id) {
+        if (id < 0 || id >= count) {
+            throw new IndexOutOfBoundsException("Peptide id " + id + " was not assigned, " + count + " sequences are stored.");
+        }
+    }
+
+    /**
+     * Creates an empty hash table.
+     * @param size size of the table, a power of two.
+     * @return table filled with empty slots.
+     */
+    private static int[] newTable(final int size) {
+        int[] newTable = new int[size];
+        Arrays.fill(newTable, EMPTY);
+        return newTable;
+    }
+
+    /**
+     * Spreads the bits of a hash code, as String hash codes of similar sequences differ mostly in the low bits.
+     * @param hash hash code.
+     * @return mixed hash code.
+     */
+    private static int mix(final int hash) {
+        int mixed = hash * 0x9E3779B9;
+        return mixed ^ (mixed >>> 16);
+    }
+
+    /**
+     * Checks if a sequence only contains ASCII characters.
+     * @param sequence peptide sequence.
+     * @return true if every character takes one byte, else false.
+     */
+    private static boolean isAscii(final String sequence) {
+        for (int i = 0; i < sequence.length(); i++) {
+            if (sequence.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
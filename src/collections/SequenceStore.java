@@ -0,0 +1,85 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package collections;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Store of distinct protein sequences that is shared by all databases.
+ * Identical sequences of different database files are stored once, the proteins only keep a reference to it.
+ * @author vnijenhuis
+ */
+public class SequenceStore {
+    /**
+     * Maps each distinct sequence to its shared instance.
+     */
+    private final ConcurrentHashMap<String, String> sequences;
+
+    /**
+     * Amount of sequences that were replaced by a shared instance.
+     */
+    private final AtomicLong reusedSequences;
+
+    /**
+     * Store that is checked first without adding sequences to it, or null.
+     */
+    private final SequenceStore parent;
+
+    /**
+     * Creates an empty store.
+     */
+    public SequenceStore() {
+        this(null);
+    }
+
+    /**
+     * Creates an empty store that reuses the sequences of another store. New sequences are only added to this
+     * store, so they are released together with it.
+     * @param parent store that is checked first.
+     */
+    public SequenceStore(final SequenceStore parent) {
+        sequences = new ConcurrentHashMap<>();
+        reusedSequences = new AtomicLong();
+        this.parent = parent;
+    }
+
+    /**
+     * Returns the shared instance of a sequence. The sequence is added when it is not present yet.
+     * @param sequence protein sequence.
+     * @return shared instance with the same content.
+     */
+    public final String getSequence(final String sequence) {
+        if (parent != null) {
+            String stored = parent.sequences.get(sequence);
+            if (stored != null) {
+                reusedSequences.incrementAndGet();
+                return stored;
+            }
+        }
+        String stored = sequences.putIfAbsent(sequence, sequence);
+        if (stored == null) {
+            return sequence;
+        }
+        reusedSequences.incrementAndGet();
+        return stored;
+    }
+
+    /**
+     * Returns the amount of distinct sequences.
+     * @return amount of sequences as int.
+     */
+    public final int getSequenceCount() {
+        return sequences.size();
+    }
+
+    /**
+     * Returns the amount of sequences that were replaced by a shared instance.
+     * @return amount of reused sequences as long.
+     */
+    public final long getReusedSequenceCount() {
+        return reusedSequences.get();
+    }
+}
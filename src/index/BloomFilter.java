@@ -0,0 +1,358 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package index;
+
+import collections.ProteinCollection;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import objects.Protein;
+
+/**
+ * Bloom filter of all substrings of a protein collection with a length between a minimum and maximum length.
+ * A peptide sequence that is not present in the filter is certainly not present in the proteins, so the database
+ * does not have to be searched. A peptide sequence that is present in the filter may still be absent.
+ * The filter is immutable after creation and can be shared between threads.
+ *
+ * @author vnijenhuis
+ */
+public class BloomFilter {
+
+    /**
+     * Identifies a Bloom filter file.
+     */
+    private static final int MAGIC = 0x424c4d31;
+
+    /**
+     * Extension that is added to the database file name.
+     */
+    public static final String EXTENSION = ".bloom";
+
+    /**
+     * Largest amount of hash functions.
+     */
+    private static final int MAX_HASH_COUNT = 16;
+
+    /**
+     * Length of the database file that the filter was created from.
+     */
+    private final long sourceLength;
+
+    /**
+     * Last modification time of the database file that the filter was created from.
+     */
+    private final long sourceModified;
+
+    /**
+     * Shortest substring length that was added.
+     */
+    private final int minLength;
+
+    /**
+     * Longest substring length that was added.
+     */
+    private final int maxLength;
+
+    /**
+     * False-positive rate that was requested when the filter was created.
+     */
+    private final double falsePositiveRate;
+
+    /**
+     * Amount of hash functions.
+     */
+    private final int hashCount;
+
+    /**
+     * Amount of bits.
+     */
+    private final long bitCount;
+
+    /**
+     * Bits of the filter.
+     */
+    private final long[] bits;
+
+    /**
+     * Creates the filter of the given proteins.
+     *
+     * @param proteins collection of Protein objects.
+     * @param database database file that the proteins were read from.
+     * @param minLength shortest substring length.
+     * @param maxLength longest substring length.
+     * @param falsePositiveRate false-positive rate used to determine the size, if no size is given.
+     * @param bitCount amount of bits, or 0 to determine the size from the false-positive rate.
+     */
+    public BloomFilter(final ProteinCollection proteins, final File database, final int minLength, final int maxLength,
+            final double falsePositiveRate, final long bitCount) {
+        if (minLength < 1 || maxLength < minLength) {
+            throw new IllegalArgumentException("Invalid substring lengths of the Bloom filter: " + minLength + "-" + maxLength);
+        }
+        this.sourceLength = database.length();
+        this.sourceModified = database.lastModified();
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.falsePositiveRate = falsePositiveRate;
+        long substrings = getSubstringCount(proteins, minLength, maxLength);
+        if (bitCount > 0) {
+            this.bitCount = bitCount;
+        } else {
+            //Optimal size for the expected amount of substrings: -n * ln(p) / ln(2)^2.
+            this.bitCount = Math.max(64, (long) Math.ceil(-substrings * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+        }
+        this.hashCount = Math.max(1, Math.min(MAX_HASH_COUNT, (int) Math.round((double) this.bitCount / Math.max(1, substrings) * Math.log(2))));
+        long words = (this.bitCount + 63) >>> 6;
+        if (words > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter of " + this.bitCount + " bits is too large.");
+        }
+        bits = new long[(int) words];
+        for (Protein protein : proteins.getProteins()) {
+            String sequence = protein.getSequence();
+            for (int start = 0; start + minLength <= sequence.length(); start++) {
+                //Extends the hash residue by residue, so every length only adds one step.
+                long hash = 0xcbf29ce484222325L;
+                int end = Math.min(sequence.length(), start + maxLength);
+                for (int i = start; i < end; i++) {
+                    hash = extendHash(hash, sequence.charAt(i));
+                    if (i - start + 1 >= minLength) {
+                        add(hash);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a filter from stored values.
+     *
+     * @param sourceLength length of the database file.
+     * @param sourceModified last modification time of the database file.
+     * @param minLength shortest substring length.
+     * @param maxLength longest substring length.
+     * @param falsePositiveRate requested false-positive rate.
+     * @param hashCount amount of hash functions.
+     * @param bitCount amount of bits.
+     * @param bits bits of the filter.
+     */
+    private BloomFilter(final long sourceLength, final long sourceModified, final int minLength, final int maxLength,
+            final double falsePositiveRate, final int hashCount, final long bitCount, final long[] bits) {
+        this.sourceLength = sourceLength;
+        this.sourceModified = sourceModified;
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.falsePositiveRate = falsePositiveRate;
+        this.hashCount = hashCount;
+        this.bitCount = bitCount;
+        this.bits = bits;
+    }
+
+    /**
+     * Returns the amount of substrings that are added for the given proteins.
+     *
+     * @param proteins collection of Protein objects.
+     * @param minLength shortest substring length.
+     * @param maxLength longest substring length.
+     * @return amount of substrings, including duplicates.
+     */
+    private static long getSubstringCount(final ProteinCollection proteins, final int minLength, final int maxLength) {
+        long count = 0;
+        for (Protein protein : proteins.getProteins()) {
+            int length = protein.getSequence().length();
+            for (int substringLength = minLength; substringLength <= maxLength && substringLength <= length; substringLength++) {
+                count += length - substringLength + 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds a residue to a FNV-1a hash.
+     *
+     * @param hash current hash.
+     * @param residue residue to add.
+     * @return new hash.
+     */
+    private static long extendHash(final long hash, final char residue) {
+        return (hash ^ residue) * 0x100000001b3L;
+    }
+
+    /**
+     * Mixes the bits of a hash, so that both halves can be used as independent hashes.
+     *
+     * @param hash hash value.
+     * @return mixed hash value.
+     */
+    private static long mix(final long hash) {
+        long mixed = hash;
+        mixed ^= mixed >>> 33;
+        mixed *= 0xff51afd7ed558ccdL;
+        mixed ^= mixed >>> 33;
+        mixed *= 0xc4ceb9fe1a85ec53L;
+        mixed ^= mixed >>> 33;
+        return mixed;
+    }
+
+    /**
+     * Sets the bits of a substring hash.
+     *
+     * @param hash FNV-1a hash of the substring.
+     */
+    private void add(final long hash) {
+        long mixed = mix(hash);
+        long first = mixed & 0xffffffffL;
+        long second = (mixed >>> 32) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = (first + i * second) % bitCount;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Checks if all bits of a substring hash are set.
+     *
+     * @param hash FNV-1a hash of the substring.
+     * @return true if the substring may be present, false if it is certainly absent.
+     */
+    private boolean contains(final long hash) {
+        long mixed = mix(hash);
+        long first = mixed & 0xffffffffL;
+        long second = (mixed >>> 32) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = (first + i * second) % bitCount;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a peptide sequence may be present in the proteins. Peptide sequences that are longer than the
+     * longest substring length are checked by each of their substrings of that length.
+     *
+     * @param peptide peptide sequence.
+     * @return false if the peptide sequence is certainly absent, true if it may be present or is too short to check.
+     */
+    public final boolean mightContain(final String peptide) {
+        if (peptide.length() < minLength) {
+            return true;
+        }
+        int windowLength = Math.min(peptide.length(), maxLength);
+        for (int start = 0; start + windowLength <= peptide.length(); start++) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = start; i < start + windowLength; i++) {
+                hash = extendHash(hash, peptide.charAt(i));
+            }
+            if (!contains(hash)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Estimates the false-positive rate from the fraction of bits that are set.
+     *
+     * @return estimated false-positive rate of a single substring.
+     */
+    public final double getFalsePositiveRate() {
+        long setBits = 0;
+        for (long word : bits) {
+            setBits += Long.bitCount(word);
+        }
+        return Math.pow((double) setBits / bitCount, hashCount);
+    }
+
+    /**
+     * Returns the amount of bits.
+     *
+     * @return amount of bits as long.
+     */
+    public final long getBitCount() {
+        return bitCount;
+    }
+
+    /**
+     * Returns the amount of hash functions.
+     *
+     * @return amount of hash functions as int.
+     */
+    public final int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * Checks if the filter was created from the current version of the database file with the given settings.
+     *
+     * @param database database file.
+     * @param minLength shortest substring length.
+     * @param maxLength longest substring length.
+     * @param falsePositiveRate requested false-positive rate.
+     * @param bitCount requested amount of bits, or 0 to determine the size from the false-positive rate.
+     * @return true if the filter can be used, else false.
+     */
+    public final boolean isCreatedFrom(final File database, final int minLength, final int maxLength, final double falsePositiveRate,
+            final long bitCount) {
+        boolean sameSize;
+        if (bitCount > 0) {
+            sameSize = this.bitCount == bitCount;
+        } else {
+            sameSize = this.falsePositiveRate == falsePositiveRate;
+        }
+        return database.length() == sourceLength && database.lastModified() == sourceModified && this.minLength == minLength
+                && this.maxLength == maxLength && sameSize;
+    }
+
+    /**
+     * Writes the filter to a file.
+     *
+     * @param file output file.
+     * @throws IOException could not write to the file.
+     */
+    public final void save(final File file) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file); FileChannel channel = outputStream.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(48);
+            header.putInt(MAGIC);
+            header.putLong(sourceLength);
+            header.putLong(sourceModified);
+            header.putInt(minLength);
+            header.putInt(maxLength);
+            header.putDouble(falsePositiveRate);
+            header.putInt(hashCount);
+            header.putLong(bitCount);
+            header.flip();
+            channel.write(header);
+            IndexFiles.writeLongs(channel, bits);
+        }
+    }
+
+    /**
+     * Reads a filter file.
+     *
+     * @param file filter file.
+     * @return Bloom filter.
+     * @throws IOException could not read the file or the file is not a Bloom filter.
+     */
+    public static BloomFilter load(final File file) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(file); FileChannel channel = inputStream.getChannel()) {
+            ByteBuffer header = IndexFiles.read(channel, 48);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a Bloom filter file.");
+            }
+            long sourceLength = header.getLong();
+            long sourceModified = header.getLong();
+            int minLength = header.getInt();
+            int maxLength = header.getInt();
+            double falsePositiveRate = header.getDouble();
+            int hashCount = header.getInt();
+            long bitCount = header.getLong();
+            long[] bits = IndexFiles.readLongs(channel, (int) ((bitCount + 63) >>> 6));
+            return new BloomFilter(sourceLength, sourceModified, minLength, maxLength, falsePositiveRate, hashCount, bitCount, bits);
+        }
+    }
+}
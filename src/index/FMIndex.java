@@ -0,0 +1,769 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package index;
+
+import collection.creator.FastaParser;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * FM-index (Burrows-Wheeler transform with a sampled suffix array) of a protein database.
+ * Counts the occurrences of a peptide sequence in O(peptide length) without keeping the protein sequences in memory.
+ * The index is created while the database file is parsed, without loading the proteins. The proteins are divided over
+ * segments of at most SEGMENT_SIZE residues that each have their own transform, so the size of a database is not
+ * limited by the size of an array and building needs about 11 bytes per residue of one segment only.
+ * A protein is never divided over two segments, so the occurrences of a peptide are the sum of all segments.
+ * The index is immutable after creation and can be shared between threads.
+ *
+ * @author vnijenhuis
+ */
+public class FMIndex {
+
+    /**
+     * Identifies an FM-index file.
+     */
+    private static final int MAGIC = 0x464d4932;
+
+    /**
+     * Extension that is added to the database file name.
+     */
+    public static final String EXTENSION = ".fmi";
+
+    /**
+     * Largest amount of residues and separators of a segment, unless a single protein is longer.
+     */
+    private static final int SEGMENT_SIZE = 1 << 25;
+
+    /**
+     * Rows per occurrence block. Blocks store their counts relative to the superblock.
+     */
+    private static final int BLOCK_SHIFT = 8;
+
+    /**
+     * Rows per occurrence superblock.
+     */
+    private static final int SUPERBLOCK_SHIFT = 16;
+
+    /**
+     * Every text position that is a multiple of this value is stored in the suffix array sample.
+     */
+    private static final int SAMPLE_RATE = 64;
+
+    /**
+     * Symbol of the end of the text.
+     */
+    private static final int SENTINEL = 0;
+
+    /**
+     * Symbol that separates two proteins.
+     */
+    private static final int SEPARATOR = 1;
+
+    /**
+     * Residue of the bytes outside of the ASCII range, which are decoded to this character in protein sequences.
+     */
+    private static final char UNKNOWN_RESIDUE = '\uFFFD';
+
+    /**
+     * Length of the database file that the index was created from.
+     */
+    private final long sourceLength;
+
+    /**
+     * Last modification time of the database file that the index was created from.
+     */
+    private final long sourceModified;
+
+    /**
+     * Segments of the index, in the order of the proteins.
+     */
+    private final Segment[] segments;
+
+    /**
+     * Amount of proteins in all segments.
+     */
+    private final int proteinCount;
+
+    /**
+     * Creates an FM-index of the given segments.
+     *
+     * @param sourceLength length of the database file.
+     * @param sourceModified last modification time of the database file.
+     * @param segments segments of the index.
+     */
+    private FMIndex(final long sourceLength, final long sourceModified, final Segment[] segments) {
+        this.sourceLength = sourceLength;
+        this.sourceModified = sourceModified;
+        this.segments = segments;
+        int proteins = 0;
+        for (Segment segment : segments) {
+            proteins += segment.proteinStarts.length;
+        }
+        this.proteinCount = proteins;
+    }
+
+    /**
+     * Creates an FM-index of the proteins of a .fasta or .fasta.gz database file.
+     *
+     * @param database database file.
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     * @param threads amount of threads used to decompress a .fasta.gz file.
+     * @return FM-index of the database.
+     * @throws IOException could not read the database file.
+     */
+    public static FMIndex create(final String database, final boolean equateIsoleucineLeucine, final int threads) throws IOException {
+        File source = new File(database);
+        long sourceLength = source.length();
+        long sourceModified = source.lastModified();
+        ArrayList<Segment> segments = new ArrayList<>();
+        byte[] text = new byte[1 << 16];
+        int textLength = 0;
+        int[] proteinStarts = new int[1024];
+        int proteins = 0;
+        try (FastaParser parser = new FastaParser(database, equateIsoleucineLeucine, threads)) {
+            while (parser.nextRecord()) {
+                int length = parser.getSequenceLength();
+                if (length > Integer.MAX_VALUE - 16) {
+                    throw new IOException("Protein " + parser.getAccession() + " of " + database + " is too long for an FM-index.");
+                }
+                //A protein is kept in one segment, so a segment is only larger than SEGMENT_SIZE for a single long protein.
+                if (proteins > 0 && (long) textLength + length + 1 > SEGMENT_SIZE) {
+                    segments.add(new Segment(text, textLength, Arrays.copyOf(proteinStarts, proteins), database));
+                    textLength = 0;
+                    proteins = 0;
+                }
+                if (textLength + length + 1 > text.length) {
+                    text = Arrays.copyOf(text, Math.max(textLength + length + 1, Math.min(2 * text.length, SEGMENT_SIZE)));
+                }
+                if (proteins == proteinStarts.length) {
+                    proteinStarts = Arrays.copyOf(proteinStarts, proteins * 2);
+                }
+                proteinStarts[proteins++] = textLength;
+                parser.getResidues(text, textLength);
+                textLength += length + 1;
+            }
+        }
+        if (proteins > 0 || segments.isEmpty()) {
+            segments.add(new Segment(text, textLength, Arrays.copyOf(proteinStarts, proteins), database));
+        }
+        return new FMIndex(sourceLength, sourceModified, segments.toArray(new Segment[segments.size()]));
+    }
+
+    /**
+     * Counts the occurrences of a peptide sequence in the protein database.
+     *
+     * @param pattern peptide sequence.
+     * @return amount of occurrences, at most Integer.MAX_VALUE.
+     */
+    public final int count(final String pattern) {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.count(pattern);
+        }
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Counts the proteins that contain a peptide sequence.
+     *
+     * @param pattern peptide sequence.
+     * @param limit counting stops when this amount of proteins is reached.
+     * @return amount of proteins, at most limit.
+     */
+    public final int countProteins(final String pattern, final int limit) {
+        int count = 0;
+        for (int i = 0; i < segments.length && count < limit; i++) {
+            count += segments[i].countProteins(pattern, limit - count);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the amount of proteins in the index.
+     *
+     * @return amount of proteins as int.
+     */
+    public final int getProteinCount() {
+        return proteinCount;
+    }
+
+    /**
+     * Checks if the index was created from the current version of the database file.
+     *
+     * @param database database file.
+     * @return true if the length and modification time match, else false.
+     */
+    public final boolean isCreatedFrom(final File database) {
+        return database.length() == sourceLength && database.lastModified() == sourceModified;
+    }
+
+    /**
+     * Writes the index to a file.
+     *
+     * @param file output file.
+     * @throws IOException could not write to the file.
+     */
+    public final void save(final File file) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file); FileChannel channel = outputStream.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(24);
+            header.putInt(MAGIC);
+            header.putLong(sourceLength);
+            header.putLong(sourceModified);
+            header.putInt(segments.length);
+            header.flip();
+            channel.write(header);
+            for (Segment segment : segments) {
+                segment.save(channel);
+            }
+        }
+    }
+
+    /**
+     * Reads an index file.
+     *
+     * @param file index file.
+     * @return FM-index.
+     * @throws IOException could not read the file or the file is not an FM-index.
+     */
+    public static FMIndex load(final File file) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(file); FileChannel channel = inputStream.getChannel()) {
+            ByteBuffer header = IndexFiles.read(channel, 24);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + " is not an FM-index file.");
+            }
+            long sourceLength = header.getLong();
+            long sourceModified = header.getLong();
+            Segment[] segments = new Segment[header.getInt()];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = Segment.load(channel);
+            }
+            return new FMIndex(sourceLength, sourceModified, segments);
+        }
+    }
+
+    /**
+     * Transform of the proteins of one segment. Text positions and protein starts are relative to the segment.
+     */
+    private static class Segment {
+
+        /**
+         * Residues of the text, sorted. The symbol of residues[i] is i + 2.
+         */
+        private final char[] residues;
+
+        /**
+         * Maps an ASCII residue, or UNKNOWN_RESIDUE at index 128, to its symbol. Absent residues have symbol 0.
+         */
+        private final int[] symbolIndex;
+
+        /**
+         * Amount of symbols, including the sentinel and separator.
+         */
+        private final int sigma;
+
+        /**
+         * Amount of rows of the Burrows-Wheeler transform.
+         */
+        private final int length;
+
+        /**
+         * Amount of rows that start with a smaller symbol, for each symbol.
+         */
+        private final int[] smallerSymbols;
+
+        /**
+         * Burrows-Wheeler transform of the text.
+         */
+        private final byte[] bwt;
+
+        /**
+         * Occurrence count of each symbol before each superblock.
+         */
+        private final int[] superblockCounts;
+
+        /**
+         * Occurrence count of each symbol between the superblock and the block.
+         */
+        private final char[] blockCounts;
+
+        /**
+         * Marks the rows of which the suffix array value is sampled.
+         */
+        private final long[] sampledRows;
+
+        /**
+         * Amount of marked rows before every 8 words of sampledRows.
+         */
+        private final int[] sampledRowRanks;
+
+        /**
+         * Sampled suffix array values, in row order.
+         */
+        private final int[] suffixSamples;
+
+        /**
+         * Text position at which each protein starts.
+         */
+        private final int[] proteinStarts;
+
+        /**
+         * Creates the transform of the proteins in a byte text.
+         *
+         * @param bytes residues of the proteins, each followed by one byte that is replaced by the separator.
+         * @param textLength amount of used bytes.
+         * @param proteinStarts position of the first residue of each protein.
+         * @param database database file the proteins were read from.
+         */
+        Segment(final byte[] bytes, final int textLength, final int[] proteinStarts, final String database) {
+            this.proteinStarts = proteinStarts;
+            //Determine the residues that are present in the text. All bytes outside of the ASCII range are one residue.
+            boolean[] present = new boolean[129];
+            for (int p = 0; p < proteinStarts.length; p++) {
+                int end = p + 1 < proteinStarts.length ? proteinStarts[p + 1] - 1 : textLength - 1;
+                for (int i = proteinStarts[p]; i < end; i++) {
+                    present[Math.min(bytes[i] & 0xff, 128)] = true;
+                }
+            }
+            int residueCount = 0;
+            for (boolean residue : present) {
+                if (residue) {
+                    residueCount++;
+                }
+            }
+            if (residueCount > Byte.MAX_VALUE - 2) {
+                throw new IllegalArgumentException("Database " + database + " contains too many different residues.");
+            }
+            residues = new char[residueCount];
+            residueCount = 0;
+            for (int c = 0; c < present.length; c++) {
+                if (present[c]) {
+                    residues[residueCount++] = c < 128 ? (char) c : UNKNOWN_RESIDUE;
+                }
+            }
+            symbolIndex = createSymbolIndex(residues);
+            sigma = residues.length + 2;
+            length = textLength + 1;
+            //Replace the residues by their symbols and the byte after each protein by the separator.
+            int[] text = new int[length];
+            for (int p = 0; p < proteinStarts.length; p++) {
+                int end = p + 1 < proteinStarts.length ? proteinStarts[p + 1] - 1 : textLength - 1;
+                for (int i = proteinStarts[p]; i < end; i++) {
+                    text[i] = symbolIndex[Math.min(bytes[i] & 0xff, 128)];
+                }
+                text[end] = SEPARATOR;
+            }
+            text[textLength] = SENTINEL;
+            int[] suffixArray = new int[length];
+            createSuffixArray(text, suffixArray, length, sigma);
+            //Create the transform and the suffix array sample.
+            bwt = new byte[length];
+            smallerSymbols = new int[sigma + 1];
+            sampledRows = new long[(length >>> 6) + 1];
+            int sampleCount = 0;
+            for (int row = 0; row < length; row++) {
+                int suffix = suffixArray[row];
+                int symbol = text[suffix == 0 ? length - 1 : suffix - 1];
+                bwt[row] = (byte) symbol;
+                smallerSymbols[text[suffix] + 1]++;
+                if (suffix % SAMPLE_RATE == 0) {
+                    sampledRows[row >>> 6] |= 1L << (row & 63);
+                    sampleCount++;
+                }
+            }
+            for (int symbol = 1; symbol <= sigma; symbol++) {
+                smallerSymbols[symbol] += smallerSymbols[symbol - 1];
+            }
+            suffixSamples = new int[sampleCount];
+            sampleCount = 0;
+            for (int row = 0; row < length; row++) {
+                if (suffixArray[row] % SAMPLE_RATE == 0) {
+                    suffixSamples[sampleCount++] = suffixArray[row];
+                }
+            }
+            sampledRowRanks = createRanks(sampledRows);
+            superblockCounts = new int[((length >>> SUPERBLOCK_SHIFT) + 1) * sigma];
+            blockCounts = new char[((length >>> BLOCK_SHIFT) + 1) * sigma];
+            createOccurrenceCounts();
+        }
+
+        /**
+         * Creates a segment from the values stored in an index file.
+         */
+        private Segment(final char[] residues, final int length, final int[] smallerSymbols, final byte[] bwt,
+                final long[] sampledRows, final int[] suffixSamples, final int[] proteinStarts) {
+            this.residues = residues;
+            this.symbolIndex = createSymbolIndex(residues);
+            this.sigma = residues.length + 2;
+            this.length = length;
+            this.smallerSymbols = smallerSymbols;
+            this.bwt = bwt;
+            this.sampledRows = sampledRows;
+            this.sampledRowRanks = createRanks(sampledRows);
+            this.suffixSamples = suffixSamples;
+            this.proteinStarts = proteinStarts;
+            superblockCounts = new int[((length >>> SUPERBLOCK_SHIFT) + 1) * sigma];
+            blockCounts = new char[((length >>> BLOCK_SHIFT) + 1) * sigma];
+            createOccurrenceCounts();
+        }
+
+        /**
+         * Fills the superblock and block occurrence tables. These are derived from the transform and are not stored.
+         */
+        private void createOccurrenceCounts() {
+            int[] counts = new int[sigma];
+            int[] superblockStart = new int[sigma];
+            for (int row = 0; row <= length; row++) {
+                if ((row & ((1 << SUPERBLOCK_SHIFT) - 1)) == 0) {
+                    System.arraycopy(counts, 0, superblockCounts, (row >>> SUPERBLOCK_SHIFT) * sigma, sigma);
+                    System.arraycopy(counts, 0, superblockStart, 0, sigma);
+                }
+                if ((row & ((1 << BLOCK_SHIFT) - 1)) == 0) {
+                    int offset = (row >>> BLOCK_SHIFT) * sigma;
+                    for (int symbol = 0; symbol < sigma; symbol++) {
+                        blockCounts[offset + symbol] = (char) (counts[symbol] - superblockStart[symbol]);
+                    }
+                }
+                if (row < length) {
+                    counts[bwt[row]]++;
+                }
+            }
+        }
+
+        /**
+         * Returns the symbol of a residue.
+         *
+         * @param residue residue of a peptide sequence.
+         * @return symbol, or SENTINEL if the residue does not occur in the segment.
+         */
+        private int symbol(final char residue) {
+            if (residue < 128) {
+                return symbolIndex[residue];
+            } else if (residue == UNKNOWN_RESIDUE) {
+                return symbolIndex[128];
+            }
+            return SENTINEL;
+        }
+
+        /**
+         * Counts the occurrences of a symbol in the transform before the given row.
+         *
+         * @param symbol symbol to count.
+         * @param row row of the transform.
+         * @return amount of occurrences.
+         */
+        private int occurrences(final int symbol, final int row) {
+            int count = superblockCounts[(row >>> SUPERBLOCK_SHIFT) * sigma + symbol] + blockCounts[(row >>> BLOCK_SHIFT) * sigma + symbol];
+            for (int i = (row >>> BLOCK_SHIFT) << BLOCK_SHIFT; i < row; i++) {
+                if (bwt[i] == symbol) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Searches the range of transform rows that start with the given pattern.
+         *
+         * @param pattern peptide sequence.
+         * @return start (inclusive) and end (exclusive) row, or null if the pattern does not occur.
+         */
+        private int[] searchRange(final String pattern) {
+            int start = 0;
+            int end = length;
+            for (int i = pattern.length() - 1; i >= 0 && start < end; i--) {
+                int symbol = symbol(pattern.charAt(i));
+                if (symbol == SENTINEL) {
+                    return null;
+                }
+                start = smallerSymbols[symbol] + occurrences(symbol, start);
+                end = smallerSymbols[symbol] + occurrences(symbol, end);
+            }
+            if (start >= end) {
+                return null;
+            }
+            return new int[]{start, end};
+        }
+
+        /**
+         * Counts the occurrences of a peptide sequence in the segment.
+         *
+         * @param pattern peptide sequence.
+         * @return amount of occurrences.
+         */
+        int count(final String pattern) {
+            int[] range = searchRange(pattern);
+            if (range == null) {
+                return 0;
+            }
+            return range[1] - range[0];
+        }
+
+        /**
+         * Counts the proteins of the segment that contain a peptide sequence.
+         *
+         * @param pattern peptide sequence.
+         * @param limit counting stops when this amount of proteins is reached.
+         * @return amount of proteins, at most limit.
+         */
+        int countProteins(final String pattern, final int limit) {
+            int[] range = searchRange(pattern);
+            if (range == null) {
+                return 0;
+            }
+            //The proteins that were found are kept sorted, so a protein that occurs in several rows is counted once.
+            int[] proteins = new int[Math.min(limit, range[1] - range[0])];
+            int count = 0;
+            for (int row = range[0]; row < range[1] && count < limit; row++) {
+                int protein = Arrays.binarySearch(proteinStarts, locate(row));
+                if (protein < 0) {
+                    protein = -protein - 2;
+                }
+                int index = Arrays.binarySearch(proteins, 0, count, protein);
+                if (index < 0) {
+                    index = -index - 1;
+                    System.arraycopy(proteins, index, proteins, index + 1, count - index);
+                    proteins[index] = protein;
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Returns the text position of a transform row by walking back to a sampled row.
+         *
+         * @param row row of the transform.
+         * @return text position.
+         */
+        private int locate(final int row) {
+            int current = row;
+            int steps = 0;
+            while ((sampledRows[current >>> 6] & (1L << (current & 63))) == 0) {
+                int symbol = bwt[current];
+                current = smallerSymbols[symbol] + occurrences(symbol, current);
+                steps++;
+            }
+            int word = current >>> 6;
+            int rank = sampledRowRanks[word >>> 3];
+            for (int i = (word >>> 3) << 3; i < word; i++) {
+                rank += Long.bitCount(sampledRows[i]);
+            }
+            rank += Long.bitCount(sampledRows[word] & ((1L << (current & 63)) - 1));
+            return suffixSamples[rank] + steps;
+        }
+
+        /**
+         * Writes the segment to an index file.
+         *
+         * @param channel channel of the index file.
+         * @throws IOException could not write to the file.
+         */
+        void save(final FileChannel channel) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(16 + residues.length * 2);
+            header.putInt(length);
+            header.putInt(residues.length);
+            for (char residue : residues) {
+                header.putChar(residue);
+            }
+            header.putInt(suffixSamples.length);
+            header.putInt(proteinStarts.length);
+            header.flip();
+            channel.write(header);
+            IndexFiles.writeInts(channel, smallerSymbols);
+            IndexFiles.writeBytes(channel, bwt);
+            IndexFiles.writeLongs(channel, sampledRows);
+            IndexFiles.writeInts(channel, suffixSamples);
+            IndexFiles.writeInts(channel, proteinStarts);
+        }
+
+        /**
+         * Reads a segment from an index file.
+         *
+         * @param channel channel of the index file.
+         * @return segment.
+         * @throws IOException could not read the file.
+         */
+        static Segment load(final FileChannel channel) throws IOException {
+            ByteBuffer header = IndexFiles.read(channel, 8);
+            int length = header.getInt();
+            char[] residues = new char[header.getInt()];
+            ByteBuffer residueBuffer = IndexFiles.read(channel, residues.length * 2 + 8);
+            for (int i = 0; i < residues.length; i++) {
+                residues[i] = residueBuffer.getChar();
+            }
+            int sampleCount = residueBuffer.getInt();
+            int proteinCount = residueBuffer.getInt();
+            int[] smallerSymbols = IndexFiles.readInts(channel, residues.length + 3);
+            byte[] bwt = IndexFiles.readBytes(channel, length);
+            long[] sampledRows = IndexFiles.readLongs(channel, (length >>> 6) + 1);
+            int[] suffixSamples = IndexFiles.readInts(channel, sampleCount);
+            int[] proteinStarts = IndexFiles.readInts(channel, proteinCount);
+            return new Segment(residues, length, smallerSymbols, bwt, sampledRows, suffixSamples, proteinStarts);
+        }
+    }
+
+    /**
+     * Creates the symbol lookup table of the ASCII residues and UNKNOWN_RESIDUE.
+     *
+     * @param residues sorted residues.
+     * @return symbol of each ASCII character, and of UNKNOWN_RESIDUE at index 128.
+     */
+    private static int[] createSymbolIndex(final char[] residues) {
+        int[] index = new int[129];
+        for (int i = 0; i < residues.length; i++) {
+            index[residues[i] < 128 ? residues[i] : 128] = i + 2;
+        }
+        return index;
+    }
+
+    /**
+     * Creates the cumulative bit counts of every 8 words of a bit vector.
+     *
+     * @param bits bit vector.
+     * @return amount of set bits before every 8 words.
+     */
+    private static int[] createRanks(final long[] bits) {
+        int[] ranks = new int[(bits.length >>> 3) + 1];
+        int rank = 0;
+        for (int word = 0; word < bits.length; word++) {
+            if ((word & 7) == 0) {
+                ranks[word >>> 3] = rank;
+            }
+            rank += Long.bitCount(bits[word]);
+        }
+        return ranks;
+    }
+
+    /**
+     * Creates the suffix array of the text with the SA-IS algorithm.
+     *
+     * @param text text that ends with a unique smallest symbol 0.
+     * @param suffixArray output array.
+     * @param n length of the text.
+     * @param k size of the alphabet.
+     */
+    private static void createSuffixArray(final int[] text, final int[] suffixArray, final int n, final int k) {
+        //Classify the suffixes as S-type (true) or L-type (false).
+        boolean[] types = new boolean[n];
+        types[n - 1] = true;
+        for (int i = n - 2; i >= 0; i--) {
+            types[i] = text[i] < text[i + 1] || (text[i] == text[i + 1] && types[i + 1]);
+        }
+        int[] buckets = new int[k];
+        //Sort the LMS substrings.
+        getBuckets(text, buckets, n, k, true);
+        Arrays.fill(suffixArray, 0, n, -1);
+        for (int i = 1; i < n; i++) {
+            if (isLeftmostS(types, i)) {
+                suffixArray[--buckets[text[i]]] = i;
+            }
+        }
+        induceSort(text, suffixArray, types, buckets, n, k);
+        //Name the sorted LMS substrings.
+        int sortedCount = 0;
+        for (int i = 0; i < n; i++) {
+            if (isLeftmostS(types, suffixArray[i])) {
+                suffixArray[sortedCount++] = suffixArray[i];
+            }
+        }
+        Arrays.fill(suffixArray, sortedCount, n, -1);
+        int name = 0;
+        int previous = -1;
+        for (int i = 0; i < sortedCount; i++) {
+            int position = suffixArray[i];
+            boolean different = false;
+            for (int d = 0; d < n; d++) {
+                if (previous == -1 || text[position + d] != text[previous + d] || types[position + d] != types[previous + d]) {
+                    different = true;
+                    break;
+                } else if (d > 0 && (isLeftmostS(types, position + d) || isLeftmostS(types, previous + d))) {
+                    break;
+                }
+            }
+            if (different) {
+                name++;
+                previous = position;
+            }
+            suffixArray[sortedCount + (position >>> 1)] = name - 1;
+        }
+        int[] reducedText = new int[sortedCount];
+        for (int i = n - 1, j = sortedCount - 1; i >= sortedCount; i--) {
+            if (suffixArray[i] >= 0) {
+                reducedText[j--] = suffixArray[i];
+            }
+        }
+        //Sort the LMS suffixes, recursively if the names are not unique.
+        int[] reducedSuffixArray = new int[sortedCount];
+        if (name < sortedCount) {
+            createSuffixArray(reducedText, reducedSuffixArray, sortedCount, name);
+        } else {
+            for (int i = 0; i < sortedCount; i++) {
+                reducedSuffixArray[reducedText[i]] = i;
+            }
+        }
+        //Induce the final order from the sorted LMS suffixes.
+        for (int i = 1, j = 0; i < n; i++) {
+            if (isLeftmostS(types, i)) {
+                reducedText[j++] = i;
+            }
+        }
+        getBuckets(text, buckets, n, k, true);
+        Arrays.fill(suffixArray, 0, n, -1);
+        for (int i = sortedCount - 1; i >= 0; i--) {
+            int position = reducedText[reducedSuffixArray[i]];
+            suffixArray[--buckets[text[position]]] = position;
+        }
+        induceSort(text, suffixArray, types, buckets, n, k);
+    }
+
+    /**
+     * Induces the L-type and then the S-type suffixes from the suffixes that are already placed.
+     */
+    private static void induceSort(final int[] text, final int[] suffixArray, final boolean[] types, final int[] buckets,
+            final int n, final int k) {
+        getBuckets(text, buckets, n, k, false);
+        for (int i = 0; i < n; i++) {
+            int j = suffixArray[i] - 1;
+            if (j >= 0 && !types[j]) {
+                suffixArray[buckets[text[j]]++] = j;
+            }
+        }
+        getBuckets(text, buckets, n, k, true);
+        for (int i = n - 1; i >= 0; i--) {
+            int j = suffixArray[i] - 1;
+            if (j >= 0 && types[j]) {
+                suffixArray[--buckets[text[j]]] = j;
+            }
+        }
+    }
+
+    /**
+     * Computes the start or end of the bucket of each symbol.
+     */
+    private static void getBuckets(final int[] text, final int[] buckets, final int n, final int k, final boolean ends) {
+        Arrays.fill(buckets, 0);
+        for (int i = 0; i < n; i++) {
+            buckets[text[i]]++;
+        }
+        int sum = 0;
+        for (int symbol = 0; symbol < k; symbol++) {
+            sum += buckets[symbol];
+            buckets[symbol] = ends ? sum : sum - buckets[symbol];
+        }
+    }
+
+    /**
+     * Checks if the suffix at the given position is a leftmost S-type suffix.
+     */
+    private static boolean isLeftmostS(final boolean[] types, final int position) {
+        return position > 0 && types[position] && !types[position - 1];
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package index;
+
+import collection.creator.FastaParser;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Index of the records of a .fasta or .fasta.gz database file, similar to a samtools .fai file.
+ * For each protein the index holds the accession, the offset and end of the sequence lines in the (decompressed)
+ * file and the amount of residues. A hash table of the accessions finds a protein without reading the database, so
+ * single proteins can be read from the database file without loading the whole database.
+ * The index holds the same proteins as the protein collections that are read from the database file, so the index of
+ * a protein is the same in both. This includes the omission of the last protein of the file.
+ *
+ * @author vnijenhuis
+ */
+public class FastaIndex {
+
+    /**
+     * Identifies a FASTA index file.
+     */
+    private static final int MAGIC = 0x46494431;
+
+    /**
+     * Extension that is added to the database file name.
+     */
+    public static final String EXTENSION = ".fidx";
+
+    /**
+     * Size of the header in bytes.
+     */
+    private static final int HEADER_SIZE = 40;
+
+    /**
+     * Size of the entry of a protein: sequence start, sequence end, accession offset, residue count and accession hash.
+     */
+    private static final int RECORD_SIZE = 32;
+
+    /**
+     * Size of the mapped segments of the file. A multiple of 8, so a value never crosses two segments.
+     */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    /**
+     * Length of the database file that the index was created from.
+     */
+    private final long sourceLength;
+
+    /**
+     * Last modification time of the database file that the index was created from.
+     */
+    private final long sourceModified;
+
+    /**
+     * Amount of proteins.
+     */
+    private final int proteinCount;
+
+    /**
+     * Amount of slots of the hash table, a power of 2.
+     */
+    private final int tableSize;
+
+    /**
+     * Total length of the accession bytes.
+     */
+    private final long accessionLength;
+
+    /**
+     * File offset of the hash table.
+     */
+    private final long tableStart;
+
+    /**
+     * File offset of the accession bytes.
+     */
+    private final long accessionsStart;
+
+    /**
+     * Mapped segments of the file.
+     */
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * Maps a FASTA index file.
+     *
+     * @param file index file.
+     * @throws IOException could not read the file or the file is not a FASTA index.
+     */
+    private FastaIndex(final File file) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(file); FileChannel channel = inputStream.getChannel()) {
+            long length = channel.size();
+            segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+            }
+            if (length < HEADER_SIZE || getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a FASTA index file.");
+            }
+            sourceLength = getLong(4);
+            sourceModified = getLong(12);
+            proteinCount = getInt(20);
+            tableSize = getInt(24);
+            accessionLength = getLong(28);
+            tableStart = HEADER_SIZE + (long) RECORD_SIZE * proteinCount;
+            accessionsStart = tableStart + 4L * tableSize;
+            if (accessionsStart + accessionLength != length) {
+                throw new IOException(file + " has an unexpected size.");
+            }
+        }
+    }
+
+    /**
+     * Maps a FASTA index file.
+     *
+     * @param file index file.
+     * @return FASTA index.
+     * @throws IOException could not read the file or the file is not a FASTA index.
+     */
+    public static FastaIndex load(final File file) throws IOException {
+        return new FastaIndex(file);
+    }
+
+    /**
+     * Reads a long from the mapped file. Longs of the entries are aligned to 8 bytes, so they never cross a segment.
+     *
+     * @param offset file offset.
+     * @return value as long.
+     */
+    private long getLong(final long offset) {
+        return segments[(int) (offset / SEGMENT_SIZE)].getLong((int) (offset % SEGMENT_SIZE));
+    }
+
+    /**
+     * Reads an int from the mapped file.
+     *
+     * @param offset file offset.
+     * @return value as int.
+     */
+    private int getInt(final long offset) {
+        return segments[(int) (offset / SEGMENT_SIZE)].getInt((int) (offset % SEGMENT_SIZE));
+    }
+
+    /**
+     * Reads a byte from the mapped file.
+     *
+     * @param offset file offset.
+     * @return value as byte.
+     */
+    private byte getByte(final long offset) {
+        return segments[(int) (offset / SEGMENT_SIZE)].get((int) (offset % SEGMENT_SIZE));
+    }
+
+    /**
+     * Returns the hash of an accession.
+     *
+     * @param accession UTF-8 bytes of the accession.
+     * @return hash as int.
+     */
+    private static int getHash(final byte[] accession) {
+        int hash = Arrays.hashCode(accession);
+        //Spread the bits, because only the lowest bits select the slot.
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    /**
+     * Returns the amount of proteins.
+     *
+     * @return amount of proteins as int.
+     */
+    public final int getProteinCount() {
+        return proteinCount;
+    }
+
+    /**
+     * Returns the index of the first protein with the given accession.
+     *
+     * @param accession protein accession.
+     * @return index of the protein, or -1 if the accession is not present.
+     */
+    public final int getProtein(final String accession) {
+        byte[] bytes = accession.getBytes(StandardCharsets.UTF_8);
+        int hash = getHash(bytes);
+        int mask = tableSize - 1;
+        //Proteins are added in file order with linear probing, so the first protein with the accession is found first.
+        for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+            int protein = getInt(tableStart + 4L * slot) - 1;
+            if (protein < 0) {
+                return -1;
+            }
+            long entry = HEADER_SIZE + (long) RECORD_SIZE * protein;
+            if (getInt(entry + 28) == hash && isAccession(protein, bytes)) {
+                return protein;
+            }
+        }
+    }
+
+    /**
+     * Checks if a protein has the given accession.
+     *
+     * @param protein index of the protein.
+     * @param accession UTF-8 bytes of the accession.
+     * @return true if the accession is the same, else false.
+     */
+    private boolean isAccession(final int protein, final byte[] accession) {
+        long start = getAccessionOffset(protein);
+        if (getAccessionOffset(protein + 1) - start != accession.length) {
+            return false;
+        }
+        for (int i = 0; i < accession.length; i++) {
+            if (getByte(accessionsStart + start + i) != accession[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the offset of the accession of a protein in the accession bytes.
+     *
+     * @param protein index of the protein, or the amount of proteins for the end of the last accession.
+     * @return offset as long.
+     */
+    private long getAccessionOffset(final int protein) {
+        if (protein == proteinCount) {
+            return accessionLength;
+        }
+        return getLong(HEADER_SIZE + (long) RECORD_SIZE * protein + 16);
+    }
+
+    /**
+     * Returns the accession of a protein.
+     *
+     * @param protein index of the protein.
+     * @return accession as String.
+     */
+    public final String getAccession(final int protein) {
+        long start = getAccessionOffset(protein);
+        byte[] bytes = new byte[(int) (getAccessionOffset(protein + 1) - start)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = getByte(accessionsStart + start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the offset of the sequence lines of a protein in the (decompressed) database file.
+     *
+     * @param protein index of the protein.
+     * @return offset of the line after the header.
+     */
+    public final long getSequenceStart(final int protein) {
+        return getLong(HEADER_SIZE + (long) RECORD_SIZE * protein);
+    }
+
+    /**
+     * Returns the end of the sequence lines of a protein in the (decompressed) database file.
+     *
+     * @param protein index of the protein.
+     * @return offset of the header of the next protein.
+     */
+    public final long getSequenceEnd(final int protein) {
+        return getLong(HEADER_SIZE + (long) RECORD_SIZE * protein + 8);
+    }
+
+    /**
+     * Returns the length of the sequence of a protein.
+     *
+     * @param protein index of the protein.
+     * @return amount of residues as int.
+     */
+    public final int getSequenceLength(final int protein) {
+        return getInt(HEADER_SIZE + (long) RECORD_SIZE * protein + 24);
+    }
+
+    /**
+     * Checks if the index was created from the current version of the database file.
+     *
+     * @param database database file.
+     * @return true if the index can be used, else false.
+     */
+    public final boolean isCreatedFrom(final File database) {
+        return database.length() == sourceLength && database.lastModified() == sourceModified;
+    }
+
+    /**
+     * Creates the index of a .fasta or .fasta.gz database file. The entries are written while the database is read
+     * and the accessions are collected in a temporary file, so the database is only read once. The index is written
+     * to a temporary file first, so an interrupted run does not leave an incomplete index.
+     *
+     * @param database database file.
+     * @param file index file.
+     * @param threads amount of threads used to decompress a .fasta.gz file.
+     * @throws IOException could not read the database or could not write the index.
+     */
+    public static void create(final String database, final File file, final int threads) throws IOException {
+        File source = new File(database);
+        long sourceLength = source.length();
+        long sourceModified = source.lastModified();
+        File indexFile = new File(file.getPath() + ".tmp");
+        File accessionFile = new File(file.getPath() + ".acc.tmp");
+        try (RandomAccessFile output = new RandomAccessFile(indexFile, "rw"); FileChannel channel = output.getChannel();
+                RandomAccessFile accessionOutput = new RandomAccessFile(accessionFile, "rw");
+                FileChannel accessionChannel = accessionOutput.getChannel()) {
+            channel.truncate(0);
+            accessionChannel.truncate(0);
+            int proteinCount = 0;
+            long accessionLength = 0;
+            int[] hashes = new int[1024];
+            ByteBuffer entries = ByteBuffer.allocate(RECORD_SIZE << 15);
+            ByteBuffer accessions = ByteBuffer.allocate(1 << 20);
+            channel.position(HEADER_SIZE);
+            try (FastaParser parser = new FastaParser(database, false, threads)) {
+                while (parser.nextRecord()) {
+                    if (proteinCount == 1 << 30) {
+                        throw new IOException(database + " contains too many proteins.");
+                    }
+                    byte[] accession = parser.getAccession().getBytes(StandardCharsets.UTF_8);
+                    if (proteinCount == hashes.length) {
+                        hashes = Arrays.copyOf(hashes, proteinCount * 2);
+                    }
+                    hashes[proteinCount] = getHash(accession);
+                    if (!entries.hasRemaining()) {
+                        write(channel, entries);
+                    }
+                    entries.putLong(parser.getSequenceStart());
+                    entries.putLong(parser.getSequenceEnd());
+                    entries.putLong(accessionLength);
+                    entries.putInt(parser.getSequenceLength());
+                    entries.putInt(hashes[proteinCount]);
+                    if (accessions.remaining() < accession.length) {
+                        write(accessionChannel, accessions);
+                    }
+                    if (accession.length > accessions.capacity()) {
+                        IndexFiles.writeBytes(accessionChannel, accession);
+                    } else {
+                        accessions.put(accession);
+                    }
+                    accessionLength += accession.length;
+                    proteinCount++;
+                }
+            }
+            write(channel, entries);
+            write(accessionChannel, accessions);
+            //The table is at most half full, so a search ends at an empty slot soon.
+            int tableSize = Integer.highestOneBit(Math.max(1, proteinCount)) * 2;
+            int[] table = new int[tableSize];
+            for (int protein = 0; protein < proteinCount; protein++) {
+                int slot = hashes[protein] & (tableSize - 1);
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & (tableSize - 1);
+                }
+                table[slot] = protein + 1;
+            }
+            IndexFiles.writeInts(channel, table);
+            long position = channel.position();
+            for (long copied = 0; copied < accessionLength;) {
+                copied += accessionChannel.transferTo(copied, accessionLength - copied, channel);
+            }
+            channel.position(position + accessionLength);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putLong(sourceLength);
+            header.putLong(sourceModified);
+            header.putInt(proteinCount);
+            header.putInt(tableSize);
+            header.putLong(accessionLength);
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        } finally {
+            accessionFile.delete();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not replace " + file);
+        }
+        if (!indexFile.renameTo(file)) {
+            throw new IOException("Could not rename " + indexFile + " to " + file);
+        }
+    }
+
+    /**
+     * Writes the content of a buffer to the current position of a channel and clears the buffer.
+     *
+     * @param channel file channel.
+     * @param buffer buffer with the bytes to write.
+     * @throws IOException could not write to the file.
+     */
+    private static void write(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
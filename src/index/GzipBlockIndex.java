@@ -0,0 +1,364 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package index;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Index of the members of a gzip file. A multi-member gzip or BGZF file can be decompressed member by member, so the
+ * members can be divided over several threads.
+ * BGZF blocks store their size in the header, so they are indexed without decompression. Members of other gzip
+ * files are found by decompressing the file once.
+ *
+ * @author vnijenhuis
+ */
+public class GzipBlockIndex {
+
+    /**
+     * Identifies a block index file.
+     */
+    private static final int MAGIC = 0x475a4931;
+
+    /**
+     * Extension that is added to the database file name.
+     */
+    public static final String EXTENSION = ".gzi";
+
+    /**
+     * Size of the buffer used to read the gzip file.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Flag of a header with an extra field.
+     */
+    private static final int FEXTRA = 4;
+
+    /**
+     * Flag of a header with a file name.
+     */
+    private static final int FNAME = 8;
+
+    /**
+     * Flag of a header with a comment.
+     */
+    private static final int FCOMMENT = 16;
+
+    /**
+     * Flag of a header with a header checksum.
+     */
+    private static final int FHCRC = 2;
+
+    /**
+     * Length of the gzip file that the index was created from.
+     */
+    private final long sourceLength;
+
+    /**
+     * Last modification time of the gzip file that the index was created from.
+     */
+    private final long sourceModified;
+
+    /**
+     * Offset of each member in the gzip file, followed by the offset of the end of the last member.
+     */
+    private final long[] offsets;
+
+    /**
+     * Decompressed size of each member.
+     */
+    private final long[] sizes;
+
+    /**
+     * Creates the index of a gzip file.
+     *
+     * @param file gzip file.
+     * @throws IOException could not read the file or the file is not a gzip file.
+     */
+    public GzipBlockIndex(final File file) throws IOException {
+        this.sourceLength = file.length();
+        this.sourceModified = file.lastModified();
+        long[] memberOffsets = new long[16];
+        long[] memberSizes = new long[16];
+        int count = 0;
+        try (FileInputStream inputStream = new FileInputStream(file); FileChannel channel = inputStream.getChannel()) {
+            Window window = new Window(channel);
+            Inflater inflater = new Inflater(true);
+            long position = 0;
+            try {
+                byte[] output = new byte[BUFFER_SIZE];
+                //Trailing bytes that are not a gzip member are ignored, like GZIPInputStream does.
+                while (position + 18 <= sourceLength && window.get(position) == 0x1f && window.get(position + 1) == 0x8b
+                        && window.get(position + 2) == 8) {
+                    int flags = window.get(position + 3);
+                    long dataStart = position + 10;
+                    long blockSize = -1;
+                    if ((flags & FEXTRA) != 0) {
+                        int extraLength = window.get(dataStart) | window.get(dataStart + 1) << 8;
+                        long subfield = dataStart + 2;
+                        dataStart += 2 + extraLength;
+                        //A BGZF block stores its size in the BC subfield.
+                        while (subfield + 4 <= dataStart) {
+                            int subfieldLength = window.get(subfield + 2) | window.get(subfield + 3) << 8;
+                            if (window.get(subfield) == 'B' && window.get(subfield + 1) == 'C' && subfieldLength == 2) {
+                                blockSize = (window.get(subfield + 4) | window.get(subfield + 5) << 8) + 1;
+                            }
+                            subfield += 4 + subfieldLength;
+                        }
+                    }
+                    if ((flags & FNAME) != 0) {
+                        while (window.get(dataStart++) != 0) {
+                            //Skip the file name.
+                        }
+                    }
+                    if ((flags & FCOMMENT) != 0) {
+                        while (window.get(dataStart++) != 0) {
+                            //Skip the comment.
+                        }
+                    }
+                    if ((flags & FHCRC) != 0) {
+                        dataStart += 2;
+                    }
+                    long end;
+                    long size;
+                    if (blockSize > 0) {
+                        end = position + blockSize;
+                        size = window.getInt(end - 4);
+                    } else {
+                        inflater.reset();
+                        long input = dataStart;
+                        try {
+                            while (!inflater.finished()) {
+                                if (inflater.needsInput()) {
+                                    if (input >= sourceLength) {
+                                        throw new IOException(file + " ended unexpectedly.");
+                                    }
+                                    ByteBuffer buffer = window.fill(input);
+                                    inflater.setInput(buffer.array(), buffer.position(), buffer.remaining());
+                                    input += buffer.remaining();
+                                }
+                                inflater.inflate(output);
+                            }
+                        } catch (DataFormatException ex) {
+                            throw new IOException(file + " is not a valid gzip file: " + ex.getMessage());
+                        }
+                        //The 8 byte trailer holds the checksum and size of the member.
+                        end = input - inflater.getRemaining() + 8;
+                        size = inflater.getBytesWritten();
+                    }
+                    if (end > sourceLength) {
+                        throw new IOException(file + " ended unexpectedly.");
+                    }
+                    if (count + 1 == memberOffsets.length) {
+                        memberOffsets = Arrays.copyOf(memberOffsets, count * 2);
+                        memberSizes = Arrays.copyOf(memberSizes, count * 2);
+                    }
+                    memberOffsets[count] = position;
+                    memberSizes[count] = size;
+                    count++;
+                    position = end;
+                }
+            } finally {
+                inflater.end();
+            }
+            if (count == 0) {
+                throw new IOException(file + " is not a gzip file.");
+            }
+            memberOffsets[count] = position;
+        }
+        offsets = Arrays.copyOf(memberOffsets, count + 1);
+        sizes = Arrays.copyOf(memberSizes, count);
+    }
+
+    /**
+     * Creates an index from stored values.
+     *
+     * @param sourceLength length of the gzip file.
+     * @param sourceModified last modification time of the gzip file.
+     * @param offsets offset of each member, followed by the end of the last member.
+     * @param sizes decompressed size of each member.
+     */
+    private GzipBlockIndex(final long sourceLength, final long sourceModified, final long[] offsets, final long[] sizes) {
+        this.sourceLength = sourceLength;
+        this.sourceModified = sourceModified;
+        this.offsets = offsets;
+        this.sizes = sizes;
+    }
+
+    /**
+     * Reads a gzip file through a buffer that is moved when a position outside the buffer is requested.
+     */
+    private static class Window {
+
+        /**
+         * Channel of the gzip file.
+         */
+        private final FileChannel channel;
+
+        /**
+         * Bytes of the window.
+         */
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        /**
+         * File offset of the first byte of the window.
+         */
+        private long start = 0;
+
+        /**
+         * Creates a window at the start of the file.
+         *
+         * @param channel channel of the gzip file.
+         */
+        Window(final FileChannel channel) {
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        /**
+         * Moves the window to the given offset and returns its bytes.
+         *
+         * @param position file offset.
+         * @return buffer with the bytes from the offset onwards.
+         * @throws IOException could not read the file or the offset is beyond the end of the file.
+         */
+        ByteBuffer fill(final long position) throws IOException {
+            buffer.clear();
+            while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+                //Read until the buffer is full or the file ends.
+            }
+            buffer.flip();
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Gzip file ended unexpectedly.");
+            }
+            start = position;
+            return buffer;
+        }
+
+        /**
+         * Returns the byte at the given offset.
+         *
+         * @param position file offset.
+         * @return byte value from 0 to 255.
+         * @throws IOException could not read the file or the offset is beyond the end of the file.
+         */
+        int get(final long position) throws IOException {
+            if (position < start || position >= start + buffer.limit()) {
+                fill(position);
+            }
+            return buffer.get((int) (position - start)) & 0xff;
+        }
+
+        /**
+         * Returns the little-endian unsigned int at the given offset.
+         *
+         * @param position file offset.
+         * @return value as long.
+         * @throws IOException could not read the file or the offset is beyond the end of the file.
+         */
+        long getInt(final long position) throws IOException {
+            return get(position) | get(position + 1) << 8 | get(position + 2) << 16 | (long) get(position + 3) << 24;
+        }
+    }
+
+    /**
+     * Returns the amount of members.
+     *
+     * @return amount of members as int.
+     */
+    public final int getBlockCount() {
+        return sizes.length;
+    }
+
+    /**
+     * Returns the offset of a member in the gzip file.
+     *
+     * @param block index of the member.
+     * @return offset as long.
+     */
+    public final long getBlockStart(final int block) {
+        return offsets[block];
+    }
+
+    /**
+     * Returns the offset of the end of a member in the gzip file.
+     *
+     * @param block index of the member.
+     * @return offset as long.
+     */
+    public final long getBlockEnd(final int block) {
+        return offsets[block + 1];
+    }
+
+    /**
+     * Returns the decompressed size of a member.
+     *
+     * @param block index of the member.
+     * @return size in bytes as long.
+     */
+    public final long getBlockSize(final int block) {
+        return sizes[block];
+    }
+
+    /**
+     * Checks if the index was created from the current version of the gzip file.
+     *
+     * @param file gzip file.
+     * @return true if the index can be used, else false.
+     */
+    public final boolean isCreatedFrom(final File file) {
+        return file.length() == sourceLength && file.lastModified() == sourceModified;
+    }
+
+    /**
+     * Writes the index to a file.
+     *
+     * @param file output file.
+     * @throws IOException could not write to the file.
+     */
+    public final void save(final File file) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file); FileChannel channel = outputStream.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(24);
+            header.putInt(MAGIC);
+            header.putLong(sourceLength);
+            header.putLong(sourceModified);
+            header.putInt(sizes.length);
+            header.flip();
+            channel.write(header);
+            IndexFiles.writeLongs(channel, offsets);
+            IndexFiles.writeLongs(channel, sizes);
+        }
+    }
+
+    /**
+     * Reads an index file.
+     *
+     * @param file index file.
+     * @return block index.
+     * @throws IOException could not read the file or the file is not a block index.
+     */
+    public static GzipBlockIndex load(final File file) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(file); FileChannel channel = inputStream.getChannel()) {
+            ByteBuffer header = IndexFiles.read(channel, 24);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a gzip block index file.");
+            }
+            long sourceLength = header.getLong();
+            long sourceModified = header.getLong();
+            int count = header.getInt();
+            long[] offsets = IndexFiles.readLongs(channel, count + 1);
+            long[] sizes = IndexFiles.readLongs(channel, count);
+            return new GzipBlockIndex(sourceLength, sourceModified, offsets, sizes);
+        }
+    }
+}
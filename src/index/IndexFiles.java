@@ -0,0 +1,159 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package index;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and writes primitive arrays of index files in chunks.
+ *
+ * @author vnijenhuis
+ */
+final class IndexFiles {
+
+    /**
+     * Size of the buffer used for reading and writing.
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Utility class.
+     */
+    private IndexFiles() {
+    }
+
+    /**
+     * Reads the given amount of bytes from the channel.
+     *
+     * @param channel file channel.
+     * @param size amount of bytes.
+     * @return buffer that is ready to be read.
+     * @throws IOException could not read the file or the file ended too early.
+     */
+    static ByteBuffer read(final FileChannel channel, final int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Index file ended unexpectedly.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Writes a byte array to the channel.
+     *
+     * @param channel file channel.
+     * @param values values to write.
+     * @throws IOException could not write to the file.
+     */
+    static void writeBytes(final FileChannel channel, final byte[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(values);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes an int array to the channel.
+     *
+     * @param channel file channel.
+     * @param values values to write.
+     * @throws IOException could not write to the file.
+     */
+    static void writeInts(final FileChannel channel, final int[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        for (int offset = 0; offset < values.length;) {
+            int count = Math.min(values.length - offset, CHUNK_SIZE / 4);
+            buffer.clear();
+            buffer.asIntBuffer().put(values, offset, count);
+            buffer.limit(count * 4);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            offset += count;
+        }
+    }
+
+    /**
+     * Writes a long array to the channel.
+     *
+     * @param channel file channel.
+     * @param values values to write.
+     * @throws IOException could not write to the file.
+     */
+    static void writeLongs(final FileChannel channel, final long[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        for (int offset = 0; offset < values.length;) {
+            int count = Math.min(values.length - offset, CHUNK_SIZE / 8);
+            buffer.clear();
+            buffer.asLongBuffer().put(values, offset, count);
+            buffer.limit(count * 8);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            offset += count;
+        }
+    }
+
+    /**
+     * Reads a byte array from the channel.
+     *
+     * @param channel file channel.
+     * @param size amount of values.
+     * @return values.
+     * @throws IOException could not read the file or the file ended too early.
+     */
+    static byte[] readBytes(final FileChannel channel, final int size) throws IOException {
+        byte[] values = new byte[size];
+        ByteBuffer buffer = ByteBuffer.wrap(values);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Index file ended unexpectedly.");
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Reads an int array from the channel.
+     *
+     * @param channel file channel.
+     * @param size amount of values.
+     * @return values.
+     * @throws IOException could not read the file or the file ended too early.
+     */
+    static int[] readInts(final FileChannel channel, final int size) throws IOException {
+        int[] values = new int[size];
+        for (int offset = 0; offset < size;) {
+            int count = Math.min(size - offset, CHUNK_SIZE / 4);
+            read(channel, count * 4).asIntBuffer().get(values, offset, count);
+            offset += count;
+        }
+        return values;
+    }
+
+    /**
+     * Reads a long array from the channel.
+     *
+     * @param channel file channel.
+     * @param size amount of values.
+     * @return values.
+     * @throws IOException could not read the file or the file ended too early.
+     */
+    static long[] readLongs(final FileChannel channel, final int size) throws IOException {
+        long[] values = new long[size];
+        for (int offset = 0; offset < size;) {
+            int count = Math.min(size - offset, CHUNK_SIZE / 8);
+            read(channel, count * 8).asLongBuffer().get(values, offset, count);
+            offset += count;
+        }
+        return values;
+    }
+}
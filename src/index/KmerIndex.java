@@ -0,0 +1,353 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package index;
+
+import collections.ProteinCollection;
+import java.util.Arrays;
+
+/**
+ * Inverted index of the k-mers of a protein collection.
+ * Every k-mer refers to a list of the ids of the proteins that contain it. The protein ids are stored as
+ * variable length encoded differences, which keeps the lists small.
+ * The index is immutable after creation and can be shared between threads.
+ *
+ * @author vnijenhuis
+ */
+public class KmerIndex {
+
+    /**
+     * Largest supported k-mer length. Each residue uses 5 bits of an int.
+     */
+    public static final int MAX_LENGTH = 6;
+
+    /**
+     * Marks an empty slot of the hash table.
+     */
+    private static final int EMPTY = -1;
+
+    /**
+     * Length of the k-mers.
+     */
+    private final int kmerLength;
+
+    /**
+     * K-mer stored in each slot of the hash table.
+     */
+    private int[] slotKmers;
+
+    /**
+     * Start of the posting list of each slot in the postings array.
+     */
+    private int[] slotOffsets;
+
+    /**
+     * Amount of proteins in the posting list of each slot.
+     */
+    private int[] slotCounts;
+
+    /**
+     * Last protein id that was added to each slot while the index is created.
+     */
+    private int[] slotLastProteins;
+
+    /**
+     * Encoded posting lists.
+     */
+    private byte[] postings;
+
+    /**
+     * Amount of proteins in the collection.
+     */
+    private final int proteinCount;
+
+    /**
+     * Creates the k-mer index of the given proteins.
+     *
+     * @param proteins collection of Protein objects.
+     * @param kmerLength length of the k-mers, at most MAX_LENGTH.
+     */
+    public KmerIndex(final ProteinCollection proteins, final int kmerLength) {
+        if (kmerLength < 1 || kmerLength > MAX_LENGTH) {
+            throw new IllegalArgumentException("K-mer length should be between 1 and " + MAX_LENGTH + " instead of " + kmerLength);
+        }
+        this.kmerLength = kmerLength;
+        this.proteinCount = proteins.getProteins().size();
+        int capacity = 1 << 16;
+        slotKmers = new int[capacity];
+        Arrays.fill(slotKmers, EMPTY);
+        slotOffsets = new int[capacity];
+        slotCounts = new int[capacity];
+        slotLastProteins = new int[capacity];
+        int kmerCount = 0;
+        //First pass: determine the size of each posting list. The offsets are used to count the bytes.
+        for (int protein = 0; protein < proteinCount; protein++) {
+            int[] kmers = getDistinctKmers(proteins.getProteins().get(protein).getSequence());
+            for (int kmer : kmers) {
+                if (kmerCount * 2 >= slotKmers.length) {
+                    resize();
+                }
+                int slot = findSlot(kmer);
+                if (slotKmers[slot] == EMPTY) {
+                    slotKmers[slot] = kmer;
+                    kmerCount++;
+                }
+                slotOffsets[slot] += getEncodedSize(protein - slotLastProteins[slot]);
+                slotCounts[slot]++;
+                slotLastProteins[slot] = protein;
+            }
+        }
+        //Reserve the space of each posting list.
+        int[] slotStarts = new int[slotKmers.length];
+        long total = 0;
+        for (int slot = 0; slot < slotKmers.length; slot++) {
+            slotStarts[slot] = (int) total;
+            total += slotOffsets[slot];
+            slotOffsets[slot] = slotStarts[slot];
+            slotLastProteins[slot] = 0;
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Protein collection is too large for a k-mer index.");
+        }
+        postings = new byte[(int) total];
+        //Second pass: encode the posting lists. The offsets are used as write positions.
+        for (int protein = 0; protein < proteinCount; protein++) {
+            int[] kmers = getDistinctKmers(proteins.getProteins().get(protein).getSequence());
+            for (int kmer : kmers) {
+                int slot = findSlot(kmer);
+                slotOffsets[slot] = encode(protein - slotLastProteins[slot], slotOffsets[slot]);
+                slotLastProteins[slot] = protein;
+            }
+        }
+        slotOffsets = slotStarts;
+        slotLastProteins = null;
+    }
+
+    /**
+     * Returns the distinct k-mers of a sequence. K-mers that contain residues other than A-Z are skipped.
+     *
+     * @param sequence protein sequence.
+     * @return sorted array of distinct k-mers.
+     */
+    private int[] getDistinctKmers(final String sequence) {
+        int count = sequence.length() - kmerLength + 1;
+        if (count <= 0) {
+            return new int[0];
+        }
+        int[] kmers = new int[count];
+        int size = 0;
+        int kmer = 0;
+        int valid = 0;
+        int mask = (1 << (5 * kmerLength)) - 1;
+        for (int i = 0; i < sequence.length(); i++) {
+            int code = getResidueCode(sequence.charAt(i));
+            if (code < 0) {
+                valid = 0;
+                continue;
+            }
+            kmer = ((kmer << 5) | code) & mask;
+            valid++;
+            if (valid >= kmerLength) {
+                kmers[size++] = kmer;
+            }
+        }
+        Arrays.sort(kmers, 0, size);
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || kmers[i] != kmers[i - 1]) {
+                kmers[distinct++] = kmers[i];
+            }
+        }
+        return Arrays.copyOf(kmers, distinct);
+    }
+
+    /**
+     * Returns the 5 bit code of a residue.
+     *
+     * @param residue amino acid.
+     * @return code of the residue, -1 if it is not a letter from A to Z.
+     */
+    private static int getResidueCode(final char residue) {
+        if (residue >= 'A' && residue <= 'Z') {
+            return residue - 'A';
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the slot of a k-mer, or the empty slot where it should be placed.
+     *
+     * @param kmer encoded k-mer.
+     * @return slot index.
+     */
+    private int findSlot(final int kmer) {
+        int mask = slotKmers.length - 1;
+        int hash = kmer * 0x9E3779B1;
+        int slot = (hash ^ (hash >>> 15)) & mask;
+        while (slotKmers[slot] != EMPTY && slotKmers[slot] != kmer) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Doubles the size of the hash table while the index is being created.
+     */
+    private void resize() {
+        int[] oldKmers = slotKmers;
+        int[] oldOffsets = slotOffsets;
+        int[] oldCounts = slotCounts;
+        int[] oldLastProteins = slotLastProteins;
+        int capacity = oldKmers.length * 2;
+        slotKmers = new int[capacity];
+        Arrays.fill(slotKmers, EMPTY);
+        slotOffsets = new int[capacity];
+        slotCounts = new int[capacity];
+        slotLastProteins = new int[capacity];
+        for (int i = 0; i < oldKmers.length; i++) {
+            if (oldKmers[i] != EMPTY) {
+                int slot = findSlot(oldKmers[i]);
+                slotKmers[slot] = oldKmers[i];
+                slotOffsets[slot] = oldOffsets[i];
+                slotCounts[slot] = oldCounts[i];
+                slotLastProteins[slot] = oldLastProteins[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the amount of bytes needed to encode a value.
+     *
+     * @param value positive value.
+     * @return amount of bytes.
+     */
+    private static int getEncodedSize(final int value) {
+        int size = 1;
+        int remaining = value >>> 7;
+        while (remaining != 0) {
+            size++;
+            remaining >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a value with 7 bits per byte. The high bit marks that more bytes follow.
+     *
+     * @param value positive value.
+     * @param position position in the postings array.
+     * @return position after the written value.
+     */
+    private int encode(final int value, final int position) {
+        int remaining = value;
+        int current = position;
+        while ((remaining >>> 7) != 0) {
+            postings[current++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        postings[current++] = (byte) remaining;
+        return current;
+    }
+
+    /**
+     * Decodes the posting list of a slot.
+     *
+     * @param slot slot of the k-mer.
+     * @return sorted protein ids.
+     */
+    private int[] decode(final int slot) {
+        int[] proteinIds = new int[slotCounts[slot]];
+        int position = slotOffsets[slot];
+        int protein = 0;
+        for (int i = 0; i < proteinIds.length; i++) {
+            int value = 0;
+            int shift = 0;
+            byte current;
+            do {
+                current = postings[position++];
+                value |= (current & 0x7F) << shift;
+                shift += 7;
+            } while ((current & 0x80) != 0);
+            protein += value;
+            proteinIds[i] = protein;
+        }
+        return proteinIds;
+    }
+
+    /**
+     * Returns the proteins that contain all seed k-mers of a peptide sequence. Only these proteins can contain the
+     * peptide sequence. The seeds are non-overlapping k-mers that together cover the whole peptide.
+     *
+     * @param peptide peptide sequence.
+     * @return sorted protein ids, or null if the peptide can not be used to select proteins.
+     */
+    public final int[] getCandidateProteins(final String peptide) {
+        if (peptide.length() < kmerLength) {
+            return null;
+        }
+        int seedCount = (peptide.length() + kmerLength - 1) / kmerLength;
+        int[] seedSlots = new int[seedCount];
+        for (int seed = 0; seed < seedCount; seed++) {
+            int start = Math.min(seed * kmerLength, peptide.length() - kmerLength);
+            int kmer = 0;
+            for (int i = start; i < start + kmerLength; i++) {
+                int code = getResidueCode(peptide.charAt(i));
+                if (code < 0) {
+                    return null;
+                }
+                kmer = (kmer << 5) | code;
+            }
+            int slot = findSlot(kmer);
+            if (slotKmers[slot] == EMPTY) {
+                return new int[0];
+            }
+            seedSlots[seed] = slot;
+        }
+        //Intersect the posting lists, starting with the shortest one.
+        int shortest = 0;
+        for (int seed = 1; seed < seedCount; seed++) {
+            if (slotCounts[seedSlots[seed]] < slotCounts[seedSlots[shortest]]) {
+                shortest = seed;
+            }
+        }
+        int[] candidates = decode(seedSlots[shortest]);
+        int candidateCount = candidates.length;
+        for (int seed = 0; seed < seedCount && candidateCount > 0; seed++) {
+            if (seed == shortest || seedSlots[seed] == seedSlots[shortest]) {
+                continue;
+            }
+            int[] proteinIds = decode(seedSlots[seed]);
+            int kept = 0;
+            int j = 0;
+            for (int i = 0; i < candidateCount; i++) {
+                while (j < proteinIds.length && proteinIds[j] < candidates[i]) {
+                    j++;
+                }
+                if (j < proteinIds.length && proteinIds[j] == candidates[i]) {
+                    candidates[kept++] = candidates[i];
+                }
+            }
+            candidateCount = kept;
+        }
+        return Arrays.copyOf(candidates, candidateCount);
+    }
+
+    /**
+     * Returns the length of the k-mers.
+     *
+     * @return k-mer length as int.
+     */
+    public final int getKmerLength() {
+        return kmerLength;
+    }
+
+    /**
+     * Returns the amount of proteins in the indexed collection.
+     *
+     * @return amount of proteins as int.
+     */
+    public final int getProteinCount() {
+        return proteinCount;
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package index;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of peptide matching results.
+ * Each result belongs to the checksum of the content of a database. When a database file changes, its checksum
+ * changes and the results of the old content are no longer used.
+ * The cache file is an append-only list of records that is memory-mapped when it is opened. Records of outdated
+ * databases are removed by rewriting the file when they take up more space than the records that are still used.
+ *
+ * @author vnijenhuis
+ */
+public class MatchResultCache {
+
+    /**
+     * Value returned by getResult when a peptide is not present in the cache.
+     */
+    public static final int MISSING = -1;
+
+    /**
+     * Variant of the public database results, which are 1 for a match and 0 otherwise.
+     */
+    public static final String PUBLIC_RESULTS = "public";
+
+    /**
+     * Variant of the reference database results, which are the amount of occurrences up to 2.
+     */
+    public static final String REFERENCE_RESULTS = "reference";
+
+    /**
+     * Identifies a match result cache file. Files of the previous version used another checksum and are replaced.
+     */
+    private static final int MAGIC = 0x4D524332;
+
+    /**
+     * Record that links a database to the checksum of its content.
+     */
+    private static final byte DATABASE_RECORD = 1;
+
+    /**
+     * Record that contains the result of a peptide sequence for a database checksum.
+     */
+    private static final byte RESULT_RECORD = 2;
+
+    /**
+     * Size of the buffers used to compute checksums and to write records.
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Character set of the database names and peptide sequences.
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Cache file.
+     */
+    private final File file;
+
+    /**
+     * Latest checksum of each database.
+     */
+    private final HashMap<String, Long> databaseChecksums = new HashMap<>();
+
+    /**
+     * Checksum of each database file that was read, so a file is only read again when it was changed.
+     */
+    private final HashMap<String, FileChecksum> fileChecksums = new HashMap<>();
+
+    /**
+     * Results per database checksum. Each peptide sequence is linked to its result.
+     */
+    private final ConcurrentHashMap<Long, ConcurrentHashMap<String, Byte>> results = new ConcurrentHashMap<>();
+
+    /**
+     * Records that are not written to the cache file yet.
+     */
+    private final ArrayList<ByteBuffer> pendingRecords = new ArrayList<>();
+
+    /**
+     * Amount of records in the cache file that are no longer used.
+     */
+    private int staleRecords;
+
+    /**
+     * Amount of records in the cache file that are still used.
+     */
+    private int liveRecords;
+
+    /**
+     * True if the cache file can not be appended to and has to be written completely.
+     */
+    private boolean rewrite;
+
+    /**
+     * Opens the cache file. A missing or unreadable file results in an empty cache.
+     *
+     * @param file cache file.
+     */
+    public MatchResultCache(final File file) {
+        this.file = file;
+        if (file.isFile()) {
+            try {
+                read();
+            } catch (IOException ex) {
+                System.out.println("Could not read match result cache " + file + ": " + ex.getMessage());
+                databaseChecksums.clear();
+                results.clear();
+                rewrite = true;
+            }
+        } else {
+            rewrite = true;
+        }
+    }
+
+    /**
+     * Memory-maps the cache file and reads all records. Results of databases that were changed later on are skipped.
+     *
+     * @throws IOException could not read the cache file.
+     */
+    private void read() throws IOException {
+        HashMap<Long, HashMap<String, Byte>> storedResults = new HashMap<>();
+        int resultRecords = 0;
+        int databaseRecords = 0;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r"); FileChannel channel = input.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Cache file is too large.");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) {
+                throw new IOException("File is not a match result cache.");
+            }
+            try {
+                while (buffer.hasRemaining()) {
+                    int start = buffer.position();
+                    byte type = buffer.get();
+                    long checksum = buffer.getLong();
+                    if (type == DATABASE_RECORD) {
+                        databaseChecksums.put(readString(buffer), checksum);
+                        databaseRecords++;
+                    } else if (type == RESULT_RECORD) {
+                        byte result = buffer.get();
+                        String peptide = readString(buffer);
+                        HashMap<String, Byte> checksumResults = storedResults.get(checksum);
+                        if (checksumResults == null) {
+                            checksumResults = new HashMap<>();
+                            storedResults.put(checksum, checksumResults);
+                        }
+                        checksumResults.put(peptide, result);
+                        resultRecords++;
+                    } else {
+                        System.out.println("Match result cache " + file + " contains an unknown record at position " + start + ".");
+                        rewrite = true;
+                        break;
+                    }
+                }
+            } catch (BufferUnderflowException ex) {
+                //The last record was not written completely, for example when a run was stopped.
+                System.out.println("Match result cache " + file + " ends with an incomplete record.");
+                rewrite = true;
+            }
+        }
+        //Only keep the results of the latest checksum of each database.
+        for (Long checksum : databaseChecksums.values()) {
+            HashMap<String, Byte> checksumResults = storedResults.get(checksum);
+            if (checksumResults != null && !results.containsKey(checksum)) {
+                results.put(checksum, new ConcurrentHashMap<>(checksumResults));
+                liveRecords += checksumResults.size();
+            }
+        }
+        liveRecords += databaseChecksums.size();
+        staleRecords = resultRecords + databaseRecords - liveRecords;
+        System.out.println("Loaded " + (liveRecords - databaseChecksums.size()) + " cached match results from " + file);
+    }
+
+    /**
+     * Reads a string that is stored as a length followed by its bytes.
+     *
+     * @param buffer buffer positioned at the length of the string.
+     * @return string.
+     */
+    private static String readString(final ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    /**
+     * Computes the checksum of the content of the database files and links it to the database.
+     * Results of a previous checksum of the same database are dropped.
+     *
+     * @param database name of the database, which should differ for each variant.
+     * @param databaseFiles files of the database.
+     * @param variant variant of the matching settings that changes the results, such as a reduced alphabet. Should
+     * contain PUBLIC_RESULTS or REFERENCE_RESULTS, so results of the same files in both roles do not share a checksum.
+     * @return checksum of the database content and variant.
+     * @throws IOException could not read a database file.
+     */
+    public final synchronized long registerDatabase(final String database, final List<String> databaseFiles, final String variant)
+            throws IOException {
+        long checksum = getChecksum(databaseFiles, variant);
+        Long previous = databaseChecksums.get(database);
+        if (previous == null || previous != checksum) {
+            databaseChecksums.put(database, checksum);
+            if (previous != null) {
+                System.out.println("Content of " + database + " has changed, cached match results are no longer used.");
+                if (!databaseChecksums.containsValue(previous)) {
+                    ConcurrentHashMap<String, Byte> previousResults = results.remove(previous);
+                    if (previousResults != null) {
+                        staleRecords += previousResults.size();
+                        liveRecords -= previousResults.size();
+                    }
+                }
+                staleRecords++;
+                liveRecords--;
+            }
+            pendingRecords.add(createRecord(DATABASE_RECORD, checksum, (byte) 0, database));
+            liveRecords++;
+        }
+        if (!results.containsKey(checksum)) {
+            results.put(checksum, new ConcurrentHashMap<String, Byte>());
+        }
+        return checksum;
+    }
+
+    /**
+     * Computes the SHA-1 checksum of the checksums of the given files and the variant.
+     *
+     * @param databaseFiles database files.
+     * @param variant variant of the matching settings.
+     * @return first 8 bytes of the checksum.
+     * @throws IOException could not read a file.
+     */
+    private long getChecksum(final List<String> databaseFiles, final String variant) throws IOException {
+        MessageDigest digest = createDigest();
+        for (String databaseFile : databaseFiles) {
+            digest.update(getFileChecksum(databaseFile));
+        }
+        digest.update(variant.getBytes(CHARSET));
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /**
+     * Returns the SHA-1 checksum of the content of a file. The file is only read when its size or modification time
+     * differs from the previous call.
+     *
+     * @param databaseFile database file.
+     * @return checksum of the file content.
+     * @throws IOException could not read the file.
+     */
+    private byte[] getFileChecksum(final String databaseFile) throws IOException {
+        File fileInfo = new File(databaseFile);
+        long size = fileInfo.length();
+        long lastModified = fileInfo.lastModified();
+        FileChecksum fileChecksum = fileChecksums.get(databaseFile);
+        if (fileChecksum != null && fileChecksum.size == size && fileChecksum.lastModified == lastModified) {
+            return fileChecksum.checksum;
+        }
+        MessageDigest digest = createDigest();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try (InputStream input = new FileInputStream(databaseFile)) {
+            int read;
+            while ((read = input.read(chunk)) > 0) {
+                digest.update(chunk, 0, read);
+            }
+        }
+        byte[] checksum = digest.digest();
+        fileChecksums.put(databaseFile, new FileChecksum(size, lastModified, checksum));
+        return checksum;
+    }
+
+    /**
+     * Creates a SHA-1 message digest.
+     *
+     * @return message digest.
+     * @throws IOException SHA-1 is not available.
+     */
+    private static MessageDigest createDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("SHA-1 is not available.", ex);
+        }
+    }
+
+    /**
+     * Returns the cached result of a peptide sequence.
+     *
+     * @param checksum checksum of the database content, as returned by registerDatabase.
+     * @param peptide peptide sequence.
+     * @return cached result, or MISSING if the peptide sequence was not matched to this database before.
+     */
+    public final int getResult(final long checksum, final String peptide) {
+        ConcurrentHashMap<String, Byte> checksumResults = results.get(checksum);
+        if (checksumResults != null) {
+            Byte result = checksumResults.get(peptide);
+            if (result != null) {
+                return result;
+            }
+        }
+        return MISSING;
+    }
+
+    /**
+     * Adds the result of a peptide sequence to the cache. The result is written to the cache file by close.
+     *
+     * @param checksum checksum of the database content, as returned by registerDatabase.
+     * @param peptide peptide sequence.
+     * @param result result between 0 and 127.
+     */
+    public final synchronized void putResult(final long checksum, final String peptide, final int result) {
+        ConcurrentHashMap<String, Byte> checksumResults = results.get(checksum);
+        if (checksumResults == null) {
+            throw new IllegalArgumentException("Database checksum " + checksum + " was not registered.");
+        }
+        Byte previous = checksumResults.put(peptide, (byte) result);
+        if (previous == null || previous != result) {
+            pendingRecords.add(createRecord(RESULT_RECORD, checksum, (byte) result, peptide));
+            if (previous == null) {
+                liveRecords++;
+            } else {
+                staleRecords++;
+            }
+        }
+    }
+
+    /**
+     * Creates a record.
+     *
+     * @param type DATABASE_RECORD or RESULT_RECORD.
+     * @param checksum checksum of the database content.
+     * @param result result of a RESULT_RECORD.
+     * @param text database name or peptide sequence.
+     * @return record that is ready to be written.
+     */
+    private static ByteBuffer createRecord(final byte type, final long checksum, final byte result, final String text) {
+        byte[] bytes = text.getBytes(CHARSET);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Text is too long to be cached: " + text.length() + " characters.");
+        }
+        ByteBuffer record = ByteBuffer.allocate(12 + bytes.length);
+        record.put(type);
+        record.putLong(checksum);
+        if (type == RESULT_RECORD) {
+            record.put(result);
+        }
+        record.putShort((short) bytes.length);
+        record.put(bytes);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Writes the new records to the cache file. The file is compacted instead when more than half of its records
+     * are no longer used.
+     *
+     * @throws IOException could not write the cache file.
+     */
+    public final synchronized void close() throws IOException {
+        if (rewrite || staleRecords > liveRecords) {
+            compact();
+        } else if (!pendingRecords.isEmpty()) {
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw"); FileChannel channel = output.getChannel()) {
+                channel.position(channel.size());
+                writeRecords(channel, pendingRecords);
+            }
+        }
+        pendingRecords.clear();
+    }
+
+    /**
+     * Writes all records that are still used to a new cache file, which replaces the old one.
+     *
+     * @throws IOException could not write the cache file.
+     */
+    private void compact() throws IOException {
+        ArrayList<ByteBuffer> records = new ArrayList<>();
+        for (Map.Entry<String, Long> database : databaseChecksums.entrySet()) {
+            records.add(createRecord(DATABASE_RECORD, database.getValue(), (byte) 0, database.getKey()));
+        }
+        for (Map.Entry<Long, ConcurrentHashMap<String, Byte>> checksumResults : results.entrySet()) {
+            for (Map.Entry<String, Byte> result : checksumResults.getValue().entrySet()) {
+                records.add(createRecord(RESULT_RECORD, checksumResults.getKey(), result.getValue(), result.getKey()));
+            }
+        }
+        File compactFile = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile output = new RandomAccessFile(compactFile, "rw"); FileChannel channel = output.getChannel()) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(4);
+            header.putInt(MAGIC);
+            header.flip();
+            IndexFiles.writeBytes(channel, header.array());
+            writeRecords(channel, records);
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not replace " + file);
+        }
+        if (!compactFile.renameTo(file)) {
+            throw new IOException("Could not rename " + compactFile + " to " + file);
+        }
+        liveRecords = records.size();
+        staleRecords = 0;
+        rewrite = false;
+    }
+
+    /**
+     * Writes records to the channel. Records are collected in a buffer to limit the amount of writes.
+     *
+     * @param channel file channel.
+     * @param records records to write.
+     * @throws IOException could not write to the file.
+     */
+    private static void writeRecords(final FileChannel channel, final List<ByteBuffer> records) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        for (ByteBuffer record : records) {
+            if (buffer.remaining() < record.remaining()) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+            }
+            buffer.put(record);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Checksum of a database file together with the size and modification time of the file when it was read.
+     */
+    private static class FileChecksum {
+
+        /**
+         * Size of the file in bytes.
+         */
+        private final long size;
+
+        /**
+         * Modification time of the file.
+         */
+        private final long lastModified;
+
+        /**
+         * SHA-1 checksum of the file content.
+         */
+        private final byte[] checksum;
+
+        /**
+         * Creates the checksum of a file.
+         *
+         * @param size size of the file in bytes.
+         * @param lastModified modification time of the file.
+         * @param checksum SHA-1 checksum of the file content.
+         */
+        FileChecksum(final long size, final long lastModified, final byte[] checksum) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+    }
+}
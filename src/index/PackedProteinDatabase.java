@@ -0,0 +1,463 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package index;
+
+import collection.creator.FastaParser;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protein database in a compact binary format that is read by memory-mapping the file.
+ * Residues are packed with 5 bits each, 12 residues per long. The file holds an offsets table of the sequences, an
+ * offsets table of the accessions and the accession bytes, so a database does not have to be parsed again. The
+ * mapped file is shared through the page cache of the operating system by all processes that read it.
+ * The file holds the same proteins as the FASTA file that it was converted from, including the omission of the
+ * last protein of the file.
+ *
+ * @author vnijenhuis
+ */
+public class PackedProteinDatabase {
+
+    /**
+     * Identifies a packed database file.
+     */
+    private static final int MAGIC = 0x50504431;
+
+    /**
+     * Extension that is added to the database file name.
+     */
+    public static final String EXTENSION = ".ppd";
+
+    /**
+     * Size of the header in bytes.
+     */
+    private static final int HEADER_SIZE = 48;
+
+    /**
+     * Amount of residues that are packed in one long.
+     */
+    private static final int RESIDUES_PER_WORD = 12;
+
+    /**
+     * Size of the mapped segments of the file. A multiple of 8, so a long never crosses two segments.
+     */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    /**
+     * Residues that can be packed. The index in this String is the 5-bit code of a residue.
+     */
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ*-.";
+
+    /**
+     * Code of each residue, or -1 for residues that can not be packed.
+     */
+    private static final byte[] CODES = new byte[256];
+
+    /**
+     * Residue of each 5-bit code.
+     */
+    private static final byte[] RESIDUES = new byte[32];
+
+    static {
+        for (int i = 0; i < CODES.length; i++) {
+            CODES[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length(); i++) {
+            CODES[ALPHABET.charAt(i)] = (byte) i;
+            RESIDUES[i] = (byte) ALPHABET.charAt(i);
+        }
+    }
+
+    /**
+     * Length of the database file that the packed file was created from.
+     */
+    private final long sourceLength;
+
+    /**
+     * Last modification time of the database file that the packed file was created from.
+     */
+    private final long sourceModified;
+
+    /**
+     * Amount of proteins.
+     */
+    private final int proteinCount;
+
+    /**
+     * File offset of the sequence offsets table.
+     */
+    private final long sequenceOffsetsStart;
+
+    /**
+     * File offset of the accession offsets table.
+     */
+    private final long accessionOffsetsStart;
+
+    /**
+     * File offset of the packed residues.
+     */
+    private final long residuesStart;
+
+    /**
+     * File offset of the accession bytes.
+     */
+    private final long accessionsStart;
+
+    /**
+     * Mapped segments of the file.
+     */
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * Maps a packed database file.
+     *
+     * @param file packed database file.
+     * @throws IOException could not read the file or the file is not a packed database.
+     */
+    private PackedProteinDatabase(final File file) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(file); FileChannel channel = inputStream.getChannel()) {
+            long length = channel.size();
+            segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+            }
+            if (length < HEADER_SIZE || getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a packed database file.");
+            }
+            sourceLength = getLong(4);
+            sourceModified = getLong(12);
+            proteinCount = getInt(20);
+            long residueCount = getLong(24);
+            long accessionLength = getLong(32);
+            sequenceOffsetsStart = HEADER_SIZE;
+            accessionOffsetsStart = sequenceOffsetsStart + 8L * (proteinCount + 1);
+            residuesStart = accessionOffsetsStart + 8L * (proteinCount + 1);
+            accessionsStart = residuesStart + 8L * getWordCount(residueCount);
+            if (accessionsStart + accessionLength != length) {
+                throw new IOException(file + " has an unexpected size.");
+            }
+        }
+    }
+
+    /**
+     * Maps a packed database file.
+     *
+     * @param file packed database file.
+     * @return packed database.
+     * @throws IOException could not read the file or the file is not a packed database.
+     */
+    public static PackedProteinDatabase load(final File file) throws IOException {
+        return new PackedProteinDatabase(file);
+    }
+
+    /**
+     * Returns the amount of longs that hold the given amount of residues.
+     *
+     * @param residueCount amount of residues.
+     * @return amount of longs.
+     */
+    private static long getWordCount(final long residueCount) {
+        return (residueCount + RESIDUES_PER_WORD - 1) / RESIDUES_PER_WORD;
+    }
+
+    /**
+     * Reads a long from the mapped file. Longs of the tables are aligned to 8 bytes, so they never cross a segment.
+     *
+     * @param offset file offset.
+     * @return value as long.
+     */
+    private long getLong(final long offset) {
+        return segments[(int) (offset / SEGMENT_SIZE)].getLong((int) (offset % SEGMENT_SIZE));
+    }
+
+    /**
+     * Reads an int from the mapped file.
+     *
+     * @param offset file offset.
+     * @return value as int.
+     */
+    private int getInt(final long offset) {
+        return segments[(int) (offset / SEGMENT_SIZE)].getInt((int) (offset % SEGMENT_SIZE));
+    }
+
+    /**
+     * Reads a byte from the mapped file.
+     *
+     * @param offset file offset.
+     * @return value as byte.
+     */
+    private byte getByte(final long offset) {
+        return segments[(int) (offset / SEGMENT_SIZE)].get((int) (offset % SEGMENT_SIZE));
+    }
+
+    /**
+     * Returns the amount of proteins.
+     *
+     * @return amount of proteins as int.
+     */
+    public final int getProteinCount() {
+        return proteinCount;
+    }
+
+    /**
+     * Returns the length of the sequence of a protein.
+     *
+     * @param protein index of the protein.
+     * @return amount of residues as int.
+     */
+    public final int getSequenceLength(final int protein) {
+        long offset = sequenceOffsetsStart + 8L * protein;
+        return (int) (getLong(offset + 8) - getLong(offset));
+    }
+
+    /**
+     * Decodes the sequence of a protein into the given array.
+     *
+     * @param protein index of the protein.
+     * @param residues array of at least the length of the sequence.
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) when true.
+     */
+    public final void getResidues(final int protein, final byte[] residues, final boolean equateIsoleucineLeucine) {
+        long start = getLong(sequenceOffsetsStart + 8L * protein);
+        int length = getSequenceLength(protein);
+        long wordIndex = start / RESIDUES_PER_WORD;
+        int shift = (int) (start % RESIDUES_PER_WORD) * 5;
+        long word = getLong(residuesStart + 8 * wordIndex);
+        for (int i = 0; i < length; i++) {
+            if (shift == RESIDUES_PER_WORD * 5) {
+                wordIndex++;
+                word = getLong(residuesStart + 8 * wordIndex);
+                shift = 0;
+            }
+            byte residue = RESIDUES[(int) (word >>> shift) & 31];
+            if (equateIsoleucineLeucine && residue == 'I') {
+                residue = 'L';
+            }
+            residues[i] = residue;
+            shift += 5;
+        }
+    }
+
+    /**
+     * Returns the sequence of a protein.
+     *
+     * @param protein index of the protein.
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) when true.
+     * @return protein sequence as String.
+     */
+    public final String getSequence(final int protein, final boolean equateIsoleucineLeucine) {
+        byte[] residues = new byte[getSequenceLength(protein)];
+        getResidues(protein, residues, equateIsoleucineLeucine);
+        return new String(residues, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the accession of a protein.
+     *
+     * @param protein index of the protein.
+     * @return accession as String.
+     */
+    public final String getAccession(final int protein) {
+        long offset = accessionOffsetsStart + 8L * protein;
+        long start = getLong(offset);
+        byte[] bytes = new byte[(int) (getLong(offset + 8) - start)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = getByte(accessionsStart + start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks if the packed file was created from the current version of the database file.
+     *
+     * @param database database file.
+     * @return true if the packed file can be used, else false.
+     */
+    public final boolean isCreatedFrom(final File database) {
+        return database.length() == sourceLength && database.lastModified() == sourceModified;
+    }
+
+    /**
+     * Writes a part of the packed file through a buffer.
+     */
+    private static class SectionWriter {
+
+        /**
+         * Channel of the packed file.
+         */
+        private final FileChannel channel;
+
+        /**
+         * Buffer of bytes that are not written yet.
+         */
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+
+        /**
+         * File offset of the first byte in the buffer.
+         */
+        private long position;
+
+        /**
+         * Creates a writer of a part of the file.
+         *
+         * @param channel channel of the packed file.
+         * @param position file offset of the part.
+         */
+        SectionWriter(final FileChannel channel, final long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        /**
+         * Adds a long.
+         *
+         * @param value value to add.
+         * @throws IOException could not write to the file.
+         */
+        void putLong(final long value) throws IOException {
+            if (buffer.remaining() < 8) {
+                flush();
+            }
+            buffer.putLong(value);
+        }
+
+        /**
+         * Adds bytes.
+         *
+         * @param values values to add.
+         * @throws IOException could not write to the file.
+         */
+        void put(final byte[] values) throws IOException {
+            for (int offset = 0; offset < values.length;) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int count = Math.min(buffer.remaining(), values.length - offset);
+                buffer.put(values, offset, count);
+                offset += count;
+            }
+        }
+
+        /**
+         * Writes the buffered bytes to the file.
+         *
+         * @throws IOException could not write to the file.
+         */
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Converts a .fasta or .fasta.gz database file to a packed database file. The database is read twice: once to
+     * determine the size of each part of the file and once to write the parts. The file is written to a temporary
+     * file first, so an interrupted conversion does not leave an incomplete packed file.
+     *
+     * @param database database file.
+     * @param file packed database file.
+     * @throws IOException could not read the database, could not write the packed file or the database contains
+     * residues that can not be packed.
+     */
+    public static void convert(final String database, final File file) throws IOException {
+        File source = new File(database);
+        long sourceLength = source.length();
+        long sourceModified = source.lastModified();
+        int proteinCount = 0;
+        long residueCount = 0;
+        long accessionLength = 0;
+        try (FastaParser parser = new FastaParser(database, false)) {
+            while (parser.nextRecord()) {
+                String sequence = parser.getSequence();
+                for (int i = 0; i < sequence.length(); i++) {
+                    char residue = sequence.charAt(i);
+                    if (residue > 255 || CODES[residue] < 0) {
+                        throw new IOException("Residue '" + residue + "' of " + parser.getAccession() + " can not be packed.");
+                    }
+                }
+                if (proteinCount == Integer.MAX_VALUE - 1) {
+                    throw new IOException(database + " contains too many proteins.");
+                }
+                proteinCount++;
+                residueCount += sequence.length();
+                accessionLength += parser.getAccession().getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        long accessionOffsetsStart = HEADER_SIZE + 8L * (proteinCount + 1);
+        long residuesStart = accessionOffsetsStart + 8L * (proteinCount + 1);
+        long accessionsStart = residuesStart + 8L * getWordCount(residueCount);
+        File packedFile = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile output = new RandomAccessFile(packedFile, "rw"); FileChannel channel = output.getChannel()) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putLong(sourceLength);
+            header.putLong(sourceModified);
+            header.putInt(proteinCount);
+            header.putLong(residueCount);
+            header.putLong(accessionLength);
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            SectionWriter sequenceOffsets = new SectionWriter(channel, HEADER_SIZE);
+            SectionWriter accessionOffsets = new SectionWriter(channel, accessionOffsetsStart);
+            SectionWriter residues = new SectionWriter(channel, residuesStart);
+            SectionWriter accessions = new SectionWriter(channel, accessionsStart);
+            long residueOffset = 0;
+            long accessionOffset = 0;
+            long word = 0;
+            int shift = 0;
+            try (FastaParser parser = new FastaParser(database, false)) {
+                while (parser.nextRecord()) {
+                    sequenceOffsets.putLong(residueOffset);
+                    accessionOffsets.putLong(accessionOffset);
+                    String sequence = parser.getSequence();
+                    for (int i = 0; i < sequence.length(); i++) {
+                        word |= (long) CODES[sequence.charAt(i)] << shift;
+                        shift += 5;
+                        if (shift == RESIDUES_PER_WORD * 5) {
+                            residues.putLong(word);
+                            word = 0;
+                            shift = 0;
+                        }
+                    }
+                    residueOffset += sequence.length();
+                    byte[] accession = parser.getAccession().getBytes(StandardCharsets.UTF_8);
+                    accessions.put(accession);
+                    accessionOffset += accession.length;
+                }
+            }
+            if (residueOffset != residueCount || accessionOffset != accessionLength) {
+                throw new IOException(database + " changed during the conversion.");
+            }
+            if (shift > 0) {
+                residues.putLong(word);
+            }
+            sequenceOffsets.putLong(residueOffset);
+            accessionOffsets.putLong(accessionOffset);
+            sequenceOffsets.flush();
+            accessionOffsets.flush();
+            residues.flush();
+            accessions.flush();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not replace " + file);
+        }
+        if (!packedFile.renameTo(file)) {
+            throw new IOException("Could not rename " + packedFile + " to " + file);
+        }
+    }
+}
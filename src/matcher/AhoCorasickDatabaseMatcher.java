@@ -0,0 +1,252 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package matcher;
+
+import collections.ColumnarProteinPeptideCollection;
+import collections.OffHeapProteinCollection;
+import collections.ProteinCollection;
+import index.MatchResultCache;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import objects.Protein;
+import tools.AhoCorasick;
+
+/**
+ * Matches all peptide sequences of a collection to a public protein database at once.
+ * One automaton is built from all peptide sequences and each protein sequence is streamed through it a single time.
+ *
+ * @author vnijenhuis
+ */
+public class AhoCorasickDatabaseMatcher implements Callable<boolean[]> {
+
+    /**
+     * Automaton of the peptide sequences.
+     */
+    private final AhoCorasick automaton;
+
+    /**
+     * Part of the protein database that is searched by this matcher.
+     */
+    private final List<Protein> proteins;
+
+    /**
+     * Off-heap collection of proteins. Used instead of the list of proteins when present.
+     */
+    private final OffHeapProteinCollection offHeapProteins;
+
+    /**
+     * First protein of the off-heap collection that is searched by this matcher.
+     */
+    private final int firstProtein;
+
+    /**
+     * Protein after the last protein of the off-heap collection that is searched by this matcher.
+     */
+    private final int endProtein;
+
+    /**
+     * Cache of earlier matching results, or null if no cache is used.
+     */
+    private MatchResultCache matchResultCache;
+
+    /**
+     * Checksum of the content of the protein databases, used to look up cached matching results.
+     */
+    private long databaseChecksum;
+
+    /**
+     * Multi-thread database matcher.
+     *
+     * @param automaton automaton of the peptide sequences.
+     * @param proteins list of Protein objects.
+     */
+    public AhoCorasickDatabaseMatcher(final AhoCorasick automaton, final List<Protein> proteins) {
+        this.automaton = automaton;
+        this.proteins = proteins;
+        this.offHeapProteins = null;
+        this.firstProtein = 0;
+        this.endProtein = 0;
+    }
+
+    /**
+     * Multi-thread database matcher that searches a range of proteins of an off-heap collection.
+     *
+     * @param automaton automaton of the peptide sequences.
+     * @param offHeapProteins off-heap collection of proteins.
+     * @param firstProtein first protein that is searched.
+     * @param endProtein protein after the last protein that is searched. The range lies within one region.
+     */
+    public AhoCorasickDatabaseMatcher(final AhoCorasick automaton, final OffHeapProteinCollection offHeapProteins, final int firstProtein,
+            final int endProtein) {
+        this.automaton = automaton;
+        this.proteins = null;
+        this.offHeapProteins = offHeapProteins;
+        this.firstProtein = firstProtein;
+        this.endProtein = endProtein;
+    }
+
+    /**
+     * Call function which streams the proteins through the automaton.
+     *
+     * @return returns the states of the automaton that were matched to the protein database.
+     */
+    @Override
+    public boolean[] call() {
+        boolean[] matchedStates = new boolean[automaton.getStateCount()];
+        int matches = 0;
+        if (offHeapProteins != null) {
+            ByteBuffer residues = offHeapProteins.getRegion(offHeapProteins.getRegionIndex(firstProtein));
+            for (int protein = firstProtein; protein < endProtein; protein++) {
+                matches += automaton.searchPatterns(residues, offHeapProteins.getSequenceStart(protein), offHeapProteins.getSequenceEnd(protein),
+                        matchedStates);
+                //Stop when every peptide sequence has been found.
+                if (matches == automaton.getTerminalCount()) {
+                    break;
+                }
+            }
+            return matchedStates;
+        }
+        for (Protein protein : proteins) {
+            matches += automaton.searchPatterns(protein.getSequence(), matchedStates);
+            //Stop when every peptide sequence has been found.
+            if (matches == automaton.getTerminalCount()) {
+                break;
+            }
+        }
+        return matchedStates;
+    }
+
+    /**
+     * Sets the cache that is checked before the peptide sequences are matched. New results are added to the cache.
+     * No cache is used when the cache is null.
+     *
+     * @param matchResultCache cache of matching results.
+     * @param databaseChecksum checksum of the protein databases, as returned by MatchResultCache.registerDatabase.
+     */
+    public final void setMatchResultCache(final MatchResultCache matchResultCache, final long databaseChecksum) {
+        this.matchResultCache = matchResultCache;
+        this.databaseChecksum = databaseChecksum;
+    }
+
+    /**
+     * Collects the protein-peptides that did not match to the protein database.
+     * Gives the same result as PublicDatabaseMatcher.getMatchedProteinPeptides.
+     *
+     * @param proteinPeptideCollection collection of protein-peptides.
+     * @param proteins collection of Protein objects.
+     * @param threads amount of threads used.
+     * @return collection of protein-peptides that did not match to the protein database.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    public ColumnarProteinPeptideCollection getMatchedProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection, final ProteinCollection proteins,
+            final Integer threads) throws InterruptedException, ExecutionException {
+        return matchProteinPeptides(proteinPeptideCollection, proteins, null, threads);
+    }
+
+    /**
+     * Collects the protein-peptides that did not match to an off-heap collection of proteins.
+     * Gives the same result as PublicDatabaseMatcher.getMatchedProteinPeptides.
+     *
+     * @param proteinPeptideCollection collection of protein-peptides.
+     * @param offHeapProteins off-heap collection of proteins.
+     * @param threads amount of threads used.
+     * @return collection of protein-peptides that did not match to the protein database.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    public ColumnarProteinPeptideCollection getMatchedProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection,
+            final OffHeapProteinCollection offHeapProteins, final Integer threads) throws InterruptedException, ExecutionException {
+        return matchProteinPeptides(proteinPeptideCollection, null, offHeapProteins, threads);
+    }
+
+    /**
+     * Collects the protein-peptides that did not match to either one of the collections of proteins.
+     *
+     * @param proteinPeptideCollection collection of protein-peptides.
+     * @param proteins collection of Protein objects.
+     * @param offHeapProteins off-heap collection of proteins.
+     * @param threads amount of threads used.
+     * @return collection of protein-peptides that did not match to the protein database.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    private ColumnarProteinPeptideCollection matchProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection, final ProteinCollection proteins,
+            final OffHeapProteinCollection offHeapProteins, final Integer threads) throws InterruptedException, ExecutionException {
+        boolean[] matchedToDatabase = new boolean[proteinPeptideCollection.size()];
+        //Only the peptide sequences without a cached result are added to the automaton.
+        ArrayList<String> peptideSequences = new ArrayList<>();
+        ArrayList<Integer> uncachedIndices = new ArrayList<>();
+        ColumnarProteinPeptideCollection.Cursor proteinPeptide = proteinPeptideCollection.cursor();
+        while (proteinPeptide.next()) {
+            String sequence = proteinPeptide.getMatchingSequence();
+            int cachedResult = MatchResultCache.MISSING;
+            if (matchResultCache != null) {
+                cachedResult = matchResultCache.getResult(databaseChecksum, sequence);
+            }
+            if (cachedResult != MatchResultCache.MISSING) {
+                matchedToDatabase[proteinPeptide.getPosition()] = cachedResult == 1;
+            } else {
+                peptideSequences.add(sequence);
+                uncachedIndices.add(proteinPeptide.getPosition());
+            }
+        }
+        if (matchResultCache != null) {
+            System.out.println((proteinPeptideCollection.size() - peptideSequences.size()) + " peptide entries were found in the match result cache.");
+        }
+        AhoCorasick peptideAutomaton = new AhoCorasick(peptideSequences);
+        System.out.println("Using " + threads + " threads to match " + peptideAutomaton.getTerminalCount()
+                + " distinct peptide sequences to the public protein database.");
+        //Each thread streams its own part of the protein database through the automaton.
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<boolean[]>> futures = new ArrayList<>();
+        if (offHeapProteins != null) {
+            //Parts do not cross the regions of the protein collection.
+            int partSize = (offHeapProteins.getProteinCount() + threads - 1) / threads;
+            for (int region = 0; region < offHeapProteins.getRegionCount(); region++) {
+                int regionEnd = offHeapProteins.getFirstProtein(region + 1);
+                for (int start = offHeapProteins.getFirstProtein(region); start < regionEnd; start += partSize) {
+                    int end = Math.min(start + partSize, regionEnd);
+                    Callable<boolean[]> callable = new AhoCorasickDatabaseMatcher(peptideAutomaton, offHeapProteins, start, end);
+                    futures.add(pool.submit(callable));
+                }
+            }
+        } else {
+            int proteinCount = proteins.getProteins().size();
+            int partSize = (proteinCount + threads - 1) / threads;
+            for (int start = 0; start < proteinCount; start += partSize) {
+                int end = Math.min(start + partSize, proteinCount);
+                Callable<boolean[]> callable = new AhoCorasickDatabaseMatcher(peptideAutomaton, proteins.getProteins().subList(start, end));
+                futures.add(pool.submit(callable));
+            }
+        }
+        boolean[] matchedStates = new boolean[peptideAutomaton.getStateCount()];
+        for (Future<boolean[]> future : futures) {
+            boolean[] partMatchedStates = future.get();
+            for (int state = 0; state < matchedStates.length; state++) {
+                matchedStates[state] |= partMatchedStates[state];
+            }
+        }
+        //Shutdown command for the pool to prevent the script from running infinitely.
+        pool.shutdown();
+        for (int i = 0; i < peptideSequences.size(); i++) {
+            int index = uncachedIndices.get(i);
+            matchedToDatabase[index] = peptideAutomaton.isMatched(i, matchedStates);
+            if (matchResultCache != null) {
+                matchResultCache.putResult(databaseChecksum, peptideSequences.get(i), matchedToDatabase[index] ? 1 : 0);
+            }
+        }
+        //Returns the peptides that did NOT match to the protein database.
+        ColumnarProteinPeptideCollection filteredProteinPeptideCollection = proteinPeptideCollection.getUnflaggedRows(matchedToDatabase);
+        System.out.println(filteredProteinPeptideCollection.size() + " protein-peptides did not match to the public protein database.");
+        return filteredProteinPeptideCollection;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package matcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs matcher call functions in batches on a work-stealing pool.
+ * All batches are submitted at once, so every thread is busy until the last batch is done.
+ * Results are returned in the order of the given call functions.
+ *
+ * @author vnijenhuis
+ */
+public class BatchMatcher {
+
+    /**
+     * Amount of batches per thread. More batches allow idle threads to take work from busy threads.
+     */
+    private static final int BATCHES_PER_THREAD = 16;
+
+    /**
+     * Largest amount of call functions in a single batch.
+     */
+    private static final int MAX_BATCH_SIZE = 500;
+
+    /**
+     * Progress is reported each time this amount of call functions is finished.
+     */
+    private static final int PROGRESS_INTERVAL = 2000;
+
+    /**
+     * Runs a part of the call functions and stores their output.
+     *
+     * @param <T> output type of the call functions.
+     */
+    private static class Batch<T> implements Callable<Integer> {
+
+        /**
+         * Call functions of this batch.
+         */
+        private final List<Callable<T>> callables;
+
+        /**
+         * Output of all call functions.
+         */
+        private final Object[] results;
+
+        /**
+         * Index of the first call function of this batch.
+         */
+        private final int start;
+
+        /**
+         * Creates a batch.
+         *
+         * @param callables call functions of this batch.
+         * @param results output of all call functions.
+         * @param start index of the first call function of this batch.
+         */
+        Batch(final List<Callable<T>> callables, final Object[] results, final int start) {
+            this.callables = callables;
+            this.results = results;
+            this.start = start;
+        }
+
+        /**
+         * Runs the call functions of this batch.
+         *
+         * @return amount of finished call functions.
+         * @throws Exception exception of a call function.
+         */
+        @Override
+        public Integer call() throws Exception {
+            for (int i = 0; i < callables.size(); i++) {
+                results[start + i] = callables.get(i).call();
+            }
+            return callables.size();
+        }
+    }
+
+    /**
+     * Runs the call functions in batches and reports the progress while the batches finish.
+     *
+     * @param <T> output type of the call functions.
+     * @param callables call functions to run.
+     * @param threads amount of threads used.
+     * @param description description of the work, used in the progress messages.
+     * @return output of each call function, in the same order as the call functions.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute a call function.
+     */
+    @SuppressWarnings("unchecked")
+    public final <T> ArrayList<T> matchInBatches(final List<Callable<T>> callables, final Integer threads, final String description)
+            throws InterruptedException, ExecutionException {
+        int total = callables.size();
+        Object[] results = new Object[total];
+        int batchSize = (total + threads * BATCHES_PER_THREAD - 1) / (threads * BATCHES_PER_THREAD);
+        batchSize = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            CompletionService<Integer> completionService = new ExecutorCompletionService<>(pool);
+            int batches = 0;
+            for (int start = 0; start < total; start += batchSize) {
+                List<Callable<T>> batch = callables.subList(start, Math.min(start + batchSize, total));
+                completionService.submit(new Batch<>(batch, results, start));
+                batches++;
+            }
+            //The workers do not wait for the progress messages, they are written while collecting finished batches.
+            int finished = 0;
+            for (int i = 0; i < batches; i++) {
+                int previous = finished;
+                finished += completionService.take().get();
+                if (finished / PROGRESS_INTERVAL > previous / PROGRESS_INTERVAL) {
+                    System.out.println("Matched " + finished + " of " + total + " " + description + ".");
+                }
+            }
+        } finally {
+            //Shutdown command for the pool to prevent the script from running infinitely.
+            pool.shutdownNow();
+        }
+        ArrayList<T> output = new ArrayList<>(total);
+        for (Object result : results) {
+            output.add((T) result);
+        }
+        return output;
+    }
+}
@@ -4,15 +4,17 @@
  */
 package matcher;
 
+import collections.ColumnarProteinPeptideCollection;
+import collections.OffHeapProteinCollection;
 import collections.ProteinCollection;
-import collections.ProteinPeptideCollection;
+import index.FMIndex;
+import index.KmerIndex;
+import index.MatchResultCache;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import objects.Protein;
-import objects.ProteinPeptide;
 import tools.Boyer;
 
 /**
@@ -31,14 +33,83 @@ public class PublicDatabaseMatcher implements Callable {
      */
     private final ProteinCollection proteins;
 
+    /**
+     * Off-heap collection of proteins. Used instead of the collection of proteins when present.
+     */
+    private final OffHeapProteinCollection offHeapProteins;
+
+    /**
+     * FM-indices of the protein databases. Used instead of the collection of proteins when present.
+     */
+    private final ArrayList<FMIndex> indices;
+
+    /**
+     * K-mer index of the collection of proteins. Used to select the proteins that are searched when present.
+     */
+    private final KmerIndex kmerIndex;
+
+    /**
+     * Cache of earlier matching results, or null if no cache is used.
+     */
+    private MatchResultCache matchResultCache;
+
+    /**
+     * Checksum of the content of the protein databases, used to look up cached matching results.
+     */
+    private long databaseChecksum;
+
     /**
      * Multi-tread database matcher.
      * @param proteinPeptideSequence ProteinPeptide peptide sequence.
      * @param proteins collection of Protein objects.
      */
     public PublicDatabaseMatcher(final String proteinPeptideSequence, final ProteinCollection proteins) {
+        this(proteinPeptideSequence, proteins, null, null, null);
+    }
+
+    /**
+     * Multi-tread database matcher that searches the residues of an off-heap collection of proteins.
+     * @param proteinPeptideSequence ProteinPeptide peptide sequence.
+     * @param offHeapProteins off-heap collection of proteins.
+     */
+    public PublicDatabaseMatcher(final String proteinPeptideSequence, final OffHeapProteinCollection offHeapProteins) {
+        this(proteinPeptideSequence, null, offHeapProteins, null, null);
+    }
+
+    /**
+     * Multi-tread database matcher that only searches the proteins selected by a k-mer index.
+     * @param proteinPeptideSequence ProteinPeptide peptide sequence.
+     * @param proteins collection of Protein objects.
+     * @param kmerIndex k-mer index of the collection of proteins.
+     */
+    public PublicDatabaseMatcher(final String proteinPeptideSequence, final ProteinCollection proteins, final KmerIndex kmerIndex) {
+        this(proteinPeptideSequence, proteins, null, kmerIndex, null);
+    }
+
+    /**
+     * Multi-tread database matcher that uses FM-indices of the protein databases.
+     * @param proteinPeptideSequence ProteinPeptide peptide sequence.
+     * @param indices FM-indices of the protein databases.
+     */
+    public PublicDatabaseMatcher(final String proteinPeptideSequence, final ArrayList<FMIndex> indices) {
+        this(proteinPeptideSequence, null, null, null, indices);
+    }
+
+    /**
+     * Multi-tread database matcher.
+     * @param proteinPeptideSequence ProteinPeptide peptide sequence.
+     * @param proteins collection of Protein objects.
+     * @param offHeapProteins off-heap collection of proteins.
+     * @param kmerIndex k-mer index of the collection of proteins.
+     * @param indices FM-indices of the protein databases.
+     */
+    private PublicDatabaseMatcher(final String proteinPeptideSequence, final ProteinCollection proteins,
+            final OffHeapProteinCollection offHeapProteins, final KmerIndex kmerIndex, final ArrayList<FMIndex> indices) {
         this.proteinPeptideSequence = proteinPeptideSequence;
         this.proteins = proteins;
+        this.offHeapProteins = offHeapProteins;
+        this.kmerIndex = kmerIndex;
+        this.indices = indices;
     }
 
     /**
@@ -49,7 +120,41 @@ public class PublicDatabaseMatcher implements Callable {
     public Object call() {
         //Matches peptides to the protein database.
         Boolean matchedToDatabase = false;
+        if (indices != null) {
+            for (FMIndex index : indices) {
+                if (index.count(proteinPeptideSequence) > 0) {
+                    matchedToDatabase = true;
+                    break;
+                }
+            }
+            return matchedToDatabase;
+        }
         Boyer peptideSequence = new Boyer(proteinPeptideSequence);
+        if (offHeapProteins != null) {
+            //The separators are never part of the peptide sequence, so the residues of each database are searched at once.
+            for (int region = 0; region < offHeapProteins.getRegionCount(); region++) {
+                ByteBuffer residues = offHeapProteins.getRegion(region);
+                if (residues.hasRemaining() && peptideSequence.findPattern(residues, 0, residues.limit()) >= 0) {
+                    matchedToDatabase = true;
+                    break;
+                }
+            }
+            return matchedToDatabase;
+        }
+        int[] candidates = null;
+        if (kmerIndex != null) {
+            candidates = kmerIndex.getCandidateProteins(proteinPeptideSequence);
+        }
+        if (candidates != null) {
+            //Only the proteins that contain every seed k-mer can contain the peptide sequence.
+            for (int candidate : candidates) {
+                if (peptideSequence.searchPattern(proteins.getProteins().get(candidate).getSequence())) {
+                    matchedToDatabase = true;
+                    break;
+                }
+            }
+            return matchedToDatabase;
+        }
         for (Protein protein : proteins.getProteins()) {
             //Checks if peptide sequence is present in the given database(s).
             if (peptideSequence.searchPattern(protein.getSequence())) {
@@ -62,39 +167,123 @@ public class PublicDatabaseMatcher implements Callable {
     }
 
     /**
-     * Collects matched ProteinPeptide objects and returns a collection of these objects.
-     * @param proteinPeptideCollection collection of ProteinPeptide objects.
+     * Sets the cache that is checked before a peptide sequence is matched. New results are added to the cache.
+     * No cache is used when the cache is null.
+     * @param matchResultCache cache of matching results.
+     * @param databaseChecksum checksum of the protein databases, as returned by MatchResultCache.registerDatabase.
+     */
+    public final void setMatchResultCache(final MatchResultCache matchResultCache, final long databaseChecksum) {
+        this.matchResultCache = matchResultCache;
+        this.databaseChecksum = databaseChecksum;
+    }
+
+    /**
+     * Collects matched protein-peptides and returns a collection of these objects.
+     * @param proteinPeptideCollection collection of protein-peptides.
      * @param proteins collection of Protein objects.
      * @param threads amount of threads used.
      * @return collection of matched peptides.
      * @throws InterruptedException process was interrupted.
      * @throws ExecutionException could not execute the call function.
      */
-    public ProteinPeptideCollection getMatchedProteinPeptides(final ProteinPeptideCollection proteinPeptideCollection, final ProteinCollection proteins, 
+    public ColumnarProteinPeptideCollection getMatchedProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection, final ProteinCollection proteins, 
             final Integer threads) throws InterruptedException, ExecutionException {
-        ProteinPeptideCollection filteredProteinPeptideCollection = new ProteinPeptideCollection();
-        //Creates a new execution service and sets the amount of threads to use. (if available)
+        return matchProteinPeptides(proteinPeptideCollection, proteins, null, null, null, threads);
+    }
+
+    /**
+     * Collects matched protein-peptides by searching the residues of an off-heap collection of proteins.
+     * @param proteinPeptideCollection collection of protein-peptides.
+     * @param offHeapProteins off-heap collection of proteins.
+     * @param threads amount of threads used.
+     * @return collection of matched peptides.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    public ColumnarProteinPeptideCollection getMatchedProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection,
+            final OffHeapProteinCollection offHeapProteins, final Integer threads) throws InterruptedException, ExecutionException {
+        return matchProteinPeptides(proteinPeptideCollection, null, offHeapProteins, null, null, threads);
+    }
+
+    /**
+     * Collects matched protein-peptides by only searching the proteins selected by a k-mer index.
+     * @param proteinPeptideCollection collection of protein-peptides.
+     * @param proteins collection of Protein objects.
+     * @param kmerIndex k-mer index of the collection of proteins.
+     * @param threads amount of threads used.
+     * @return collection of matched peptides.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    public ColumnarProteinPeptideCollection getMatchedProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection, final ProteinCollection proteins,
+            final KmerIndex kmerIndex, final Integer threads) throws InterruptedException, ExecutionException {
+        return matchProteinPeptides(proteinPeptideCollection, proteins, null, kmerIndex, null, threads);
+    }
+
+    /**
+     * Collects matched protein-peptides by using FM-indices of the protein databases.
+     * @param proteinPeptideCollection collection of protein-peptides.
+     * @param indices FM-indices of the protein databases.
+     * @param threads amount of threads used.
+     * @return collection of matched peptides.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    public ColumnarProteinPeptideCollection getMatchedProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection, final ArrayList<FMIndex> indices,
+            final Integer threads) throws InterruptedException, ExecutionException {
+        return matchProteinPeptides(proteinPeptideCollection, null, null, null, indices, threads);
+    }
+
+    /**
+     * Collects matched protein-peptides by using either one of the collections of proteins or the FM-indices.
+     * @param proteinPeptideCollection collection of protein-peptides.
+     * @param proteins collection of Protein objects.
+     * @param offHeapProteins off-heap collection of proteins.
+     * @param kmerIndex k-mer index of the collection of proteins.
+     * @param indices FM-indices of the protein databases.
+     * @param threads amount of threads used.
+     * @return collection of matched peptides.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    private ColumnarProteinPeptideCollection matchProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection, final ProteinCollection proteins,
+            final OffHeapProteinCollection offHeapProteins, final KmerIndex kmerIndex, final ArrayList<FMIndex> indices, final Integer threads)
+            throws InterruptedException, ExecutionException {
         System.out.println("Using " + threads + " threads to match peptides to the public protein database.");
-        ExecutorService pool = Executors.newFixedThreadPool(threads);
-        //Executes the call function of MultiThreadDatabaseMatcher.
-        int count = 0;
-        for (ProteinPeptide proteinPeptide: proteinPeptideCollection.getProteinPeptideMatches()) {
-            count++;
-            Callable<Boolean> callable = new PublicDatabaseMatcher(proteinPeptide.getSequence(), proteins);
-            //Collects the output from the call function
-            Future<Boolean> future = pool.submit(callable);
-            //Adds the output to finalPeptides.
-            Boolean matchedToDatabase = future.get();
-            if (!matchedToDatabase) {
-                filteredProteinPeptideCollection.addProteinPeptideMatch(proteinPeptide);
+        boolean[] matchedToDatabase = new boolean[proteinPeptideCollection.size()];
+        ArrayList<String> uncachedSequences = new ArrayList<>();
+        ArrayList<Integer> uncachedIndices = new ArrayList<>();
+        ArrayList<Callable<Boolean>> callables = new ArrayList<>();
+        ColumnarProteinPeptideCollection.Cursor proteinPeptide = proteinPeptideCollection.cursor();
+        while (proteinPeptide.next()) {
+            String sequence = proteinPeptide.getMatchingSequence();
+            int cachedResult = MatchResultCache.MISSING;
+            if (matchResultCache != null) {
+                cachedResult = matchResultCache.getResult(databaseChecksum, sequence);
+            }
+            if (cachedResult != MatchResultCache.MISSING) {
+                matchedToDatabase[proteinPeptide.getPosition()] = cachedResult == 1;
+            } else {
+                Callable<Boolean> callable = new PublicDatabaseMatcher(sequence, proteins, offHeapProteins, kmerIndex, indices);
+                callables.add(callable);
+                uncachedSequences.add(sequence);
+                uncachedIndices.add(proteinPeptide.getPosition());
             }
-            if (count % 2000 == 0) {
-                System.out.println("Matched " + count + " peptide entries to the public protein database.");
+        }
+        if (matchResultCache != null) {
+            System.out.println((proteinPeptideCollection.size() - callables.size()) + " peptide entries were found in the match result cache.");
+        }
+        //Executes the call functions in parallel batches. Output is in the order of the collection.
+        BatchMatcher batchMatcher = new BatchMatcher();
+        ArrayList<Boolean> matchResults = batchMatcher.matchInBatches(callables, threads, "peptide entries to the public protein database");
+        for (int i = 0; i < matchResults.size(); i++) {
+            matchedToDatabase[uncachedIndices.get(i)] = matchResults.get(i);
+            if (matchResultCache != null) {
+                matchResultCache.putResult(databaseChecksum, uncachedSequences.get(i), matchResults.get(i) ? 1 : 0);
             }
         }
-        System.out.println(filteredProteinPeptideCollection.getProteinPeptideMatches().size() + " protein-peptides did not match to the public protein database.");
-        //Shutdown command for the pool to prevent the script from running infinitely.
-        pool.shutdown();
+        ColumnarProteinPeptideCollection filteredProteinPeptideCollection = proteinPeptideCollection.getUnflaggedRows(matchedToDatabase);
+        System.out.println(filteredProteinPeptideCollection.size() + " protein-peptides did not match to the public protein database.");
         return filteredProteinPeptideCollection;
     }
 }
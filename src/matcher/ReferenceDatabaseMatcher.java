@@ -4,65 +4,192 @@
  */
 package matcher;
 
+import collections.ColumnarProteinPeptideCollection;
+import collections.OffHeapProteinCollection;
 import collections.ProteinCollection;
-import collections.ProteinPeptideCollection;
+import index.FMIndex;
+import index.KmerIndex;
+import index.MatchResultCache;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import tools.Boyer;
 import objects.Protein;
-import objects.ProteinPeptide;
 
 /**
- * Designed to match a collection of ProteinPeptide objects from a sample to the protein sequence database of that sample. 
+ * Designed to match a collection of protein-peptides from a sample to the protein sequence database of that sample. 
  */
-public class ReferenceDatabaseMatcher implements Callable {
+public class ReferenceDatabaseMatcher implements Callable<Boolean> {
     
     /**
-     * Collection of ProteinPeptide objects.
+     * Sequence used to match the current protein-peptide.
      */
-    private final ProteinPeptide currentProteinPeptide;
+    private final String matchingSequence;
 
     /**
      * Collection of Protein objects.
      */
     private final ProteinCollection proteinCollection;
 
+    /**
+     * Off-heap collection of proteins. Used instead of the collection of proteins when present.
+     */
+    private final OffHeapProteinCollection offHeapProteins;
+
+    /**
+     * FM-index of the protein database. Used instead of the collection of proteins when present.
+     */
+    private final FMIndex index;
+
+    /**
+     * K-mer index of the collection of proteins. Used to select the proteins that are searched when present.
+     */
+    private final KmerIndex kmerIndex;
+
+    /**
+     * Amount of proteins that contain the peptide sequence, counted up to 2.
+     */
+    private int occurrences;
+
+    /**
+     * Cache of earlier matching results, or null if no cache is used.
+     */
+    private MatchResultCache matchResultCache;
+
+    /**
+     * Checksum of the content of the protein database, used to look up cached matching results.
+     */
+    private long databaseChecksum;
+
     /**
      * Multi-tread database matcher.
      *
-     * @param currentProteinPeptide current ProteinPeptide object.
+     * @param matchingSequence sequence used to match the current protein-peptide.
      * @param proteinCollection collection of Protein objects.   
      */
-    public ReferenceDatabaseMatcher(final ProteinPeptide currentProteinPeptide, final ProteinCollection proteinCollection) {
-        this.currentProteinPeptide = currentProteinPeptide;
+    public ReferenceDatabaseMatcher(final String matchingSequence, final ProteinCollection proteinCollection) {
+        this(matchingSequence, proteinCollection, null, null, null);
+    }
+
+    /**
+     * Multi-tread database matcher that searches the residues of an off-heap collection of proteins.
+     *
+     * @param matchingSequence sequence used to match the current protein-peptide.
+     * @param offHeapProteins off-heap collection of proteins.
+     */
+    public ReferenceDatabaseMatcher(final String matchingSequence, final OffHeapProteinCollection offHeapProteins) {
+        this(matchingSequence, null, offHeapProteins, null, null);
+    }
+
+    /**
+     * Multi-tread database matcher that only searches the proteins selected by a k-mer index.
+     *
+     * @param matchingSequence sequence used to match the current protein-peptide.
+     * @param proteinCollection collection of Protein objects.
+     * @param kmerIndex k-mer index of the collection of proteins.
+     */
+    public ReferenceDatabaseMatcher(final String matchingSequence, final ProteinCollection proteinCollection, final KmerIndex kmerIndex) {
+        this(matchingSequence, proteinCollection, null, kmerIndex, null);
+    }
+
+    /**
+     * Multi-tread database matcher that uses an FM-index of the protein database.
+     *
+     * @param matchingSequence sequence used to match the current protein-peptide.
+     * @param index FM-index of the protein database.
+     */
+    public ReferenceDatabaseMatcher(final String matchingSequence, final FMIndex index) {
+        this(matchingSequence, null, null, null, index);
+    }
+
+    /**
+     * Multi-tread database matcher.
+     *
+     * @param matchingSequence sequence used to match the current protein-peptide.
+     * @param proteinCollection collection of Protein objects.
+     * @param offHeapProteins off-heap collection of proteins.
+     * @param kmerIndex k-mer index of the collection of proteins.
+     * @param index FM-index of the protein database.
+     */
+    private ReferenceDatabaseMatcher(final String matchingSequence, final ProteinCollection proteinCollection,
+            final OffHeapProteinCollection offHeapProteins, final KmerIndex kmerIndex, final FMIndex index) {
+        this.matchingSequence = matchingSequence;
         this.proteinCollection = proteinCollection;
+        this.offHeapProteins = offHeapProteins;
+        this.kmerIndex = kmerIndex;
+        this.index = index;
     }
        
     /**
      * Call function which matches the protein and peptide collections.
-     * @return returns a peptide collection with peptides that did NOT match to the protein database. 
+     * @return true if the peptide sequence is present in at most one protein of the database, else false.
      */
     @Override
-    public Object call() {
+    public Boolean call() {
         //Matches peptides to the protein database.
         int matches = 0;
         Boolean isUnique = true;
-        Boyer peptideSequence = new Boyer(currentProteinPeptide.getSequence());
-            for (Protein protein: proteinCollection.getProteins()) {
+        if (index != null) {
+            //Unique when the sequence is present in at most one protein.
+            occurrences = index.countProteins(matchingSequence, 2);
+            isUnique = occurrences < 2;
+            return isUnique;
+        }
+        Boyer peptideSequence = new Boyer(matchingSequence);
+        if (offHeapProteins != null) {
+            //Each protein is counted once, the search continues after the protein that contains the occurrence.
+            for (int region = 0; region < offHeapProteins.getRegionCount() && matches < 2; region++) {
+                ByteBuffer residues = offHeapProteins.getRegion(region);
+                int position = 0;
+                while (matches < 2 && position < residues.limit()) {
+                    int occurrence = peptideSequence.findPattern(residues, position, residues.limit());
+                    if (occurrence < 0) {
+                        break;
+                    }
+                    matches++;
+                    position = offHeapProteins.getSequenceEnd(offHeapProteins.getProtein(region, occurrence)) + 1;
+                }
+            }
+            occurrences = matches;
+            isUnique = matches < 2;
+            return isUnique;
+        }
+        ArrayList<Protein> proteins = proteinCollection.getProteins();
+        int[] candidates = null;
+        if (kmerIndex != null) {
+            candidates = kmerIndex.getCandidateProteins(matchingSequence);
+        }
+        if (candidates != null) {
+            //Only the proteins that contain every seed k-mer can contain the peptide sequence.
+            proteins = new ArrayList<>(candidates.length);
+            for (int candidate : candidates) {
+                proteins.add(proteinCollection.getProteins().get(candidate));
+            }
+        }
+            for (Protein protein: proteins) {
                 if (peptideSequence.searchPattern(protein.getSequence()) && matches == 0) {
                     matches += 1;
                     isUnique = true;
                 } else if (peptideSequence.searchPattern(protein.getSequence()) && matches == 1) {
+                    matches += 1;
                     isUnique = false;
                     break;
                 }
             }
-        //Returns the peptides that did NOT match to the protein database.
-        currentProteinPeptide.setUniqueToDatabase(isUnique);
-        return currentProteinPeptide;
+        occurrences = matches;
+        return isUnique;
+    }
+
+    /**
+     * Sets the cache that is checked before a peptide sequence is matched. New results are added to the cache.
+     * No cache is used when the cache is null.
+     * @param matchResultCache cache of matching results.
+     * @param databaseChecksum checksum of the protein database, as returned by MatchResultCache.registerDatabase.
+     */
+    public final void setMatchResultCache(final MatchResultCache matchResultCache, final long databaseChecksum) {
+        this.matchResultCache = matchResultCache;
+        this.databaseChecksum = databaseChecksum;
     }
 
     /**
@@ -70,34 +197,110 @@ public class ReferenceDatabaseMatcher implements Callable {
      * @param proteinPeptideCollection collection of peptides.
      * @param proteins collection of Protein objects.
      * @param threads amount of threads used.
-     * @return collection of matched ProteinPeptide objects.
+     * @return collection of the flagged protein-peptides.
      * @throws InterruptedException process was interrupted.
      * @throws ExecutionException could not execute the call function.
      */
-    public ProteinPeptideCollection getMatchedProteinPeptides(final ProteinPeptideCollection proteinPeptideCollection, final ProteinCollection proteins, 
+    public ColumnarProteinPeptideCollection getMatchedProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection, final ProteinCollection proteins, 
             final Integer threads) throws InterruptedException, ExecutionException {
-        ProteinPeptideCollection flaggedProteinPeptideCollection = new ProteinPeptideCollection();
+        return matchProteinPeptides(proteinPeptideCollection, proteins, null, null, null, threads);
+    }
+
+    /**
+     * Collects matched peptides by searching the residues of an off-heap collection of proteins.
+     * @param proteinPeptideCollection collection of peptides.
+     * @param offHeapProteins off-heap collection of proteins.
+     * @param threads amount of threads used.
+     * @return collection of the flagged protein-peptides.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    public ColumnarProteinPeptideCollection getMatchedProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection,
+            final OffHeapProteinCollection offHeapProteins, final Integer threads) throws InterruptedException, ExecutionException {
+        return matchProteinPeptides(proteinPeptideCollection, null, offHeapProteins, null, null, threads);
+    }
+
+    /**
+     * Collects matched peptides by only searching the proteins selected by a k-mer index.
+     * @param proteinPeptideCollection collection of peptides.
+     * @param proteins collection of Protein objects.
+     * @param kmerIndex k-mer index of the collection of proteins.
+     * @param threads amount of threads used.
+     * @return collection of the flagged protein-peptides.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    public ColumnarProteinPeptideCollection getMatchedProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection, final ProteinCollection proteins,
+            final KmerIndex kmerIndex, final Integer threads) throws InterruptedException, ExecutionException {
+        return matchProteinPeptides(proteinPeptideCollection, proteins, null, kmerIndex, null, threads);
+    }
+
+    /**
+     * Collects matched peptides by using an FM-index of the protein database.
+     * @param proteinPeptideCollection collection of peptides.
+     * @param index FM-index of the protein database.
+     * @param threads amount of threads used.
+     * @return collection of the flagged protein-peptides.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    public ColumnarProteinPeptideCollection getMatchedProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection, final FMIndex index,
+            final Integer threads) throws InterruptedException, ExecutionException {
+        return matchProteinPeptides(proteinPeptideCollection, null, null, null, index, threads);
+    }
+
+    /**
+     * Collects matched peptides by using either one of the collections of proteins or the FM-index.
+     * @param proteinPeptideCollection collection of peptides.
+     * @param proteins collection of Protein objects.
+     * @param offHeapProteins off-heap collection of proteins.
+     * @param kmerIndex k-mer index of the collection of proteins.
+     * @param index FM-index of the protein database.
+     * @param threads amount of threads used.
+     * @return collection of the flagged protein-peptides.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    private ColumnarProteinPeptideCollection matchProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection, final ProteinCollection proteins,
+            final OffHeapProteinCollection offHeapProteins, final KmerIndex kmerIndex, final FMIndex index, final Integer threads)
+            throws InterruptedException, ExecutionException {
         proteinPeptideCollection.sortOnPeptideSequence();
-        //Creates a new execution service and sets the amount of threads to use. (if available)
         System.out.println("Using " + threads + " threads to match peptides to the reference protein database.");
-        ExecutorService pool = Executors.newFixedThreadPool(threads);
-        //Executes the call function of MultiThreadDatabaseMatcher.
-        int count = 0;
-        for (ProteinPeptide proteinPeptide: proteinPeptideCollection.getProteinPeptideMatches()) {
-            count++;
-            Callable<ProteinPeptide> callable = new ReferenceDatabaseMatcher(proteinPeptide, proteins);
-            //Collects the output from the call function
-            Future<ProteinPeptide> future = pool.submit(callable);
-            //Adds the output to finalPeptides.
-            ProteinPeptide newProteinPeptide = future.get();
-            flaggedProteinPeptideCollection.addProteinPeptideMatch(newProteinPeptide);
-            if (count % 2000 == 0) {
-                System.out.println("Matched " + count + " protein-peptide sequence entries to the reference protein database.");
+        ArrayList<Callable<Boolean>> callables = new ArrayList<>();
+        ArrayList<ReferenceDatabaseMatcher> matchers = new ArrayList<>();
+        ArrayList<Integer> uncachedIndices = new ArrayList<>();
+        ColumnarProteinPeptideCollection.Cursor proteinPeptide = proteinPeptideCollection.cursor();
+        while (proteinPeptide.next()) {
+            int cachedOccurrences = MatchResultCache.MISSING;
+            if (matchResultCache != null) {
+                cachedOccurrences = matchResultCache.getResult(databaseChecksum, proteinPeptide.getMatchingSequence());
+            }
+            if (cachedOccurrences != MatchResultCache.MISSING) {
+                proteinPeptide.setUniqueToDatabase(cachedOccurrences < 2);
+            } else {
+                ReferenceDatabaseMatcher matcher = new ReferenceDatabaseMatcher(proteinPeptide.getMatchingSequence(), proteins, offHeapProteins,
+                        kmerIndex, index);
+                callables.add(matcher);
+                matchers.add(matcher);
+                uncachedIndices.add(proteinPeptide.getPosition());
+            }
+        }
+        if (matchResultCache != null) {
+            System.out.println((proteinPeptideCollection.size() - callables.size())
+                    + " protein-peptide entries were found in the match result cache.");
+        }
+        //Executes the call functions in parallel batches. Output is in the order of the collection, so the flags are set by this thread.
+        BatchMatcher batchMatcher = new BatchMatcher();
+        ArrayList<Boolean> matchResults = batchMatcher.matchInBatches(callables, threads, "protein-peptide sequence entries to the reference protein database");
+        for (int i = 0; i < matchResults.size(); i++) {
+            proteinPeptideCollection.setUniqueToDatabase(uncachedIndices.get(i), matchResults.get(i));
+            if (matchResultCache != null) {
+                matchResultCache.putResult(databaseChecksum, matchers.get(i).matchingSequence, matchers.get(i).occurrences);
             }
         }
-        System.out.println(count + " we're flagged according to the matching to the referernce protein database.");
-        //Shutdown command for the pool to prevent the script from running infinitely.
-        pool.shutdown();
+        //All protein-peptides are returned in the sorted order, as rows of the same collection.
+        ColumnarProteinPeptideCollection flaggedProteinPeptideCollection = proteinPeptideCollection.getUnflaggedRows(new boolean[proteinPeptideCollection.size()]);
+        System.out.println(flaggedProteinPeptideCollection.size() + " we're flagged according to the matching to the referernce protein database.");
         return flaggedProteinPeptideCollection;
     }
 }
@@ -0,0 +1,317 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package matcher;
+
+import collection.creator.ProteinFileReader;
+import collections.ColumnarProteinPeptideCollection;
+import collections.ProteinCollection;
+import index.KmerIndex;
+import index.MatchResultCache;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import tools.AhoCorasick;
+
+/**
+ * Matches peptide sequences to a public protein database that is divided over several worker processes.
+ * Each worker process reads every n-th protein of the database files, so the heap of a process only has to hold a
+ * part of the database. All peptide sequences are sent to every worker, which returns a bitmap of the peptides that
+ * matched its part. The bitmaps are combined into the same result as PublicDatabaseMatcher.getMatchedProteinPeptides.
+ *
+ * @author vnijenhuis
+ */
+public class ShardedDatabaseMatcher {
+
+    /**
+     * Files of the public protein database.
+     */
+    private final ArrayList<String> databaseFiles;
+
+    /**
+     * Amount of worker processes.
+     */
+    private final int shardCount;
+
+    /**
+     * Matching engine used by the worker processes. (boyer, ahocorasick or kmer)
+     */
+    private final String engine;
+
+    /**
+     * Length of the k-mers used by the kmer matching engine.
+     */
+    private final int kmerLength;
+
+    /**
+     * Replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     */
+    private final boolean equateIsoleucineLeucine;
+
+    /**
+     * Maximum heap size of each worker process (eg. 4g), or null to use the default of the JVM.
+     */
+    private final String heapSize;
+
+    /**
+     * Cache of earlier matching results, or null if no cache is used.
+     */
+    private MatchResultCache matchResultCache;
+
+    /**
+     * Checksum of the content of the protein databases, used to look up cached matching results.
+     */
+    private long databaseChecksum;
+
+    /**
+     * Creates a sharded database matcher.
+     *
+     * @param databaseFiles files of the public protein database.
+     * @param shardCount amount of worker processes.
+     * @param engine matching engine used by the worker processes. (boyer, ahocorasick or kmer)
+     * @param kmerLength length of the k-mers used by the kmer matching engine.
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     * @param heapSize maximum heap size of each worker process (eg. 4g), or null to use the default of the JVM.
+     */
+    public ShardedDatabaseMatcher(final ArrayList<String> databaseFiles, final int shardCount, final String engine, final int kmerLength,
+            final boolean equateIsoleucineLeucine, final String heapSize) {
+        this.databaseFiles = databaseFiles;
+        this.shardCount = shardCount;
+        this.engine = engine;
+        this.kmerLength = kmerLength;
+        this.equateIsoleucineLeucine = equateIsoleucineLeucine;
+        this.heapSize = heapSize;
+    }
+
+    /**
+     * Sets the cache that is checked before a peptide sequence is matched. New results are added to the cache.
+     * No cache is used when the cache is null.
+     *
+     * @param matchResultCache cache of matching results.
+     * @param databaseChecksum checksum of the protein databases, as returned by MatchResultCache.registerDatabase.
+     */
+    public final void setMatchResultCache(final MatchResultCache matchResultCache, final long databaseChecksum) {
+        this.matchResultCache = matchResultCache;
+        this.databaseChecksum = databaseChecksum;
+    }
+
+    /**
+     * Collects the protein-peptides that did not match to the protein database.
+     *
+     * @param proteinPeptideCollection collection of protein-peptides.
+     * @param threads amount of threads, divided over the worker processes.
+     * @return collection of protein-peptides that did not match to the protein database.
+     * @throws IOException could not exchange files with a worker process or a worker process failed.
+     * @throws InterruptedException process was interrupted.
+     */
+    public ColumnarProteinPeptideCollection getMatchedProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection, final Integer threads)
+            throws IOException, InterruptedException {
+        boolean[] matchedToDatabase = new boolean[proteinPeptideCollection.size()];
+        ArrayList<String> peptideSequences = new ArrayList<>();
+        ArrayList<Integer> uncachedIndices = new ArrayList<>();
+        ColumnarProteinPeptideCollection.Cursor proteinPeptide = proteinPeptideCollection.cursor();
+        while (proteinPeptide.next()) {
+            String sequence = proteinPeptide.getMatchingSequence();
+            int cachedResult = MatchResultCache.MISSING;
+            if (matchResultCache != null) {
+                cachedResult = matchResultCache.getResult(databaseChecksum, sequence);
+            }
+            if (cachedResult != MatchResultCache.MISSING) {
+                matchedToDatabase[proteinPeptide.getPosition()] = cachedResult == 1;
+            } else {
+                peptideSequences.add(sequence);
+                uncachedIndices.add(proteinPeptide.getPosition());
+            }
+        }
+        if (matchResultCache != null) {
+            System.out.println((proteinPeptideCollection.size() - peptideSequences.size()) + " peptide entries were found in the match result cache.");
+        }
+        if (!peptideSequences.isEmpty()) {
+            BitSet matchedPeptides = matchShards(peptideSequences, threads);
+            for (int i = 0; i < peptideSequences.size(); i++) {
+                int index = uncachedIndices.get(i);
+                matchedToDatabase[index] = matchedPeptides.get(i);
+                if (matchResultCache != null) {
+                    matchResultCache.putResult(databaseChecksum, peptideSequences.get(i), matchedToDatabase[index] ? 1 : 0);
+                }
+            }
+        }
+        //Returns the peptides that did NOT match to the protein database.
+        ColumnarProteinPeptideCollection filteredProteinPeptideCollection = proteinPeptideCollection.getUnflaggedRows(matchedToDatabase);
+        System.out.println(filteredProteinPeptideCollection.size() + " protein-peptides did not match to the public protein database.");
+        return filteredProteinPeptideCollection;
+    }
+
+    /**
+     * Starts a worker process for each shard and combines the bitmaps of the workers.
+     *
+     * @param peptideSequences peptide sequences to match.
+     * @param threads amount of threads, divided over the worker processes.
+     * @return bitmap of the peptide sequences that matched to at least one shard.
+     * @throws IOException could not exchange files with a worker process or a worker process failed.
+     * @throws InterruptedException process was interrupted.
+     */
+    private BitSet matchShards(final ArrayList<String> peptideSequences, final Integer threads) throws IOException, InterruptedException {
+        File peptideFile = File.createTempFile("peptides", ".txt");
+        ArrayList<File> bitmapFiles = new ArrayList<>();
+        ArrayList<Process> workers = new ArrayList<>();
+        try {
+            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(peptideFile), "UTF-8"))) {
+                for (String sequence : peptideSequences) {
+                    writer.write(sequence);
+                    writer.newLine();
+                }
+            }
+            int workerThreads = Math.max(1, threads / shardCount);
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            System.out.println("Starting " + shardCount + " worker processes with " + workerThreads + " threads each to match "
+                    + peptideSequences.size() + " peptide sequences to the public protein database.");
+            for (int shard = 0; shard < shardCount; shard++) {
+                File bitmapFile = File.createTempFile("shard" + shard + "-", ".bitmap");
+                bitmapFiles.add(bitmapFile);
+                ArrayList<String> command = new ArrayList<>();
+                command.add(java);
+                if (heapSize != null) {
+                    command.add("-Xmx" + heapSize);
+                }
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(ShardedDatabaseMatcher.class.getName());
+                command.add(engine);
+                command.add(Integer.toString(shard));
+                command.add(Integer.toString(shardCount));
+                command.add(Integer.toString(workerThreads));
+                command.add(Integer.toString(kmerLength));
+                command.add(Boolean.toString(equateIsoleucineLeucine));
+                command.add(peptideFile.getPath());
+                command.add(bitmapFile.getPath());
+                command.addAll(databaseFiles);
+                workers.add(new ProcessBuilder(command).inheritIO().start());
+            }
+            BitSet matchedPeptides = new BitSet(peptideSequences.size());
+            for (int shard = 0; shard < shardCount; shard++) {
+                int exitCode = workers.get(shard).waitFor();
+                if (exitCode != 0) {
+                    throw new IOException("Worker process of shard " + (shard + 1) + " failed with exit code " + exitCode + ".");
+                }
+                matchedPeptides.or(BitSet.valueOf(Files.readAllBytes(bitmapFiles.get(shard).toPath())));
+            }
+            return matchedPeptides;
+        } finally {
+            //Stops the remaining workers when a worker failed or the process was interrupted.
+            for (Process worker : workers) {
+                worker.destroy();
+            }
+            peptideFile.delete();
+            for (File bitmapFile : bitmapFiles) {
+                bitmapFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Matches peptide sequences to a part of the proteins of the database.
+     *
+     * @param peptideSequences peptide sequences.
+     * @param proteins collection of Protein objects of this shard.
+     * @param threads amount of threads.
+     * @return bitmap of the peptide sequences that matched to the proteins.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    @SuppressWarnings("unchecked")
+    private BitSet matchShard(final ArrayList<String> peptideSequences, final ProteinCollection proteins, final int threads)
+            throws InterruptedException, ExecutionException {
+        BitSet matchedPeptides = new BitSet(peptideSequences.size());
+        BatchMatcher batchMatcher = new BatchMatcher();
+        if (engine.equals("ahocorasick")) {
+            AhoCorasick peptideAutomaton = new AhoCorasick(peptideSequences);
+            //Each thread streams its own part of the proteins through the automaton.
+            ArrayList<Callable<boolean[]>> callables = new ArrayList<>();
+            int proteinCount = proteins.getProteins().size();
+            int partSize = Math.max(1, (proteinCount + threads - 1) / threads);
+            for (int start = 0; start < proteinCount; start += partSize) {
+                Callable<boolean[]> callable = new AhoCorasickDatabaseMatcher(peptideAutomaton,
+                        proteins.getProteins().subList(start, Math.min(start + partSize, proteinCount)));
+                callables.add(callable);
+            }
+            boolean[] matchedStates = new boolean[peptideAutomaton.getStateCount()];
+            for (boolean[] partMatchedStates : batchMatcher.matchInBatches(callables, threads, "protein parts")) {
+                for (int state = 0; state < matchedStates.length; state++) {
+                    matchedStates[state] |= partMatchedStates[state];
+                }
+            }
+            for (int i = 0; i < peptideSequences.size(); i++) {
+                matchedPeptides.set(i, peptideAutomaton.isMatched(i, matchedStates));
+            }
+        } else {
+            KmerIndex kmerIndex = null;
+            if (engine.equals("kmer")) {
+                kmerIndex = new KmerIndex(proteins, kmerLength);
+            }
+            ArrayList<Callable<Boolean>> callables = new ArrayList<>();
+            for (String sequence : peptideSequences) {
+                Callable<Boolean> callable = new PublicDatabaseMatcher(sequence, proteins, kmerIndex);
+                callables.add(callable);
+            }
+            ArrayList<Boolean> matchedToDatabase = batchMatcher.matchInBatches(callables, threads, "peptide entries to the public protein database");
+            for (int i = 0; i < matchedToDatabase.size(); i++) {
+                matchedPeptides.set(i, matchedToDatabase.get(i));
+            }
+        }
+        return matchedPeptides;
+    }
+
+    /**
+     * Entry point of a worker process. Reads its shard of the database files, matches the peptide sequences of the
+     * peptide file and writes the bitmap of the matched peptide sequences.
+     *
+     * @param args engine, shard index, shard count, threads, k-mer length, I/L equivalence, peptide file, bitmap file
+     * and the database files.
+     * @throws IOException could not read or write a file.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    public static void main(final String[] args) throws IOException, InterruptedException, ExecutionException {
+        String engine = args[0];
+        int shardIndex = Integer.parseInt(args[1]);
+        int shardCount = Integer.parseInt(args[2]);
+        int threads = Integer.parseInt(args[3]);
+        int kmerLength = Integer.parseInt(args[4]);
+        boolean equateIsoleucineLeucine = Boolean.parseBoolean(args[5]);
+        File peptideFile = new File(args[6]);
+        File bitmapFile = new File(args[7]);
+        List<String> databaseFiles = Arrays.asList(args).subList(8, args.length);
+        ArrayList<String> peptideSequences = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(peptideFile), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                peptideSequences.add(line);
+            }
+        }
+        ProteinFileReader proteinReader = new ProteinFileReader(equateIsoleucineLeucine);
+        ProteinCollection proteins = new ProteinCollection();
+        for (String databaseFile : databaseFiles) {
+            proteinReader.createCollection(databaseFile, proteins, shardIndex, shardCount);
+        }
+        ShardedDatabaseMatcher shardMatcher = new ShardedDatabaseMatcher(new ArrayList<>(databaseFiles), shardCount, engine, kmerLength,
+                equateIsoleucineLeucine, null);
+        BitSet matchedPeptides = shardMatcher.matchShard(peptideSequences, proteins, threads);
+        Files.write(bitmapFile.toPath(), matchedPeptides.toByteArray());
+        System.out.println("Shard " + (shardIndex + 1) + " of " + shardCount + " matched " + matchedPeptides.cardinality() + " of "
+                + peptideSequences.size() + " peptide sequences.");
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package matcher;
+
+import collection.creator.FastaStreamReader;
+import collections.ColumnarProteinPeptideCollection;
+import index.MatchResultCache;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import objects.Protein;
+import tools.AhoCorasick;
+import tools.ConcurrentBitSet;
+
+/**
+ * Matches peptide sequences to a public protein database while the database files are read.
+ * Proteins are read one at a time and streamed through an automaton of all pending peptide sequences, so only a
+ * few batches of proteins are in memory at once. Peptide sequences that matched are retired: the automaton is built
+ * again of the remaining sequences once half of its sequences have matched, and reading stops as soon as every
+ * peptide sequence has matched.
+ *
+ * @author vnijenhuis
+ */
+public class StreamingDatabaseMatcher {
+
+    /**
+     * Amount of proteins that are searched by one thread at a time.
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Amount of batches per thread that may be waiting or searched at the same time.
+     */
+    private static final int BATCHES_PER_THREAD = 2;
+
+    /**
+     * The automaton is built again when this part of its peptide sequences has matched.
+     */
+    private static final double RETIRED_FRACTION = 0.5;
+
+    /**
+     * Files of the public protein database.
+     */
+    private final ArrayList<String> databaseFiles;
+
+    /**
+     * Replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     */
+    private final boolean equateIsoleucineLeucine;
+
+    /**
+     * Cache of earlier matching results, or null if no cache is used.
+     */
+    private MatchResultCache matchResultCache;
+
+    /**
+     * Checksum of the content of the protein databases, used to look up cached matching results.
+     */
+    private long databaseChecksum;
+
+    /**
+     * Creates a streaming database matcher.
+     *
+     * @param databaseFiles files of the public protein database.
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     */
+    public StreamingDatabaseMatcher(final ArrayList<String> databaseFiles, final boolean equateIsoleucineLeucine) {
+        this.databaseFiles = databaseFiles;
+        this.equateIsoleucineLeucine = equateIsoleucineLeucine;
+    }
+
+    /**
+     * Sets the cache that is checked before a peptide sequence is matched. New results are added to the cache.
+     * No cache is used when the cache is null.
+     *
+     * @param matchResultCache cache of matching results.
+     * @param databaseChecksum checksum of the protein databases, as returned by MatchResultCache.registerDatabase.
+     */
+    public final void setMatchResultCache(final MatchResultCache matchResultCache, final long databaseChecksum) {
+        this.matchResultCache = matchResultCache;
+        this.databaseChecksum = databaseChecksum;
+    }
+
+    /**
+     * Searches a batch of proteins. Matches are marked in the states that are shared by all batches of an automaton.
+     */
+    private static class Batch implements Callable<Integer> {
+
+        /**
+         * Automaton of the peptide sequences.
+         */
+        private final AhoCorasick automaton;
+
+        /**
+         * States of the automaton that were matched by any batch. Only terminal states are marked.
+         */
+        private final ConcurrentBitSet matchedStates;
+
+        /**
+         * Proteins of this batch.
+         */
+        private final List<Protein> proteins;
+
+        /**
+         * Limits the amount of batches in memory. Released when the batch is done.
+         */
+        private final Semaphore permits;
+
+        /**
+         * Creates a batch.
+         *
+         * @param automaton automaton of the peptide sequences.
+         * @param matchedStates states of the automaton that were matched by any batch.
+         * @param proteins proteins of this batch.
+         * @param permits limits the amount of batches in memory.
+         */
+        Batch(final AhoCorasick automaton, final ConcurrentBitSet matchedStates, final List<Protein> proteins, final Semaphore permits) {
+            this.automaton = automaton;
+            this.matchedStates = matchedStates;
+            this.proteins = proteins;
+            this.permits = permits;
+        }
+
+        /**
+         * Streams the proteins through the automaton.
+         *
+         * @return amount of states that were newly matched by this batch.
+         */
+        @Override
+        public Integer call() {
+            try {
+                int newMatches = 0;
+                for (Protein protein : proteins) {
+                    if (isFinished(automaton, matchedStates)) {
+                        break;
+                    }
+                    newMatches += automaton.searchPatterns(protein.getSequence(), matchedStates);
+                }
+                return newMatches;
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Checks if every peptide sequence of an automaton has matched.
+     *
+     * @param automaton automaton of the peptide sequences.
+     * @param matchedStates matched states of the automaton.
+     * @return true if all terminal states are matched, else false.
+     */
+    private static boolean isFinished(final AhoCorasick automaton, final ConcurrentBitSet matchedStates) {
+        return matchedStates.cardinality() == automaton.getTerminalCount();
+    }
+
+    /**
+     * Collects the protein-peptides that did not match to the protein database.
+     * Gives the same result as PublicDatabaseMatcher.getMatchedProteinPeptides.
+     *
+     * @param proteinPeptideCollection collection of protein-peptides.
+     * @param threads amount of threads used.
+     * @return collection of protein-peptides that did not match to the protein database.
+     * @throws IOException could not read a database file.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    public ColumnarProteinPeptideCollection getMatchedProteinPeptides(final ColumnarProteinPeptideCollection proteinPeptideCollection, final Integer threads)
+            throws IOException, InterruptedException, ExecutionException {
+        boolean[] matchedToDatabase = new boolean[proteinPeptideCollection.size()];
+        ArrayList<String> peptideSequences = new ArrayList<>();
+        ArrayList<Integer> uncachedIndices = new ArrayList<>();
+        ColumnarProteinPeptideCollection.Cursor proteinPeptide = proteinPeptideCollection.cursor();
+        while (proteinPeptide.next()) {
+            String sequence = proteinPeptide.getMatchingSequence();
+            int cachedResult = MatchResultCache.MISSING;
+            if (matchResultCache != null) {
+                cachedResult = matchResultCache.getResult(databaseChecksum, sequence);
+            }
+            if (cachedResult != MatchResultCache.MISSING) {
+                matchedToDatabase[proteinPeptide.getPosition()] = cachedResult == 1;
+            } else {
+                peptideSequences.add(sequence);
+                uncachedIndices.add(proteinPeptide.getPosition());
+            }
+        }
+        if (matchResultCache != null) {
+            System.out.println((proteinPeptideCollection.size() - peptideSequences.size()) + " peptide entries were found in the match result cache.");
+        }
+        boolean[] matchedPeptides = new boolean[peptideSequences.size()];
+        if (!peptideSequences.isEmpty()) {
+            streamDatabase(peptideSequences, matchedPeptides, threads);
+        }
+        for (int i = 0; i < peptideSequences.size(); i++) {
+            int index = uncachedIndices.get(i);
+            matchedToDatabase[index] = matchedPeptides[i];
+            if (matchResultCache != null) {
+                matchResultCache.putResult(databaseChecksum, peptideSequences.get(i), matchedToDatabase[index] ? 1 : 0);
+            }
+        }
+        //Returns the peptides that did NOT match to the protein database.
+        ColumnarProteinPeptideCollection filteredProteinPeptideCollection = proteinPeptideCollection.getUnflaggedRows(matchedToDatabase);
+        System.out.println(filteredProteinPeptideCollection.size() + " protein-peptides did not match to the public protein database.");
+        return filteredProteinPeptideCollection;
+    }
+
+    /**
+     * Reads the database files in batches of proteins and searches the batches in parallel.
+     *
+     * @param peptideSequences peptide sequences.
+     * @param matchedPeptides array of the size of the peptide sequences that is used to mark the matched sequences.
+     * @param threads amount of threads used.
+     * @throws IOException could not read a database file.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    private void streamDatabase(final ArrayList<String> peptideSequences, final boolean[] matchedPeptides, final Integer threads)
+            throws IOException, InterruptedException, ExecutionException {
+        //Indices of the peptide sequences in the current automaton.
+        ArrayList<Integer> pendingPeptides = new ArrayList<>();
+        for (int i = 0; i < peptideSequences.size(); i++) {
+            pendingPeptides.add(i);
+        }
+        AhoCorasick peptideAutomaton = new AhoCorasick(peptideSequences);
+        ConcurrentBitSet matchedStates = new ConcurrentBitSet(peptideAutomaton.getStateCount());
+        System.out.println("Using " + threads + " threads to stream the public protein database through " + peptideAutomaton.getTerminalCount()
+                + " distinct peptide sequences.");
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore permits = new Semaphore(threads * BATCHES_PER_THREAD);
+        ArrayDeque<Future<Integer>> futures = new ArrayDeque<>();
+        long proteinCount = 0;
+        try {
+            for (String databaseFile : databaseFiles) {
+                System.out.println("Streaming database proteins from " + databaseFile);
+                try (FastaStreamReader reader = new FastaStreamReader(databaseFile, equateIsoleucineLeucine)) {
+                    ArrayList<Protein> batch = new ArrayList<>(BATCH_SIZE);
+                    Protein protein;
+                    while (!isFinished(peptideAutomaton, matchedStates) && (protein = reader.readProtein()) != null) {
+                        batch.add(protein);
+                        proteinCount++;
+                        if (batch.size() == BATCH_SIZE) {
+                            //Waits until a batch is done, so the amount of proteins in memory stays limited.
+                            permits.acquire();
+                            futures.add(pool.submit(new Batch(peptideAutomaton, matchedStates, batch, permits)));
+                            batch = new ArrayList<>(BATCH_SIZE);
+                            removeDoneFutures(futures);
+                            //Retires the matched peptide sequences by building the automaton of the remaining ones.
+                            if (matchedStates.cardinality() >= RETIRED_FRACTION * peptideAutomaton.getTerminalCount()
+                                    && !isFinished(peptideAutomaton, matchedStates)) {
+                                waitForFutures(futures);
+                                pendingPeptides = retireMatchedPeptides(peptideAutomaton, matchedStates, pendingPeptides, matchedPeptides);
+                                ArrayList<String> pendingSequences = new ArrayList<>();
+                                for (int peptide : pendingPeptides) {
+                                    pendingSequences.add(peptideSequences.get(peptide));
+                                }
+                                peptideAutomaton = new AhoCorasick(pendingSequences);
+                                matchedStates = new ConcurrentBitSet(peptideAutomaton.getStateCount());
+                                System.out.println("Rebuilt the automaton for " + peptideAutomaton.getTerminalCount()
+                                        + " pending peptide sequences after streaming " + proteinCount + " proteins.");
+                            }
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        permits.acquire();
+                        futures.add(pool.submit(new Batch(peptideAutomaton, matchedStates, batch, permits)));
+                    }
+                }
+            }
+            waitForFutures(futures);
+        } finally {
+            //Shutdown command for the pool to prevent the script from running infinitely.
+            pool.shutdownNow();
+        }
+        retireMatchedPeptides(peptideAutomaton, matchedStates, pendingPeptides, matchedPeptides);
+        if (isFinished(peptideAutomaton, matchedStates)) {
+            System.out.println("All peptide sequences matched after streaming " + proteinCount + " proteins.");
+        } else {
+            System.out.println("Streamed " + proteinCount + " proteins.");
+        }
+    }
+
+    /**
+     * Marks the peptide sequences of an automaton that matched.
+     *
+     * @param peptideAutomaton automaton of the pending peptide sequences.
+     * @param matchedStates matched states of the automaton.
+     * @param pendingPeptides index of each pattern of the automaton in the peptide sequences.
+     * @param matchedPeptides matched peptide sequences.
+     * @return indices of the peptide sequences that did not match.
+     */
+    private static ArrayList<Integer> retireMatchedPeptides(final AhoCorasick peptideAutomaton, final ConcurrentBitSet matchedStates,
+            final ArrayList<Integer> pendingPeptides, final boolean[] matchedPeptides) {
+        ArrayList<Integer> remainingPeptides = new ArrayList<>();
+        for (int pattern = 0; pattern < pendingPeptides.size(); pattern++) {
+            if (peptideAutomaton.isMatched(pattern, matchedStates)) {
+                matchedPeptides[pendingPeptides.get(pattern)] = true;
+            } else {
+                remainingPeptides.add(pendingPeptides.get(pattern));
+            }
+        }
+        return remainingPeptides;
+    }
+
+    /**
+     * Removes the batches that are done, so only the batches that are still searched are kept.
+     *
+     * @param futures submitted batches.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException a batch failed.
+     */
+    private static void removeDoneFutures(final ArrayDeque<Future<Integer>> futures) throws InterruptedException, ExecutionException {
+        Iterator<Future<Integer>> iterator = futures.iterator();
+        while (iterator.hasNext()) {
+            Future<Integer> future = iterator.next();
+            if (future.isDone()) {
+                future.get();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Waits until all submitted batches are done.
+     *
+     * @param futures submitted batches.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException a batch failed.
+     */
+    private static void waitForFutures(final ArrayDeque<Future<Integer>> futures) throws InterruptedException, ExecutionException {
+        while (!futures.isEmpty()) {
+            futures.poll().get();
+        }
+    }
+}
@@ -5,12 +5,13 @@
  */
 package matrix;
 
+import collections.ColumnarProteinPeptideCollection;
 import collections.MatrixEntryCollection;
-import collections.ProteinPeptideCollection;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import objects.MatrixEntry;
-import objects.ProteinPeptide;
+import tools.SequenceNormalizer;
 
 /**
  * Creates a MatrixEntryCollection based on given parameters.
@@ -21,88 +22,63 @@ public class PeptideMatrix {
 
     /**
      * Creates a MatrixEntryCollection based on the peptide sequence and corresponding protein group.
+     * The protein-peptides are only read, so the same collection can be used for the next matrix.
      *
-     * @param proteinPeptideCollection collection of ProteinPeptide objects.
+     * @param proteinPeptideCollection collection of protein-peptides.
      * @param sampleSize amount of samples.
      * @return collection of MatrixEntry objects which are used to create the peptide matrix.
      */
-    public final MatrixEntryCollection createPeptideMatrixBasedOnProteinGroup(final ProteinPeptideCollection proteinPeptideCollection, final Integer sampleSize) {
+    public final MatrixEntryCollection createPeptideMatrixBasedOnProteinGroup(final ColumnarProteinPeptideCollection proteinPeptideCollection,
+            final Integer sampleSize) {
         MatrixEntryCollection matrixEntryCollection = new MatrixEntryCollection();
+        //First matrix entry of each sequence id and protein group.
+        HashMap<Integer, HashMap<String, MatrixEntry>> entryIndex = new HashMap<>();
+        //False after an entry was created by a peptide without sequence id, which is not in the index.
+        boolean indexComplete = true;
         proteinPeptideCollection.sortOnPeptideSequence();
-        for (ProteinPeptide proteinPeptide: proteinPeptideCollection.getProteinPeptideMatches()) {
-            for (int groupIndex = 0; groupIndex < proteinPeptide.getProteinGroupList().size() - 1; groupIndex++) {
-                String proteinGroup = proteinPeptide.getProteinGroupList().get(groupIndex);
-                ArrayList<Integer> sampleIndexList = new ArrayList<>();
-                ArrayList<Double> scoreIndexList = new ArrayList<>();
-                for (int k = 0; k < sampleSize; k++) {
-                    sampleIndexList.add(0);
-                    scoreIndexList.add(0.0);
+        ColumnarProteinPeptideCollection.Cursor proteinPeptide = proteinPeptideCollection.cursor();
+        while (proteinPeptide.next()) {
+            boolean literalSequence = SequenceNormalizer.isLiteral(proteinPeptide.getFilteredSequence());
+            for (int groupIndex = 0; groupIndex < proteinPeptide.getProteinGroupCount() - 1; groupIndex++) {
+                String proteinGroup = proteinPeptide.getProteinGroup(groupIndex);
+                MatrixEntry matrixEntry;
+                if (indexComplete && literalSequence && proteinPeptide.getSequenceId() >= 0 && SequenceNormalizer.isLiteral(proteinGroup)) {
+                    //Equal sequence and protein group only match each other, so the first such entry is looked up.
+                    matrixEntry = getIndexedEntry(entryIndex, proteinPeptide.getSequenceId(), proteinGroup);
+                } else {
+                    matrixEntry = findEntryByProteinGroup(matrixEntryCollection, proteinPeptide.getFilteredSequence(), proteinGroup);
                 }
-                Boolean newEntry = true;
-                if (!matrixEntryCollection.getMatrixEntries().isEmpty()) {
-                    outer: for (MatrixEntry matrixEntry: matrixEntryCollection.getMatrixEntries()) {
-                        //Replace modification mass values to get a clean peptide sequence.
-                        String filteredMatrixSequence = matrixEntry.getSequence().replaceAll("\\(\\+?\\-?[0-9]+\\.[0-9]+\\)", "");
-                        String filteredProteinPeptideSequence = proteinPeptide.getSequence().replaceAll("\\(\\+?\\-?[0-9]+\\.[0-9]+\\)", "");
-                        if (filteredMatrixSequence.matches(filteredProteinPeptideSequence)) {
-                            for (String currentGroup: matrixEntry.getProteinGroupList()) {
-                                if (currentGroup.matches(proteinGroup)) {
-                                    ArrayList<Double> proteinGroupScoreList = proteinPeptide.getScoreList().get(groupIndex);
-                                    //Get highest score and spectra count.
-                                    Double highestScore = Collections.max(proteinGroupScoreList);
-                                    Integer spectraCount = proteinPeptide.getCountList().get(groupIndex);
-                                    Integer index = proteinPeptide.getSampleIndexNumber();
-                                    //Add values to correct index.
-                                    matrixEntry.addCountToSampleIndex(index, spectraCount);
-                                    matrixEntry.setScoreAtIndex(index, highestScore);
-                                    matrixEntry.setUniqueToGroup(false);
-                                    //Check if spectra is unique to one sample.
-                                    int counter = 0;
-                                    for (Integer count: matrixEntry.getSampleIndexList()) {
-                                        if (count > 0) {
-                                            counter++;
-                                        }
-                                        if (counter > 1) {
-                                            matrixEntry.setUniqueToSampleDatabase(false);
-                                        }
-                                    }
-                                    //Add accession ids to list.
-                                    if (!matrixEntry.getAccessionList().isEmpty()) {
-                                        for (String accession: proteinPeptide.getCombinedAccessionList().get(groupIndex)) {
-                                            if (!matrixEntry.getAccessionList().contains(accession)) {
-                                                matrixEntry.addAccession(accession);
-                                            }
-                                        }
-                                    } else {
-                                        matrixEntry.getAccessionList().addAll(proteinPeptide.getCombinedAccessionList().get(groupIndex));
-                                    }
-                                    Collections.sort(matrixEntry.getAccessionList());
-                                    newEntry = false;
-                                    break outer;
-                                }
-                            }
-                        }
-                    }
-                }
-                if (newEntry) {
+                int index = proteinPeptide.getSampleIndexNumber();
+                if (matrixEntry != null) {
+                    //Add highest score and spectra count to correct index.
+                    matrixEntry.addCountToSampleIndex(index, proteinPeptide.getCount(groupIndex));
+                    matrixEntry.setScoreAtIndex(index, proteinPeptide.getHighestScore(groupIndex));
+                    matrixEntry.setUniqueToGroup(false);
+                    //Check if spectra is unique to one sample.
+                    updateUniqueToSampleDatabase(matrixEntry);
+                    //Add accession ids to list.
+                    addAccessions(matrixEntry, proteinPeptide, groupIndex);
+                } else {
                     //Create new matrix entry.
-                    ArrayList<String> proteinGroupAccessionList = proteinPeptide.getCombinedAccessionList().get(groupIndex);
                     ArrayList<String> proteinGroupList = new ArrayList<>();
                     proteinGroupList.add(proteinGroup);
-                    Collections.sort(proteinGroupAccessionList);
-                    MatrixEntry newMatrixEntry = new MatrixEntry(proteinGroupList, proteinGroupAccessionList, proteinPeptide.getSequence(), sampleIndexList, proteinPeptide.getMass(), proteinPeptide.getLength(), proteinPeptide.getUniqueToGroup(), proteinPeptide.getUniqueToDatabase(), proteinPeptide.getDataset(), sampleSize, scoreIndexList);
-                    ArrayList<Double> proteinGroupScoreList = proteinPeptide.getScoreList().get(groupIndex);
-                    //Get highest score and spectra count for given sample.
-                    Double highestScore = Collections.max(proteinGroupScoreList);
-                    Integer count = proteinPeptide.getCountList().get(groupIndex);
-                    Integer index = proteinPeptide.getSampleIndexNumber();
-                    //Add to correct index.
-                    newMatrixEntry.addCountToSampleIndex(index, count);
-                    newMatrixEntry.setScoreAtIndex(index, highestScore);
-                    //Set uniqueness values.
-                    newMatrixEntry.setUniqueToGroup(true);
-                    newMatrixEntry.setUniqueToSampleDatabase(proteinPeptide.getUniqueToDatabase());
+                    MatrixEntry newMatrixEntry = createMatrixEntry(proteinPeptide, proteinGroupList, groupIndex, true, sampleSize);
+                    //Add highest score and spectra count to correct index.
+                    newMatrixEntry.addCountToSampleIndex(index, proteinPeptide.getCount(groupIndex));
+                    newMatrixEntry.setScoreAtIndex(index, proteinPeptide.getHighestScore(groupIndex));
                     matrixEntryCollection.addMatrixEntry(newMatrixEntry);
+                    if (proteinPeptide.getSequenceId() < 0) {
+                        indexComplete = false;
+                    } else {
+                        HashMap<String, MatrixEntry> groupEntries = entryIndex.get(proteinPeptide.getSequenceId());
+                        if (groupEntries == null) {
+                            groupEntries = new HashMap<>();
+                            entryIndex.put(proteinPeptide.getSequenceId(), groupEntries);
+                        }
+                        if (!groupEntries.containsKey(proteinGroup)) {
+                            groupEntries.put(proteinGroup, newMatrixEntry);
+                        }
+                    }
                 }
             }
         }
@@ -111,98 +87,179 @@ public class PeptideMatrix {
 
     /**
      * Creates unique matrix entries solely based on the peptide sequence. Each peptide sequence now has data of multiple protein groups per row for the given sequence.
+     * The protein-peptides are only read, so the same collection can be used for the next matrix.
      * 
-     * @param proteinPeptideCollection collection of ProteinPeptide objects.
+     * @param proteinPeptideCollection collection of protein-peptides.
      * @param sampleSize amount of samples.
      * @return collection of MatrixEntry objects which are used to create the peptide matrix.
      */
-    public final MatrixEntryCollection createPeptideMatrixBasedOnSequence(final ProteinPeptideCollection proteinPeptideCollection, final Integer sampleSize) {
+    public final MatrixEntryCollection createPeptideMatrixBasedOnSequence(final ColumnarProteinPeptideCollection proteinPeptideCollection,
+            final Integer sampleSize) {
         MatrixEntryCollection matrixEntryCollection = new MatrixEntryCollection();
+        //First matrix entry of each sequence id.
+        HashMap<Integer, MatrixEntry> entryIndex = new HashMap<>();
+        //False after an entry was created by a peptide without sequence id, which is not in the index.
+        boolean indexComplete = true;
         proteinPeptideCollection.sortOnPeptideSequence();
-        for (ProteinPeptide proteinPeptide: proteinPeptideCollection.getProteinPeptideMatches()) {
-            for (int groupIndex = 0; groupIndex < proteinPeptide.getProteinGroupList().size() - 1; groupIndex++) {
-                ArrayList<Integer> sampleIndexList = new ArrayList<>();
-                ArrayList<Double> scoreIndexList = new ArrayList<>();
-                for (int k = 0; k < sampleSize; k++) {
-                    sampleIndexList.add(0);
-                    scoreIndexList.add(0.0);
+        ColumnarProteinPeptideCollection.Cursor proteinPeptide = proteinPeptideCollection.cursor();
+        while (proteinPeptide.next()) {
+            boolean literalSequence = SequenceNormalizer.isLiteral(proteinPeptide.getFilteredSequence());
+            for (int groupIndex = 0; groupIndex < proteinPeptide.getProteinGroupCount() - 1; groupIndex++) {
+                MatrixEntry matrixEntry;
+                if (indexComplete && literalSequence && proteinPeptide.getSequenceId() >= 0) {
+                    //An equal sequence only matches itself, so the first entry with this sequence is looked up.
+                    matrixEntry = entryIndex.get(proteinPeptide.getSequenceId());
+                } else {
+                    matrixEntry = findEntryBySequence(matrixEntryCollection, proteinPeptide.getFilteredSequence());
                 }
-                Boolean newEntry = true;
-                if (!matrixEntryCollection.getMatrixEntries().isEmpty()) {
-                    for (MatrixEntry matrixEntry: matrixEntryCollection.getMatrixEntries()) {
-                        //Replace modification mass values to get a clean peptide sequence.
-                        String filteredMatrixSequence = matrixEntry.getSequence().replaceAll("\\(\\+?\\-?[0-9]+\\.[0-9]+\\)", "");
-                        String filteredProteinPeptideSequence = proteinPeptide.getSequence().replaceAll("\\(\\+?\\-?[0-9]+\\.[0-9]+\\)", "");
-                        //Match sequences, check for overlapping data.
-                        if (filteredMatrixSequence.matches(filteredProteinPeptideSequence)) {
-                            //If a match happens: add count and score to the right index.
-                            ArrayList<Double> proteinGroupScoreList = proteinPeptide.getScoreList().get(groupIndex);
-                            Double highestScore = Collections.max(proteinGroupScoreList);
-                            Integer spectraCount = proteinPeptide.getCountList().get(groupIndex);
-                            Integer index = proteinPeptide.getSampleIndexNumber();
-                            matrixEntry.addCountToSampleIndex(index, spectraCount);
-                            matrixEntry.setScoreAtIndex(index, highestScore);
-                            if (!matrixEntry.getProteinGroupList().contains(proteinPeptide.getProteinGroupList().get(groupIndex))) {
-                                //Match means multiple protein groups, so unique is false.
-                                matrixEntry.setUniqueToGroup(false);
-                                //add protein group to list.
-                                matrixEntry.addProteinGroup(proteinPeptide.getProteinGroupList().get(groupIndex));
-                            }
-                            //check if spectra count in more then one sample.
-                            int counter = 0;
-                            for (Integer count: matrixEntry.getSampleIndexList()) {
-                                if (count > 0) {
-                                    counter++;
-                                }
-                                if (counter > 1) {
-                                    matrixEntry.setUniqueToSampleDatabase(false);
-                                }
-                            }
-                            //Add new accessions to the list.
-                            if (!matrixEntry.getAccessionList().isEmpty()) {
-                                for (String accession: proteinPeptide.getCombinedAccessionList().get(groupIndex)) {
-                                    if (!matrixEntry.getAccessionList().contains(accession)) {
-                                        matrixEntry.addAccession(accession);
-                                    }
-                                }
-                            } else {
-                                matrixEntry.getAccessionList().addAll(proteinPeptide.getCombinedAccessionList().get(groupIndex));
-                            }
-                            //sort the accession list for better overview.
-                            Collections.sort(matrixEntry.getAccessionList());
-                            newEntry = false;
-                            break;
-                        }
+                int index = proteinPeptide.getSampleIndexNumber();
+                if (matrixEntry != null) {
+                    //If a match happens: add count and score to the right index.
+                    matrixEntry.addCountToSampleIndex(index, proteinPeptide.getCount(groupIndex));
+                    matrixEntry.setScoreAtIndex(index, proteinPeptide.getHighestScore(groupIndex));
+                    String proteinGroup = proteinPeptide.getProteinGroup(groupIndex);
+                    if (!matrixEntry.getProteinGroupList().contains(proteinGroup)) {
+                        //Match means multiple protein groups, so unique is false.
+                        matrixEntry.setUniqueToGroup(false);
+                        //add protein group to list.
+                        matrixEntry.addProteinGroup(proteinGroup);
                     }
-                }
-                if (newEntry) {
-                    //Create a new entry for the matrix.
-                    ArrayList<String> proteinGroupAccessionList = proteinPeptide.getCombinedAccessionList().get(groupIndex);
-                    Collections.sort(proteinGroupAccessionList);
-                    MatrixEntry newMatrixEntry = new MatrixEntry(proteinPeptide.getProteinGroupList(), proteinGroupAccessionList, proteinPeptide.getSequence(), sampleIndexList, proteinPeptide.getMass(), proteinPeptide.getLength(), proteinPeptide.getUniqueToGroup(), proteinPeptide.getUniqueToDatabase(), proteinPeptide.getDataset(), sampleSize, scoreIndexList);
-                    ArrayList<Double> proteinGroupScoreList = proteinPeptide.getScoreList().get(groupIndex);
-                    //Determine highest score.
-                    Double highestScore = Collections.max(proteinGroupScoreList);
-                    Integer count = 0;
-                    //Determine total spectra count.
-                    for (Integer sampleCount: proteinPeptide.getCountList()) {
-                        count += sampleCount;
-                    }
-                    //Add values to correct index.
-                    Integer index = proteinPeptide.getSampleIndexNumber();
-                    newMatrixEntry.addCountToSampleIndex(index, count);
-                    newMatrixEntry.setScoreAtIndex(index, highestScore);
-                    //set uniqueness values..
-                    if (proteinPeptide.getProteinGroupList().size() == 1) {
-                        newMatrixEntry.setUniqueToGroup(true);
-                    } else {
-                        newMatrixEntry.setUniqueToGroup(false);
-                    }
-                    newMatrixEntry.setUniqueToSampleDatabase(proteinPeptide.getUniqueToDatabase());
+                    //check if spectra count in more then one sample.
+                    updateUniqueToSampleDatabase(matrixEntry);
+                    //Add new accessions to the list.
+                    addAccessions(matrixEntry, proteinPeptide, groupIndex);
+                } else {
+                    //Create a new entry for the matrix, which is unique to its group if the peptide has one protein group.
+                    MatrixEntry newMatrixEntry = createMatrixEntry(proteinPeptide, proteinPeptide.getProteinGroupList(), groupIndex,
+                            proteinPeptide.getProteinGroupCount() == 1, sampleSize);
+                    //Add highest score and total spectra count to correct index.
+                    newMatrixEntry.addCountToSampleIndex(index, proteinPeptide.getTotalCount());
+                    newMatrixEntry.setScoreAtIndex(index, proteinPeptide.getHighestScore(groupIndex));
                     matrixEntryCollection.addMatrixEntry(newMatrixEntry);
+                    if (proteinPeptide.getSequenceId() < 0) {
+                        indexComplete = false;
+                    } else if (!entryIndex.containsKey(proteinPeptide.getSequenceId())) {
+                        entryIndex.put(proteinPeptide.getSequenceId(), newMatrixEntry);
+                    }
                 }
             }
         }
         return matrixEntryCollection;
     }
+
+    /**
+     * Creates a matrix entry of a protein group of the protein-peptide at a cursor, without counts and scores.
+     *
+     * @param proteinPeptide cursor at the protein-peptide.
+     * @param proteinGroupList protein groups of the entry.
+     * @param groupIndex index of the protein group of which the accessions are used.
+     * @param uniqueToGroup true if the entry is unique to one protein group.
+     * @param sampleSize amount of samples.
+     * @return new matrix entry.
+     */
+    private MatrixEntry createMatrixEntry(final ColumnarProteinPeptideCollection.Cursor proteinPeptide, final ArrayList<String> proteinGroupList,
+            final int groupIndex, final boolean uniqueToGroup, final Integer sampleSize) {
+        ArrayList<Integer> sampleIndexList = new ArrayList<>();
+        ArrayList<Double> scoreIndexList = new ArrayList<>();
+        for (int k = 0; k < sampleSize; k++) {
+            sampleIndexList.add(0);
+            scoreIndexList.add(0.0);
+        }
+        //sort the accession list for better overview.
+        ArrayList<String> proteinGroupAccessionList = proteinPeptide.getAccessionList(groupIndex);
+        Collections.sort(proteinGroupAccessionList);
+        return new MatrixEntry(proteinGroupList, proteinGroupAccessionList, proteinPeptide.getSequence(), sampleIndexList, proteinPeptide.getMass(),
+                proteinPeptide.getLength(), uniqueToGroup, proteinPeptide.getUniqueToDatabase(), proteinPeptide.getDataset(), sampleSize, scoreIndexList);
+    }
+
+    /**
+     * Flags a matrix entry as not unique to one sample if it has spectra in more than one sample.
+     *
+     * @param matrixEntry matrix entry.
+     */
+    private void updateUniqueToSampleDatabase(final MatrixEntry matrixEntry) {
+        int counter = 0;
+        for (Integer count: matrixEntry.getSampleIndexList()) {
+            if (count > 0) {
+                counter++;
+            }
+            if (counter > 1) {
+                matrixEntry.setUniqueToSampleDatabase(false);
+            }
+        }
+    }
+
+    /**
+     * Adds the accessions of a protein group of the protein-peptide at a cursor to a matrix entry, and sorts the accessions of the entry.
+     *
+     * @param matrixEntry matrix entry.
+     * @param proteinPeptide cursor at the protein-peptide.
+     * @param groupIndex index of the protein group.
+     */
+    private void addAccessions(final MatrixEntry matrixEntry, final ColumnarProteinPeptideCollection.Cursor proteinPeptide, final int groupIndex) {
+        for (int accessionIndex = 0; accessionIndex < proteinPeptide.getAccessionCount(groupIndex); accessionIndex++) {
+            String accession = proteinPeptide.getAccession(groupIndex, accessionIndex);
+            if (!matrixEntry.getAccessionList().contains(accession)) {
+                matrixEntry.addAccession(accession);
+            }
+        }
+        Collections.sort(matrixEntry.getAccessionList());
+    }
+
+    /**
+     * Returns the first matrix entry of a sequence and protein group from the index.
+     *
+     * @param entryIndex first matrix entry of each sequence id and protein group.
+     * @param sequenceId id of the sequence without modifications.
+     * @param proteinGroup protein group.
+     * @return matrix entry, or null if the index does not contain the sequence and protein group.
+     */
+    private MatrixEntry getIndexedEntry(final HashMap<Integer, HashMap<String, MatrixEntry>> entryIndex, final int sequenceId,
+            final String proteinGroup) {
+        HashMap<String, MatrixEntry> groupEntries = entryIndex.get(sequenceId);
+        if (groupEntries == null) {
+            return null;
+        }
+        return groupEntries.get(proteinGroup);
+    }
+
+    /**
+     * Finds the first matrix entry of which the sequence and a protein group match the given regular expressions.
+     *
+     * @param matrixEntryCollection collection of MatrixEntry objects.
+     * @param filteredSequence sequence without modifications, used as regular expression.
+     * @param proteinGroup protein group, used as regular expression.
+     * @return matrix entry, or null if no entry matches.
+     */
+    private MatrixEntry findEntryByProteinGroup(final MatrixEntryCollection matrixEntryCollection, final String filteredSequence,
+            final String proteinGroup) {
+        for (MatrixEntry matrixEntry: matrixEntryCollection.getMatrixEntries()) {
+            //Compare the sequences without modification mass values.
+            if (SequenceNormalizer.matches(matrixEntry.getFilteredSequence(), filteredSequence)) {
+                for (String currentGroup: matrixEntry.getProteinGroupList()) {
+                    if (SequenceNormalizer.matches(currentGroup, proteinGroup)) {
+                        return matrixEntry;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the first matrix entry of which the sequence matches the given regular expression.
+     *
+     * @param matrixEntryCollection collection of MatrixEntry objects.
+     * @param filteredSequence sequence without modifications, used as regular expression.
+     * @return matrix entry, or null if no entry matches.
+     */
+    private MatrixEntry findEntryBySequence(final MatrixEntryCollection matrixEntryCollection, final String filteredSequence) {
+        for (MatrixEntry matrixEntry: matrixEntryCollection.getMatrixEntries()) {
+            //Match sequences without modification mass values.
+            if (SequenceNormalizer.matches(matrixEntry.getFilteredSequence(), filteredSequence)) {
+                return matrixEntry;
+            }
+        }
+        return null;
+    }
 }
@@ -5,6 +5,7 @@
 package objects;
 
 import java.util.ArrayList;
+import tools.SequenceNormalizer;
 
 /**
  * ProteinPeptide object class.
@@ -28,6 +29,11 @@ public class MatrixEntry {
      */
     private final String sequence;
 
+    /**
+     * Amino acid sequence of the peptide without modifications.
+     */
+    private final String filteredSequence;
+
     /**
      * Unique to 1 protein group. (Y/N)
      */
@@ -56,7 +62,7 @@ public class MatrixEntry {
     /**
      * Mass of the peptide sequence.
      */
-    private final String mass;
+    private final double mass;
 
     /**
      * Length of the peptide sequence.
@@ -78,10 +84,11 @@ public class MatrixEntry {
      * @param count PSM counting number.
      * @param scoreList of the peptide sequence.
      */
-    public MatrixEntry(final ArrayList<String> proteinGroup, final ArrayList<String> accessionList, final String sequence, final ArrayList<Integer> sampleCountIndexList, final String mass, final Integer length, final Boolean uniqueToProteinGroup, final Boolean uniqueToDatabase, final String dataset, final Integer count, final ArrayList<Double> scoreList) {
+    public MatrixEntry(final ArrayList<String> proteinGroup, final ArrayList<String> accessionList, final String sequence, final ArrayList<Integer> sampleCountIndexList, final double mass, final Integer length, final Boolean uniqueToProteinGroup, final Boolean uniqueToDatabase, final String dataset, final Integer count, final ArrayList<Double> scoreList) {
         this.proteinGroup = proteinGroup;
         this.accessionList = accessionList;
         this.sequence = sequence;
+        this.filteredSequence = SequenceNormalizer.removeModifications(sequence);
         this.sampleCountIndexList = sampleCountIndexList;
         this.mass = mass;
         this.length = length;
@@ -136,6 +143,15 @@ public class MatrixEntry {
         return this.sequence;
     }
 
+    /**
+     * Returns the peptide amino acid sequence without modifications.
+     *
+     * @return filtered sequence as String.
+     */
+    public final String getFilteredSequence() {
+        return this.filteredSequence;
+    }
+
     /**
      * Returns Y(yes) if a sequence is unique to a protein group.
      *
@@ -250,9 +266,9 @@ public class MatrixEntry {
     /**
      * Returns the mass of the peptide sequence.
      *
-     * @return mass of the sequence as String.
+     * @return mass of the sequence as double.
      */
-    public String getMass() {
+    public double getMass() {
         return this.mass;
     }
 
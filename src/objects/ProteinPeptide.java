@@ -5,6 +5,7 @@
 package objects;
 
 import java.util.ArrayList;
+import tools.SequenceNormalizer;
 
 /**
  * ProteinPeptide object class.
@@ -28,6 +29,21 @@ public class ProteinPeptide {
      */
     private final String sequence;
 
+    /**
+     * Amino acid sequence of the peptide without modifications. Used to compare peptides.
+     */
+    private final String filteredSequence;
+
+    /**
+     * Id of the filtered sequence in the peptide id store of the run, or -1 if no id was assigned.
+     */
+    private int sequenceId = -1;
+
+    /**
+     * Sequence used to match the peptide to protein databases. Equal to the sequence unless a reduced alphabet is used.
+     */
+    private String matchingSequence;
+
     /**
      * Unique to 1 protein group. (Y/N)
      */
@@ -92,6 +108,8 @@ public class ProteinPeptide {
         this.proteinGroupList = proteinGroupList;
         this.accessionList = accessionList;
         this.sequence = sequence;
+        this.filteredSequence = SequenceNormalizer.removeModifications(sequence);
+        this.matchingSequence = sequence;
         this.sample = sample;
         this.sampleIndexNumber = sampleIndexNumber;
         this.mass = mass;
@@ -149,6 +167,51 @@ public class ProteinPeptide {
         return this.sequence;
     }
 
+    /**
+     * Returns the peptide amino acid sequence without modifications.
+     *
+     * @return filtered sequence as String.
+     */
+    public final String getFilteredSequence() {
+        return this.filteredSequence;
+    }
+
+    /**
+     * Returns the id of the filtered sequence. Peptides with the same id have the same filtered sequence.
+     *
+     * @return sequence id as int, or -1 if no id was assigned.
+     */
+    public final int getSequenceId() {
+        return this.sequenceId;
+    }
+
+    /**
+     * Sets the id of the filtered sequence.
+     *
+     * @param sequenceId id assigned by the peptide id store.
+     */
+    public final void setSequenceId(final int sequenceId) {
+        this.sequenceId = sequenceId;
+    }
+
+    /**
+     * Returns the sequence used to match the peptide to protein databases.
+     *
+     * @return matching sequence as String.
+     */
+    public final String getMatchingSequence() {
+        return this.matchingSequence;
+    }
+
+    /**
+     * Sets the sequence used to match the peptide to protein databases.
+     *
+     * @param matchingSequence sequence in the alphabet of the protein databases.
+     */
+    public final void setMatchingSequence(final String matchingSequence) {
+        this.matchingSequence = matchingSequence;
+    }
+
     /**
      * Returns Y(yes) if a sequence is unique to a protein group.
      *
@@ -0,0 +1,139 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package peptide.identification.quality.control;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads databases in the order in which they are used. The database after the requested one is loaded in the
+ * background, and a database is released once its last use and every use before it have completed, so only a few
+ * databases are in memory at once. Databases can be requested by several threads, which wait for the loading outside
+ * of the lock of the prefetcher. Each use has to be completed by calling release.
+ *
+ * @author vnijenhuis
+ * @param <T> type of the loaded databases.
+ */
+public class DatabasePrefetcher<T> {
+
+    /**
+     * Database files in the order of use. A file may be used more than once.
+     */
+    private final ArrayList<String> files;
+
+    /**
+     * Loader of each database file.
+     */
+    private final HashMap<String, Callable<T>> loaders;
+
+    /**
+     * Last use of each database file.
+     */
+    private final HashMap<String, Integer> lastUses = new HashMap<>();
+
+    /**
+     * Databases that are loaded or being loaded.
+     */
+    private final HashMap<String, Future<T>> databases = new HashMap<>();
+
+    /**
+     * Uses that were completed by calling release.
+     */
+    private final BitSet completedUses = new BitSet();
+
+    /**
+     * Thread that loads the databases.
+     */
+    private final ExecutorService pool = Executors.newSingleThreadExecutor();
+
+    /**
+     * Creates a prefetcher and starts loading the first database.
+     *
+     * @param files database files in the order of use.
+     * @param loaders loader of each database file.
+     */
+    public DatabasePrefetcher(final ArrayList<String> files, final HashMap<String, Callable<T>> loaders) {
+        this.files = files;
+        this.loaders = loaders;
+        for (int use = 0; use < files.size(); use++) {
+            lastUses.put(files.get(use), use);
+        }
+        if (!files.isEmpty()) {
+            load(files.get(0));
+        }
+    }
+
+    /**
+     * Starts loading a database file if it is not loaded yet.
+     *
+     * @param file database file.
+     */
+    private void load(final String file) {
+        if (!databases.containsKey(file)) {
+            databases.put(file, pool.submit(loaders.get(file)));
+        }
+    }
+
+    /**
+     * Returns the database of a use. The database of the next use is loaded in the background.
+     *
+     * @param use index of the use, from 0 onwards.
+     * @return loaded database.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not load the database.
+     */
+    public final T get(final int use) throws InterruptedException, ExecutionException {
+        return getFuture(use).get();
+    }
+
+    /**
+     * Starts loading the databases of the given use and the next use.
+     *
+     * @param use index of the use, from 0 onwards.
+     * @return database that is loaded or being loaded.
+     */
+    private synchronized Future<T> getFuture(final int use) {
+        String file = files.get(use);
+        load(file);
+        if (use + 1 < files.size()) {
+            load(files.get(use + 1));
+        }
+        return databases.get(file);
+    }
+
+    /**
+     * Completes a use. Databases of which the last use is before the first use that has not completed are released.
+     * Uses may complete in any order, a database that is still used by a slower thread is kept.
+     *
+     * @param use index of the use, from 0 onwards.
+     */
+    public final synchronized void release(final int use) {
+        completedUses.set(use);
+        int watermark = completedUses.nextClearBit(0);
+        Iterator<Map.Entry<String, Future<T>>> iterator = databases.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (lastUses.get(iterator.next().getKey()) < watermark) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Releases all databases and stops loading.
+     */
+    public final synchronized void close() {
+        databases.clear();
+        //Shutdown command for the pool to prevent the script from running infinitely.
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package peptide.identification.quality.control;
+
+import collections.ColumnarProteinPeptideCollection;
+import collections.OffHeapProteinCollection;
+import collections.ProteinCollection;
+import index.BloomFilter;
+import index.FMIndex;
+import index.KmerIndex;
+import index.MatchResultCache;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import matcher.AhoCorasickDatabaseMatcher;
+import matcher.PublicDatabaseMatcher;
+import matcher.ReferenceDatabaseMatcher;
+import matcher.ShardedDatabaseMatcher;
+import matcher.StreamingDatabaseMatcher;
+
+/**
+ * Everything that is needed to match protein-peptides to the public and reference databases: the selected matching
+ * engines, the loaded public database structures, the loaders of the reference databases and the cache of matching
+ * results. The public structures that the selected engine does not use stay null.
+ * The settings and structures are set before the samples are processed and are not changed while matching, so the
+ * context can be used by the stages of the pipeline at the same time.
+ *
+ * @author vnijenhuis
+ */
+public class MatchingContext {
+
+    /**
+     * Matching engine of the public databases.
+     */
+    private final String publicMatcher;
+
+    /**
+     * Matching engine of the reference databases.
+     */
+    private final String referenceMatcher;
+
+    /**
+     * Length of the k-mers of the kmer matching engine.
+     */
+    private final Integer kmerLength;
+
+    /**
+     * Flag that shows if isoleucine and leucine are matched as the same residue.
+     */
+    private final Boolean equateIsoleucineLeucine;
+
+    /**
+     * Amount of threads used by each matching step.
+     */
+    private final Integer threads;
+
+    /**
+     * Combined collection of the public databases, or null if not used.
+     */
+    private ProteinCollection publicProteinCollection = null;
+
+    /**
+     * Combined off-heap collection of the public databases, or null if not used.
+     */
+    private OffHeapProteinCollection publicOffHeapProteinCollection = null;
+
+    /**
+     * FM-indices of the public databases, or null if not used.
+     */
+    private ArrayList<FMIndex> publicIndices = null;
+
+    /**
+     * K-mer index of the public databases, or null if not used.
+     */
+    private KmerIndex publicKmerIndex = null;
+
+    /**
+     * Matcher of the public databases divided over worker processes, or null if not used.
+     */
+    private ShardedDatabaseMatcher publicShardedMatcher = null;
+
+    /**
+     * Matcher that streams the public databases, or null if not used.
+     */
+    private StreamingDatabaseMatcher publicStreamingMatcher = null;
+
+    /**
+     * Bloom filters of the public databases, or null if not used.
+     */
+    private ArrayList<BloomFilter> publicFilters = null;
+
+    /**
+     * Cache of matching results, or null if not used.
+     */
+    private MatchResultCache matchResultCache = null;
+
+    /**
+     * Checksum of the public databases in the cache.
+     */
+    private long publicChecksum = 0;
+
+    /**
+     * Loads the reference collections, or null if not used.
+     */
+    private DatabasePrefetcher<ProteinCollection> referenceCollections = null;
+
+    /**
+     * Loads the off-heap reference collections, or null if not used.
+     */
+    private DatabasePrefetcher<OffHeapProteinCollection> referenceOffHeapCollections = null;
+
+    /**
+     * Loads the reference FM-indices, or null if not used.
+     */
+    private DatabasePrefetcher<FMIndex> referenceIndices = null;
+
+    /**
+     * Creates a matching context without any loaded databases.
+     *
+     * @param publicMatcher matching engine of the public databases.
+     * @param referenceMatcher matching engine of the reference databases.
+     * @param kmerLength length of the k-mers of the kmer matching engine.
+     * @param equateIsoleucineLeucine flag that shows if isoleucine and leucine are matched as the same residue.
+     * @param threads amount of threads used by each matching step.
+     */
+    public MatchingContext(final String publicMatcher, final String referenceMatcher, final Integer kmerLength,
+            final Boolean equateIsoleucineLeucine, final Integer threads) {
+        this.publicMatcher = publicMatcher;
+        this.referenceMatcher = referenceMatcher;
+        this.kmerLength = kmerLength;
+        this.equateIsoleucineLeucine = equateIsoleucineLeucine;
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the combined collection of the public databases.
+     *
+     * @param publicProteinCollection collection of Protein objects.
+     */
+    public final void setPublicProteinCollection(final ProteinCollection publicProteinCollection) {
+        this.publicProteinCollection = publicProteinCollection;
+    }
+
+    /**
+     * Returns the combined collection of the public databases.
+     *
+     * @return collection of Protein objects, or null if not used.
+     */
+    public final ProteinCollection getPublicProteinCollection() {
+        return publicProteinCollection;
+    }
+
+    /**
+     * Sets the combined off-heap collection of the public databases.
+     *
+     * @param publicOffHeapProteinCollection off-heap collection of proteins.
+     */
+    public final void setPublicOffHeapProteinCollection(final OffHeapProteinCollection publicOffHeapProteinCollection) {
+        this.publicOffHeapProteinCollection = publicOffHeapProteinCollection;
+    }
+
+    /**
+     * Sets the FM-indices of the public databases.
+     *
+     * @param publicIndices FM-index of each public database file.
+     */
+    public final void setPublicIndices(final ArrayList<FMIndex> publicIndices) {
+        this.publicIndices = publicIndices;
+    }
+
+    /**
+     * Sets the k-mer index of the public databases.
+     *
+     * @param publicKmerIndex k-mer index of the public protein collection.
+     */
+    public final void setPublicKmerIndex(final KmerIndex publicKmerIndex) {
+        this.publicKmerIndex = publicKmerIndex;
+    }
+
+    /**
+     * Sets the matcher of the public databases divided over worker processes.
+     *
+     * @param publicShardedMatcher sharded matcher.
+     */
+    public final void setPublicShardedMatcher(final ShardedDatabaseMatcher publicShardedMatcher) {
+        this.publicShardedMatcher = publicShardedMatcher;
+    }
+
+    /**
+     * Sets the matcher that streams the public databases.
+     *
+     * @param publicStreamingMatcher streaming matcher.
+     */
+    public final void setPublicStreamingMatcher(final StreamingDatabaseMatcher publicStreamingMatcher) {
+        this.publicStreamingMatcher = publicStreamingMatcher;
+    }
+
+    /**
+     * Sets the Bloom filters of the public databases.
+     *
+     * @param publicFilters Bloom filter of each public database file.
+     */
+    public final void setPublicFilters(final ArrayList<BloomFilter> publicFilters) {
+        this.publicFilters = publicFilters;
+    }
+
+    /**
+     * Sets the cache of matching results and registers the public databases in it.
+     *
+     * @param matchResultCache cache of matching results.
+     * @param publicFiles files of the public databases.
+     * @throws IOException could not read a public database file.
+     */
+    public final void setMatchResultCache(final MatchResultCache matchResultCache, final ArrayList<String> publicFiles) throws IOException {
+        this.matchResultCache = matchResultCache;
+        String publicVariant = getCacheVariant(MatchResultCache.PUBLIC_RESULTS);
+        publicChecksum = matchResultCache.registerDatabase(publicFiles.toString() + publicVariant, publicFiles, publicVariant);
+    }
+
+    /**
+     * Sets the loader of the reference collections.
+     *
+     * @param referenceCollections prefetcher of the reference databases.
+     */
+    public final void setReferenceCollections(final DatabasePrefetcher<ProteinCollection> referenceCollections) {
+        this.referenceCollections = referenceCollections;
+    }
+
+    /**
+     * Sets the loader of the off-heap reference collections.
+     *
+     * @param referenceOffHeapCollections prefetcher of the reference databases.
+     */
+    public final void setReferenceOffHeapCollections(final DatabasePrefetcher<OffHeapProteinCollection> referenceOffHeapCollections) {
+        this.referenceOffHeapCollections = referenceOffHeapCollections;
+    }
+
+    /**
+     * Sets the loader of the reference FM-indices.
+     *
+     * @param referenceIndices prefetcher of the reference databases.
+     */
+    public final void setReferenceIndices(final DatabasePrefetcher<FMIndex> referenceIndices) {
+        this.referenceIndices = referenceIndices;
+    }
+
+    /**
+     * Checks if the public databases have Bloom filters.
+     *
+     * @return true if Bloom filters are used, else false.
+     */
+    public final boolean hasPublicFilters() {
+        return publicFilters != null;
+    }
+
+    /**
+     * Checks if a peptide sequence may be present in at least one of the public Bloom filters.
+     *
+     * @param sequence peptide sequence.
+     * @return false if the peptide sequence is certainly absent from all public databases, else true.
+     */
+    public final boolean isInPublicFilters(final String sequence) {
+        for (BloomFilter filter : publicFilters) {
+            if (filter.mightContain(sequence)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Matches a collection of protein-peptides to the public database with the selected matching engine.
+     *
+     * @param proteinPeptideCollection collection of protein-peptides.
+     * @return collection of protein-peptides that did not match to the public database.
+     * @throws IOException could not read a database file, could not exchange files with a worker process or a worker
+     * process failed.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    public final ColumnarProteinPeptideCollection matchToPublicDatabase(final ColumnarProteinPeptideCollection proteinPeptideCollection)
+            throws IOException, InterruptedException, ExecutionException {
+        ColumnarProteinPeptideCollection filteredProteinPeptideCollection;
+        if (publicStreamingMatcher != null) {
+            publicStreamingMatcher.setMatchResultCache(matchResultCache, publicChecksum);
+            filteredProteinPeptideCollection = publicStreamingMatcher.getMatchedProteinPeptides(proteinPeptideCollection, threads);
+        } else if (publicShardedMatcher != null) {
+            publicShardedMatcher.setMatchResultCache(matchResultCache, publicChecksum);
+            filteredProteinPeptideCollection = publicShardedMatcher.getMatchedProteinPeptides(proteinPeptideCollection, threads);
+        } else if (publicMatcher.equals("ahocorasick")) {
+            AhoCorasickDatabaseMatcher proteinPeptideMatcher = new AhoCorasickDatabaseMatcher(null, null);
+            proteinPeptideMatcher.setMatchResultCache(matchResultCache, publicChecksum);
+            if (publicOffHeapProteinCollection != null) {
+                filteredProteinPeptideCollection = proteinPeptideMatcher.getMatchedProteinPeptides(proteinPeptideCollection, publicOffHeapProteinCollection, threads);
+            } else {
+                filteredProteinPeptideCollection = proteinPeptideMatcher.getMatchedProteinPeptides(proteinPeptideCollection, publicProteinCollection, threads);
+            }
+        } else if (publicMatcher.equals("fmindex")) {
+            PublicDatabaseMatcher proteinPeptideMatcher = new PublicDatabaseMatcher(null, publicIndices);
+            proteinPeptideMatcher.setMatchResultCache(matchResultCache, publicChecksum);
+            filteredProteinPeptideCollection = proteinPeptideMatcher.getMatchedProteinPeptides(proteinPeptideCollection, publicIndices, threads);
+        } else if (publicMatcher.equals("kmer")) {
+            PublicDatabaseMatcher proteinPeptideMatcher = new PublicDatabaseMatcher(null, publicProteinCollection, publicKmerIndex);
+            proteinPeptideMatcher.setMatchResultCache(matchResultCache, publicChecksum);
+            filteredProteinPeptideCollection = proteinPeptideMatcher.getMatchedProteinPeptides(proteinPeptideCollection, publicProteinCollection, publicKmerIndex, threads);
+        } else if (publicOffHeapProteinCollection != null) {
+            PublicDatabaseMatcher proteinPeptideMatcher = new PublicDatabaseMatcher(null, publicOffHeapProteinCollection);
+            proteinPeptideMatcher.setMatchResultCache(matchResultCache, publicChecksum);
+            filteredProteinPeptideCollection = proteinPeptideMatcher.getMatchedProteinPeptides(proteinPeptideCollection, publicOffHeapProteinCollection, threads);
+        } else {
+            PublicDatabaseMatcher proteinPeptideMatcher = new PublicDatabaseMatcher(null, publicProteinCollection);
+            proteinPeptideMatcher.setMatchResultCache(matchResultCache, publicChecksum);
+            filteredProteinPeptideCollection = proteinPeptideMatcher.getMatchedProteinPeptides(proteinPeptideCollection, publicProteinCollection, threads);
+        }
+        return filteredProteinPeptideCollection;
+    }
+
+    /**
+     * Matches a collection of protein-peptides to one reference database with the selected matching engine.
+     *
+     * @param proteinPeptideCollection protein-peptides that did not match to the public database.
+     * @param referenceFile file of the reference database.
+     * @param use index of this use of the reference database in the prefetchers.
+     * @return collection of the flagged protein-peptides.
+     * @throws IOException could not read the reference database file.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    public final ColumnarProteinPeptideCollection matchToReferenceDatabase(final ColumnarProteinPeptideCollection proteinPeptideCollection, final String referenceFile,
+            final int use) throws IOException, InterruptedException, ExecutionException {
+        //The use is released even when matching fails, so the prefetcher does not keep the database.
+        if (referenceIndices != null) {
+            try {
+                FMIndex referenceIndex = referenceIndices.get(use);
+                ReferenceDatabaseMatcher referenceDatabaseMatcher = new ReferenceDatabaseMatcher(null, referenceIndex);
+                setReferenceMatchResultCache(referenceDatabaseMatcher, referenceFile);
+                return referenceDatabaseMatcher.getMatchedProteinPeptides(proteinPeptideCollection, referenceIndex, threads);
+            } finally {
+                referenceIndices.release(use);
+            }
+        } else if (referenceOffHeapCollections != null) {
+            try {
+                OffHeapProteinCollection referenceProteinCollection = referenceOffHeapCollections.get(use);
+                ReferenceDatabaseMatcher referenceDatabaseMatcher = new ReferenceDatabaseMatcher(null, referenceProteinCollection);
+                setReferenceMatchResultCache(referenceDatabaseMatcher, referenceFile);
+                return referenceDatabaseMatcher.getMatchedProteinPeptides(proteinPeptideCollection, referenceProteinCollection, threads);
+            } finally {
+                referenceOffHeapCollections.release(use);
+            }
+        }
+        try {
+            ProteinCollection referenceProteinCollection = referenceCollections.get(use);
+            if (referenceMatcher.equals("kmer")) {
+                KmerIndex referenceKmerIndex = new KmerIndex(referenceProteinCollection, kmerLength);
+                ReferenceDatabaseMatcher referenceDatabaseMatcher = new ReferenceDatabaseMatcher(null, referenceProteinCollection, referenceKmerIndex);
+                setReferenceMatchResultCache(referenceDatabaseMatcher, referenceFile);
+                return referenceDatabaseMatcher.getMatchedProteinPeptides(proteinPeptideCollection, referenceProteinCollection, referenceKmerIndex, threads);
+            }
+            ReferenceDatabaseMatcher referenceDatabaseMatcher = new ReferenceDatabaseMatcher(null, referenceProteinCollection);
+            setReferenceMatchResultCache(referenceDatabaseMatcher, referenceFile);
+            return referenceDatabaseMatcher.getMatchedProteinPeptides(proteinPeptideCollection, referenceProteinCollection, threads);
+        } finally {
+            referenceCollections.release(use);
+        }
+    }
+
+    /**
+     * Gives the cache of matching results to a reference database matcher.
+     *
+     * @param referenceDatabaseMatcher reference database matcher.
+     * @param referenceFile file of the reference database.
+     * @throws IOException could not read the reference database file.
+     */
+    private void setReferenceMatchResultCache(final ReferenceDatabaseMatcher referenceDatabaseMatcher, final String referenceFile) throws IOException {
+        if (matchResultCache != null) {
+            ArrayList<String> referenceFiles = new ArrayList<>();
+            referenceFiles.add(referenceFile);
+            String referenceVariant = getCacheVariant(MatchResultCache.REFERENCE_RESULTS);
+            referenceDatabaseMatcher.setMatchResultCache(matchResultCache, matchResultCache.registerDatabase(referenceFile + referenceVariant, referenceFiles,
+                    referenceVariant));
+        }
+    }
+
+    /**
+     * Returns the variant of the matching settings and result kind that is used to separate cached matching results.
+     *
+     * @param resultKind MatchResultCache.PUBLIC_RESULTS or MatchResultCache.REFERENCE_RESULTS.
+     * @return variant as String.
+     */
+    private String getCacheVariant(final String resultKind) {
+        if (equateIsoleucineLeucine) {
+            return " " + resultKind + " (I=L)";
+        }
+        return " " + resultKind;
+    }
+
+    /**
+     * Stops the reference database loaders and saves the cache of matching results.
+     *
+     * @throws IOException could not save the cache of matching results.
+     */
+    public final void close() throws IOException {
+        if (referenceCollections != null) {
+            referenceCollections.close();
+        }
+        if (referenceOffHeapCollections != null) {
+            referenceOffHeapCollections.close();
+        }
+        if (referenceIndices != null) {
+            referenceIndices.close();
+        }
+        if (matchResultCache != null) {
+            matchResultCache.close();
+        }
+    }
+}
@@ -4,8 +4,10 @@
  */
 package peptide.identification.quality.control;
 
+import collections.ColumnarProteinPeptideCollection;
+import collections.OffHeapProteinCollection;
+import collections.PeptideIdStore;
 import collections.ProteinCollection;
-import collections.ProteinPeptideCollection;
 import java.io.IOException;
 import java.util.ArrayList;
 import org.apache.commons.cli.BasicParser;
@@ -15,16 +17,22 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import matcher.ReferenceDatabaseMatcher;
 import collection.creator.ProteinPeptideFileReader;
 import collections.MatrixEntryCollection;
+import objects.Protein;
+import index.FMIndex;
+import index.KmerIndex;
+import index.MatchResultCache;
 import java.io.File;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import matcher.PublicDatabaseMatcher;
+import matcher.ShardedDatabaseMatcher;
+import matcher.StreamingDatabaseMatcher;
 import matrix.MatrixToCsvWriter;
 import matrix.PeptideMatrix;
 import tools.InputTools;
@@ -56,6 +64,102 @@ public class PeptideIdentificationModule {
      */
     private final Options commandlineOptions;
 
+    /**
+     * Matching engine used to match peptides to the public protein database. (boyer, ahocorasick, fmindex, kmer or stream)
+     */
+    private String publicMatcher = "boyer";
+
+    /**
+     * Matching engine used to match peptides to the reference protein database. (boyer, fmindex or kmer)
+     */
+    private String referenceMatcher = "boyer";
+
+    /**
+     * Length of the k-mers used by the kmer matching engine.
+     */
+    private Integer kmerLength = 5;
+
+    /**
+     * File of the cache of matching results, or null if no cache is used.
+     */
+    private String matchCacheFile = null;
+
+    /**
+     * Shortest and longest substring length of the Bloom filters, or null if no Bloom filters are used.
+     */
+    private int[] bloomLengths = null;
+
+    /**
+     * False-positive rate used to determine the size of the Bloom filters.
+     */
+    private Double bloomFalsePositiveRate = 0.01;
+
+    /**
+     * Size of each Bloom filter in megabytes, 0 to determine the size from the false-positive rate.
+     */
+    private Integer bloomSize = 0;
+
+    /**
+     * Treats isoleucine (I) and leucine (L) as the same residue when matching.
+     */
+    private Boolean equateIsoleucineLeucine = false;
+
+    /**
+     * Amount of database files that are loaded at the same time.
+     */
+    private Integer ioThreads = 1;
+
+    /**
+     * Converts the database files to packed database files before they are loaded.
+     */
+    private Boolean packDatabases = false;
+
+    /**
+     * Creates a FASTA index of the database files, so single proteins can be read by accession.
+     */
+    private Boolean indexDatabases = false;
+
+    /**
+     * Keeps the protein sequences of the databases in off-heap memory regions instead of String objects.
+     */
+    private Boolean offHeap = false;
+
+    /**
+     * Amount of worker processes that the public protein database is divided over. 1 matches in this process.
+     */
+    private Integer publicShards = 1;
+
+    /**
+     * Maximum heap size of each worker process (eg. 4g), or null to use the default of the JVM.
+     */
+    private String shardHeap = null;
+
+    /**
+     * Processes the samples in concurrent stages when true.
+     */
+    private Boolean pipeline = false;
+
+    /**
+     * Amount of threads of the pipeline that read protein-peptide files.
+     */
+    private Integer parseThreads = 1;
+
+    /**
+     * Amount of threads of the pipeline that match samples to their reference databases.
+     */
+    private Integer referenceThreads = 1;
+
+    /**
+     * Amount of samples that wait between two stages of the pipeline.
+     */
+    private static final int PIPELINE_QUEUE_SIZE = 2;
+
+    /**
+     * Assigns an id to each distinct peptide sequence of all samples and datasets. Peptides of different samples are
+     * compared by these ids, so all readers share this store.
+     */
+    private final PeptideIdStore peptideIds = new PeptideIdStore();
+
     /**
      * Private constructor to define primary functions.
      * Defines command line argument options.
@@ -111,6 +215,98 @@ public class PeptideIdentificationModule {
                 .desc("Amount of threads to use for multithreading. (Default 2)")
                 .build();
         commandlineOptions.addOption(threads);
+        //Matching engine for the public database.
+        Option publicMatcherOption = Option.builder("publicMatcher")
+                .hasArg()
+                .desc("Engine used to match peptides to the public databases: boyer, ahocorasick, fmindex, kmer or stream. (Default boyer)")
+                .build();
+        commandlineOptions.addOption(publicMatcherOption);
+        //Matching engine for the reference databases.
+        Option referenceMatcherOption = Option.builder("referenceMatcher")
+                .hasArg()
+                .desc("Engine used to match peptides to the reference databases: boyer, fmindex or kmer. (Default boyer)")
+                .build();
+        commandlineOptions.addOption(referenceMatcherOption);
+        //K-mer length of the kmer matching engine.
+        Option kmerLengthOption = Option.builder("kmerLength")
+                .hasArg()
+                .desc("Length of the k-mers used by the kmer matching engine, at most " + KmerIndex.MAX_LENGTH + ". (Default 5)")
+                .build();
+        commandlineOptions.addOption(kmerLengthOption);
+        //Cache of matching results.
+        Option matchCacheOption = Option.builder("matchCache")
+                .hasArg()
+                .desc("File used to cache the matching results between runs. (/home/name/Cache/peptides.cache)")
+                .build();
+        commandlineOptions.addOption(matchCacheOption);
+        //Bloom filter of the public databases.
+        Option bloomFilterOption = Option.builder("bloomFilter")
+                .hasArg()
+                .desc("Substring lengths of the Bloom filter used to skip peptides that are absent from the public databases. (eg. 7-10)")
+                .build();
+        commandlineOptions.addOption(bloomFilterOption);
+        Option bloomFalsePositiveRateOption = Option.builder("bloomFalsePositiveRate")
+                .hasArg()
+                .desc("False-positive rate used to determine the size of the Bloom filter. (Default 0.01)")
+                .build();
+        commandlineOptions.addOption(bloomFalsePositiveRateOption);
+        Option bloomSizeOption = Option.builder("bloomSize")
+                .hasArg()
+                .desc("Size of the Bloom filter of each public database in MB. Overrides -bloomFalsePositiveRate.")
+                .build();
+        commandlineOptions.addOption(bloomSizeOption);
+        //Isoleucine and leucine equivalence.
+        Option equateILOption = Option.builder("equateIL")
+                .desc("Treat isoleucine (I) and leucine (L) as the same residue when matching peptides to the databases.")
+                .build();
+        commandlineOptions.addOption(equateILOption);
+        //Database files loaded at the same time.
+        Option ioThreadsOption = Option.builder("ioThreads")
+                .hasArg()
+                .desc("Amount of database files that are loaded at the same time. (Default 1)")
+                .build();
+        commandlineOptions.addOption(ioThreadsOption);
+        //Packed binary databases.
+        Option packDatabasesOption = Option.builder("packDatabases")
+                .desc("Convert the database files to packed binary files that are memory-mapped instead of parsed on later runs.")
+                .build();
+        commandlineOptions.addOption(packDatabasesOption);
+        //Accession indices of the databases.
+        Option indexDatabasesOption = Option.builder("indexDatabases")
+                .desc("Create an index of the database files, so single proteins can be read by accession without loading a database.")
+                .build();
+        commandlineOptions.addOption(indexDatabasesOption);
+        //Off-heap protein sequences.
+        Option offHeapOption = Option.builder("offHeap")
+                .desc("Keep the protein sequences of each database in off-heap memory regions. Used by the boyer and ahocorasick engines.")
+                .build();
+        commandlineOptions.addOption(offHeapOption);
+        //Worker processes of the public database.
+        Option publicShardsOption = Option.builder("publicShards")
+                .hasArg()
+                .desc("Amount of worker processes that the public databases are divided over. (Default 1)")
+                .build();
+        commandlineOptions.addOption(publicShardsOption);
+        Option shardHeapOption = Option.builder("shardHeap")
+                .hasArg()
+                .desc("Maximum heap size of each worker process. (eg. 4g)")
+                .build();
+        commandlineOptions.addOption(shardHeapOption);
+        //Concurrent stages of the samples.
+        Option pipelineOption = Option.builder("pipeline")
+                .desc("Read, filter and match the samples in concurrent stages, and build the matrices while later samples are matched.")
+                .build();
+        commandlineOptions.addOption(pipelineOption);
+        Option parseThreadsOption = Option.builder("parseThreads")
+                .hasArg()
+                .desc("Amount of threads of -pipeline that read protein-peptide files. (Default 1)")
+                .build();
+        commandlineOptions.addOption(parseThreadsOption);
+        Option referenceThreadsOption = Option.builder("referenceThreads")
+                .hasArg()
+                .desc("Amount of samples that -pipeline matches to their reference databases at the same time. (Default 1)")
+                .build();
+        commandlineOptions.addOption(referenceThreadsOption);
     }
 
     /**
@@ -147,7 +343,22 @@ public class PeptideIdentificationModule {
                 System.out.println("Argument is automatically set to FALSE.");
             }
             //Set the amount of threads to be used.
-            Integer threads = getThreads(cmd);
+            Integer threads = getIntegerOption(cmd, "threads", 1, 1, Integer.MAX_VALUE);
+            publicMatcher = getMatchingEngine(cmd, "publicMatcher", "(boyer|ahocorasick|fmindex|kmer|stream)");
+            referenceMatcher = getMatchingEngine(cmd, "referenceMatcher", "(boyer|fmindex|kmer)");
+            kmerLength = getIntegerOption(cmd, "kmerLength", 5, 1, KmerIndex.MAX_LENGTH);
+            matchCacheFile = cmd.getOptionValue("matchCache");
+            getBloomFilterSettings(cmd);
+            equateIsoleucineLeucine = cmd.hasOption("equateIL");
+            packDatabases = cmd.hasOption("packDatabases");
+            offHeap = cmd.hasOption("offHeap");
+            indexDatabases = cmd.hasOption("indexDatabases");
+            ioThreads = getIntegerOption(cmd, "ioThreads", 1, 1, Integer.MAX_VALUE);
+            publicShards = getIntegerOption(cmd, "publicShards", 1, 1, Integer.MAX_VALUE);
+            shardHeap = cmd.getOptionValue("shardHeap");
+            pipeline = cmd.hasOption("pipeline");
+            parseThreads = getIntegerOption(cmd, "parseThreads", 1, 1, Integer.MAX_VALUE);
+            referenceThreads = getIntegerOption(cmd, "referenceThreads", 1, 1, Integer.MAX_VALUE);
             //Determine path separator.
             String separator = getSeparator();
             InputTools inputCheck = new InputTools();
@@ -192,10 +403,71 @@ public class PeptideIdentificationModule {
         System.out.println("Starting peptide database identification of PeptideShaker mzid data...");
         String separator = getSeparator();
         ArrayList<String> sampleList = new ArrayList<>();
-        ProteinSequenceDatabaseMap proteinMap = new ProteinSequenceDatabaseMap();
-        HashMap<String, ArrayList<ProteinCollection>> publicProteinCollectionMap = proteinMap.createProteinSequenceDatabaseMap(publicDatabaseMap);
-        HashMap<String, ArrayList<ProteinCollection>> referenceProteinCollectionMap = proteinMap.createProteinSequenceDatabaseMap(referenceDatabaseMap);
-        ProteinCollection publicProteinCollection = getPublicProteinDatabase(publicProteinCollectionMap);
+        ProteinSequenceDatabaseMap proteinMap = new ProteinSequenceDatabaseMap(equateIsoleucineLeucine, threads, ioThreads);
+        if (packDatabases) {
+            proteinMap.createPackedDatabases(publicDatabaseMap);
+            proteinMap.createPackedDatabases(referenceDatabaseMap);
+        }
+        if (indexDatabases) {
+            proteinMap.createFastaIndices(publicDatabaseMap);
+            proteinMap.createFastaIndices(referenceDatabaseMap);
+        }
+        ArrayList<String> publicFiles = new ArrayList<>();
+        for (ArrayList<String> files : publicDatabaseMap.values()) {
+            publicFiles.addAll(files);
+        }
+        MatchingContext matchingContext = new MatchingContext(publicMatcher, referenceMatcher, kmerLength, equateIsoleucineLeucine, threads);
+        //Matching results of earlier runs are used when the database content is the same.
+        if (matchCacheFile != null) {
+            matchingContext.setMatchResultCache(new MatchResultCache(new File(matchCacheFile)), publicFiles);
+        }
+        //Off-heap collections are only used by the engines that scan the protein sequences.
+        boolean publicOffHeap = offHeap && publicShards == 1 && publicMatcher.matches("boyer|ahocorasick");
+        boolean referenceOffHeap = offHeap && referenceMatcher.equals("boyer");
+        if (offHeap && !(publicOffHeap && referenceOffHeap)) {
+            System.out.println("WARNING: -offHeap is only used for the public databases with the boyer and ahocorasick engines without -publicShards,"
+                    + " and for the reference databases with the boyer engine.");
+        }
+        //FM-indices replace the protein collections of the databases they are used for.
+        if (publicMatcher.equals("stream")) {
+            //The public protein database is read while matching, so it is not loaded here.
+            matchingContext.setPublicStreamingMatcher(new StreamingDatabaseMatcher(publicFiles, equateIsoleucineLeucine));
+            if (bloomLengths != null || publicShards > 1) {
+                System.out.println("WARNING: the Bloom filter and -publicShards are not used with the stream engine, which does not load the protein sequences.");
+            }
+        } else if (publicMatcher.equals("fmindex")) {
+            matchingContext.setPublicIndices(getPublicIndices(proteinMap.createFMIndexMap(publicDatabaseMap)));
+            if (bloomLengths != null) {
+                System.out.println("WARNING: the Bloom filter is not used with the fmindex engine, which does not need a prefilter.");
+            }
+            if (publicShards > 1) {
+                System.out.println("WARNING: -publicShards is not used with the fmindex engine, which does not load the protein sequences.");
+            }
+        } else if (publicShards > 1) {
+            //The worker processes load the public protein database, so it is not loaded here.
+            System.out.println("Dividing the public protein database over " + publicShards + " worker processes.");
+            matchingContext.setPublicShardedMatcher(new ShardedDatabaseMatcher(publicFiles, publicShards, publicMatcher, kmerLength, equateIsoleucineLeucine,
+                    shardHeap));
+            if (bloomLengths != null) {
+                System.out.println("WARNING: the Bloom filter is not used with -publicShards, because the protein database is not loaded.");
+            }
+        } else if (publicOffHeap) {
+            matchingContext.setPublicOffHeapProteinCollection(getPublicOffHeapProteinDatabase(proteinMap.createOffHeapProteinCollectionMap(publicDatabaseMap)));
+            if (bloomLengths != null) {
+                System.out.println("WARNING: the Bloom filter is not used with -offHeap, because it is created from the protein objects.");
+            }
+        } else {
+            HashMap<String, ArrayList<ProteinCollection>> publicProteinCollectionMap = proteinMap.createProteinSequenceDatabaseMap(publicDatabaseMap);
+            matchingContext.setPublicProteinCollection(getPublicProteinDatabase(publicProteinCollectionMap));
+            if (bloomLengths != null) {
+                matchingContext.setPublicFilters(proteinMap.createBloomFilterList(publicDatabaseMap, publicProteinCollectionMap, bloomLengths[0],
+                        bloomLengths[1], bloomFalsePositiveRate, bloomSize * 8L * 1024 * 1024));
+            }
+        }
+        if (publicMatcher.equals("kmer") && matchingContext.getPublicProteinCollection() != null) {
+            System.out.println("Creating " + kmerLength + "-mer index of the public protein database...");
+            matchingContext.setPublicKmerIndex(new KmerIndex(matchingContext.getPublicProteinCollection(), kmerLength));
+        }
         ArrayList<String> datasetKeys = new ArrayList<>();
         for (String rnaSeq : referenceDatabaseMap.keySet()) {
             datasetKeys.add(rnaSeq);
@@ -206,83 +478,464 @@ public class PeptideIdentificationModule {
                 sampleSize = entry.getValue().size();
             }
         }
-        ProteinPeptideCollection finalProteinPeptideCollection = new ProteinPeptideCollection();
-        //Go through index of datasets.
-        for (int currentIndex = 0; currentIndex < datasetKeys.size(); currentIndex++) {
-            String datasetName = datasetKeys.get(currentIndex);
-            //Get dataset name for file output purpose and getting correct database for each sample.
+        //Reference databases are loaded when their sample is processed, in the order in which they are used.
+        HashMap<String, ArrayList<String>> referenceFileMap = new HashMap<>();
+        for (Map.Entry<String, ArrayList<String>> entry : referenceDatabaseMap.entrySet()) {
+            referenceFileMap.put(entry.getKey(), entry.getValue());
+        }
+        ArrayList<String> referenceFiles = new ArrayList<>();
+        for (String datasetName : datasetKeys) {
             for (Integer currentSample = 0; currentSample < sampleSize; currentSample++) {
-                //Get correct sample.
+                for (Entry<String, ArrayList<String>> datasetEntry : referenceFileMap.entrySet()) {
+                    if (datasetEntry.getKey().contains(datasetName)) {
+                        referenceFiles.add(datasetEntry.getValue().get(currentSample));
+                    }
+                }
+            }
+        }
+        if (referenceMatcher.equals("fmindex")) {
+            matchingContext.setReferenceIndices(proteinMap.createFMIndexPrefetcher(referenceFiles));
+        } else if (referenceOffHeap) {
+            matchingContext.setReferenceOffHeapCollections(proteinMap.createOffHeapProteinCollectionPrefetcher(referenceFiles));
+        } else {
+            matchingContext.setReferenceCollections(proteinMap.createProteinCollectionPrefetcher(referenceFiles));
+        }
+        if (pipeline) {
+            processSamplesInPipeline(outputPath, proteinPeptideFileMap, datasetKeys, sampleSize, referenceFileMap, removeEnsemblHits, matchingContext);
+        } else {
+            int referenceUse = 0;
+            //Read all protein-peptide files and collect the distinct peptide sequences of the cohort.
+            HashMap<String, ArrayList<ColumnarProteinPeptideCollection>> proteinPeptideCollectionMap = new HashMap<>();
+            ColumnarProteinPeptideCollection distinctProteinPeptideCollection = new ColumnarProteinPeptideCollection();
+            HashSet<String> distinctSequences = new HashSet<>();
+            for (String datasetName : datasetKeys) {
+                ArrayList<ColumnarProteinPeptideCollection> proteinPeptideCollections = new ArrayList<>();
                 ArrayList<String> proteinPeptideFiles = proteinPeptideFileMap.get(datasetName);
-                for (String file: proteinPeptideFiles) {
-                    String[] folders = file.split(separator);
-                    String sampleFile = folders[folders.length-2];
-                    if (!sampleList.contains(sampleFile)) {
-                        sampleList.add(sampleFile);
+                for (Integer currentSample = 0; currentSample < sampleSize; currentSample++) {
+                    ColumnarProteinPeptideCollection proteinPeptideCollection = readProteinPeptides(proteinPeptideFiles.get(currentSample), datasetName, currentSample,
+                            removeEnsemblHits);
+                    ColumnarProteinPeptideCollection.Cursor proteinPeptide = proteinPeptideCollection.cursor();
+                    while (proteinPeptide.next()) {
+                        if (distinctSequences.add(proteinPeptide.getMatchingSequence())) {
+                            distinctProteinPeptideCollection.add(proteinPeptide);
+                        }
                     }
+                    proteinPeptideCollections.add(proteinPeptideCollection);
                 }
-                //Read and process protein-peptide file.
-                ProteinPeptideFileReader reader = new ProteinPeptideFileReader();
-                ProteinPeptideCollection proteinPeptideCollection = reader.createCollection(proteinPeptideFiles.get(currentSample), datasetName, currentSample, removeEnsemblHits);
-                //Match to public database to remove known sequences.
-                PublicDatabaseMatcher proteinPeptideMatcher = new PublicDatabaseMatcher(null, null);
-                ProteinPeptideCollection filteredProteinPeptideCollection = proteinPeptideMatcher.getMatchedProteinPeptides(proteinPeptideCollection, publicProteinCollection, threads);
-                //Matches protein-peptide data to sample database to ensure correct hits and to flag uniqueness.
-                for (Entry<String, ArrayList<ProteinCollection>> datasetEntry: referenceProteinCollectionMap.entrySet()) {
-                    if (datasetEntry.getKey().contains(datasetName)) {
-                        ProteinCollection referenceProteinCollection = datasetEntry.getValue().get(currentSample);
-                        ReferenceDatabaseMatcher referenceDatabaseMatcher = new ReferenceDatabaseMatcher(null, null);
-                        ProteinPeptideCollection referenceProteinPeptideCollection = referenceDatabaseMatcher.getMatchedProteinPeptides(filteredProteinPeptideCollection, referenceProteinCollection, threads);
-                        finalProteinPeptideCollection.getProteinPeptideMatches().addAll(referenceProteinPeptideCollection.getProteinPeptideMatches());
+                proteinPeptideCollectionMap.put(datasetName, proteinPeptideCollections);
+            }
+            ConcurrentHashMap<String, Boolean> publicMatchTable = new ConcurrentHashMap<>();
+            //Peptide sequences that are absent from the Bloom filters can not match and are not searched.
+            if (matchingContext.hasPublicFilters()) {
+                ColumnarProteinPeptideCollection candidateProteinPeptideCollection = new ColumnarProteinPeptideCollection();
+                ColumnarProteinPeptideCollection.Cursor proteinPeptide = distinctProteinPeptideCollection.cursor();
+                while (proteinPeptide.next()) {
+                    if (matchingContext.isInPublicFilters(proteinPeptide.getMatchingSequence())) {
+                        candidateProteinPeptideCollection.add(proteinPeptide);
+                    } else {
+                        publicMatchTable.put(proteinPeptide.getMatchingSequence(), false);
                     }
                 }
+                System.out.println(publicMatchTable.size() + " distinct peptide sequences are absent from the public Bloom filters.");
+                distinctProteinPeptideCollection = candidateProteinPeptideCollection;
             }
-            //Create output file, ensures that duplicate is not overwritten.
-            String finalFilePath = outputPath + datasetName + "_Comparison_By_Sequence_ProteinGroup.csv";
-            File file = new File(finalFilePath);
-            Integer count = 1;
-            while (file.exists()) {
-                finalFilePath = outputPath + datasetName + "_Comparison_By_Sequence_ProteinGroup(" + count + ").csv";
-                file = new File(finalFilePath);
-                count++;
+            //Match each distinct peptide sequence to the public database once.
+            System.out.println("Matching " + distinctProteinPeptideCollection.size()
+                    + " distinct peptide sequences of all samples to the public protein database...");
+            ColumnarProteinPeptideCollection unmatchedProteinPeptideCollection = matchingContext.matchToPublicDatabase(distinctProteinPeptideCollection);
+            ColumnarProteinPeptideCollection.Cursor proteinPeptide = distinctProteinPeptideCollection.cursor();
+            while (proteinPeptide.next()) {
+                publicMatchTable.put(proteinPeptide.getMatchingSequence(), true);
             }
-            PeptideMatrix peptideMatrix = new PeptideMatrix();
-            MatrixToCsvWriter write = new MatrixToCsvWriter();
-            //Create matrices and write them to given output directory.
-            MatrixEntryCollection basedOnProteinGroupMatrixEntryCollection = peptideMatrix.createPeptideMatrixBasedOnProteinGroup(finalProteinPeptideCollection, sampleSize);
-            write.writeDatasetCsv(basedOnProteinGroupMatrixEntryCollection, sampleList, finalFilePath);
-            //Create output file, ensures that duplicate is not overwritten.
-            finalFilePath = outputPath + datasetName + "_Comparison_By_Sequence.csv";
-            file = new File(finalFilePath);
-            count = 1;
-            while (file.exists()) {
-                finalFilePath = outputPath + datasetName + "_Comparison_By_Sequence(" + count + ").csv";
-                file = new File(finalFilePath);
+            proteinPeptide = unmatchedProteinPeptideCollection.cursor();
+            while (proteinPeptide.next()) {
+                publicMatchTable.put(proteinPeptide.getMatchingSequence(), false);
+            }
+            ColumnarProteinPeptideCollection finalProteinPeptideCollection = new ColumnarProteinPeptideCollection();
+            //Go through index of datasets.
+            for (int currentIndex = 0; currentIndex < datasetKeys.size(); currentIndex++) {
+                String datasetName = datasetKeys.get(currentIndex);
+                //Get dataset name for file output purpose and getting correct database for each sample.
+                for (Integer currentSample = 0; currentSample < sampleSize; currentSample++) {
+                    //Get correct sample.
+                    addSampleNames(sampleList, proteinPeptideFileMap.get(datasetName), separator);
+                    //Get the protein-peptide collection that was read before.
+                    ColumnarProteinPeptideCollection proteinPeptideCollection = proteinPeptideCollectionMap.get(datasetName).get(currentSample);
+                    //Remove known sequences by looking up the public database matches.
+                    boolean[] matchedToDatabase = new boolean[proteinPeptideCollection.size()];
+                    proteinPeptide = proteinPeptideCollection.cursor();
+                    while (proteinPeptide.next()) {
+                        matchedToDatabase[proteinPeptide.getPosition()] = publicMatchTable.get(proteinPeptide.getMatchingSequence());
+                    }
+                    ColumnarProteinPeptideCollection filteredProteinPeptideCollection = proteinPeptideCollection.getUnflaggedRows(matchedToDatabase);
+                    System.out.println(filteredProteinPeptideCollection.size() + " protein-peptides of " + datasetName
+                            + " sample " + (currentSample + 1) + " did not match to the public protein database.");
+                    //Matches protein-peptide data to sample database to ensure correct hits and to flag uniqueness.
+                    ColumnarProteinPeptideCollection referenceProteinPeptideCollection = matchToReferenceDatabases(filteredProteinPeptideCollection, datasetName,
+                            currentSample, referenceUse, referenceFileMap, matchingContext);
+                    finalProteinPeptideCollection.addAll(referenceProteinPeptideCollection);
+                    referenceUse += getReferenceDatabaseCount(referenceFileMap, datasetName);
+                }
+                writePeptideMatrices(outputPath, datasetName, finalProteinPeptideCollection, sampleList, sampleSize);
+            }
+        }
+        try {
+            matchingContext.close();
+        } catch (IOException ex) {
+            System.out.println("Could not save match result cache " + matchCacheFile + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Reads a protein-peptide file and sets the sequence that is used to match each peptide to the protein databases.
+     *
+     * @param file protein-peptide file.
+     * @param datasetName name of the dataset.
+     * @param currentSample sample index number.
+     * @param removeEnsemblHits flag that shows if ensemble hits should be removed.
+     * @return collection of protein-peptides.
+     * @throws IOException could not read the file.
+     */
+    private ColumnarProteinPeptideCollection readProteinPeptides(final String file, final String datasetName, final Integer currentSample,
+            final Boolean removeEnsemblHits) throws IOException {
+        ProteinPeptideFileReader reader = new ProteinPeptideFileReader(peptideIds);
+        ColumnarProteinPeptideCollection proteinPeptideCollection = reader.createCollection(file, datasetName, currentSample, removeEnsemblHits);
+        //Isoleucine and leucine variants of a peptide are matched as one sequence.
+        if (equateIsoleucineLeucine) {
+            ColumnarProteinPeptideCollection.Cursor proteinPeptide = proteinPeptideCollection.cursor();
+            while (proteinPeptide.next()) {
+                proteinPeptide.setMatchingSequence(proteinPeptide.getSequence().replace('I', 'L'));
+            }
+        }
+        return proteinPeptideCollection;
+    }
+
+    /**
+     * Adds the sample names of the protein-peptide files of a dataset to the list of samples, if not present yet.
+     *
+     * @param sampleList names of the samples.
+     * @param proteinPeptideFiles protein-peptide files of the dataset.
+     * @param separator path separator.
+     */
+    private void addSampleNames(final ArrayList<String> sampleList, final ArrayList<String> proteinPeptideFiles, final String separator) {
+        for (String file: proteinPeptideFiles) {
+            String[] folders = file.split(separator);
+            String sampleFile = folders[folders.length-2];
+            if (!sampleList.contains(sampleFile)) {
+                sampleList.add(sampleFile);
+            }
+        }
+    }
+
+    /**
+     * Returns the amount of reference databases that each sample of a dataset is matched to.
+     *
+     * @param referenceFileMap reference database files of each database name.
+     * @param datasetName name of the dataset.
+     * @return amount of reference databases as int.
+     */
+    private int getReferenceDatabaseCount(final HashMap<String, ArrayList<String>> referenceFileMap, final String datasetName) {
+        int count = 0;
+        for (String databaseName : referenceFileMap.keySet()) {
+            if (databaseName.contains(datasetName)) {
                 count++;
             }
-            MatrixEntryCollection basedOnSequenceMatrixEntryCollection = peptideMatrix.createPeptideMatrixBasedOnSequence(finalProteinPeptideCollection, sampleSize);
-            write.writeDatasetCsv(basedOnSequenceMatrixEntryCollection, sampleList, finalFilePath);
         }
+        return count;
+    }
+
+    /**
+     * Matches the protein-peptides of a sample to the reference databases of the sample to ensure correct hits and to flag uniqueness.
+     *
+     * @param filteredProteinPeptideCollection protein-peptides of the sample that did not match to the public database.
+     * @param datasetName name of the dataset.
+     * @param currentSample sample index number.
+     * @param referenceUse index of the first use of the reference databases of the sample.
+     * @param referenceFileMap reference database files of each database name.
+     * @param matchingContext matching engines and loaders of the reference databases.
+     * @return collection of the flagged protein-peptides of each reference database.
+     * @throws IOException could not read a reference database file.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not execute the call function.
+     */
+    private ColumnarProteinPeptideCollection matchToReferenceDatabases(final ColumnarProteinPeptideCollection filteredProteinPeptideCollection, final String datasetName,
+            final Integer currentSample, final int referenceUse, final HashMap<String, ArrayList<String>> referenceFileMap,
+            final MatchingContext matchingContext) throws IOException, InterruptedException, ExecutionException {
+        //The protein-peptides of each reference database are the same rows, so a flag is the result of the last database.
+        ColumnarProteinPeptideCollection matchedProteinPeptideCollection = filteredProteinPeptideCollection.createSubset();
+        int use = referenceUse;
+        for (Entry<String, ArrayList<String>> datasetEntry: referenceFileMap.entrySet()) {
+            if (!datasetEntry.getKey().contains(datasetName)) {
+                continue;
+            }
+            String referenceFile = datasetEntry.getValue().get(currentSample);
+            ColumnarProteinPeptideCollection referenceProteinPeptideCollection = matchingContext.matchToReferenceDatabase(filteredProteinPeptideCollection,
+                    referenceFile, use);
+            matchedProteinPeptideCollection.addAll(referenceProteinPeptideCollection);
+            use++;
+        }
+        return matchedProteinPeptideCollection;
+    }
+
+    /**
+     * Creates the peptide matrices of a dataset and writes them to the output directory.
+     *
+     * @param outputPath outputpath for the matrix csv file.
+     * @param datasetName name of the dataset.
+     * @param finalProteinPeptideCollection protein-peptides that matched to the reference databases.
+     * @param sampleList names of the samples.
+     * @param sampleSize amount of samples.
+     * @throws IOException could not write a matrix file.
+     */
+    private void writePeptideMatrices(final String outputPath, final String datasetName, final ColumnarProteinPeptideCollection finalProteinPeptideCollection,
+            final ArrayList<String> sampleList, final Integer sampleSize) throws IOException {
+        //Create output file, ensures that duplicate is not overwritten.
+        String finalFilePath = outputPath + datasetName + "_Comparison_By_Sequence_ProteinGroup.csv";
+        File file = new File(finalFilePath);
+        Integer count = 1;
+        while (file.exists()) {
+            finalFilePath = outputPath + datasetName + "_Comparison_By_Sequence_ProteinGroup(" + count + ").csv";
+            file = new File(finalFilePath);
+            count++;
+        }
+        PeptideMatrix peptideMatrix = new PeptideMatrix();
+        MatrixToCsvWriter write = new MatrixToCsvWriter();
+        //Create matrices and write them to given output directory.
+        MatrixEntryCollection basedOnProteinGroupMatrixEntryCollection = peptideMatrix.createPeptideMatrixBasedOnProteinGroup(finalProteinPeptideCollection, sampleSize);
+        write.writeDatasetCsv(basedOnProteinGroupMatrixEntryCollection, sampleList, finalFilePath);
+        //Create output file, ensures that duplicate is not overwritten.
+        finalFilePath = outputPath + datasetName + "_Comparison_By_Sequence.csv";
+        file = new File(finalFilePath);
+        count = 1;
+        while (file.exists()) {
+            finalFilePath = outputPath + datasetName + "_Comparison_By_Sequence(" + count + ").csv";
+            file = new File(finalFilePath);
+            count++;
+        }
+        MatrixEntryCollection basedOnSequenceMatrixEntryCollection = peptideMatrix.createPeptideMatrixBasedOnSequence(finalProteinPeptideCollection, sampleSize);
+        write.writeDatasetCsv(basedOnSequenceMatrixEntryCollection, sampleList, finalFilePath);
+    }
+
+    /**
+     * Processes the samples in concurrent stages, connected by bounded queues: reading the protein-peptide files,
+     * filtering by the public database, matching to the reference databases and building the matrices.
+     * The public database stage matches the distinct peptide sequences of a sample that did not occur in an earlier
+     * sample, so each sequence is still matched once. The matrices of a dataset are built while the samples of the next
+     * dataset are matched, with the samples in the same order as without the pipeline.
+     *
+     * @param outputPath outputpath for the matrix csv file.
+     * @param proteinPeptideFileMap protein-peptide files of each dataset.
+     * @param datasetKeys names of the datasets.
+     * @param sampleSize amount of samples per dataset.
+     * @param referenceFileMap reference database files of each database name.
+     * @param removeEnsemblHits flag that shows if ensemble hits should be removed.
+     * @param matchingContext matching engines, public database structures and loaders of the reference databases.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException a stage could not process a sample.
+     */
+    private void processSamplesInPipeline(final String outputPath, final LinkedHashMap<String, ArrayList<String>> proteinPeptideFileMap,
+            final ArrayList<String> datasetKeys, final Integer sampleSize, final HashMap<String, ArrayList<String>> referenceFileMap,
+            final Boolean removeEnsemblHits, final MatchingContext matchingContext) throws InterruptedException, ExecutionException {
+        final String separator = getSeparator();
+        final ArrayList<String> sampleList = new ArrayList<>();
+        //Samples are numbered per dataset, in the order in which the reference databases are used.
+        final int[] referenceUses = new int[datasetKeys.size() * sampleSize];
+        int referenceUse = 0;
+        for (int sample = 0; sample < referenceUses.length; sample++) {
+            referenceUses[sample] = referenceUse;
+            referenceUse += getReferenceDatabaseCount(referenceFileMap, datasetKeys.get(sample / sampleSize));
+        }
+        //Only used by the public database stage, which processes one sample at a time.
+        final HashMap<String, Boolean> publicMatchTable = new HashMap<>();
+        final ColumnarProteinPeptideCollection finalProteinPeptideCollection = new ColumnarProteinPeptideCollection();
+        System.out.println("Processing " + referenceUses.length + " samples in a pipeline with " + parseThreads + " reading threads and "
+                + referenceThreads + " reference matching threads.");
+        //Each thread of a stage can hold a sample within the window of samples that may be started.
+        int queueSize = Math.max(PIPELINE_QUEUE_SIZE, Math.max(parseThreads, referenceThreads));
+        SamplePipeline samplePipeline = new SamplePipeline(referenceUses.length, queueSize);
+        samplePipeline.addStage("reading", new SamplePipeline.Stage() {
+            @Override
+            public ColumnarProteinPeptideCollection process(final int sample, final ColumnarProteinPeptideCollection proteinPeptideCollection) throws IOException {
+                String datasetName = datasetKeys.get(sample / sampleSize);
+                int currentSample = sample % sampleSize;
+                return readProteinPeptides(proteinPeptideFileMap.get(datasetName).get(currentSample), datasetName, currentSample, removeEnsemblHits);
+            }
+        }, parseThreads);
+        samplePipeline.addOrderedStage("public database filtering", new SamplePipeline.Stage() {
+            @Override
+            public ColumnarProteinPeptideCollection process(final int sample, final ColumnarProteinPeptideCollection proteinPeptideCollection)
+                    throws InterruptedException, ExecutionException, IOException {
+                String datasetName = datasetKeys.get(sample / sampleSize);
+                int currentSample = sample % sampleSize;
+                //Collect the distinct peptide sequences that were not matched for an earlier sample.
+                ColumnarProteinPeptideCollection distinctProteinPeptideCollection = proteinPeptideCollection.createSubset();
+                int absentSequences = 0;
+                ColumnarProteinPeptideCollection.Cursor proteinPeptide = proteinPeptideCollection.cursor();
+                while (proteinPeptide.next()) {
+                    String sequence = proteinPeptide.getMatchingSequence();
+                    if (!publicMatchTable.containsKey(sequence)) {
+                        //Peptide sequences that are absent from the Bloom filters can not match and are not searched.
+                        if (matchingContext.hasPublicFilters() && !matchingContext.isInPublicFilters(sequence)) {
+                            absentSequences++;
+                            publicMatchTable.put(sequence, false);
+                        } else {
+                            distinctProteinPeptideCollection.add(proteinPeptide);
+                            publicMatchTable.put(sequence, false);
+                        }
+                    }
+                }
+                if (matchingContext.hasPublicFilters()) {
+                    System.out.println(absentSequences + " new distinct peptide sequences of " + datasetName + " sample " + (currentSample + 1)
+                            + " are absent from the public Bloom filters.");
+                }
+                if (!distinctProteinPeptideCollection.isEmpty()) {
+                    System.out.println("Matching " + distinctProteinPeptideCollection.size()
+                            + " new distinct peptide sequences of " + datasetName + " sample " + (currentSample + 1) + " to the public protein database...");
+                    ColumnarProteinPeptideCollection unmatchedProteinPeptideCollection = matchingContext.matchToPublicDatabase(distinctProteinPeptideCollection);
+                    proteinPeptide = distinctProteinPeptideCollection.cursor();
+                    while (proteinPeptide.next()) {
+                        publicMatchTable.put(proteinPeptide.getMatchingSequence(), true);
+                    }
+                    proteinPeptide = unmatchedProteinPeptideCollection.cursor();
+                    while (proteinPeptide.next()) {
+                        publicMatchTable.put(proteinPeptide.getMatchingSequence(), false);
+                    }
+                }
+                //Remove known sequences by looking up the public database matches.
+                boolean[] matchedToDatabase = new boolean[proteinPeptideCollection.size()];
+                proteinPeptide = proteinPeptideCollection.cursor();
+                while (proteinPeptide.next()) {
+                    matchedToDatabase[proteinPeptide.getPosition()] = publicMatchTable.get(proteinPeptide.getMatchingSequence());
+                }
+                ColumnarProteinPeptideCollection filteredProteinPeptideCollection = proteinPeptideCollection.getUnflaggedRows(matchedToDatabase);
+                System.out.println(filteredProteinPeptideCollection.size() + " protein-peptides of " + datasetName
+                        + " sample " + (currentSample + 1) + " did not match to the public protein database.");
+                return filteredProteinPeptideCollection;
+            }
+        });
+        samplePipeline.addStage("reference database matching", new SamplePipeline.Stage() {
+            @Override
+            public ColumnarProteinPeptideCollection process(final int sample, final ColumnarProteinPeptideCollection proteinPeptideCollection)
+                    throws IOException, InterruptedException, ExecutionException {
+                return matchToReferenceDatabases(proteinPeptideCollection, datasetKeys.get(sample / sampleSize), sample % sampleSize,
+                        referenceUses[sample], referenceFileMap, matchingContext);
+            }
+        }, referenceThreads);
+        samplePipeline.addOrderedStage("matrix building", new SamplePipeline.Stage() {
+            @Override
+            public ColumnarProteinPeptideCollection process(final int sample, final ColumnarProteinPeptideCollection proteinPeptideCollection) throws IOException {
+                String datasetName = datasetKeys.get(sample / sampleSize);
+                addSampleNames(sampleList, proteinPeptideFileMap.get(datasetName), separator);
+                finalProteinPeptideCollection.addAll(proteinPeptideCollection);
+                //The matrices of a dataset also contain the protein-peptides of the datasets before it.
+                if (sample % sampleSize == sampleSize - 1) {
+                    writePeptideMatrices(outputPath, datasetName, finalProteinPeptideCollection, sampleList, sampleSize);
+                }
+                return proteinPeptideCollection;
+            }
+        });
+        samplePipeline.run();
     }
 
     
     /**
-     * Returns the amount of threads used for multithreading.
+     * Returns the value of an integer option, or the default value if the option is not given or not valid.
      *
      * @param cmd commandline arguments.
-     * @return amount of threads as Integer.
+     * @param option name of the option.
+     * @param defaultValue value used when the option is not given or not valid.
+     * @param minimum smallest valid value.
+     * @param maximum largest valid value.
+     * @return value of the option as Integer.
      */
-    private Integer getThreads(CommandLine cmd) {
-        Integer threads = 1;
-        if (cmd.hasOption("threads")) {
+    private Integer getIntegerOption(CommandLine cmd, String option, Integer defaultValue, Integer minimum, Integer maximum) {
+        Integer value = defaultValue;
+        if (cmd.hasOption(option)) {
             try {
-                threads = Integer.parseInt(cmd.getOptionValue("threads"));
+                value = Integer.parseInt(cmd.getOptionValue(option));
             } catch (Exception e) {
-                System.out.println("Please enter a number as input instead of " + cmd.getOptionValue("threads")
+                System.out.println("Please enter a number as input instead of " + cmd.getOptionValue(option)
                         + ".\nCurrent input results in error: " + e.getMessage());
             }
+            if (value < minimum || value > maximum) {
+                String range = "at least " + minimum;
+                if (maximum < Integer.MAX_VALUE) {
+                    range = "between " + minimum + " and " + maximum;
+                }
+                System.out.println("WARNING: -" + option + " should be " + range + ". Argument is automatically set to " + defaultValue + ".");
+                value = defaultValue;
+            }
         }
-        return threads;
+        return value;
+    }
+
+    /**
+     * Sets the substring lengths, false-positive rate and size of the Bloom filters.
+     *
+     * @param cmd commandline arguments.
+     */
+    private void getBloomFilterSettings(CommandLine cmd) {
+        if (cmd.hasOption("bloomFilter")) {
+            String lengths = cmd.getOptionValue("bloomFilter");
+            if (lengths.matches("[0-9]+(-[0-9]+)?")) {
+                String[] range = lengths.split("-");
+                int minLength = Integer.parseInt(range[0]);
+                int maxLength = Integer.parseInt(range[range.length - 1]);
+                if (minLength >= 1 && minLength <= maxLength) {
+                    bloomLengths = new int[]{minLength, maxLength};
+                }
+            }
+            if (bloomLengths == null) {
+                System.out.println("WARNING: invalid argument given to -bloomFilter. Please check your input: " + lengths);
+                System.out.println("The Bloom filter is not used.");
+            }
+        }
+        if (cmd.hasOption("bloomFalsePositiveRate")) {
+            try {
+                bloomFalsePositiveRate = Double.parseDouble(cmd.getOptionValue("bloomFalsePositiveRate"));
+            } catch (Exception e) {
+                System.out.println("Please enter a number as input instead of " + cmd.getOptionValue("bloomFalsePositiveRate")
+                        + ".\nCurrent input results in error: " + e.getMessage());
+            }
+            if (bloomFalsePositiveRate <= 0 || bloomFalsePositiveRate >= 1) {
+                System.out.println("WARNING: -bloomFalsePositiveRate should be between 0 and 1. Argument is automatically set to 0.01.");
+                bloomFalsePositiveRate = 0.01;
+            }
+        }
+        if (cmd.hasOption("bloomSize")) {
+            try {
+                bloomSize = Integer.parseInt(cmd.getOptionValue("bloomSize"));
+            } catch (Exception e) {
+                System.out.println("Please enter a number as input instead of " + cmd.getOptionValue("bloomSize")
+                        + ".\nCurrent input results in error: " + e.getMessage());
+            }
+            if (bloomSize < 0) {
+                System.out.println("WARNING: -bloomSize should be a positive number. The size is determined from the false-positive rate.");
+                bloomSize = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the engine used to match peptides to a protein database.
+     *
+     * @param cmd commandline arguments.
+     * @param option name of the option.
+     * @param engines pattern of the supported engines.
+     * @return name of the matching engine as String.
+     */
+    private String getMatchingEngine(CommandLine cmd, String option, String engines) {
+        String matcher = "boyer";
+        if (cmd.hasOption(option)) {
+            String value = cmd.getOptionValue(option).toLowerCase();
+            if (value.matches(engines)) {
+                matcher = value;
+            } else {
+                System.out.println("WARNING: invalid argument given to -" + option + ". Please check your input: " + value);
+                System.out.println("Argument is automatically set to boyer.");
+            }
+        }
+        return matcher;
     }
 
     /**
@@ -303,19 +956,61 @@ public class PeptideIdentificationModule {
 
     /**
      * Gets the correct public database.
+     * Proteins with a sequence that is already present are left out, because a peptide only has to match once.
      * 
      * @param proteinDataMap map of protein collections.
      * @return returns a combined collection of proteins from each given public protein database.
      */
     private ProteinCollection getPublicProteinDatabase(final HashMap<String, ArrayList<ProteinCollection>> proteinDataMap) {
         ProteinCollection proteinCollection = new ProteinCollection();
+        HashSet<String> sequences = new HashSet<>();
+        int duplicates = 0;
         for (Map.Entry<String, ArrayList<ProteinCollection>>mapEntry : proteinDataMap.entrySet()) {
             for (ProteinCollection collection: mapEntry.getValue()) {
                 //Match key to the current index of the size. -1 for single database files.
-                proteinCollection.getProteins().addAll(collection.getProteins());
+                for (Protein protein : collection.getProteins()) {
+                    if (sequences.add(protein.getSequence())) {
+                        proteinCollection.addProtein(protein);
+                    } else {
+                        duplicates++;
+                    }
+                }
             }
         }
-  
+        System.out.println("Combined " + proteinCollection.getProteins().size() + " distinct protein sequences of the public databases, "
+                + duplicates + " duplicate sequences are matched once.");
         return proteinCollection;
     }
+
+    /**
+     * Combines the off-heap collections of all public databases into one view. The residues are not copied, and
+     * duplicate sequences are kept, because removing them would require a copy.
+     * 
+     * @param proteinDataMap map of off-heap protein collections.
+     * @return returns a view of the proteins of each given public protein database.
+     */
+    private OffHeapProteinCollection getPublicOffHeapProteinDatabase(final HashMap<String, ArrayList<OffHeapProteinCollection>> proteinDataMap) {
+        ArrayList<OffHeapProteinCollection> collections = new ArrayList<>();
+        for (Map.Entry<String, ArrayList<OffHeapProteinCollection>> mapEntry : proteinDataMap.entrySet()) {
+            collections.addAll(mapEntry.getValue());
+        }
+        OffHeapProteinCollection proteinCollection = new OffHeapProteinCollection(collections);
+        System.out.println("Combined " + proteinCollection.getProteinCount() + " proteins of " + collections.size()
+                + " public databases without copying their sequences.");
+        return proteinCollection;
+    }
+
+    /**
+     * Gets the FM-indices of all public databases.
+     * 
+     * @param indexMap map of FM-indices.
+     * @return returns a list of the FM-indices of each given public protein database.
+     */
+    private ArrayList<FMIndex> getPublicIndices(final HashMap<String, ArrayList<FMIndex>> indexMap) {
+        ArrayList<FMIndex> indices = new ArrayList<>();
+        for (Map.Entry<String, ArrayList<FMIndex>> mapEntry : indexMap.entrySet()) {
+            indices.addAll(mapEntry.getValue());
+        }
+        return indices;
+    }
 }
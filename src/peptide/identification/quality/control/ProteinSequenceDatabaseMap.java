@@ -4,12 +4,25 @@
  */
 package peptide.identification.quality.control;
 
+import collection.creator.IndexedFastaReader;
 import collection.creator.ProteinFileReader;
+import collections.OffHeapProteinCollection;
 import collections.ProteinCollection;
+import collections.SequenceStore;
+import index.BloomFilter;
+import index.FMIndex;
+import index.PackedProteinDatabase;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Creates a HashMap of protein database fasta files.
@@ -18,27 +31,480 @@ import java.util.Map;
  */
 public class ProteinSequenceDatabaseMap {
 
+    /**
+     * Replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     */
+    private final boolean equateIsoleucineLeucine;
+
+    /**
+     * Extension that is added to the database file name before the extension of an index or filter file.
+     * Indices of the reduced alphabet are stored separately.
+     */
+    private final String indexVariant;
+
+    /**
+     * Store of the distinct protein sequences of all databases that were loaded by this map.
+     */
+    private final SequenceStore sequenceStore = new SequenceStore();
+
+    /**
+     * Amount of threads used to decompress .fasta.gz files.
+     */
+    private final int threads;
+
+    /**
+     * Amount of database files that are loaded at the same time.
+     */
+    private final int ioThreads;
+
+    /**
+     * Creates a database map that keeps the protein sequences as they are.
+     */
+    public ProteinSequenceDatabaseMap() {
+        this(false);
+    }
+
+    /**
+     * Creates a database map.
+     *
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     */
+    public ProteinSequenceDatabaseMap(final boolean equateIsoleucineLeucine) {
+        this(equateIsoleucineLeucine, 1);
+    }
+
+    /**
+     * Creates a database map that decompresses multi-member .fasta.gz files in parallel.
+     *
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     * @param threads amount of threads used to decompress .fasta.gz files.
+     */
+    public ProteinSequenceDatabaseMap(final boolean equateIsoleucineLeucine, final int threads) {
+        this(equateIsoleucineLeucine, threads, 1);
+    }
+
+    /**
+     * Creates a database map that loads several database files at the same time.
+     *
+     * @param equateIsoleucineLeucine replaces isoleucine (I) by leucine (L) in the protein sequences when true.
+     * @param threads amount of threads used to decompress .fasta.gz files.
+     * @param ioThreads amount of database files that are loaded at the same time.
+     */
+    public ProteinSequenceDatabaseMap(final boolean equateIsoleucineLeucine, final int threads, final int ioThreads) {
+        this.equateIsoleucineLeucine = equateIsoleucineLeucine;
+        this.threads = threads;
+        this.ioThreads = ioThreads;
+        if (equateIsoleucineLeucine) {
+            indexVariant = ".il";
+        } else {
+            indexVariant = "";
+        }
+    }
+
+    /**
+     * Loads the protein collection of one database file.
+     */
+    private static class ProteinCollectionLoader implements Callable<ProteinCollection> {
+
+        /**
+         * Reader of the database file. The reader does not keep state between files.
+         */
+        private final ProteinFileReader proteinReader;
+
+        /**
+         * Database file.
+         */
+        private final String file;
+
+        /**
+         * Creates a loader of a database file.
+         *
+         * @param proteinReader reader of the database file.
+         * @param file database file.
+         */
+        ProteinCollectionLoader(final ProteinFileReader proteinReader, final String file) {
+            this.proteinReader = proteinReader;
+            this.file = file;
+        }
+
+        /**
+         * Reads the database file.
+         *
+         * @return collection of the proteins of the file.
+         */
+        @Override
+        public ProteinCollection call() {
+            return proteinReader.createCollection(file, new ProteinCollection());
+        }
+    }
+
+    /**
+     * Loads the off-heap protein collection of one database file.
+     */
+    private static class OffHeapProteinCollectionLoader implements Callable<OffHeapProteinCollection> {
+
+        /**
+         * Reader of the database file. The reader does not keep state between files.
+         */
+        private final ProteinFileReader proteinReader;
+
+        /**
+         * Database file.
+         */
+        private final String file;
+
+        /**
+         * Creates a loader of a database file.
+         *
+         * @param proteinReader reader of the database file.
+         * @param file database file.
+         */
+        OffHeapProteinCollectionLoader(final ProteinFileReader proteinReader, final String file) {
+            this.proteinReader = proteinReader;
+            this.file = file;
+        }
+
+        /**
+         * Reads the database file.
+         *
+         * @return off-heap collection of the proteins of the file.
+         */
+        @Override
+        public OffHeapProteinCollection call() {
+            return proteinReader.createOffHeapCollection(file);
+        }
+    }
+
+    /**
+     * Loads the FM-index of one database file.
+     */
+    private class FMIndexLoader implements Callable<FMIndex> {
+
+        /**
+         * Database file.
+         */
+        private final String file;
+
+        /**
+         * Creates a loader of an FM-index.
+         *
+         * @param file database file.
+         */
+        FMIndexLoader(final String file) {
+            this.file = file;
+        }
+
+        /**
+         * Loads or creates the FM-index of the database file.
+         *
+         * @return FM-index of the database.
+         * @throws IOException could not read the database file.
+         */
+        @Override
+        public FMIndex call() throws IOException {
+            return getFMIndex(file);
+        }
+    }
+
+    /**
+     * Runs the loaders of all files with ioThreads threads and returns the results in the order of the files.
+     *
+     * @param <T> type of the loaded objects.
+     * @param loaderMap HashMap with database index as key and a loader of each file as value.
+     * @return HashMap with database index as key and the loaded object of each file as value.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException a loader threw an exception.
+     */
+    private <T> HashMap<String, ArrayList<T>> load(final LinkedHashMap<String, ArrayList<Callable<T>>> loaderMap)
+            throws InterruptedException, ExecutionException {
+        ExecutorService pool = Executors.newFixedThreadPool(ioThreads);
+        HashMap<String, ArrayList<T>> databaseMap = new HashMap<>();
+        try {
+            LinkedHashMap<String, ArrayList<Future<T>>> futureMap = new LinkedHashMap<>();
+            for (Map.Entry<String, ArrayList<Callable<T>>> entryMap : loaderMap.entrySet()) {
+                ArrayList<Future<T>> futures = new ArrayList<>();
+                for (Callable<T> loader : entryMap.getValue()) {
+                    futures.add(pool.submit(loader));
+                }
+                futureMap.put(entryMap.getKey(), futures);
+            }
+            for (Map.Entry<String, ArrayList<Future<T>>> entryMap : futureMap.entrySet()) {
+                ArrayList<T> results = new ArrayList<>();
+                for (Future<T> future : entryMap.getValue()) {
+                    results.add(future.get());
+                }
+                databaseMap.put(entryMap.getKey(), results);
+            }
+        } finally {
+            //Shutdown command for the pool to prevent the script from running infinitely.
+            pool.shutdownNow();
+        }
+        return databaseMap;
+    }
+
     /**
      * Reads a HashMap of database files and creates protein collections of the given files.
+     * Up to ioThreads files are loaded at the same time.
      *
      * @param databaseEntryMap HashMap with database index as key and a list of files as value.
      * @return HashMap with database index as Key and a HashMap as value. This HashMap has sample name as key and a
      * ProteinDatabaseSequenceCollection as value.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not load a database file.
      */
     public final HashMap<String, ArrayList<ProteinCollection>> createProteinSequenceDatabaseMap(
-            LinkedHashMap<String, ArrayList<String>> databaseEntryMap) {
-        ProteinFileReader proteinReader = new ProteinFileReader();
+            LinkedHashMap<String, ArrayList<String>> databaseEntryMap) throws InterruptedException, ExecutionException {
+        ProteinFileReader proteinReader = new ProteinFileReader(equateIsoleucineLeucine, sequenceStore, threads);
         //Gather files for each index.
-        HashMap<String, ArrayList<ProteinCollection>> databaseMap = new HashMap<>();
+        LinkedHashMap<String, ArrayList<Callable<ProteinCollection>>> loaderMap = new LinkedHashMap<>();
         for (Map.Entry<String, ArrayList<String>> entryMap : databaseEntryMap.entrySet()) {
-            ArrayList<ProteinCollection> proteinCollectionList = new ArrayList<>();
+            ArrayList<Callable<ProteinCollection>> loaders = new ArrayList<>();
             for (String file : entryMap.getValue()) {
-                ProteinCollection proteins = new ProteinCollection();
-                proteinReader.createCollection(file, proteins);
-                proteinCollectionList.add(proteins);
+                loaders.add(new ProteinCollectionLoader(proteinReader, file));
             }
-            databaseMap.put(entryMap.getKey(), proteinCollectionList);
+            loaderMap.put(entryMap.getKey(), loaders);
         }
-        return databaseMap;
+        return load(loaderMap);
+    }
+
+    /**
+     * Reads a HashMap of database files and creates off-heap protein collections of the given files.
+     * Up to ioThreads files are loaded at the same time.
+     *
+     * @param databaseEntryMap HashMap with database index as key and a list of files as value.
+     * @return HashMap with database index as Key and a list of off-heap protein collections as value.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not load a database file.
+     */
+    public final HashMap<String, ArrayList<OffHeapProteinCollection>> createOffHeapProteinCollectionMap(
+            LinkedHashMap<String, ArrayList<String>> databaseEntryMap) throws InterruptedException, ExecutionException {
+        ProteinFileReader proteinReader = new ProteinFileReader(equateIsoleucineLeucine, null, threads);
+        LinkedHashMap<String, ArrayList<Callable<OffHeapProteinCollection>>> loaderMap = new LinkedHashMap<>();
+        for (Map.Entry<String, ArrayList<String>> entryMap : databaseEntryMap.entrySet()) {
+            ArrayList<Callable<OffHeapProteinCollection>> loaders = new ArrayList<>();
+            for (String file : entryMap.getValue()) {
+                loaders.add(new OffHeapProteinCollectionLoader(proteinReader, file));
+            }
+            loaderMap.put(entryMap.getKey(), loaders);
+        }
+        return load(loaderMap);
+    }
+
+    /**
+     * Converts each database file to a packed database file that is saved next to the database file. Files that
+     * already have an up to date packed database file are skipped.
+     *
+     * @param databaseEntryMap HashMap with database index as key and a list of files as value.
+     */
+    public final void createPackedDatabases(LinkedHashMap<String, ArrayList<String>> databaseEntryMap) {
+        for (ArrayList<String> files : databaseEntryMap.values()) {
+            for (String file : files) {
+                File database = new File(file);
+                File packedFile = new File(file + PackedProteinDatabase.EXTENSION);
+                if (packedFile.isFile()) {
+                    try {
+                        if (PackedProteinDatabase.load(packedFile).isCreatedFrom(database)) {
+                            continue;
+                        }
+                        System.out.println("Packed database " + packedFile + " is outdated and will be created again.");
+                    } catch (IOException ex) {
+                        System.out.println("Could not read packed database " + packedFile + ": " + ex.getMessage());
+                    }
+                }
+                try {
+                    System.out.println("Creating packed database of " + file + "...");
+                    PackedProteinDatabase.convert(file, packedFile);
+                    System.out.println("Saved packed database to " + packedFile);
+                } catch (IOException ex) {
+                    System.out.println("Could not create packed database " + packedFile + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the FASTA index of each database file that is saved next to the database file, so single proteins can
+     * be read by accession. Files that already have an up to date index are skipped.
+     *
+     * @param databaseEntryMap HashMap with database index as key and a list of files as value.
+     */
+    public final void createFastaIndices(LinkedHashMap<String, ArrayList<String>> databaseEntryMap) {
+        for (ArrayList<String> files : databaseEntryMap.values()) {
+            for (String file : files) {
+                try {
+                    IndexedFastaReader.getFastaIndex(file, threads);
+                } catch (IOException ex) {
+                    System.out.println("Could not create FASTA index of " + file + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the store of the distinct protein sequences of all loaded databases.
+     *
+     * @return store of sequences.
+     */
+    public final SequenceStore getSequenceStore() {
+        return sequenceStore;
+    }
+
+    /**
+     * Creates a prefetcher that loads the protein collection of each database file when it is used.
+     * Sequences that are already loaded by this map are reused, but the sequences of these files are not added to
+     * the store of this map, so they are released together with their collection.
+     *
+     * @param files database files in the order of use.
+     * @return prefetcher of protein collections.
+     */
+    public final DatabasePrefetcher<ProteinCollection> createProteinCollectionPrefetcher(final ArrayList<String> files) {
+        HashMap<String, Callable<ProteinCollection>> loaders = new HashMap<>();
+        for (String file : files) {
+            if (!loaders.containsKey(file)) {
+                ProteinFileReader proteinReader = new ProteinFileReader(equateIsoleucineLeucine, new SequenceStore(sequenceStore), threads);
+                loaders.put(file, new ProteinCollectionLoader(proteinReader, file));
+            }
+        }
+        return new DatabasePrefetcher<>(files, loaders);
+    }
+
+    /**
+     * Creates a prefetcher that loads the off-heap protein collection of each database file when it is used.
+     *
+     * @param files database files in the order of use.
+     * @return prefetcher of off-heap protein collections.
+     */
+    public final DatabasePrefetcher<OffHeapProteinCollection> createOffHeapProteinCollectionPrefetcher(final ArrayList<String> files) {
+        ProteinFileReader proteinReader = new ProteinFileReader(equateIsoleucineLeucine, null, threads);
+        HashMap<String, Callable<OffHeapProteinCollection>> loaders = new HashMap<>();
+        for (String file : files) {
+            loaders.put(file, new OffHeapProteinCollectionLoader(proteinReader, file));
+        }
+        return new DatabasePrefetcher<>(files, loaders);
+    }
+
+    /**
+     * Creates a prefetcher that loads the FM-index of each database file when it is used.
+     *
+     * @param files database files in the order of use.
+     * @return prefetcher of FM-indices.
+     */
+    public final DatabasePrefetcher<FMIndex> createFMIndexPrefetcher(final ArrayList<String> files) {
+        HashMap<String, Callable<FMIndex>> loaders = new HashMap<>();
+        for (String file : files) {
+            loaders.put(file, new FMIndexLoader(file));
+        }
+        return new DatabasePrefetcher<>(files, loaders);
+    }
+
+    /**
+     * Reads a HashMap of database files and loads the FM-index of each file.
+     * Indices are created and saved next to the database file when they are missing or outdated.
+     * Up to ioThreads files are loaded at the same time.
+     *
+     * @param databaseEntryMap HashMap with database index as key and a list of files as value.
+     * @return HashMap with database index as Key and a list of FM-indices as value.
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException could not load a database file.
+     */
+    public final HashMap<String, ArrayList<FMIndex>> createFMIndexMap(LinkedHashMap<String, ArrayList<String>> databaseEntryMap)
+            throws InterruptedException, ExecutionException {
+        LinkedHashMap<String, ArrayList<Callable<FMIndex>>> loaderMap = new LinkedHashMap<>();
+        for (Map.Entry<String, ArrayList<String>> entryMap : databaseEntryMap.entrySet()) {
+            ArrayList<Callable<FMIndex>> loaders = new ArrayList<>();
+            for (String file : entryMap.getValue()) {
+                loaders.add(new FMIndexLoader(file));
+            }
+            loaderMap.put(entryMap.getKey(), loaders);
+        }
+        return load(loaderMap);
+    }
+
+    /**
+     * Loads the Bloom filter of each database file. Filters are created from the protein collections and saved next
+     * to the database file when they are missing or were created with other settings.
+     *
+     * @param databaseEntryMap HashMap with database index as key and a list of files as value.
+     * @param proteinCollectionMap HashMap with database index as key and the protein collection of each file as value.
+     * @param minLength shortest substring length.
+     * @param maxLength longest substring length.
+     * @param falsePositiveRate false-positive rate used to determine the size of a filter.
+     * @param bitCount amount of bits of each filter, or 0 to determine the size from the false-positive rate.
+     * @return list of Bloom filters.
+     */
+    public final ArrayList<BloomFilter> createBloomFilterList(LinkedHashMap<String, ArrayList<String>> databaseEntryMap,
+            HashMap<String, ArrayList<ProteinCollection>> proteinCollectionMap, final int minLength, final int maxLength,
+            final double falsePositiveRate, final long bitCount) {
+        ArrayList<BloomFilter> filters = new ArrayList<>();
+        for (Map.Entry<String, ArrayList<String>> entryMap : databaseEntryMap.entrySet()) {
+            ArrayList<String> files = entryMap.getValue();
+            for (int i = 0; i < files.size(); i++) {
+                File database = new File(files.get(i));
+                File filterFile = new File(files.get(i) + indexVariant + BloomFilter.EXTENSION);
+                BloomFilter filter = null;
+                if (filterFile.isFile()) {
+                    try {
+                        filter = BloomFilter.load(filterFile);
+                        if (filter.isCreatedFrom(database, minLength, maxLength, falsePositiveRate, bitCount)) {
+                            System.out.println("Loaded Bloom filter from " + filterFile);
+                        } else {
+                            System.out.println("Bloom filter " + filterFile + " is outdated and will be created again.");
+                            filter = null;
+                        }
+                    } catch (IOException ex) {
+                        System.out.println("Could not read Bloom filter " + filterFile + ": " + ex.getMessage());
+                        filter = null;
+                    }
+                }
+                if (filter == null) {
+                    System.out.println("Creating Bloom filter of " + files.get(i) + "...");
+                    filter = new BloomFilter(proteinCollectionMap.get(entryMap.getKey()).get(i), database, minLength, maxLength,
+                            falsePositiveRate, bitCount);
+                    try {
+                        filter.save(filterFile);
+                        System.out.println("Saved Bloom filter to " + filterFile);
+                    } catch (IOException ex) {
+                        System.out.println("Could not save Bloom filter " + filterFile + ": " + ex.getMessage());
+                    }
+                }
+                System.out.println(String.format("Bloom filter of %.1f MB with %d hash functions, estimated false-positive rate %.4f.",
+                        filter.getBitCount() / 8.0 / 1024 / 1024, filter.getHashCount(), filter.getFalsePositiveRate()));
+                filters.add(filter);
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * Loads the FM-index of a database file, or creates it when it does not exist yet.
+     *
+     * @param file database file.
+     * @return FM-index of the database.
+     * @throws IOException could not read the database file.
+     */
+    private FMIndex getFMIndex(final String file) throws IOException {
+        File database = new File(file);
+        File indexFile = new File(file + indexVariant + FMIndex.EXTENSION);
+        if (indexFile.isFile()) {
+            try {
+                FMIndex index = FMIndex.load(indexFile);
+                if (index.isCreatedFrom(database)) {
+                    System.out.println("Loaded FM-index of " + index.getProteinCount() + " proteins from " + indexFile);
+                    return index;
+                }
+                System.out.println("FM-index " + indexFile + " is outdated and will be created again.");
+            } catch (IOException ex) {
+                System.out.println("Could not read FM-index " + indexFile + ": " + ex.getMessage());
+            }
+        }
+        System.out.println("Creating FM-index of " + file + "...");
+        FMIndex index = FMIndex.create(file, equateIsoleucineLeucine, threads);
+        try {
+            index.save(indexFile);
+            System.out.println("Saved FM-index to " + indexFile);
+        } catch (IOException ex) {
+            System.out.println("Could not save FM-index " + indexFile + ": " + ex.getMessage());
+        }
+        return index;
     }
 }
@@ -0,0 +1,325 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package peptide.identification.quality.control;
+
+import collections.ColumnarProteinPeptideCollection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes the samples in stages that run at the same time, such as reading, database matching and matrix building.
+ * Each stage has its own threads and passes the protein-peptide collection of a sample to the next stage through a
+ * bounded queue. A stage waits when the queue of the next stage is full, so a fast stage does not read ahead more
+ * samples than the queue holds. An ordered stage has one thread and processes the samples in the order of their index.
+ * The first stage only starts a sample when it is less than the queue size ahead of the next sample of each ordered
+ * stage, so samples that arrive early at an ordered stage can not pile up while it waits for a slow sample.
+ *
+ * @author vnijenhuis
+ */
+public class SamplePipeline {
+
+    /**
+     * Amount of samples.
+     */
+    private final int sampleCount;
+
+    /**
+     * Amount of samples that fit in the queue in front of a stage.
+     */
+    private final int queueSize;
+
+    /**
+     * Stages in the order in which a sample passes them.
+     */
+    private final ArrayList<StageThreads> stages = new ArrayList<>();
+
+    /**
+     * Lock used to wait until a sample may be started, notified when an ordered stage finished a sample.
+     */
+    private final Object window = new Object();
+
+    /**
+     * Processes a sample in a stage.
+     */
+    public interface Stage {
+
+        /**
+         * Processes the collection of a sample.
+         *
+         * @param sample index of the sample.
+         * @param proteinPeptideCollection collection of the previous stage, or null in the first stage.
+         * @return collection that is passed to the next stage.
+         * @throws Exception could not process the sample.
+         */
+        ColumnarProteinPeptideCollection process(int sample, ColumnarProteinPeptideCollection proteinPeptideCollection) throws Exception;
+    }
+
+    /**
+     * Collection of a sample that waits in a queue.
+     */
+    private static class Item {
+
+        /**
+         * Index of the sample.
+         */
+        private final int sample;
+
+        /**
+         * Collection of the sample.
+         */
+        private final ColumnarProteinPeptideCollection proteinPeptideCollection;
+
+        /**
+         * Creates an item.
+         *
+         * @param sample index of the sample.
+         * @param proteinPeptideCollection collection of the sample.
+         */
+        Item(final int sample, final ColumnarProteinPeptideCollection proteinPeptideCollection) {
+            this.sample = sample;
+            this.proteinPeptideCollection = proteinPeptideCollection;
+        }
+    }
+
+    /**
+     * A stage with its threads and input queue.
+     */
+    private static class StageThreads {
+
+        /**
+         * Name of the stage, used in error messages.
+         */
+        private final String name;
+
+        /**
+         * Processes the samples.
+         */
+        private final Stage stage;
+
+        /**
+         * Amount of threads.
+         */
+        private final int threads;
+
+        /**
+         * True if the samples are processed in the order of their index.
+         */
+        private final boolean ordered;
+
+        /**
+         * Queue of the samples that wait for this stage, or null for the first stage.
+         */
+        private BlockingQueue<Item> queue;
+
+        /**
+         * Amount of samples that were taken from the queue or started by the first stage.
+         */
+        private final AtomicInteger taken = new AtomicInteger();
+
+        /**
+         * Index of the next sample that an ordered stage processes. Guarded by the window lock.
+         */
+        private int nextSample = 0;
+
+        /**
+         * Creates a stage.
+         *
+         * @param name name of the stage.
+         * @param stage processes the samples.
+         * @param threads amount of threads.
+         * @param ordered true if the samples are processed in the order of their index.
+         */
+        StageThreads(final String name, final Stage stage, final int threads, final boolean ordered) {
+            this.name = name;
+            this.stage = stage;
+            this.threads = threads;
+            this.ordered = ordered;
+        }
+    }
+
+    /**
+     * Thread of a stage.
+     */
+    private class Worker implements Callable<Void> {
+
+        /**
+         * Index of the stage.
+         */
+        private final int stageIndex;
+
+        /**
+         * Creates a thread of a stage.
+         *
+         * @param stageIndex index of the stage.
+         */
+        Worker(final int stageIndex) {
+            this.stageIndex = stageIndex;
+        }
+
+        /**
+         * Processes samples until all samples passed the stage.
+         *
+         * @return nothing.
+         * @throws Exception could not process a sample.
+         */
+        @Override
+        public Void call() throws Exception {
+            StageThreads current = stages.get(stageIndex);
+            BlockingQueue<Item> next = null;
+            if (stageIndex + 1 < stages.size()) {
+                next = stages.get(stageIndex + 1).queue;
+            }
+            //Samples that arrived before the sample that an ordered stage waits for. These are taken from the queue, so the
+            //thread of the previous stage that processes the awaited sample can always add it. The first stage does not
+            //start samples outside of the window, so this holds less samples than the queue size.
+            HashMap<Integer, Item> waiting = new HashMap<>();
+            int sample;
+            while ((sample = current.taken.getAndIncrement()) < sampleCount) {
+                Item item;
+                if (current.queue == null) {
+                    waitForWindow(sample);
+                    item = new Item(sample, null);
+                } else if (current.ordered) {
+                    item = waiting.remove(sample);
+                    while (item == null) {
+                        Item arrived = current.queue.take();
+                        if (arrived.sample == sample) {
+                            item = arrived;
+                        } else {
+                            waiting.put(arrived.sample, arrived);
+                        }
+                    }
+                } else {
+                    item = current.queue.take();
+                }
+                ColumnarProteinPeptideCollection processed;
+                try {
+                    processed = current.stage.process(item.sample, item.proteinPeptideCollection);
+                } catch (InterruptedException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new ExecutionException("Stage " + current.name + " failed on sample " + (item.sample + 1) + ".", ex);
+                }
+                if (next != null) {
+                    next.put(new Item(item.sample, processed));
+                }
+                if (current.ordered) {
+                    synchronized (window) {
+                        current.nextSample = item.sample + 1;
+                        window.notifyAll();
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Waits until a sample is less than the queue size ahead of the next sample of each ordered stage.
+     *
+     * @param sample index of the sample.
+     * @throws InterruptedException process was interrupted.
+     */
+    private void waitForWindow(final int sample) throws InterruptedException {
+        synchronized (window) {
+            boolean inWindow = false;
+            while (!inWindow) {
+                inWindow = true;
+                for (StageThreads stage : stages) {
+                    if (stage.ordered && sample >= stage.nextSample + queueSize) {
+                        inWindow = false;
+                    }
+                }
+                if (!inWindow) {
+                    window.wait();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a pipeline without stages.
+     *
+     * @param sampleCount amount of samples.
+     * @param queueSize amount of samples that fit in the queue in front of a stage.
+     */
+    public SamplePipeline(final int sampleCount, final int queueSize) {
+        this.sampleCount = sampleCount;
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    /**
+     * Adds a stage after the previous stages. The samples are processed in any order.
+     *
+     * @param name name of the stage.
+     * @param stage processes the samples.
+     * @param threads amount of threads.
+     */
+    public final void addStage(final String name, final Stage stage, final int threads) {
+        addStage(name, stage, Math.max(1, threads), false);
+    }
+
+    /**
+     * Adds a stage after the previous stages that processes the samples one at a time, in the order of their index.
+     *
+     * @param name name of the stage.
+     * @param stage processes the samples.
+     */
+    public final void addOrderedStage(final String name, final Stage stage) {
+        addStage(name, stage, 1, true);
+    }
+
+    /**
+     * Adds a stage after the previous stages.
+     *
+     * @param name name of the stage.
+     * @param stage processes the samples.
+     * @param threads amount of threads.
+     * @param ordered true if the samples are processed in the order of their index.
+     */
+    private void addStage(final String name, final Stage stage, final int threads, final boolean ordered) {
+        StageThreads stageThreads = new StageThreads(name, stage, threads, ordered);
+        if (!stages.isEmpty()) {
+            stageThreads.queue = new ArrayBlockingQueue<>(queueSize);
+        }
+        stages.add(stageThreads);
+    }
+
+    /**
+     * Runs all stages until every sample passed the last stage. All stages are stopped when a stage fails.
+     *
+     * @throws InterruptedException process was interrupted.
+     * @throws ExecutionException a stage could not process a sample.
+     */
+    public final void run() throws InterruptedException, ExecutionException {
+        int threads = 0;
+        for (StageThreads stage : stages) {
+            threads += stage.threads;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        ExecutorCompletionService<Void> completionService = new ExecutorCompletionService<>(pool);
+        try {
+            for (int stageIndex = 0; stageIndex < stages.size(); stageIndex++) {
+                for (int thread = 0; thread < stages.get(stageIndex).threads; thread++) {
+                    completionService.submit(new Worker(stageIndex));
+                }
+            }
+            for (int thread = 0; thread < threads; thread++) {
+                completionService.take().get();
+            }
+        } finally {
+            //Stops the other stages when a stage failed. Shutdown command for the pool to prevent the script from running infinitely.
+            pool.shutdownNow();
+        }
+    }
+}
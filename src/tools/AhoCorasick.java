@@ -0,0 +1,372 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package tools;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick automaton for matching many peptide sequences in a single pass over a protein sequence.
+ * The automaton is immutable after construction and can be shared between threads.
+ * Only the root has a transition for every symbol. Other states keep the edges of the trie and follow failure links
+ * when a symbol has no edge, so the memory use grows with the amount of states and not with the size of the alphabet.
+ *
+ * @author vnijenhuis
+ */
+public class AhoCorasick {
+
+    /**
+     * The radix. Characters above this value can not be part of a pattern.
+     */
+    private static final int RADIX = 256;
+
+    /**
+     * Maps a character to its symbol index. Symbol 0 is used for characters that are not part of any pattern.
+     */
+    private final int[] alphabetIndex;
+
+    /**
+     * Amount of symbols used by the automaton, including the unknown symbol.
+     */
+    private final int alphabetSize;
+
+    /**
+     * Next state of the root for each symbol.
+     */
+    private final int[] rootTransitions;
+
+    /**
+     * Index of the first child of each state in the children array. The children of state i end at the start of i + 1.
+     */
+    private int[] childStarts;
+
+    /**
+     * Children of all states, grouped by their parent.
+     */
+    private int[] children;
+
+    /**
+     * Symbol of the edge from the parent to each state.
+     */
+    private char[] stateSymbols;
+
+    /**
+     * Longest proper suffix of each state that is also a state.
+     */
+    private int[] failure;
+
+    /**
+     * True if a pattern ends at the given state.
+     */
+    private boolean[] terminal;
+
+    /**
+     * Nearest terminal state on the failure chain of each state, -1 if there is none.
+     */
+    private int[] outputLinks;
+
+    /**
+     * Amount of states in the automaton.
+     */
+    private int stateCount;
+
+    /**
+     * Terminal state of each pattern, in the order that the patterns were given.
+     */
+    private final int[] patternStates;
+
+    /**
+     * Amount of distinct terminal states.
+     */
+    private int terminalCount;
+
+    /**
+     * Builds the automaton of the given patterns.
+     *
+     * @param patterns list of patterns to search for.
+     */
+    public AhoCorasick(final ArrayList<String> patterns) {
+        alphabetIndex = new int[RADIX];
+        int symbols = 1;
+        int residues = 1;
+        for (String pattern : patterns) {
+            residues += pattern.length();
+            for (int i = 0; i < pattern.length(); i++) {
+                char residue = pattern.charAt(i);
+                if (alphabetIndex[residue] == 0) {
+                    alphabetIndex[residue] = symbols;
+                    symbols++;
+                }
+            }
+        }
+        alphabetSize = symbols;
+        rootTransitions = new int[alphabetSize];
+        //Each new state is created by one edge, so a state is described by its parent and the symbol of the edge.
+        int[] parents = new int[residues];
+        stateSymbols = new char[residues];
+        terminal = new boolean[residues];
+        stateCount = 1;
+        patternStates = new int[patterns.size()];
+        //Edges of the trie during construction, found by parent and symbol.
+        int capacity = Integer.highestOneBit(Math.max(residues, 2) * 2);
+        long[] edgeKeys = new long[capacity];
+        Arrays.fill(edgeKeys, -1);
+        int[] edgeStates = new int[capacity];
+        for (int p = 0; p < patterns.size(); p++) {
+            String pattern = patterns.get(p);
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                int symbol = alphabetIndex[pattern.charAt(i)];
+                long key = (long) state * alphabetSize + symbol;
+                int slot = mix(key) & (capacity - 1);
+                while (edgeKeys[slot] != -1 && edgeKeys[slot] != key) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                if (edgeKeys[slot] == -1) {
+                    edgeKeys[slot] = key;
+                    edgeStates[slot] = stateCount;
+                    parents[stateCount] = state;
+                    stateSymbols[stateCount] = (char) symbol;
+                    stateCount++;
+                }
+                state = edgeStates[slot];
+            }
+            if (!terminal[state]) {
+                terminal[state] = true;
+                terminalCount++;
+            }
+            patternStates[p] = state;
+        }
+        createChildLists(parents);
+        createFailureTransitions();
+    }
+
+    /**
+     * Groups the states by their parent and shrinks the state arrays to the amount of states that was built.
+     *
+     * @param parents parent of each state.
+     */
+    private void createChildLists(final int[] parents) {
+        childStarts = new int[stateCount + 1];
+        for (int state = 1; state < stateCount; state++) {
+            childStarts[parents[state] + 1]++;
+        }
+        for (int state = 0; state < stateCount; state++) {
+            childStarts[state + 1] += childStarts[state];
+        }
+        children = new int[Math.max(stateCount - 1, 0)];
+        int[] positions = Arrays.copyOf(childStarts, stateCount);
+        for (int state = 1; state < stateCount; state++) {
+            children[positions[parents[state]]++] = state;
+        }
+        stateSymbols = Arrays.copyOf(stateSymbols, stateCount);
+        terminal = Arrays.copyOf(terminal, stateCount);
+        for (int child = childStarts[0]; child < childStarts[1]; child++) {
+            rootTransitions[stateSymbols[children[child]]] = children[child];
+        }
+    }
+
+    /**
+     * Adds the failure links and output links to the trie in breadth-first order.
+     */
+    private void createFailureTransitions() {
+        failure = new int[stateCount];
+        outputLinks = new int[stateCount];
+        outputLinks[0] = -1;
+        int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+        for (int child = childStarts[0]; child < childStarts[1]; child++) {
+            failure[children[child]] = 0;
+            outputLinks[children[child]] = -1;
+            queue[tail++] = children[child];
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int child = childStarts[state]; child < childStarts[state + 1]; child++) {
+                int childState = children[child];
+                int fallback = getNextState(failure[state], stateSymbols[childState]);
+                failure[childState] = fallback;
+                if (terminal[fallback]) {
+                    outputLinks[childState] = fallback;
+                } else {
+                    outputLinks[childState] = outputLinks[fallback];
+                }
+                queue[tail++] = childState;
+            }
+        }
+    }
+
+    /**
+     * Returns the state after reading a symbol, following failure links until a state has an edge for the symbol.
+     *
+     * @param state current state.
+     * @param symbol symbol index.
+     * @return next state.
+     */
+    private int getNextState(final int state, final int symbol) {
+        int current = state;
+        while (current != 0) {
+            for (int child = childStarts[current]; child < childStarts[current + 1]; child++) {
+                if (stateSymbols[children[child]] == symbol) {
+                    return children[child];
+                }
+            }
+            current = failure[current];
+        }
+        return rootTransitions[symbol];
+    }
+
+    /**
+     * Streams the text through the automaton and marks the terminal states of all patterns that occur in the text.
+     * States that were marked before are not followed again, so the marking work is bounded by the amount of patterns.
+     *
+     * @param text text to search in, usually a protein sequence.
+     * @param matchedStates array of size getStateCount() that is used to mark the matched states.
+     * @return amount of terminal states that were newly marked.
+     */
+    public final int searchPatterns(final String text, final boolean[] matchedStates) {
+        int newMatches = 0;
+        if (terminal[0] && !matchedStates[0]) {
+            matchedStates[0] = true;
+            newMatches++;
+        }
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char residue = text.charAt(i);
+            int symbol = 0;
+            if (residue < RADIX) {
+                symbol = alphabetIndex[residue];
+            }
+            state = getNextState(state, symbol);
+            int output = state;
+            if (!terminal[output]) {
+                output = outputLinks[output];
+            }
+            while (output > 0 && !matchedStates[output]) {
+                matchedStates[output] = true;
+                newMatches++;
+                output = outputLinks[output];
+            }
+        }
+        return newMatches;
+    }
+
+    /**
+     * Streams the text through the automaton like searchPatterns, but marks the matched states in a set that is shared
+     * by several threads. A state that is marked by another thread is not followed again. The thread that marks a
+     * state also marks the states on its output chain, so all matches are marked once every search has returned.
+     *
+     * @param text text to search in, usually a protein sequence.
+     * @param matchedStates set of getStateCount() bits that is used to mark the matched states.
+     * @return amount of terminal states that were newly marked by this call.
+     */
+    public final int searchPatterns(final String text, final ConcurrentBitSet matchedStates) {
+        int newMatches = 0;
+        if (terminal[0] && matchedStates.set(0)) {
+            newMatches++;
+        }
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char residue = text.charAt(i);
+            int symbol = 0;
+            if (residue < RADIX) {
+                symbol = alphabetIndex[residue];
+            }
+            state = getNextState(state, symbol);
+            int output = state;
+            if (!terminal[output]) {
+                output = outputLinks[output];
+            }
+            while (output > 0 && matchedStates.set(output)) {
+                newMatches++;
+                output = outputLinks[output];
+            }
+        }
+        return newMatches;
+    }
+
+    /**
+     * Streams a part of a buffer of ASCII residues through the automaton, like searchPatterns does for a String.
+     *
+     * @param text buffer to search in, read with absolute get methods.
+     * @param start position of the first byte that is searched.
+     * @param end position after the last byte that is searched.
+     * @param matchedStates array of size getStateCount() that is used to mark the matched states.
+     * @return amount of terminal states that were newly marked.
+     */
+    public final int searchPatterns(final ByteBuffer text, final int start, final int end, final boolean[] matchedStates) {
+        int newMatches = 0;
+        if (terminal[0] && !matchedStates[0]) {
+            matchedStates[0] = true;
+            newMatches++;
+        }
+        int state = 0;
+        for (int i = start; i < end; i++) {
+            state = getNextState(state, alphabetIndex[text.get(i) & 0xff]);
+            int output = state;
+            if (!terminal[output]) {
+                output = outputLinks[output];
+            }
+            while (output > 0 && !matchedStates[output]) {
+                matchedStates[output] = true;
+                newMatches++;
+                output = outputLinks[output];
+            }
+        }
+        return newMatches;
+    }
+    /**
+     * Returns the amount of states.
+     *
+     * @return amount of states as int.
+     */
+    public final int getStateCount() {
+        return stateCount;
+    }
+
+    /**
+     * Returns the amount of distinct patterns.
+     *
+     * @return amount of terminal states as int.
+     */
+    public final int getTerminalCount() {
+        return terminalCount;
+    }
+
+    /**
+     * Checks if the pattern at the given index was marked by searchPatterns.
+     *
+     * @param patternIndex index of the pattern in the list given to the constructor.
+     * @param matchedStates marked states.
+     * @return true if the pattern was found, else false.
+     */
+    public final boolean isMatched(final int patternIndex, final boolean[] matchedStates) {
+        return matchedStates[patternStates[patternIndex]];
+    }
+
+    /**
+     * Checks if the pattern at the given index was marked in a shared set of matched states.
+     *
+     * @param patternIndex index of the pattern in the list given to the constructor.
+     * @param matchedStates marked states.
+     * @return true if the pattern was found, else false.
+     */
+    public final boolean isMatched(final int patternIndex, final ConcurrentBitSet matchedStates) {
+        return matchedStates.get(patternStates[patternIndex]);
+    }
+
+    /**
+     * Spreads the bits of an edge key over the slots of the edge table.
+     *
+     * @param key parent state times the alphabet size plus the symbol.
+     * @return mixed hash code.
+     */
+    private static int mix(final long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+}
@@ -5,6 +5,8 @@
  */
 package tools;
 
+import java.nio.ByteBuffer;
+
 /**
  * Boyer Moore algorithm for faster peptide matching.
  * @author Arne Roeters
@@ -75,4 +77,30 @@ public class Boyer {
         }
         return false; // not found
     }
+
+    /**
+     * Searches for the pattern in a part of a buffer of ASCII residues.
+     * @param bytes buffer to search in, read with absolute get methods.
+     * @param start position of the first byte that is searched.
+     * @param end position after the last byte that is searched.
+     * @return position of the first occurrence of the pattern, or -1 if the pattern is not found.
+     */
+    public final int findPattern(final ByteBuffer bytes, final int start, final int end) {
+        int patLen = pattern.length();
+        int shift;
+        for (int i = start; i <= end - patLen; i += shift) {
+            //Reset shift to zero.
+            shift = 0;
+            for (int j = patLen - 1; j >= 0; j--) {
+                int residue = bytes.get(i + j) & 0xff;
+                //Make a new shift if no match was found.
+                if (pattern.charAt(j) != residue) {
+                    shift = Math.max(1, j - shifts[residue]);
+                    break;
+                }
+            }
+            if (shift == 0) return i; // found
+        }
+        return -1; // not found
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package tools;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size set of bits that can be set by several threads at the same time. Bits can only be set, not cleared,
+ * so the amount of set bits is counted exactly without a lock.
+ * @author vnijenhuis
+ */
+public class ConcurrentBitSet {
+
+    /**
+     * Bits of the set, 64 per word.
+     */
+    private final AtomicLongArray words;
+
+    /**
+     * Amount of set bits.
+     */
+    private final AtomicInteger cardinality = new AtomicInteger();
+
+    /**
+     * Creates an empty set.
+     * @param size amount of bits.
+     */
+    public ConcurrentBitSet(final int size) {
+        words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    /**
+     * Checks if a bit is set.
+     * @param index index of the bit.
+     * @return true if the bit is set, else false.
+     */
+    public final boolean get(final int index) {
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * Sets a bit.
+     * @param index index of the bit.
+     * @return true if this call set the bit, false if it was already set.
+     */
+    public final boolean set(final int index) {
+        int word = index >>> 6;
+        long bit = 1L << index;
+        long current = words.get(word);
+        while ((current & bit) == 0) {
+            if (words.compareAndSet(word, current, current | bit)) {
+                cardinality.incrementAndGet();
+                return true;
+            }
+            current = words.get(word);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the amount of set bits.
+     * @return amount of bits as int.
+     */
+    public final int cardinality() {
+        return cardinality.get();
+    }
+}
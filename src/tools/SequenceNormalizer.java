@@ -0,0 +1,168 @@
+/*
+ * @author Vikthor Nijenhuis
+ * @project peptide spectrum identification quality control  *
+ */
+package tools;
+
+/**
+ * Normalizes peptide sequences of PEAKS exports without regular expressions.
+ * A sequence such as K.PEPM(+15.99)TIDE.R has flanking residues (K. and .R) and modifications ((+15.99)). Removing
+ * them gives the sequence that is used to compare peptides (PEPMTIDE). A modification is a mass between brackets with
+ * an optional sign, as matched by \(\+?\-?[0-9]+\.[0-9]+\).
+ * @author vnijenhuis
+ */
+public class SequenceNormalizer {
+
+    /**
+     * Characters with a special meaning in a regular expression.
+     */
+    private static final String REGEX_CHARACTERS = "\\[](){}.*+?^$|";
+
+    /**
+     * Removes the flanking residues of a sequence, like replaceAll("\\.[A-Z]$", "") followed by
+     * replaceAll("^[A-Z]\\.", "").
+     * @param sequence peptide sequence.
+     * @return sequence without flanking residues, or the given sequence if it has none.
+     */
+    public static String removeFlankingResidues(final String sequence) {
+        int start = 0;
+        int end = sequence.length();
+        //The $ of a regular expression also matches before a line terminator at the end.
+        int terminator = end;
+        if (end >= 2 && sequence.charAt(end - 2) == '\r' && sequence.charAt(end - 1) == '\n') {
+            terminator = end - 2;
+        } else if (end >= 1 && isLineTerminator(sequence.charAt(end - 1))) {
+            terminator = end - 1;
+        }
+        int cut = -1;
+        if (terminator >= 2 && sequence.charAt(terminator - 2) == '.' && isUpperCase(sequence.charAt(terminator - 1))) {
+            cut = terminator - 2;
+        }
+        String trimmed = sequence;
+        if (cut >= 0) {
+            trimmed = sequence.substring(0, cut) + sequence.substring(cut + 2);
+            end = trimmed.length();
+        }
+        if (end >= 2 && isUpperCase(trimmed.charAt(0)) && trimmed.charAt(1) == '.') {
+            start = 2;
+        }
+        return trimmed.substring(start);
+    }
+
+    /**
+     * Removes the modifications of a sequence, like replaceAll("\\(\\+?\\-?[0-9]+\\.[0-9]+\\)", "").
+     * @param sequence peptide sequence.
+     * @return sequence without modifications, or the given sequence if it has none.
+     */
+    public static String removeModifications(final String sequence) {
+        int bracket = sequence.indexOf('(');
+        if (bracket < 0) {
+            return sequence;
+        }
+        StringBuilder builder = new StringBuilder(sequence.length());
+        int copied = 0;
+        while (bracket >= 0) {
+            int end = getModificationEnd(sequence, bracket);
+            if (end > 0) {
+                builder.append(sequence, copied, bracket);
+                copied = end;
+                bracket = sequence.indexOf('(', end);
+            } else {
+                bracket = sequence.indexOf('(', bracket + 1);
+            }
+        }
+        if (copied == 0) {
+            return sequence;
+        }
+        return builder.append(sequence, copied, sequence.length()).toString();
+    }
+
+    /**
+     * Checks if a sequence matches a pattern, like sequence.matches(pattern). The regular expression is only used
+     * when the pattern contains characters with a special meaning, otherwise the strings are compared.
+     * @param sequence sequence or other text.
+     * @param pattern sequence or regular expression.
+     * @return true if the sequence matches the pattern, else false.
+     */
+    public static boolean matches(final String sequence, final String pattern) {
+        if (isLiteral(pattern)) {
+            return sequence.equals(pattern);
+        }
+        return sequence.matches(pattern);
+    }
+
+    /**
+     * Checks if a pattern does not contain characters with a special meaning in a regular expression. Such a pattern
+     * only matches itself.
+     * @param pattern sequence or regular expression.
+     * @return true if the pattern only matches itself, else false.
+     */
+    public static boolean isLiteral(final String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if (REGEX_CHARACTERS.indexOf(pattern.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the end of the modification that starts at an opening bracket.
+     * @param sequence peptide sequence.
+     * @param bracket index of the opening bracket.
+     * @return index after the closing bracket, or -1 if no modification starts at the bracket.
+     */
+    private static int getModificationEnd(final String sequence, final int bracket) {
+        int length = sequence.length();
+        int i = bracket + 1;
+        if (i < length && sequence.charAt(i) == '+') {
+            i++;
+        }
+        if (i < length && sequence.charAt(i) == '-') {
+            i++;
+        }
+        int digits = i;
+        while (i < length && isDigit(sequence.charAt(i))) {
+            i++;
+        }
+        if (i == digits || i == length || sequence.charAt(i) != '.') {
+            return -1;
+        }
+        i++;
+        digits = i;
+        while (i < length && isDigit(sequence.charAt(i))) {
+            i++;
+        }
+        if (i == digits || i == length || sequence.charAt(i) != ')') {
+            return -1;
+        }
+        return i + 1;
+    }
+
+    /**
+     * Checks if a character is matched by [0-9].
+     * @param character character.
+     * @return true if the character is a digit, else false.
+     */
+    private static boolean isDigit(final char character) {
+        return character >= '0' && character <= '9';
+    }
+
+    /**
+     * Checks if a character is matched by [A-Z].
+     * @param character character.
+     * @return true if the character is an upper case letter, else false.
+     */
+    private static boolean isUpperCase(final char character) {
+        return character >= 'A' && character <= 'Z';
+    }
+
+    /**
+     * Checks if a character is a line terminator of a regular expression.
+     * @param character character.
+     * @return true if the character ends a line, else false.
+     */
+    private static boolean isLineTerminator(final char character) {
+        return character == '\n' || character == '\r' || character == '\u0085' || character == '\u2028' || character == '\u2029';
+    }
+}